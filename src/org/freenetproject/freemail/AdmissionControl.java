@@ -0,0 +1,260 @@
+/*
+ * AdmissionControl.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.freenetproject.freemail.config.ConfigClient;
+import org.freenetproject.freemail.config.Configurator;
+import org.freenetproject.freemail.utils.Logger;
+
+/**
+ * Limits the number of client connections and concurrent heavy commands (message
+ * transfers such as FETCH BODY, APPEND and DATA) that the IMAP and SMTP servers
+ * will handle. A request that is over the limit waits for a free slot for up to
+ * the configured admission timeout before it is rejected. A limit of 0 or less
+ * means unlimited.
+ */
+public class AdmissionControl implements ConfigClient {
+	private static final int DEFAULT_MAX_CONNECTIONS = 64;
+	private static final int DEFAULT_MAX_ACCOUNT_CONNECTIONS = 8;
+	private static final int DEFAULT_MAX_ACCOUNT_TRANSFERS = 2;
+	private static final long DEFAULT_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+	public enum Kind {
+		/** A client connection to either server */
+		CONNECTION,
+		/** An authenticated connection belonging to a single account */
+		ACCOUNT_CONNECTION,
+		/** A message transfer belonging to a single account */
+		TRANSFER
+	}
+
+	private final Limiter connections = new Limiter(Kind.CONNECTION);
+	private final Map<String, Limiter> accountConnections = new HashMap<String, Limiter>();
+	private final Map<String, Limiter> accountTransfers = new HashMap<String, Limiter>();
+
+	private final Map<Kind, Counters> counters = new EnumMap<Kind, Counters>(Kind.class);
+
+	private int maxAccountConnections;
+	private int maxAccountTransfers;
+	private volatile long timeout;
+
+	/**
+	 * Creates an instance without any limits, for use where no configuration is
+	 * available.
+	 */
+	public AdmissionControl() {
+		for(Kind kind : Kind.values()) {
+			counters.put(kind, new Counters());
+		}
+		timeout = DEFAULT_TIMEOUT;
+	}
+
+	public AdmissionControl(Configurator cfg) {
+		this();
+		cfg.register(Configurator.MAX_CONNECTIONS, this, Integer.toString(DEFAULT_MAX_CONNECTIONS));
+		cfg.register(Configurator.MAX_ACCOUNT_CONNECTIONS, this,
+				Integer.toString(DEFAULT_MAX_ACCOUNT_CONNECTIONS));
+		cfg.register(Configurator.MAX_ACCOUNT_TRANSFERS, this, Integer.toString(DEFAULT_MAX_ACCOUNT_TRANSFERS));
+		cfg.register(Configurator.ADMISSION_TIMEOUT, this,
+				Long.toString(TimeUnit.MILLISECONDS.toSeconds(DEFAULT_TIMEOUT)));
+	}
+
+	@Override
+	public void setConfigProp(String key, String val) {
+		try {
+			if(key.equalsIgnoreCase(Configurator.MAX_CONNECTIONS)) {
+				connections.setLimit(Integer.parseInt(val));
+			} else if(key.equalsIgnoreCase(Configurator.MAX_ACCOUNT_CONNECTIONS)) {
+				synchronized(accountConnections) {
+					maxAccountConnections = Integer.parseInt(val);
+					for(Limiter limiter : accountConnections.values()) {
+						limiter.setLimit(maxAccountConnections);
+					}
+				}
+			} else if(key.equalsIgnoreCase(Configurator.MAX_ACCOUNT_TRANSFERS)) {
+				synchronized(accountTransfers) {
+					maxAccountTransfers = Integer.parseInt(val);
+					for(Limiter limiter : accountTransfers.values()) {
+						limiter.setLimit(maxAccountTransfers);
+					}
+				}
+			} else if(key.equalsIgnoreCase(Configurator.ADMISSION_TIMEOUT)) {
+				timeout = TimeUnit.SECONDS.toMillis(Long.parseLong(val));
+			}
+		} catch(NumberFormatException e) {
+			Logger.error(this, "Invalid value for " + key + ": " + val);
+		}
+	}
+
+	/**
+	 * Waits for a free connection slot. If this returns {@code true} the caller
+	 * must call {@link #releaseConnection()} when the connection is closed.
+	 * @return {@code true} if the connection was admitted, {@code false} if it
+	 *         should be rejected
+	 */
+	public boolean acquireConnection() {
+		return connections.acquire(timeout);
+	}
+
+	public void releaseConnection() {
+		connections.release();
+	}
+
+	/**
+	 * Waits for a free connection slot for the given account. If this returns
+	 * {@code true} the caller must call {@link #releaseAccountConnection(String)}
+	 * when the connection is closed or logs out.
+	 * @param account the identity of the account
+	 * @return {@code true} if the connection was admitted, {@code false} if it
+	 *         should be rejected
+	 */
+	public boolean acquireAccountConnection(String account) {
+		return getLimiter(accountConnections, account, Kind.ACCOUNT_CONNECTION).acquire(timeout);
+	}
+
+	public void releaseAccountConnection(String account) {
+		getLimiter(accountConnections, account, Kind.ACCOUNT_CONNECTION).release();
+	}
+
+	/**
+	 * Waits for a free transfer slot for the given account. If this returns
+	 * {@code true} the caller must call {@link #releaseTransfer(String)} when the
+	 * transfer is done.
+	 * @param account the identity of the account
+	 * @return {@code true} if the transfer was admitted, {@code false} if it
+	 *         should be rejected
+	 */
+	public boolean acquireTransfer(String account) {
+		return getLimiter(accountTransfers, account, Kind.TRANSFER).acquire(timeout);
+	}
+
+	public void releaseTransfer(String account) {
+		getLimiter(accountTransfers, account, Kind.TRANSFER).release();
+	}
+
+	/**
+	 * Returns the number of requests of the given kind that are currently waiting
+	 * for a free slot.
+	 */
+	public int getQueueDepth(Kind kind) {
+		Counters c = counters.get(kind);
+		synchronized(c) {
+			return c.waiting;
+		}
+	}
+
+	/**
+	 * Returns the number of requests of the given kind that have been rejected
+	 * since startup.
+	 */
+	public long getRejectedCount(Kind kind) {
+		Counters c = counters.get(kind);
+		synchronized(c) {
+			return c.rejected;
+		}
+	}
+
+	private Limiter getLimiter(Map<String, Limiter> limiters, String account, Kind kind) {
+		synchronized(limiters) {
+			Limiter limiter = limiters.get(account);
+			if(limiter == null) {
+				limiter = new Limiter(kind);
+				limiter.setLimit(kind == Kind.TRANSFER ? maxAccountTransfers : maxAccountConnections);
+				limiters.put(account, limiter);
+			}
+			return limiter;
+		}
+	}
+
+	private static class Counters {
+		private int waiting = 0;
+		private long rejected = 0;
+	}
+
+	private class Limiter {
+		private final Kind kind;
+		private int limit = 0;
+		private int active = 0;
+
+		private Limiter(Kind kind) {
+			this.kind = kind;
+		}
+
+		private synchronized void setLimit(int limit) {
+			this.limit = limit;
+			notifyAll();
+		}
+
+		private synchronized boolean acquire(long timeoutMillis) {
+			if(limit <= 0 || active < limit) {
+				active++;
+				return true;
+			}
+
+			Counters c = counters.get(kind);
+			synchronized(c) {
+				c.waiting++;
+			}
+			try {
+				long deadline = System.currentTimeMillis() + timeoutMillis;
+				while(limit > 0 && active >= limit) {
+					long remaining = deadline - System.currentTimeMillis();
+					if(remaining <= 0) {
+						synchronized(c) {
+							c.rejected++;
+						}
+						Logger.minor(AdmissionControl.this, "Rejecting request of kind " + kind + " (limit " + limit + ")");
+						return false;
+					}
+
+					try {
+						wait(remaining);
+					} catch(InterruptedException e) {
+						synchronized(c) {
+							c.rejected++;
+						}
+						Thread.currentThread().interrupt();
+						return false;
+					}
+				}
+
+				active++;
+				return true;
+			} finally {
+				synchronized(c) {
+					c.waiting--;
+				}
+			}
+		}
+
+		private synchronized void release() {
+			assert (active > 0) : "Released more slots than were acquired";
+			if(active > 0) {
+				active--;
+			}
+			notify();
+		}
+	}
+}
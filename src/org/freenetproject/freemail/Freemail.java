@@ -33,12 +33,14 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import org.freenetproject.freemail.config.ConfigClient;
 import org.freenetproject.freemail.config.Configurator;
-import org.freenetproject.freemail.fcp.FCPConnection;
+import org.freenetproject.freemail.fcp.FCPConnectionPool;
 import org.freenetproject.freemail.fcp.FCPContext;
 import org.freenetproject.freemail.imap.IMAPListener;
 import org.freenetproject.freemail.smtp.SMTPListener;
+import org.freenetproject.freemail.transport.FetchScheduler;
 import org.freenetproject.freemail.utils.Logger;
 import org.freenetproject.freemail.utils.Timer;
+import org.freenetproject.freemail.wot.IdentityCache;
 import org.freenetproject.freemail.wot.WoTConnection;
 
 
@@ -56,13 +58,15 @@ public abstract class Freemail implements ConfigClient {
 
 	private File datadir;
 	private static File tempdir;
-	protected static FCPConnection fcpconn = null;
+	protected static FCPConnectionPool fcpconn = null;
 
-	private Thread fcpThread;
 	private Thread smtpThread;
 	private Thread imapThread;
 
 	private final AccountManager accountManager;
+	private final AdmissionControl admissionControl;
+	private final IdentityCache identityCache;
+	private final FetchScheduler fetchScheduler;
 	private final SMTPListener smtpl;
 	private final IMAPListener imapl;
 
@@ -99,8 +103,8 @@ public abstract class Freemail implements ConfigClient {
 		 * the timeout expires the executor creates a new thread. Because of
 		 * this the timeout for the sender executor should be large to avoid
 		 * creating a large amount of threads, and for the default it should be
-		 * > Channel.TASK_RETRY_DELAY (since that makes the thread that runs
-		 * the Fetcher never time out).
+		 * > FetchScheduler.MIN_INTERVAL (since that makes the thread that runs
+		 * the channel polls never time out).
 		 */
 		defaultExecutor.setKeepAliveTime(10, TimeUnit.MINUTES);
 		defaultExecutor.allowCoreThreadTimeOut(true);
@@ -111,12 +115,15 @@ public abstract class Freemail implements ConfigClient {
 		configurator.register(Configurator.FCP_HOST, fcpctx, "localhost");
 		configurator.register(Configurator.FCP_PORT, fcpctx, "9481");
 
-		Freemail.fcpconn = new FCPConnection(fcpctx);
+		Freemail.fcpconn = new FCPConnectionPool(configurator, fcpctx);
 
 		accountManager = new AccountManager(datadir, this);
 
-		imapl = new IMAPListener(accountManager, configurator);
-		smtpl = new SMTPListener(accountManager, configurator, this);
+		admissionControl = new AdmissionControl(configurator);
+		identityCache = new IdentityCache(defaultExecutor, IdentityCache.DEFAULT_TTL);
+		fetchScheduler = new FetchScheduler(defaultExecutor, configurator);
+		imapl = new IMAPListener(accountManager, configurator, admissionControl);
+		smtpl = new SMTPListener(accountManager, configurator, this, admissionControl);
 	}
 
 	public WoTConnection getWotConnection() {
@@ -127,7 +134,7 @@ public abstract class Freemail implements ConfigClient {
 		return Freemail.tempdir;
 	}
 
-	public static FCPConnection getFCPConnection() {
+	public static FCPConnectionPool getFCPConnectionPool() {
 		return Freemail.fcpconn;
 	}
 
@@ -135,6 +142,18 @@ public abstract class Freemail implements ConfigClient {
 		return accountManager;
 	}
 
+	public AdmissionControl getAdmissionControl() {
+		return admissionControl;
+	}
+
+	public IdentityCache getIdentityCache() {
+		return identityCache;
+	}
+
+	public FetchScheduler getFetchScheduler() {
+		return fetchScheduler;
+	}
+
 	@Override
 	public void setConfigProp(String key, String val) {
 		if(key.equalsIgnoreCase(Configurator.DATA_DIR)) {
@@ -145,9 +164,7 @@ public abstract class Freemail implements ConfigClient {
 	}
 
 	protected void startFcp() {
-		fcpThread = new Thread(fcpconn, "Freemail FCP Connection");
-		fcpThread.setDaemon(true);
-		fcpThread.start();
+		fcpconn.start();
 	}
 
 	/** Set once on startup */
@@ -212,7 +229,7 @@ public abstract class Freemail implements ConfigClient {
 		Timer threadTermination = terminateTimer.startSubTimer();
 		smtpl.kill();
 		imapl.kill();
-		// now kill the FCP thread - that's what all the other threads will be waiting on
+		// now kill the FCP threads - that's what all the other threads will be waiting on
 		fcpconn.kill();
 		threadTermination.log(this, 1, TimeUnit.SECONDS, "Time spent killing other threads");
 
@@ -235,11 +252,8 @@ public abstract class Freemail implements ConfigClient {
 			imapThreadJoin.log(this, 1, TimeUnit.SECONDS, "Time spent joining IMAP thread");
 
 			Timer fcpThreadJoin = terminateTimer.startSubTimer();
-			if(fcpThread != null) {
-				fcpThread.join();
-				fcpThread = null;
-			}
-			fcpThreadJoin.log(this, 1, TimeUnit.SECONDS, "Time spent joining FCP thread");
+			fcpconn.join();
+			fcpThreadJoin.log(this, 1, TimeUnit.SECONDS, "Time spent joining FCP threads");
 		} catch (InterruptedException ie) {
 
 		}
@@ -19,22 +19,48 @@
 
 package org.freenetproject.freemail;
 
-import org.archive.util.Base32;
+import java.io.DataInput;
+import java.io.IOException;
 
-import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.archive.util.Base32;
 
+/** A SlotManager for slots that are the hash of the slot before them. In the binary
+ *  form the slots are stored as the raw hash instead of the Base32 encoding.
+ */
 public class HashSlotManager extends SlotManager {
+	private final SlotChain chain;
+
 	HashSlotManager(SlotSaveCallback cb, Object userdata, String slotlist) {
+		this(cb, userdata, slotlist, new SlotChain());
+	}
+
+	public HashSlotManager(SlotSaveCallback cb, Object userdata, String slotlist, SlotChain chain) {
 		super(cb, userdata, slotlist);
+		this.chain = chain;
+	}
+
+	public HashSlotManager(SlotSaveCallback cb, Object userdata, DataInput in, SlotChain chain) throws IOException {
+		super(cb, userdata, in);
+		this.chain = chain;
 	}
 
 	@Override
 	protected String incSlot(String slot) {
-		byte[] buf = Base32.decode(slot);
-		SHA256Digest sha256 = new SHA256Digest();
-		sha256.update(buf, 0, buf.length);
-		sha256.doFinal(buf, 0);
+		return chain.next(slot);
+	}
+
+	@Override
+	protected String incSlot(String slot, int steps) {
+		return chain.get(slot, steps);
+	}
 
-		return Base32.encode(buf);
+	@Override
+	protected byte[] slotToBytes(String slot) {
+		return Base32.decode(slot);
+	}
+
+	@Override
+	protected String slotFromBytes(byte[] raw) {
+		return Base32.encode(raw);
 	}
 }
@@ -25,6 +25,7 @@ import java.io.UnsupportedEncodingException;
 
 import org.freenetproject.freemail.fcp.ConnectionTerminatedException;
 import org.freenetproject.freemail.fcp.HighLevelFCPClient;
+import org.freenetproject.freemail.fcp.RequestType;
 import org.freenetproject.freemail.utils.Logger;
 import org.freenetproject.freemail.utils.PropsFile;
 
@@ -84,7 +85,7 @@ public class MailSite {
 
 		int actualslot = -1;
 		try {
-			actualslot = cli.slotInsert(mailpage, key, minslot, "/"+MAILPAGE);
+			actualslot = cli.slotInsert(mailpage, key, minslot, "/"+MAILPAGE, RequestType.MAILSITE_INSERT);
 		} catch (ConnectionTerminatedException cte) {
 			return -1;
 		}
@@ -49,12 +49,16 @@ import org.freenetproject.freemail.fcp.ConnectionTerminatedException;
 import org.freenetproject.freemail.fcp.FCPException;
 import org.freenetproject.freemail.fcp.FCPFetchException;
 import org.freenetproject.freemail.fcp.HighLevelFCPClient;
+import org.freenetproject.freemail.fcp.RequestType;
 import org.freenetproject.freemail.support.io.LineReadingInputStream;
 import org.freenetproject.freemail.support.io.TooLongException;
 import org.freenetproject.freemail.utils.DateStringFactory;
 import org.freenetproject.freemail.utils.Logger;
 import org.freenetproject.freemail.utils.PropsFile;
 
+import freenet.support.api.Bucket;
+import freenet.support.io.BucketTools;
+
 
 public class RTSFetcher implements SlotSaveCallback {
 	private String rtskey;
@@ -164,16 +168,27 @@ public class RTSFetcher implements SlotSaveCallback {
 			Logger.minor(this, "trying to fetch "+keybase+slot);
 
 			try {
-				File result = fcpcli.fetch(keybase+slot);
+				Bucket result = fcpcli.fetch(keybase+slot, RequestType.RTS_POLL);
 
 				Logger.normal(this, keybase+slot+": got RTS!");
 
 				File rts_dest = new File(this.contact_dir, RTS_UNPROC_PREFIX + "-" + log.getAndIncUnprocNextId()+",0");
 
 				// stick this message in the RTS 'inbox'
-				if(result.renameTo(rts_dest)) {
+				try {
+					FileOutputStream fos = new FileOutputStream(rts_dest);
+					try {
+						BucketTools.copyTo(result, fos, -1);
+					} finally {
+						fos.close();
+					}
 					// provided that worked, we can move on to the next RTS message
 					sm.slotUsed();
+				} catch (IOException ioe) {
+					Logger.error(this, "Couldn't store RTS message: " + ioe.getMessage());
+					rts_dest.delete();
+				} finally {
+					result.free();
 				}
 			} catch (FCPFetchException fe) {
 				if(fe.isFatal()) {
@@ -322,9 +337,9 @@ public class RTSFetcher implements SlotSaveCallback {
 		HighLevelFCPClient fcpcli = new HighLevelFCPClient();
 
 		Logger.normal(this, "Trying to fetch sender's mailsite: "+their_mailsite);
-		File msfile;
+		Bucket msdata;
 		try {
-			msfile = fcpcli.fetch(their_mailsite);
+			msdata = fcpcli.fetch(their_mailsite, RequestType.MAILSITE_FETCH);
 		} catch (FCPFetchException fe) {
 			// oh well, try again in a bit
 			rtsfile.delete();
@@ -337,13 +352,21 @@ public class RTSFetcher implements SlotSaveCallback {
 			return false;
 		}
 
-		PropsFile mailsite = PropsFile.createPropsFile(msfile);
+		PropsFile mailsite;
+		try {
+			mailsite = PropsFile.createPropsFile(msdata.getInputStream(), false);
+		} catch (IOException ioe) {
+			Logger.error(this, "Couldn't read sender's mailsite: " + ioe.getMessage());
+			rtsfile.delete();
+			return false;
+		} finally {
+			msdata.free();
+		}
 		String their_exponent = mailsite.get("asymkey.pubexponent");
 		String their_modulus = mailsite.get("asymkey.modulus");
 
 		if(their_exponent == null || their_modulus == null) {
 			Logger.normal(this, "Mailsite fetched successfully but missing vital information! Discarding this RTS.");
-			msfile.delete();
 			rtsfile.delete();
 			return true;
 		}
@@ -357,7 +380,6 @@ public class RTSFetcher implements SlotSaveCallback {
 			their_hash = deccipher.processBlock(their_encrypted_sig, 0, deccipher.getInputBlockSize());
 		} catch (InvalidCipherTextException icte) {
 			Logger.normal(this, "It was not possible to decrypt the signature of this RTS message. Discarding the RTS message.");
-			msfile.delete();
 			rtsfile.delete();
 			return true;
 		}
@@ -366,7 +388,6 @@ public class RTSFetcher implements SlotSaveCallback {
 		// match!
 		if(their_hash.length < our_hash.length) {
 			Logger.normal(this, "The signature of the RTS message is not valid (our hash: "+our_hash.length+"bytes, their hash: "+their_hash.length+"bytes. Discarding the RTS message.");
-			msfile.delete();
 			rtsfile.delete();
 			return true;
 		}
@@ -374,7 +395,6 @@ public class RTSFetcher implements SlotSaveCallback {
 		for(i = 0; i < our_hash.length; i++) {
 			if(their_hash[i] != our_hash[i]) {
 				Logger.normal(this, "The signature of the RTS message is not valid. Discarding the RTS message.");
-				msfile.delete();
 				rtsfile.delete();
 				return true;
 			}
@@ -384,7 +404,6 @@ public class RTSFetcher implements SlotSaveCallback {
 		// Now verify the message is for us
 		if(!account.getIdentity().equals(rtsprops.get("to"))) {
 			Logger.normal(this, "Recieved an RTS message that was not intended for the recipient. Discarding.");
-			msfile.delete();
 			rtsfile.delete();
 			return true;
 		}
@@ -392,9 +411,6 @@ public class RTSFetcher implements SlotSaveCallback {
 		Logger.normal(this, "Original message intended for us :)");
 
 		//Clean up temp files
-		if(!msfile.delete()) {
-			Logger.error(this, "Couldn't delete fetched mailsite: " + msfile);
-		}
 		if(!rtsfile.delete()) {
 			Logger.error(this, "Couldn't delete rts file: " + rtsfile);
 		}
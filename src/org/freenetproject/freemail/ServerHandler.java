@@ -22,7 +22,7 @@ package org.freenetproject.freemail;
 import java.net.Socket;
 import java.io.IOException;
 
-public abstract class ServerHandler {
+public abstract class ServerHandler implements Runnable {
 	protected final Socket client;
 	protected volatile boolean stopping = false;
 
@@ -20,16 +20,22 @@
 package org.freenetproject.freemail;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.ServerSocket;
+import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Iterator;
 
+import org.freenetproject.freemail.utils.Logger;
+
 public abstract class ServerListener {
 	protected ServerSocket sock;
+	protected final AdmissionControl admissionControl;
 	private final ArrayList<ServerHandler> handlers;
 	private final ArrayList<Thread> handlerThreads;
 
-	protected ServerListener() {
+	protected ServerListener(AdmissionControl admissionControl) {
+		this.admissionControl = admissionControl;
 		handlers = new ArrayList<ServerHandler>();
 		handlerThreads = new ArrayList<Thread>();
 	}
@@ -69,6 +75,56 @@ public abstract class ServerListener {
 		}
 	}
 
+	/**
+	 * Waits for the global connection limit to allow another client. If the
+	 * client isn't admitted in time the rejection line is sent and the socket is
+	 * closed. Admitted clients must be started using
+	 * {@link #startHandler(ServerHandler, String)} so the slot is released again.
+	 * @param clientSocket the newly accepted client socket
+	 * @param rejection the protocol line (without line ending) sent to rejected clients
+	 * @return {@code true} if the client was admitted
+	 */
+	protected boolean admit(Socket clientSocket, String rejection) {
+		if(admissionControl.acquireConnection()) {
+			return true;
+		}
+
+		Logger.normal(this, "Rejecting connection from " + clientSocket.getInetAddress() + ", too many connections");
+		try {
+			OutputStream os = clientSocket.getOutputStream();
+			os.write((rejection + "\r\n").getBytes("UTF-8"));
+			os.flush();
+		} catch (IOException ioe) {
+			//Closing it anyway
+		}
+		try {
+			clientSocket.close();
+		} catch (IOException ioe) {
+
+		}
+		return false;
+	}
+
+	/**
+	 * Starts a daemon thread running the given handler. The connection slot taken
+	 * by {@link #admit(Socket, String)} is released when the handler returns.
+	 */
+	protected void startHandler(final ServerHandler hdlr, String threadName) {
+		Thread thrd = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					hdlr.run();
+				} finally {
+					admissionControl.releaseConnection();
+				}
+			}
+		}, threadName);
+		thrd.setDaemon(true);
+		thrd.start();
+		addHandler(hdlr, thrd);
+	}
+
 	protected void addHandler(ServerHandler hdlr, Thread thrd) {
 		synchronized(handlers) {
 			handlers.add(hdlr);
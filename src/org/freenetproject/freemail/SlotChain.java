@@ -0,0 +1,113 @@
+/*
+ * SlotChain.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.archive.util.Base32;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+
+/**
+ * Cache of a hash chain of slots, where each slot is the SHA-256 hash of the one before
+ * it. The slots after the most recently requested one are kept as raw bytes and extended
+ * as they are needed, so polling the same slots again, or moving along the chain as slots
+ * are used, doesn't hash or decode anything that has been seen already. Asking for a slot
+ * that isn't in the chain starts a new one.
+ */
+public class SlotChain {
+	/** Slots before the one that was asked for are dropped once there are this many */
+	private static final int MAX_PASSED = 16;
+
+	private final SHA256Digest sha256 = new SHA256Digest();
+
+	/** The raw slots of the chain, each the hash of the previous one */
+	private final List<byte[]> raw = new ArrayList<byte[]>();
+
+	/** The encoded form of the slots in {@code raw}, or {@code null} if not encoded yet */
+	private final List<String> encoded = new ArrayList<String>();
+
+	/**
+	 * Returns the slot that follows the given one.
+	 */
+	public String next(String slot) {
+		return get(slot, 1);
+	}
+
+	/**
+	 * Returns the slot that is {@code n} steps after the given one in the chain.
+	 */
+	public synchronized String get(String slot, int n) {
+		if(n < 0) throw new IllegalArgumentException("n must be >= 0, was " + n);
+
+		int index = find(slot);
+		if(index < 0) {
+			raw.clear();
+			encoded.clear();
+			raw.add(Base32.decode(slot));
+			encoded.add(slot);
+			index = 0;
+		} else if(index >= MAX_PASSED) {
+			raw.subList(0, index).clear();
+			encoded.subList(0, index).clear();
+			index = 0;
+		}
+
+		int target = index + n;
+		while(raw.size() <= target) {
+			byte[] prev = raw.get(raw.size() - 1);
+
+			//The hash replaces the start of the buffer, which is all of it for normal slots
+			byte[] buf = prev.clone();
+			sha256.update(prev, 0, prev.length);
+			sha256.doFinal(buf, 0);
+			raw.add(buf);
+			encoded.add(null);
+		}
+
+		String result = encoded.get(target);
+		if(result == null) {
+			result = Base32.encode(raw.get(target));
+			encoded.set(target, result);
+		}
+		return result;
+	}
+
+	private int find(String slot) {
+		for(int i = 0; i < encoded.size(); i++) {
+			if(slot.equals(encoded.get(i))) {
+				return i;
+			}
+		}
+
+		//The slot might be in the chain without having been encoded yet
+		if(encoded.contains(null)) {
+			byte[] decoded = Base32.decode(slot);
+			for(int i = 0; i < raw.size(); i++) {
+				if(encoded.get(i) == null && Arrays.equals(decoded, raw.get(i))) {
+					encoded.set(i, slot);
+					return i;
+				}
+			}
+		}
+		return -1;
+	}
+}
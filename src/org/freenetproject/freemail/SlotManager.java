@@ -21,32 +21,44 @@
 
 package org.freenetproject.freemail;
 
-import java.util.Vector;
-import java.util.Enumeration;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
 
 /** Manages sequences of slots which are polled for messages, keeping track of which
  *  ones still need to be checked, which ones are used and which have expired.
+ *
+ *  The slots can be stored either in the original text form, a comma separated list
+ *  of slots with the time they were added, or in a binary form written by
+ *  {@link #writeSlots(DataOutput)} where subclasses decide how each slot is encoded.
  */
 public abstract class SlotManager {
 	// how long we should keep checking a slot for which a successive slot has
 	// had a message retrieved on
 	private static final long SLOT_LIFETIME = 7 * 24 * 60 * 60 * 1000;
 	private static final int DEFAULT_POLL_AHEAD = 3;
+	private static final int BINARY_VERSION = 1;
 
-	// 'slots' contains all unused slots, in order for which there is a
-	// higher slot that is used. If there are no such slots, it contains the
-	// first free slot
-	private Vector<Slot> slots;
-	private int nextSlotNum;
+	// 'visited' followed by 'pending' contains all unused slots, in order for
+	// which there is a higher slot that is used. If there are no such slots,
+	// it contains the first free slot. 'visited' holds the slots that have been
+	// returned by getNextSlot() during this pass, 'pending' the rest.
+	private final Deque<Slot> visited = new ArrayDeque<Slot>();
+	private final Deque<Slot> pending = new ArrayDeque<Slot>();
+	// the number of slots after the last one in the list that have been returned
+	private int ahead;
 	private final SlotSaveCallback cb;
 	private final Object userdata;
 	private int pollAhead;
 
 	protected SlotManager(SlotSaveCallback cb, Object userdata, String slotlist) {
-		this.slots = new Vector<Slot>();
 		this.cb = cb;
 		this.userdata = userdata;
-		this.nextSlotNum = 0;
+		this.ahead = 0;
 		this.pollAhead = DEFAULT_POLL_AHEAD;
 
 		String parts[] = slotlist.split(",");
@@ -60,8 +72,39 @@ public abstract class SlotManager {
 			else
 				s.time_added = -1;
 
-			this.slots.add(s);
+			this.pending.add(s);
+		}
+		this.expireSlots();
+	}
+
+	/** Reads slots in the form written by {@link #writeSlots(DataOutput)}. Note that
+	 *  {@link #slotFromBytes(byte[])} is called before the subclass constructor has run.
+	 */
+	protected SlotManager(SlotSaveCallback cb, Object userdata, DataInput in) throws IOException {
+		this.cb = cb;
+		this.userdata = userdata;
+		this.ahead = 0;
+		this.pollAhead = DEFAULT_POLL_AHEAD;
+
+		int version = in.readUnsignedByte();
+		if(version != BINARY_VERSION) {
+			throw new IOException("Unknown slot format version " + version);
+		}
+
+		int count = in.readInt();
+		if(count < 1) {
+			throw new IOException("Invalid slot count " + count);
+		}
+		for(int i = 0; i < count; i++) {
+			byte[] raw = new byte[in.readUnsignedByte()];
+			in.readFully(raw);
+
+			Slot s = new Slot();
+			s.slot = this.slotFromBytes(raw);
+			s.time_added = in.readLong();
+			this.pending.add(s);
 		}
+		this.expireSlots();
 	}
 
 	/** Set the number of slots to poll after the last free one
@@ -77,62 +120,59 @@ public abstract class SlotManager {
 	/** Mark the last given slot as used
 	 */
 	public synchronized void slotUsed() {
-		if(this.nextSlotNum <= this.slots.size()) {
-			// it's one in the list. delete it and move the next
-			// pointer down to point to the same one
-			// (If nextSlotNum is 0, this should rightfully throw
-			// an ArrayIndexOutOfBoundsException
-			this.nextSlotNum--;
-			Slot s = this.slots.remove(this.nextSlotNum);
+		if(this.ahead == 0) {
+			// it's one in the list. delete it, so that the next
+			// slot in the list is still the one returned next
+			// (If no slot has been returned, this should rightfully
+			// throw a NoSuchElementException)
+			Slot s = this.visited.removeLast();
 			// additionally, if it was the last one, we need to push
 			// the next slot onto the end
-			if(this.nextSlotNum == this.slots.size()) {
+			if(this.pending.isEmpty()) {
 				s.slot = this.incSlot(s.slot);
 				// time added is -1 since no subsequent slots
 				// have been used
 				s.time_added = -1;
-				this.slots.add(s);
+				this.pending.add(s);
 			}
 		} else {
 			// add all the slots before the used one that aren't already
 			// in the list
 			// note that this also modifies the previously last slot with a timestamp
-			int i;
-			Slot s = this.slots.lastElement();
-			s.time_added = System.currentTimeMillis();
-			Slot s_new = new Slot();
-			s_new.slot = s.slot;
-			int slots_start_size = this.slots.size();
-			for(i = slots_start_size; i < this.nextSlotNum - 1; i++) {
-				s_new.slot = this.incSlot(s_new.slot);
-				// copy slot to a new object, otherwise we have an identical copy of the last slot n times
-				Slot s_copy=new Slot();
-				s_copy.slot = s_new.slot;
-				s_copy.time_added = System.currentTimeMillis();
-				this.slots.add(s_copy);
+			long now = System.currentTimeMillis();
+			Slot s = this.visited.getLast();
+			s.time_added = now;
+			String slot = s.slot;
+			for(int i = 1; i < this.ahead; i++) {
+				slot = this.incSlot(slot);
+				Slot s_copy = new Slot();
+				s_copy.slot = slot;
+				s_copy.time_added = now;
+				this.visited.add(s_copy);
 			}
-			// increment to get the used slot...
-			s_new.slot = this.incSlot(s_new.slot);
-			// and again to get the one that nextSlotNum is pointing at
-			s_new.slot = this.incSlot(s_new.slot);
-			// ...and add that one without time limit
+			// skip the used slot and add the one after it without time limit,
+			// which is the one that will be returned next
+			Slot s_new = new Slot();
+			s_new.slot = this.incSlot(slot, 2);
 			s_new.time_added = -1;
-			this.slots.add(s_new);
-			// decrease nextSlotNum since we just have removed one slot
-			this.nextSlotNum--;
+			this.pending.add(s_new);
+			this.ahead = 0;
 		}
 		this.saveSlots();
 	}
 
-	private void saveSlots() {
-		StringBuffer buf = new StringBuffer();
+	/** Called when the slots have changed. By default this passes the slots to the
+	 *  callback in the text form.
+	 */
+	protected void saveSlots() {
+		StringBuilder buf = new StringBuilder();
 
-		Enumeration<Slot> e = this.slots.elements();
 		boolean first = true;
-		while(e.hasMoreElements()) {
+		Iterator<Slot> it = this.slotIterator();
+		while(it.hasNext()) {
 			if(!first) buf.append(",");
 			first = false;
-			Slot s = e.nextElement();
+			Slot s = it.next();
 			buf.append(s.slot);
 			if(s.time_added > 0)
 				buf.append("=").append(Long.toString(s.time_added));
@@ -140,43 +180,132 @@ public abstract class SlotManager {
 		this.cb.saveSlots(buf.toString(), this.userdata);
 	}
 
+	/** Writes the slots in a form that can be read back by
+	 *  {@link #SlotManager(SlotSaveCallback, Object, DataInput)}.
+	 */
+	public synchronized void writeSlots(DataOutput out) throws IOException {
+		out.writeByte(BINARY_VERSION);
+		out.writeInt(this.visited.size() + this.pending.size());
+
+		Iterator<Slot> it = this.slotIterator();
+		while(it.hasNext()) {
+			Slot s = it.next();
+			byte[] raw = this.slotToBytes(s.slot);
+			if(raw.length > 255) {
+				throw new IOException("Slot too long: " + s.slot);
+			}
+			out.writeByte(raw.length);
+			out.write(raw);
+			out.writeLong(s.time_added);
+		}
+	}
+
+	/** Returns the binary form of the given slot. By default this is the UTF-8 encoding
+	 *  of the slot.
+	 */
+	protected byte[] slotToBytes(String slot) {
+		try {
+			return slot.getBytes("UTF-8");
+		} catch(UnsupportedEncodingException e) {
+			throw new AssertionError("JVM doesn't support UTF-8");
+		}
+	}
+
+	/** The inverse of {@link #slotToBytes(String)}
+	 */
+	protected String slotFromBytes(byte[] raw) {
+		try {
+			return new String(raw, "UTF-8");
+		} catch(UnsupportedEncodingException e) {
+			throw new AssertionError("JVM doesn't support UTF-8");
+		}
+	}
+
 	/** Method provided by subclasses to return the next slot given any slot
 	 */
 	protected abstract String incSlot(String slot);
 
+	/** Returns the slot that is the given number of steps after the given slot.
+	 *  Subclasses that can find it faster than by repeated calls to
+	 *  {@link #incSlot(String)} should override this.
+	 */
+	protected String incSlot(String slot, int steps) {
+		for(int i = 0; i < steps; i++) {
+			slot = this.incSlot(slot);
+		}
+		return slot;
+	}
+
 	public synchronized String getNextSlot() {
-		String retval = null;
-
-		boolean tryAgain = true;
-		while(tryAgain) {
-			tryAgain = false;
-			if(this.nextSlotNum >= this.slots.size() + this.pollAhead) {
-				// you've reached the end
-				retval = null;
-			} else if(this.nextSlotNum >= this.slots.size()) {
-				// we're into the unused slots. make one up.
-				Slot s = this.slots.lastElement();
-				int i;
-				retval = s.slot;
-				for(i = this.slots.size(); i <= this.nextSlotNum; i++) {
-					retval = this.incSlot(retval);
-				}
-			} else {
-				// we're looking at an unused slot
-				Slot s = this.slots.get(this.nextSlotNum);
-				// is this one too old?
-				if(s.time_added > 0 && s.time_added < System.currentTimeMillis() - SLOT_LIFETIME && this.nextSlotNum != this.slots.size() - 1) {
-					// this slot is too old. Forget it.
-					this.slots.remove(this.nextSlotNum);
-					tryAgain = true;
-				} else {
-					retval = s.slot;
-				}
+		while(!this.pending.isEmpty()) {
+			// we're looking at an unused slot
+			Slot s = this.pending.removeFirst();
+			// is this one too old?
+			if(this.pending.isEmpty() || !this.isExpired(s, System.currentTimeMillis())) {
+				this.visited.add(s);
+				return s.slot;
 			}
+			// this slot is too old. Forget it.
 		}
 
-		this.nextSlotNum++;
-		return retval;
+		if(this.ahead >= this.pollAhead) {
+			// you've reached the end
+			return null;
+		}
+
+		// we're into the unused slots. make one up.
+		this.ahead++;
+		return this.incSlot(this.visited.getLast().slot, this.ahead);
+	}
+
+	/** Starts over from the first slot, so that the same manager can be used for
+	 *  another pass over the slots. Slots that have expired are dropped.
+	 */
+	public synchronized void rewind() {
+		while(!this.visited.isEmpty()) {
+			this.pending.addFirst(this.visited.removeLast());
+		}
+		this.ahead = 0;
+		this.expireSlots();
+	}
+
+	/** Drops all the expired slots that haven't been returned yet, except the last
+	 *  one in the list
+	 */
+	private void expireSlots() {
+		long now = System.currentTimeMillis();
+		Iterator<Slot> it = this.pending.iterator();
+		while(it.hasNext()) {
+			Slot s = it.next();
+			if(it.hasNext() && this.isExpired(s, now)) {
+				it.remove();
+			}
+		}
+	}
+
+	private boolean isExpired(Slot s, long now) {
+		return s.time_added > 0 && s.time_added < now - SLOT_LIFETIME;
+	}
+
+	private Iterator<Slot> slotIterator() {
+		final Iterator<Slot> first = this.visited.iterator();
+		final Iterator<Slot> second = this.pending.iterator();
+		return new Iterator<Slot>() {
+			@Override
+			public boolean hasNext() {
+				return first.hasNext() || second.hasNext();
+			}
+
+			@Override
+			public Slot next() {
+				return first.hasNext() ? first.next() : second.next();
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
 	}
 
 	private static class Slot {
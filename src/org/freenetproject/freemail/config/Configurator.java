@@ -36,14 +36,23 @@ public class Configurator {
 	public static final String DATA_DIR = "datadir";
 	public static final String FCP_HOST = "fcp_host";
 	public static final String FCP_PORT = "fcp_port";
+	public static final String FCP_CONNECTIONS = "fcp_connections";
+	public static final String FCP_ADDITIONAL_NODES = "fcp_additional_nodes";
+	public static final String FCP_PERSISTENT_REQUESTS = "fcp_persistent_requests";
 	public static final String GLOBAL_DATA_DIR = "globaldatadir";
 	public static final String IMAP_BIND_ADDRESS = "imap_bind_address";
 	public static final String IMAP_BIND_PORT = "imap_bind_port";
 	public static final String LOG_LEVEL = "loglevel";
 	public static final String SMTP_BIND_ADDRESS = "smtp_bind_address";
 	public static final String SMTP_BIND_PORT = "smtp_bind_port";
+	public static final String SMTP_MAX_MESSAGE_SIZE = "smtp_max_message_size";
 	public static final String TEMP_DIR = "tempdir";
 	public static final String FILE_FORMAT = "fileformat";
+	public static final String MAX_CONNECTIONS = "max_connections";
+	public static final String MAX_ACCOUNT_CONNECTIONS = "max_account_connections";
+	public static final String MAX_ACCOUNT_TRANSFERS = "max_account_transfers";
+	public static final String ADMISSION_TIMEOUT = "admission_timeout";
+	public static final String FETCH_BUDGET = "fetch_budget";
 
 	private final PropsFile props;
 	private final HashMap<String, ConfigClient> callbacks;
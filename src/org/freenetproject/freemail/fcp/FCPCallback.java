@@ -0,0 +1,36 @@
+/*
+ * FCPCallback.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.fcp;
+
+/**
+ * Receives the result of an asynchronous request made through
+ * {@link HighLevelFCPClient}. The methods are called from the thread that reads
+ * from the FCP connection, so they must not block.
+ */
+public interface FCPCallback<T> {
+	public void onSuccess(T result);
+
+	/**
+	 * Called when the request fails. The exception is usually an
+	 * {@link FCPException}, or a {@link ConnectionTerminatedException} or
+	 * {@link NoNodeConnectionException} if a follow up request couldn't be sent.
+	 */
+	public void onFailure(Exception e);
+}
@@ -21,32 +21,82 @@
 
 package org.freenetproject.freemail.fcp;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.OutputStream;
 import java.io.InputStream;
 import java.net.Socket;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import org.freenetproject.freemail.utils.Logger;
 
 
 public class FCPConnection implements Runnable {
+	private static final int STREAM_BUFFER_SIZE = 32 * 1024;
+	private static final long MIN_RECONNECT_DELAY = TimeUnit.SECONDS.toMillis(1);
+	private static final long MAX_RECONNECT_DELAY = TimeUnit.MINUTES.toMillis(5);
+
+	/**
+	 * The prefix of the identifiers of Freemail's persistent requests. Messages about other
+	 * requests on the global queue are ignored.
+	 */
+	static final String PERSISTENT_PREFIX = "Freemail-";
+
 	/**
 	 * Whether the thread this service runs in should stop.
 	 */
 	protected volatile boolean stopping = false;
 
 	private final FCPContext fcpctx;
+	private final String clientName;
+	private final FCPConnectionPool pool;
 	private OutputStream os;
 	private InputStream is;
 	private Socket conn;
 	private int nextMsgId;
-	private final HashMap<String, FCPClient> clients;
+	private final HashMap<String, PendingRequest> clients;
+	private final FCPEncoder encoder = new FCPEncoder();
+
+	/** Only used by the thread that reads from the node */
+	private final FCPMessage.LineBuffer lineBuffer = new FCPMessage.LineBuffer();
+	private int listsSent = 0;
+	private long reconnectDelay = MIN_RECONNECT_DELAY;
+	private int listsEnded = 0;
+
+	/** Whether this connection has asked for the messages of the global queue */
+	private boolean watching = false;
+
+	/** Identifiers we have sent a RemoveRequest for that the node hasn't confirmed yet */
+	private final Set<String> removing = new HashSet<String>();
+
+	/**
+	 * Persistent requests that reuse an identifier that is being removed. They are sent
+	 * once the node has confirmed the removal, since the node would otherwise reply with
+	 * an IdentifierCollision, or remove the new request.
+	 */
+	private final HashMap<String, FCPMessage> afterRemoval = new HashMap<String, FCPMessage>();
 
 	public FCPConnection(FCPContext ctx) {
+		this(ctx, FCPMessage.DEFAULT_CLIENT_NAME, null);
+	}
+
+	/**
+	 * @param clientName the name sent to the node, which must be unique for each connection
+	 * @param pool the pool this connection belongs to, which will be asked to resend the
+	 *        requests that are in flight if the connection is lost, or {@code null}
+	 */
+	FCPConnection(FCPContext ctx, String clientName, FCPConnectionPool pool) {
 		this.fcpctx = ctx;
-		this.clients = new HashMap<String, FCPClient>();
+		this.clientName = clientName;
+		this.pool = pool;
+		this.clients = new HashMap<String, PendingRequest>();
 
 		this.tryConnect();
 	}
@@ -57,13 +107,16 @@ public class FCPConnection implements Runnable {
 		try {
 			this.nextMsgId = 1;
 			this.conn = this.fcpctx.getConn();
-			this.is = this.conn.getInputStream();
-			this.os = this.conn.getOutputStream();
+			InputStream newIs = new BufferedInputStream(this.conn.getInputStream(), STREAM_BUFFER_SIZE);
+			OutputStream newOs = new BufferedOutputStream(this.conn.getOutputStream(), STREAM_BUFFER_SIZE);
 
+			// the streams aren't published until the node has said hello, so
+			// no requests are sent before then
 			FCPMessage hello = new FCPMessage(this.nextMsgId, "ClientHello");
+			hello.headers.put("Name", clientName);
 			this.nextMsgId++;
-			hello.writeto(this.os);
-			FCPMessage reply = this.getMessage();
+			hello.writeto(newOs);
+			FCPMessage reply = new FCPMessage(newIs, this.lineBuffer);
 			if(reply.getType() == null) {
 				Logger.error(this, "Connection closed");
 				this.conn = null;
@@ -72,6 +125,15 @@ public class FCPConnection implements Runnable {
 			if(!reply.getType().equals("NodeHello")) {
 				Logger.error(this, "Warning - got '"+reply.getType()+"' from node, expecting 'NodeHello'");
 			}
+
+			synchronized(this) {
+				this.is = newIs;
+				this.os = newOs;
+			}
+			this.reconnectDelay = MIN_RECONNECT_DELAY;
+			if(pool != null) {
+				pool.onConnected(this);
+			}
 		} catch (IOException ioe) {
 			this.conn = null;
 			this.is = null;
@@ -84,6 +146,17 @@ public class FCPConnection implements Runnable {
 		}
 	}
 
+	/**
+	 * Returns the time to wait before the next connection attempt, which doubles
+	 * for each failed attempt. The delay is randomised so that several connections
+	 * don't all reconnect at the same moment.
+	 */
+	private long nextReconnectDelay() {
+		long delay = this.reconnectDelay;
+		this.reconnectDelay = Math.min(this.reconnectDelay * 2, MAX_RECONNECT_DELAY);
+		return delay / 2 + (long)(Math.random() * delay);
+	}
+
 	@Override
 	public void run() {
 		while(!stopping) {
@@ -95,20 +168,43 @@ public class FCPConnection implements Runnable {
 				if(msg.getType() == null) throw new IOException("Connection closed");
 				this.dispatch(msg);
 			} catch (IOException ioe) {
-				this.conn = null;
-				this.os = null;
-				this.is = null;
-				// tell all our clients it's all over
-				Iterator<FCPClient> i = this.clients.values().iterator();
-				while(i.hasNext()) {
-					FCPClient cli = i.next();
-					cli.requestFinished(new FCPMessage(1, "ConnectionClosed"));
+				List<PendingRequest> inFlight;
+				Set<String> unsent;
+				synchronized(this) {
+					this.conn = null;
+					this.os = null;
+					this.is = null;
+					this.listsSent = 0;
+					this.listsEnded = 0;
+					this.watching = false;
+					inFlight = new ArrayList<PendingRequest>(this.clients.values());
+					this.clients.clear();
+					unsent = new HashSet<String>(this.afterRemoval.keySet());
+					this.afterRemoval.clear();
+					this.removing.clear();
+				}
+				if(pool != null) {
+					pool.onDisconnected(this);
+				}
+
+				// move what we can to another connection, and tell the
+				// rest of our clients it's all over. Persistent requests
+				// are still running on the node, so they are reattached
+				// once there is a connection again.
+				for(PendingRequest request : inFlight) {
+					boolean sent = !unsent.contains(request.msg.getId());
+					if(pool != null && request.msg.isPersistent() && sent && pool.detach(request)) {
+						continue;
+					}
+					if(pool != null && pool.requeue(request.msg, request.client)) {
+						continue;
+					}
+					request.client.requestFinished(new FCPMessage(1, "ConnectionClosed"));
 				}
-				this.clients.clear();
 				// wait a bit
 				if(!stopping) {
 					try {
-						Thread.sleep(10000);
+						Thread.sleep(nextReconnectDelay());
 					} catch (InterruptedException ie) {
 						Logger.debug(this, "FCPConnection interrupted, stopping");
 						kill();
@@ -151,28 +247,152 @@ public class FCPConnection implements Runnable {
 	                                                                         ConnectionTerminatedException, FCPBadFileException {
 		if(stopping) throw new ConnectionTerminatedException("This FCP Connection has been terminated");
 		if(this.os == null) throw new NoNodeConnectionException("No Connection");
-		this.clients.put(msg.getId(), cli);
+		this.clients.put(msg.getId(), new PendingRequest(cli, msg));
+		if(msg.isPersistent() && this.removing.contains(msg.getId())) {
+			this.afterRemoval.put(msg.getId(), msg);
+			return;
+		}
 		try {
-			msg.writeto(this.os);
+			msg.writeto(this.os, this.encoder);
 		} catch (IOException ioe) {
+			this.clients.remove(msg.getId());
 			throw new NoNodeConnectionException(ioe.getMessage());
 		}
 	}
 
+	/**
+	 * Asks the node for the messages of the requests on its global queue, which is
+	 * where persistent requests are. Only one connection in the pool does this, since
+	 * the node sends every message of the global queue to every connection watching it.
+	 * @return {@code false} if there is no connection to the node
+	 */
+	synchronized boolean watchGlobal() {
+		if(stopping || this.os == null) return false;
+		if(this.watching) return true;
+
+		FCPMessage watch = this.getMessage("WatchGlobal");
+		watch.headers.put("Enabled", "true");
+		try {
+			watch.writeto(this.os, this.encoder);
+		} catch (IOException ioe) {
+			Logger.debug(this, "Couldn't watch the global queue: " + ioe.getMessage());
+			return false;
+		} catch (FCPBadFileException bfe) {
+			throw new AssertionError();
+		}
+		this.watching = true;
+		return true;
+	}
+
+	/**
+	 * Takes over persistent requests that were in flight on a connection that was
+	 * lost. The node is asked to list its persistent requests, which replays the
+	 * completion message of any request that finished in the meantime. Requests the
+	 * node doesn't list are failed as if the connection had been closed.
+	 * @return {@code false} if there is no connection to the node
+	 */
+	synchronized boolean attach(List<PendingRequest> requests) {
+		if(stopping || this.os == null) return false;
+
+		this.listsSent++;
+		for(PendingRequest request : requests) {
+			request.awaitedList = this.listsSent;
+			this.clients.put(request.msg.getId(), request);
+		}
+
+		try {
+			this.writeListRequest();
+		} catch (IOException ioe) {
+			// the reader thread will notice and detach them again
+			Logger.debug(this, "Couldn't ask node for persistent requests: " + ioe.getMessage());
+		}
+		return true;
+	}
+
+	private void writeListRequest() throws IOException {
+		try {
+			this.getMessage("ListPersistentRequests").writeto(this.os, this.encoder);
+		} catch (FCPBadFileException bfe) {
+			// won't be thrown since there is no data
+			throw new AssertionError();
+		}
+	}
+
+	/**
+	 * Returns the number of requests in flight on this connection, or -1 if
+	 * there is no connection to the node.
+	 */
+	synchronized int getLoad() {
+		if(stopping || this.os == null) return -1;
+		return this.clients.size();
+	}
+
 	/**
 	 * Give up on a request.
-	 * This doesn't actually send a cancel command to the node
-	 * (I don't think such a thing exists) but it does remove our
-	 * request/client map entry. We need this for requests that never
-	 * complete, so we don't leak memory.
+	 * This removes our request/client map entry, which we need for requests
+	 * that never complete so we don't leak memory. Requests on the global
+	 * queue are also removed from the node, since it would otherwise keep
+	 * them forever. Other requests are left to run on the node.
+	 * @return {@code true} if the request was in flight on this connection
 	 */
-	public synchronized void cancelRequest(FCPMessage msg) {
+	public synchronized boolean cancelRequest(FCPMessage msg) {
+		PendingRequest request = this.clients.get(msg.getId());
+		if(request == null || request.msg != msg) {
+			return false;
+		}
 		this.clients.remove(msg.getId());
+		if(msg.isPersistent() && this.afterRemoval.remove(msg.getId()) == null) {
+			this.removeFromGlobalQueue(msg.getId());
+		}
+		return true;
 	}
 
 	private void dispatch(FCPMessage msg) {
-		FCPClient cli = this.clients.get(msg.getId());
-		if(cli == null) {
+		if(msg.getType().equals("EndListPersistentRequests")) {
+			this.endList();
+			return;
+		}
+		if(isRemovalReply(msg) && this.confirmRemoval(msg)) {
+			return;
+		}
+
+		PendingRequest request;
+		synchronized(this) {
+			request = this.clients.get(msg.getId());
+			if(request == null && this.watching
+					&& (msg.getId() == null || !msg.getId().startsWith(PERSISTENT_PREFIX))) {
+				// someone else's request on the global queue
+				msg.release();
+				return;
+			}
+
+			if(request != null && request.msg.isPersistent()) {
+				// any message means the node still has the request
+				request.awaitedList = 0;
+
+				if(msg.getType().equals("IdentifierCollision")) {
+					// Already on the global queue, probably from before a restart, so
+					// wait for that one instead. The listing will replay its result if
+					// it is finished.
+					this.listsSent++;
+					request.awaitedList = this.listsSent;
+					try {
+						this.writeListRequest();
+					} catch (IOException ioe) {
+						Logger.debug(this, "Couldn't ask node for persistent requests: " + ioe.getMessage());
+					}
+					return;
+				}
+			}
+			if(request != null && msg.isCompletionMessage()) {
+				this.clients.remove(msg.getId());
+				if(request.msg.isPersistent()) {
+					this.removeFromGlobalQueue(request.msg.getId());
+				}
+			}
+		}
+
+		if(request == null) {
 			// normally we'd leave it up to the client
 			// to delete any data, but it looks like
 			// we'll have to do it
@@ -180,13 +400,96 @@ public class FCPConnection implements Runnable {
 			return;
 		}
 		if(msg.isCompletionMessage()) {
-			this.clients.remove(msg.getId());
-			cli.requestFinished(msg);
+			request.client.requestFinished(msg);
 		} else {
-			cli.requestStatus(msg);
+			request.client.requestStatus(msg);
+		}
+	}
+
+	/**
+	 * Called when the node has finished listing its persistent requests. Requests
+	 * that were waiting for this listing and weren't in it are gone from the node.
+	 */
+	private void endList() {
+		List<PendingRequest> lost = new ArrayList<PendingRequest>();
+		synchronized(this) {
+			this.listsEnded++;
+			Iterator<PendingRequest> it = this.clients.values().iterator();
+			while(it.hasNext()) {
+				PendingRequest request = it.next();
+				if(request.awaitedList != 0 && request.awaitedList <= this.listsEnded) {
+					it.remove();
+					lost.add(request);
+				}
+			}
+		}
+
+		for(PendingRequest request : lost) {
+			Logger.normal(this, "Persistent request " + request.msg.getId() + " is no longer known by the node");
+			request.client.requestFinished(new FCPMessage(1, "ConnectionClosed"));
 		}
 	}
 
+	/**
+	 * Asks the node to remove the request from the global queue. Requests with the same
+	 * identifier are held back until the node has confirmed the removal.
+	 */
+	synchronized void removeFromGlobalQueue(String identifier) {
+		if(this.os == null) return;
+
+		FCPMessage remove = new FCPMessage(identifier, "RemoveRequest");
+		remove.headers.put("Global", "true");
+		try {
+			remove.writeto(this.os, this.encoder);
+			this.removing.add(identifier);
+		} catch (IOException ioe) {
+			// it stays on the queue, which wastes a bit of space but is harmless
+			Logger.debug(this, "Couldn't remove " + identifier + " from the global queue");
+		} catch (FCPBadFileException bfe) {
+			throw new AssertionError();
+		}
+	}
+
+	/**
+	 * Returns {@code true} if the message answers a RemoveRequest. The node replies with
+	 * a ProtocolError if it didn't have the request any more.
+	 */
+	private static boolean isRemovalReply(FCPMessage msg) {
+		return msg.getType().equals("PersistentRequestRemoved") || msg.getType().equals("ProtocolError");
+	}
+
+	/**
+	 * Called with a reply to a RemoveRequest, and sends the request that was waiting for
+	 * the removal, if any.
+	 * @return {@code false} if we weren't removing the request, so the reply is for
+	 *         something else
+	 */
+	private boolean confirmRemoval(FCPMessage msg) {
+		PendingRequest failed = null;
+		synchronized(this) {
+			if(!this.removing.remove(msg.getId())) return false;
+
+			FCPMessage next = this.afterRemoval.remove(msg.getId());
+			if(next != null) {
+				try {
+					next.writeto(this.os, this.encoder);
+				} catch (IOException ioe) {
+					// the reader thread will notice, and the request fails when
+					// the node doesn't list it
+					Logger.debug(this, "Couldn't send " + next.getId() + ": " + ioe.getMessage());
+				} catch (FCPBadFileException bfe) {
+					failed = this.clients.remove(next.getId());
+				}
+			}
+		}
+
+		msg.release();
+		if(failed != null) {
+			failed.client.requestFinished(new FCPMessage(1, "ConnectionClosed"));
+		}
+		return true;
+	}
+
 	public synchronized FCPMessage getMessage(String type) {
 		FCPMessage m = new FCPMessage(this.nextMsgId, type);
 		this.nextMsgId++;
@@ -194,6 +497,22 @@ public class FCPConnection implements Runnable {
 	}
 
 	private FCPMessage getMessage() throws IOException {
-		return new FCPMessage(this.is);
+		return new FCPMessage(this.is, this.lineBuffer);
+	}
+
+	static class PendingRequest {
+		final FCPClient client;
+		final FCPMessage msg;
+
+		/**
+		 * The number of the ListPersistentRequests that should include this request,
+		 * or 0 if it isn't waiting for one. Guarded by the connection.
+		 */
+		private int awaitedList = 0;
+
+		private PendingRequest(FCPClient client, FCPMessage msg) {
+			this.client = client;
+			this.msg = msg;
+		}
 	}
 }
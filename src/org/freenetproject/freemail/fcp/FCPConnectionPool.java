@@ -0,0 +1,753 @@
+/*
+ * FCPConnectionPool.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.fcp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.freenetproject.freemail.config.ConfigClient;
+import org.freenetproject.freemail.config.Configurator;
+import org.freenetproject.freemail.utils.Logger;
+import org.freenetproject.freemail.utils.Timer;
+
+/**
+ * A set of FCP connections, possibly to several nodes, that requests are
+ * balanced across. Each request is sent on the connected connection with the
+ * fewest requests in flight. If a connection is lost the requests that were in
+ * flight on it are sent again on another connection where possible. While there
+ * is no connection at all, requests are held back until a connection is made.
+ * Requests of a type with a concurrency limit are also held back while the limit
+ * is reached, and are sent as the requests before them finish. Nothing waits in
+ * the thread of the caller. Persistent requests all go to the one connection that
+ * watches the global queue of the node.
+ */
+public class FCPConnectionPool implements ConfigClient {
+	private static final int DEFAULT_CONNECTIONS_PER_NODE = 2;
+
+	private final List<FCPConnection> connections = new ArrayList<FCPConnection>();
+	private final List<Thread> threads = new LinkedList<Thread>();
+	private final AtomicInteger nextMsgId = new AtomicInteger(1);
+	private volatile boolean stopping = false;
+
+	private int connectionsPerNode = DEFAULT_CONNECTIONS_PER_NODE;
+	private final List<FCPContext> additionalNodes = new LinkedList<FCPContext>();
+	private volatile boolean persistentRequests = false;
+
+	/**
+	 * Persistent requests that were in flight on a lost connection and haven't been
+	 * attached to another connection yet. Guarded by itself.
+	 */
+	private final List<FCPConnection.PendingRequest> detached = new LinkedList<FCPConnection.PendingRequest>();
+
+	/**
+	 * The connection that watches the global queue, and so gets the messages for the
+	 * persistent requests, or {@code null} if there isn't one. Guarded by detached.
+	 */
+	private FCPConnection watcher = null;
+
+	/**
+	 * Requests that are waiting for a connection to the node. Guarded by itself.
+	 */
+	private final List<WaitingRequest> waiting = new LinkedList<WaitingRequest>();
+	private final AtomicLong connectivityWaits = new AtomicLong();
+	private final AtomicLong connectivityWaitTime = new AtomicLong();
+
+	private final Map<RequestType, Limit> limits = new EnumMap<RequestType, Limit>(RequestType.class);
+
+	/**
+	 * Creates a pool with connections to the node given by {@code ctx}, and to
+	 * any additional nodes listed in the configuration.
+	 */
+	public FCPConnectionPool(Configurator cfg, FCPContext ctx) {
+		cfg.register(Configurator.FCP_CONNECTIONS, this, Integer.toString(DEFAULT_CONNECTIONS_PER_NODE));
+		cfg.register(Configurator.FCP_ADDITIONAL_NODES, this, "");
+		cfg.register(Configurator.FCP_PERSISTENT_REQUESTS, this, "false");
+
+		List<FCPContext> contexts = new ArrayList<FCPContext>();
+		contexts.add(ctx);
+		contexts.addAll(additionalNodes);
+		createConnections(contexts, connectionsPerNode);
+	}
+
+	FCPConnectionPool(List<FCPContext> contexts, int connectionsPerNode) {
+		this(contexts, connectionsPerNode, false);
+	}
+
+	FCPConnectionPool(List<FCPContext> contexts, int connectionsPerNode, boolean persistentRequests) {
+		this.persistentRequests = persistentRequests;
+		createConnections(contexts, connectionsPerNode);
+	}
+
+	{
+		for(RequestType type : RequestType.values()) {
+			if(type.getMaxConcurrent() > 0) {
+				limits.put(type, new Limit(type.getMaxConcurrent()));
+			}
+		}
+	}
+
+	private void createConnections(List<FCPContext> contexts, int perNode) {
+		for(FCPContext ctx : contexts) {
+			for(int i = 0; i < Math.max(perNode, 1); i++) {
+				//The node requires a unique name for each connection
+				String name = FCPMessage.DEFAULT_CLIENT_NAME;
+				if(!connections.isEmpty()) {
+					name += "-" + connections.size();
+				}
+				connections.add(new FCPConnection(ctx, name, this));
+			}
+		}
+	}
+
+	@Override
+	public void setConfigProp(String key, String val) {
+		if(key.equalsIgnoreCase(Configurator.FCP_CONNECTIONS)) {
+			try {
+				connectionsPerNode = Integer.parseInt(val);
+			} catch(NumberFormatException e) {
+				Logger.error(this, "Invalid value for " + key + ": " + val);
+			}
+		} else if(key.equalsIgnoreCase(Configurator.FCP_PERSISTENT_REQUESTS)) {
+			persistentRequests = val.equalsIgnoreCase("true");
+		} else if(key.equalsIgnoreCase(Configurator.FCP_ADDITIONAL_NODES)) {
+			additionalNodes.clear();
+			for(String node : val.split(",")) {
+				node = node.trim();
+				if(node.equals("")) {
+					continue;
+				}
+
+				FCPContext ctx = new FCPContext();
+				int colon = node.lastIndexOf(':');
+				if(colon == -1) {
+					ctx.setConfigProp(Configurator.FCP_HOST, node);
+					ctx.setConfigProp(Configurator.FCP_PORT, "9481");
+				} else {
+					ctx.setConfigProp(Configurator.FCP_HOST, node.substring(0, colon));
+					ctx.setConfigProp(Configurator.FCP_PORT, node.substring(colon + 1));
+				}
+				additionalNodes.add(ctx);
+			}
+		}
+	}
+
+	/**
+	 * Starts a reader thread for each connection.
+	 */
+	public synchronized void start() {
+		for(int i = 0; i < connections.size(); i++) {
+			Thread t = new Thread(connections.get(i), "Freemail FCP Connection " + i);
+			t.setDaemon(true);
+			t.start();
+			threads.add(t);
+		}
+	}
+
+	public void kill() {
+		stopping = true;
+		for(FCPConnection conn : connections) {
+			conn.kill();
+		}
+
+		// these stay on the node, and are picked up again after a restart
+		List<FCPConnection.PendingRequest> detachedRequests;
+		synchronized(detached) {
+			detachedRequests = new ArrayList<FCPConnection.PendingRequest>(detached);
+			detached.clear();
+		}
+		for(FCPConnection.PendingRequest request : detachedRequests) {
+			request.client.requestFinished(new FCPMessage(1, "ConnectionClosed"));
+		}
+
+		List<WaitingRequest> waitingRequests;
+		synchronized(waiting) {
+			waitingRequests = new ArrayList<WaitingRequest>(waiting);
+			waiting.clear();
+		}
+		for(WaitingRequest request : waitingRequests) {
+			request.client.requestFinished(new FCPMessage(1, "ConnectionClosed"));
+		}
+
+		for(Limit limit : limits.values()) {
+			List<LimitedRequest> queued;
+			synchronized(limit) {
+				queued = new ArrayList<LimitedRequest>(limit.queued);
+				limit.queued.clear();
+			}
+			for(LimitedRequest request : queued) {
+				request.requestFinished(new FCPMessage(1, "ConnectionClosed"));
+			}
+		}
+	}
+
+	/**
+	 * Returns {@code true} if inserts should be sent as persistent requests on the
+	 * global queue of the node, where they survive losing the connection and
+	 * restarting the node.
+	 */
+	public boolean isPersistentRequests() {
+		return persistentRequests;
+	}
+
+	public void join() throws InterruptedException {
+		List<Thread> toJoin;
+		synchronized(this) {
+			toJoin = new ArrayList<Thread>(threads);
+			threads.clear();
+		}
+		for(Thread t : toJoin) {
+			t.join();
+		}
+	}
+
+	/**
+	 * Returns a new message with an identifier that is unique across all the
+	 * connections in the pool.
+	 */
+	public FCPMessage getMessage(String type) {
+		return new FCPMessage(nextMsgId.getAndIncrement(), type);
+	}
+
+	/**
+	 * Sends the request on the least loaded connection. If no connection has been
+	 * established the request is held back and sent as soon as a connection says
+	 * hello, so the caller doesn't have to poll.
+	 * @throws NoNodeConnectionException if the request had data and the connection
+	 *         was lost while sending it, so that it can't be sent again
+	 */
+	public void doRequest(FCPClient cli, FCPMessage msg) throws NoNodeConnectionException,
+	                                                            ConnectionTerminatedException, FCPBadFileException {
+		if(stopping) throw new ConnectionTerminatedException("This FCP Connection has been terminated");
+
+		if(!send(cli, msg)) {
+			hold(cli, msg);
+		}
+	}
+
+	/**
+	 * Sends the request once there is a connection to the node and fewer requests of the
+	 * given type than its limit are running. Until then the request is queued, without
+	 * counting towards the limit while there is no connection. The request counts towards
+	 * the limit until its completion message has been passed on, or it is cancelled.
+	 * @see #doRequest(FCPClient, FCPMessage)
+	 */
+	public void doRequest(FCPClient cli, FCPMessage msg, RequestType type) throws NoNodeConnectionException,
+	                                                                             ConnectionTerminatedException,
+	                                                                             FCPBadFileException {
+		Limit limit = limits.get(type);
+		if(limit == null) {
+			doRequest(cli, msg);
+			return;
+		}
+
+		if(stopping) throw new ConnectionTerminatedException("This FCP Connection has been terminated");
+		start(new LimitedRequest(cli, msg, limit));
+	}
+
+	/**
+	 * Sends the request if it can get a permit, and queues it for one otherwise. Requests
+	 * are held back without taking a permit while there is no connection to send them on.
+	 * @return {@code false} if the request was held back
+	 */
+	private boolean start(LimitedRequest request) throws NoNodeConnectionException, ConnectionTerminatedException,
+	                                                     FCPBadFileException {
+		if(getConnectionFor(request.msg) == null) {
+			hold(request, request.msg);
+			return false;
+		}
+
+		synchronized(request.limit) {
+			if(request.limit.available == 0) {
+				request.limit.queued.add(request);
+				return true;
+			}
+			request.limit.available--;
+			request.limit.running.add(request);
+		}
+		return sendWithPermit(request);
+	}
+
+	/**
+	 * Sends a request that has been given a permit. If the connection is gone the permit
+	 * is given back and the request is held back until there is a connection again.
+	 * @return {@code false} if the request was held back
+	 */
+	private boolean sendWithPermit(LimitedRequest request) throws NoNodeConnectionException,
+	                                                              ConnectionTerminatedException, FCPBadFileException {
+		boolean sent = false;
+		try {
+			sent = send(request, request.msg);
+		} finally {
+			if(!sent) {
+				releasePermit(request);
+			}
+		}
+		if(!sent) {
+			hold(request, request.msg);
+		}
+		return sent;
+	}
+
+	/**
+	 * Gives the permit of the request to the next request of the same type, or back to the
+	 * limit if none is queued. Does nothing if the request doesn't hold a permit.
+	 */
+	private void releasePermit(LimitedRequest request) {
+		Limit limit = request.limit;
+		LimitedRequest next;
+		synchronized(limit) {
+			if(!limit.running.remove(request)) {
+				return;
+			}
+			next = limit.queued.poll();
+			if(next == null) {
+				limit.available++;
+				return;
+			}
+			limit.running.add(next);
+		}
+
+		try {
+			sendWithPermit(next);
+		} catch(NoNodeConnectionException e) {
+			next.requestFinished(new FCPMessage(1, "ConnectionClosed"));
+		} catch(ConnectionTerminatedException e) {
+			next.requestFinished(new FCPMessage(1, "ConnectionClosed"));
+		} catch(FCPBadFileException e) {
+			next.requestFinished(new FCPMessage(1, "ConnectionClosed"));
+		}
+	}
+
+	/**
+	 * Holds back the request until a connection is made.
+	 */
+	private void hold(FCPClient cli, FCPMessage msg) {
+		synchronized(waiting) {
+			waiting.add(new WaitingRequest(cli, msg));
+		}
+		Logger.minor(this, "No connection to the node, holding back request " + msg.getId());
+
+		// a connection might have come up after we looked
+		FCPConnection conn = getLeastLoaded(Collections.<FCPConnection>emptyList());
+		if(conn != null) {
+			sendWaiting();
+		}
+	}
+
+	/**
+	 * Returns the connection the message would be sent on, or {@code null} if there is none.
+	 */
+	private FCPConnection getConnectionFor(FCPMessage msg) {
+		return msg.isPersistent() ? getPersistentConnection() : getLeastLoaded(Collections.<FCPConnection>emptyList());
+	}
+
+	/**
+	 * Sends the request on the least loaded connection.
+	 * @return {@code false} if there is no connection
+	 */
+	private boolean send(FCPClient cli, FCPMessage msg) throws NoNodeConnectionException,
+	                                                           ConnectionTerminatedException, FCPBadFileException {
+		List<FCPConnection> failed = new LinkedList<FCPConnection>();
+		while(true) {
+			FCPConnection conn = msg.isPersistent() ? getPersistentConnection() : getLeastLoaded(failed);
+			if(conn == null || failed.contains(conn)) {
+				return false;
+			}
+
+			try {
+				conn.doRequest(cli, msg);
+				return true;
+			} catch(NoNodeConnectionException e) {
+				if(!msg.canResend()) {
+					//Some of the data might have been sent already
+					throw e;
+				}
+				failed.add(conn);
+			}
+		}
+	}
+
+	/**
+	 * Sends the requests that were held back while there was no connection.
+	 */
+	private void sendWaiting() {
+		List<WaitingRequest> requests;
+		synchronized(waiting) {
+			requests = new ArrayList<WaitingRequest>(waiting);
+			waiting.clear();
+		}
+
+		for(WaitingRequest request : requests) {
+			long waited = request.timer.getTime();
+			try {
+				if(request.client instanceof LimitedRequest) {
+					// might be queued for a permit, or held back again
+					if(!start((LimitedRequest)request.client)) {
+						continue;
+					}
+				} else if(!send(request.client, request.msg)) {
+					synchronized(waiting) {
+						waiting.add(request);
+					}
+					continue;
+				}
+			} catch (NoNodeConnectionException e) {
+				request.client.requestFinished(new FCPMessage(1, "ConnectionClosed"));
+				continue;
+			} catch (ConnectionTerminatedException e) {
+				request.client.requestFinished(new FCPMessage(1, "ConnectionClosed"));
+				continue;
+			} catch (FCPBadFileException e) {
+				request.client.requestFinished(new FCPMessage(1, "ConnectionClosed"));
+				continue;
+			}
+
+			connectivityWaits.incrementAndGet();
+			connectivityWaitTime.addAndGet(waited);
+			request.timer.log(this, 1, TimeUnit.MINUTES, "Time request " + request.msg.getId() + " waited for a node connection");
+		}
+	}
+
+	/**
+	 * Returns the number of requests that were held back because there was no
+	 * connection to the node.
+	 */
+	public long getConnectivityWaits() {
+		return connectivityWaits.get();
+	}
+
+	/**
+	 * Returns the total time in milliseconds requests have spent waiting for a
+	 * connection to the node.
+	 */
+	public long getConnectivityWaitTime() {
+		return connectivityWaitTime.get();
+	}
+
+	/**
+	 * Returns the number of requests currently waiting for a connection.
+	 */
+	public int getWaitingRequests() {
+		synchronized(waiting) {
+			return waiting.size();
+		}
+	}
+
+	/**
+	 * Returns the number of requests of the given type that are waiting for another request
+	 * of the type to finish.
+	 */
+	int getQueuedRequests(RequestType type) {
+		Limit limit = limits.get(type);
+		if(limit == null) {
+			return 0;
+		}
+		synchronized(limit) {
+			return limit.queued.size();
+		}
+	}
+
+	/**
+	 * Returns the number of requests of the given type that are running, which is at most
+	 * the limit of the type.
+	 */
+	int getRunningRequests(RequestType type) {
+		Limit limit = limits.get(type);
+		if(limit == null) {
+			return 0;
+		}
+		synchronized(limit) {
+			return limit.running.size();
+		}
+	}
+
+	/**
+	 * Give up on a request on whichever connection it was sent.
+	 * @see FCPConnection#cancelRequest(FCPMessage)
+	 */
+	public void cancelRequest(FCPMessage msg) {
+		for(FCPConnection conn : connections) {
+			conn.cancelRequest(msg);
+		}
+
+		boolean wasDetached = false;
+		synchronized(detached) {
+			Iterator<FCPConnection.PendingRequest> it = detached.iterator();
+			while(it.hasNext()) {
+				if(it.next().msg == msg) {
+					it.remove();
+					wasDetached = true;
+				}
+			}
+		}
+		if(wasDetached) {
+			// still on the node, which would otherwise keep it forever
+			FCPConnection conn = getPersistentConnection();
+			if(conn != null) {
+				conn.removeFromGlobalQueue(msg.getId());
+			}
+		}
+
+		synchronized(waiting) {
+			Iterator<WaitingRequest> it = waiting.iterator();
+			while(it.hasNext()) {
+				if(it.next().msg == msg) {
+					it.remove();
+				}
+			}
+		}
+
+		for(Limit limit : limits.values()) {
+			LimitedRequest holder = null;
+			synchronized(limit) {
+				Iterator<LimitedRequest> it = limit.queued.iterator();
+				while(it.hasNext()) {
+					if(it.next().msg == msg) {
+						it.remove();
+					}
+				}
+				for(LimitedRequest request : limit.running) {
+					if(request.msg == msg) {
+						holder = request;
+					}
+				}
+			}
+			if(holder != null) {
+				releasePermit(holder);
+			}
+		}
+	}
+
+	/**
+	 * Called by a connection that was lost while the request was in flight.
+	 * @return {@code true} if the request was sent on another connection
+	 */
+	boolean requeue(FCPMessage msg, FCPClient cli) {
+		if(stopping || !msg.canResend()) {
+			return false;
+		}
+
+		try {
+			if(cli instanceof LimitedRequest) {
+				// the permit isn't held while waiting for the next connection
+				LimitedRequest request = (LimitedRequest)cli;
+				releasePermit(request);
+				start(request);
+			} else {
+				doRequest(cli, msg);
+			}
+			Logger.minor(this, "Requeued request " + msg.getId() + " after losing its connection");
+			return true;
+		} catch(NoNodeConnectionException e) {
+			return false;
+		} catch(ConnectionTerminatedException e) {
+			return false;
+		} catch(FCPBadFileException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Called by a connection that was lost while the persistent request was in
+	 * flight. The request is attached to another connection now if there is one,
+	 * otherwise to the next connection that connects.
+	 * @return {@code false} if the pool is stopping
+	 */
+	boolean detach(FCPConnection.PendingRequest request) {
+		if(stopping) {
+			return false;
+		}
+
+		synchronized(detached) {
+			detached.add(request);
+		}
+		FCPConnection conn = getPersistentConnection();
+		if(conn != null) {
+			onConnected(conn);
+		}
+		return true;
+	}
+
+	/**
+	 * Called when a connection has received the hello from the node. If no connection
+	 * watches the global queue this one starts to, and takes over all the detached
+	 * requests. The requests that were held back are sent.
+	 */
+	void onConnected(FCPConnection conn) {
+		boolean persistentConnection = !persistentRequests || watch(conn);
+		sendWaiting();
+		if(!persistentConnection) {
+			return;
+		}
+
+		List<FCPConnection.PendingRequest> requests;
+		synchronized(detached) {
+			if(detached.isEmpty()) {
+				return;
+			}
+			requests = new ArrayList<FCPConnection.PendingRequest>(detached);
+			detached.clear();
+		}
+
+		if(!conn.attach(requests)) {
+			synchronized(detached) {
+				detached.addAll(requests);
+			}
+		} else {
+			Logger.normal(this, "Reattached " + requests.size() + " persistent requests");
+		}
+	}
+
+	/**
+	 * Called when a connection has been lost. If it was watching the global queue another
+	 * connection takes over.
+	 */
+	void onDisconnected(FCPConnection conn) {
+		synchronized(detached) {
+			if(watcher != conn) {
+				return;
+			}
+			watcher = null;
+		}
+
+		FCPConnection next = getLeastLoaded(Collections.singletonList(conn));
+		if(next != null) {
+			onConnected(next);
+		}
+	}
+
+	/**
+	 * Makes the connection watch the global queue if no other connection does.
+	 * @return {@code true} if the connection is the one watching the global queue
+	 */
+	private boolean watch(FCPConnection conn) {
+		synchronized(detached) {
+			// the watcher is only published once it is watching, so that
+			// no persistent requests are sent on it before then
+			if(watcher == null && conn.watchGlobal()) {
+				watcher = conn;
+				Logger.minor(this, "Watching the global queue");
+			}
+			return watcher == conn;
+		}
+	}
+
+	/**
+	 * Returns the connection persistent requests are sent on, which is the one that
+	 * watches the global queue, or {@code null} if there is no such connection.
+	 */
+	private FCPConnection getPersistentConnection() {
+		if(!persistentRequests) {
+			//Nothing watches the global queue, so any connection will do
+			return getLeastLoaded(Collections.<FCPConnection>emptyList());
+		}
+		synchronized(detached) {
+			return watcher;
+		}
+	}
+
+	int size() {
+		return connections.size();
+	}
+
+	private FCPConnection getLeastLoaded(List<FCPConnection> exclude) {
+		FCPConnection best = null;
+		int bestLoad = Integer.MAX_VALUE;
+
+		//Start at a random connection so that ties don't all go to the first one
+		int start = connections.isEmpty() ? 0 : (int)(Math.random() * connections.size());
+		for(int i = 0; i < connections.size(); i++) {
+			FCPConnection conn = connections.get((start + i) % connections.size());
+			if(exclude.contains(conn)) {
+				continue;
+			}
+
+			int load = conn.getLoad();
+			if(load >= 0 && load < bestLoad) {
+				best = conn;
+				bestLoad = load;
+			}
+		}
+		return best;
+	}
+
+	List<FCPConnection> getConnections() {
+		return Collections.unmodifiableList(connections);
+	}
+
+	/**
+	 * The number of requests of a type that may run at once, and the requests that are
+	 * running or waiting for a permit. Guarded by itself.
+	 */
+	private static class Limit {
+		private int available;
+		private final LinkedList<LimitedRequest> queued = new LinkedList<LimitedRequest>();
+		private final List<LimitedRequest> running = new LinkedList<LimitedRequest>();
+
+		private Limit(int available) {
+			this.available = available;
+		}
+	}
+
+	/**
+	 * A request of a type with a limit, which gives its permit back when it finishes.
+	 */
+	private class LimitedRequest implements FCPClient {
+		private final FCPClient client;
+		private final FCPMessage msg;
+		private final Limit limit;
+
+		private LimitedRequest(FCPClient client, FCPMessage msg, Limit limit) {
+			this.client = client;
+			this.msg = msg;
+			this.limit = limit;
+		}
+
+		@Override
+		public void requestFinished(FCPMessage finished) {
+			releasePermit(this);
+			client.requestFinished(finished);
+		}
+
+		@Override
+		public void requestStatus(FCPMessage status) {
+			client.requestStatus(status);
+		}
+	}
+
+	private static class WaitingRequest {
+		private final FCPClient client;
+		private final FCPMessage msg;
+		private final Timer timer = Timer.start();
+
+		private WaitingRequest(FCPClient client, FCPMessage msg) {
+			this.client = client;
+			this.msg = msg;
+		}
+	}
+}
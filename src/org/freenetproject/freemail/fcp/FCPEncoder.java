@@ -0,0 +1,119 @@
+/*
+ * FCPEncoder.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.fcp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Buffer that the header of an FCP message is encoded into before it is written to the
+ * node in a single call. Header names and most values are plain ASCII, which is copied
+ * directly into the buffer without creating intermediate Strings. A connection keeps one
+ * encoder and reuses it for every message, so it isn't thread safe.
+ */
+final class FCPEncoder {
+	private static final int INITIAL_SIZE = 512;
+
+	private byte[] buf = new byte[INITIAL_SIZE];
+	private int count = 0;
+
+	void reset() {
+		count = 0;
+	}
+
+	int size() {
+		return count;
+	}
+
+	/**
+	 * Appends {@code name=value} followed by a line break.
+	 */
+	void writeField(String name, String value) {
+		write(name);
+		write('=');
+		write(value);
+		writeLineBreak();
+	}
+
+	void writeField(String name, long value) {
+		write(name);
+		write('=');
+		write(Long.toString(value));
+		writeLineBreak();
+	}
+
+	/**
+	 * Appends the given line followed by a line break.
+	 */
+	void writeLine(String line) {
+		write(line);
+		writeLineBreak();
+	}
+
+	void writeTo(OutputStream os) throws IOException {
+		os.write(buf, 0, count);
+	}
+
+	private void writeLineBreak() {
+		write('\r');
+		write('\n');
+	}
+
+	private void write(String s) {
+		int len = s.length();
+		ensureCapacity(count + len);
+		for(int i = 0; i < len; i++) {
+			char c = s.charAt(i);
+			if(c >= 0x80) {
+				//Fall back to the slow path for the rest of the string
+				writeUTF8(s.substring(i));
+				return;
+			}
+			buf[count++] = (byte)c;
+		}
+	}
+
+	private void write(char c) {
+		ensureCapacity(count + 1);
+		buf[count++] = (byte)c;
+	}
+
+	private void writeUTF8(String s) {
+		byte[] bytes;
+		try {
+			bytes = s.getBytes("UTF-8");
+		} catch(UnsupportedEncodingException e) {
+			//JVMs are required to support UTF-8, so we can assume it is always available
+			throw new AssertionError("JVM doesn't support UTF-8 charset");
+		}
+		ensureCapacity(count + bytes.length);
+		System.arraycopy(bytes, 0, buf, count, bytes.length);
+		count += bytes.length;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if(capacity <= buf.length) return;
+
+		byte[] newBuf = new byte[Math.max(capacity, buf.length * 2)];
+		System.arraycopy(buf, 0, newBuf, 0, count);
+		buf = newBuf;
+	}
+}
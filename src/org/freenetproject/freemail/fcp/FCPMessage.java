@@ -21,31 +21,55 @@
 
 package org.freenetproject.freemail.fcp;
 
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.OutputStream;
 import java.io.InputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.util.HashMap;
-import java.util.Enumeration;
-import java.util.Collections;
+import java.util.Map;
 
 import org.freenetproject.freemail.Freemail;
-import org.freenetproject.freemail.support.io.LineReader;
-import org.freenetproject.freemail.support.io.LineReadingInputStream;
+import org.freenetproject.freemail.utils.Logger;
 
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.FileBucket;
 
 
 public class FCPMessage {
+	static final String DEFAULT_CLIENT_NAME = "freemail-wot";
+
+	/**
+	 * Payloads up to this size are kept in memory, larger payloads are written to a temporary
+	 * file. Acks, CTS messages and mailsites are all well below this.
+	 */
+	static final int IN_MEMORY_DATA_LIMIT = 64 * 1024;
+	private static final int FILE_BUFFER_SIZE = 32 * 1024;
+
+	/** Lines longer than this are cut short, which protects against a broken node */
+	private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+	private static final byte[] END = {'E', 'n', 'd'};
+	private static final byte[] DATA = {'D', 'a', 't', 'a'};
+
 	private String messagetype;
 	private String identifier;
 	public final HashMap<String, String> headers;
-	private File data;
+	private Bucket data;
 	private InputStream outData;
+	private long outDataLength;
 
 
 	public FCPMessage(int id, String type) {
-		this.identifier = Integer.toString(id);
+		this(Integer.toString(id), type);
+	}
+
+	public FCPMessage(String id, String type) {
+		this.identifier = id;
 		this.headers = new HashMap<String, String>();
 		this.messagetype = type;
 		this.data = null;
@@ -53,38 +77,48 @@ public class FCPMessage {
 	}
 
 	public FCPMessage(InputStream is) throws IOException {
+		this(is, new LineBuffer());
+	}
+
+	/**
+	 * Reads a message using the given line buffer, so that a connection can reuse the same
+	 * buffer for all the messages it reads.
+	 */
+	FCPMessage(InputStream is, LineBuffer line) throws IOException {
 		this.headers = new HashMap<String, String>();
 		this.outData = null;
 
 		this.messagetype = null;
 
-		//r isn't closed since LineReadingInputStream would close is
-		@SuppressWarnings("resource")
-		LineReader r = new LineReadingInputStream(is);
-
-		String line;
-		while((line = r.readLine(200, 200, false)) != null) {
-			/***************************************/
-			//Logger.normal(this,line);
+		while(line.read(is)) {
 			if(this.messagetype == null) {
-				this.messagetype = line;
-			} else if(line.startsWith("End")) {
+				this.messagetype = line.toString();
+			} else if(line.startsWith(END)) {
 				return;
-			} else if(line.equals("Data")) {
-				try {
-					int len = Integer.decode(this.headers.get("DataLength")).intValue();
-					this.readData(is, len);
-				} catch (NumberFormatException nfe) {
+			} else if(line.equals(DATA)) {
+				long len = parseLength(this.headers.get("DataLength"));
+				if(len >= 0 && len <= Integer.MAX_VALUE) {
+					this.readData(is, (int)len);
 				}
 				return;
 			} else {
-				String[] parts = line.split("=");
-				if(parts.length == 2)
-					this.addHeader(parts[0], parts[1]);
+				int eq = line.indexOf('=');
+				if(eq > 0) {
+					this.addHeader(line.toString(0, eq), line.toString(eq + 1, line.length()));
+				}
 			}
 		}
 	}
 
+	private static long parseLength(String length) {
+		if(length == null) return -1;
+		try {
+			return Long.parseLong(length);
+		} catch (NumberFormatException nfe) {
+			return -1;
+		}
+	}
+
 	private void addHeader(String name, String val) {
 		if(name.equalsIgnoreCase("Identifier")) {
 			this.identifier = val;
@@ -101,38 +135,67 @@ public class FCPMessage {
 		return this.identifier;
 	}
 
-	public File getData() {
+	/**
+	 * Returns the payload of this message, or {@code null} if there is none. The caller should
+	 * call {@link Bucket#free()} once it is done with the data.
+	 */
+	public Bucket getData() {
 		return this.data;
 	}
 
+	/**
+	 * Sets the data that is sent with this message. The length of the data is taken from
+	 * {@link InputStream#available()} when the message is sent, so this should only be
+	 * used with streams where that is the full length, such as file and byte array streams.
+	 */
 	public void setData(InputStream d) {
+		setData(d, -1);
+	}
+
+	/**
+	 * Sets the data that is sent with this message, which must be exactly {@code length}
+	 * bytes long.
+	 */
+	public void setData(InputStream d, long length) {
 		this.outData = d;
+		this.outDataLength = length;
 	}
 
 	private void readData(InputStream is, int len) {
 		try {
-			this.data = File.createTempFile("freemail-fcp", null, Freemail.getTempDir());
-		} catch (Exception e) {
+			if(len <= IN_MEMORY_DATA_LIMIT) {
+				byte[] buf = new byte[len];
+				new DataInputStream(is).readFully(buf);
+				this.data = new ArrayBucket(buf);
+			} else {
+				this.data = readDataToFile(is, len);
+			}
+		} catch (IOException ioe) {
+			Logger.error(this, "Couldn't read " + len + " bytes of data: " + ioe.getMessage());
 			this.data = null;
-			return;
 		}
-		try {
-			FileOutputStream fos = new FileOutputStream(this.data);
+	}
 
-			byte[] buf = new byte[1024];
+	private static Bucket readDataToFile(InputStream is, int len) throws IOException {
+		File f = File.createTempFile("freemail-fcp", null, Freemail.getTempDir());
+		FileOutputStream fos = new FileOutputStream(f);
+		try {
+			byte[] buf = new byte[FILE_BUFFER_SIZE];
 			while(len > 0) {
-				int toRead = len;
-				if(toRead > buf.length)
-					toRead = buf.length;
-				int read = is.read(buf, 0, toRead);
+				int read = is.read(buf, 0, Math.min(len, buf.length));
+				if(read < 0) {
+					throw new EOFException("Connection closed with " + len + " bytes of data left");
+				}
 				fos.write(buf, 0, read);
 				len -= read;
 			}
-			fos.close();
 		} catch (IOException ioe) {
-			this.data = null;
-			return;
+			fos.close();
+			f.delete();
+			throw ioe;
 		}
+		fos.close();
+		return new FileBucket(f, true, false, false, true, true);
 	}
 
 	public boolean isCompletionMessage() {
@@ -153,55 +216,170 @@ public class FCPMessage {
 		return false;
 	}
 
+	/**
+	 * Returns {@code true} if this message can be sent again, which isn't the case for messages
+	 * with data since the data stream is consumed when the message is sent.
+	 */
+	public boolean canResend() {
+		return this.outData == null;
+	}
+
+	/**
+	 * Returns {@code true} if this is a request that the node keeps until it is removed,
+	 * even if the connection is closed.
+	 */
+	public boolean isPersistent() {
+		return "forever".equals(this.headers.get("Persistence"));
+	}
+
 	public void release() {
 		if(this.data != null) {
-			this.data.delete();
+			this.data.free();
 		}
 	}
 
 	public void writeto(OutputStream os) throws IOException, FCPBadFileException {
-		StringBuffer buf = new StringBuffer();
+		writeto(os, new FCPEncoder());
+	}
 
-		buf.append(this.messagetype);
-		buf.append("\r\n");
+	/**
+	 * Writes this message using the given encoder, which is reset first. The header is sent
+	 * to the node in a single write, followed by the data, if any.
+	 */
+	void writeto(OutputStream os, FCPEncoder encoder) throws IOException, FCPBadFileException {
+		encoder.reset();
+		encoder.writeLine(this.messagetype);
 
 		if(this.messagetype.equalsIgnoreCase("ClientHello")) {
-			buf.append("Name=freemail-wot\r\n");
-			buf.append("ExpectedVersion=2.0\r\n");
+			if(!this.headers.containsKey("Name")) {
+				encoder.writeField("Name", DEFAULT_CLIENT_NAME);
+			}
+			encoder.writeField("ExpectedVersion", "2.0");
 		}
 
-		buf.append("Identifier="+this.identifier+"\r\n");
+		encoder.writeField("Identifier", this.identifier);
 
-		for(Enumeration<String> e = Collections.enumeration(this.headers.keySet()); e.hasMoreElements(); ) {
-			String hdr = e.nextElement();
-			String val = this.headers.get(hdr);
+		for(Map.Entry<String, String> header : this.headers.entrySet()) {
+			encoder.writeField(header.getKey(), header.getValue());
+		}
 
-			buf.append(hdr+"="+val+"\r\n");
+		long length = -1;
+		if(this.outData != null) {
+			length = this.outDataLength;
+			if(length < 0) {
+				try {
+					length = this.outData.available();
+				} catch (IOException ioe) {
+					throw new FCPBadFileException();
+				}
+			}
+
+			encoder.writeField("UploadFrom", "direct");
+			encoder.writeField("DataLength", length);
+			encoder.writeLine("Data");
+		} else {
+			encoder.writeLine("EndMessage");
 		}
+		encoder.writeTo(os);
 
 		if(this.outData != null) {
-			buf.append("UploadFrom=direct\r\n");
 			try {
-				buf.append("DataLength="+this.outData.available()+"\r\n");
-			} catch (IOException ioe) {
-				throw new FCPBadFileException();
+				writeData(os, length);
+			} finally {
+				this.outData.close();
 			}
-			buf.append("Data\r\n");
-		} else {
-			buf.append("EndMessage\r\n");
 		}
-		if(buf.length() > 0) {
-			//Logger.normal(this,buf.toString());
-			os.write(buf.toString().getBytes("UTF-8"));
+		os.flush();
+	}
+
+	/**
+	 * Writes the payload. Since the header has been sent already, any failure to read the
+	 * payload leaves the node waiting for the rest of the data, so it is reported as an
+	 * IOException, which drops the connection.
+	 */
+	private void writeData(OutputStream os, long length) throws IOException {
+		byte[] bytebuf = new byte[(int)Math.min(FILE_BUFFER_SIZE, Math.max(length, 1))];
+		while(length > 0) {
+			int read = this.outData.read(bytebuf, 0, (int)Math.min(bytebuf.length, length));
+			if(read < 0) {
+				//The node is still waiting for the rest of the data, so the connection can't be used
+				throw new IOException("Data ended with " + length + " bytes left");
+			}
+			os.write(bytebuf, 0, read);
+			length -= read;
 		}
-		if(this.outData != null) {
-			byte[] bytebuf = new byte[1024];
+	}
 
-			int read;
-			while((read = this.outData.read(bytebuf)) > 0) {
-				os.write(bytebuf, 0, read);
+	/**
+	 * A reusable buffer for a single line of a message. Lines are split on LF, and a trailing
+	 * CR is removed.
+	 */
+	static class LineBuffer {
+		private byte[] buf = new byte[128];
+		private int length;
+
+		/**
+		 * Reads the next line from the stream.
+		 * @return {@code false} if the stream ended before any part of a line was read
+		 */
+		boolean read(InputStream is) throws IOException {
+			length = 0;
+			int b;
+			while((b = is.read()) != -1) {
+				if(b == '\n') {
+					if(length > 0 && buf[length - 1] == '\r') {
+						length--;
+					}
+					return true;
+				}
+				if(length == buf.length) {
+					if(length == MAX_LINE_LENGTH) {
+						continue;
+					}
+					byte[] newBuf = new byte[Math.min(buf.length * 2, MAX_LINE_LENGTH)];
+					System.arraycopy(buf, 0, newBuf, 0, length);
+					buf = newBuf;
+				}
+				buf[length++] = (byte)b;
 			}
-			this.outData.close();
+			return length > 0;
+		}
+
+		int length() {
+			return length;
+		}
+
+		int indexOf(char c) {
+			for(int i = 0; i < length; i++) {
+				if(buf[i] == c) return i;
+			}
+			return -1;
+		}
+
+		boolean startsWith(byte[] prefix) {
+			if(length < prefix.length) return false;
+			for(int i = 0; i < prefix.length; i++) {
+				if(buf[i] != prefix[i]) return false;
+			}
+			return true;
+		}
+
+		boolean equals(byte[] other) {
+			return length == other.length && startsWith(other);
+		}
+
+		String toString(int start, int end) {
+			try {
+				return new String(buf, start, end - start, "UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				//JVMs are required to support UTF-8, so we can assume it is always available
+				throw new AssertionError("JVM doesn't support UTF-8 charset");
+			}
+		}
+
+		@Override
+		public String toString() {
+			return toString(0, length);
 		}
 	}
 }
@@ -0,0 +1,139 @@
+/*
+ * FCPRequest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.fcp;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A single request sent over an {@link FCPConnectionPool}. The request is
+ * registered with the connection under its own identifier, so the completion
+ * message is delivered directly to it. Threads waiting for the reply only wait
+ * on the request they are interested in.
+ */
+public class FCPRequest implements FCPClient, Future<FCPMessage> {
+	private final FCPConnectionPool conn;
+	private final FCPMessage msg;
+	private final FCPClient listener;
+
+	private FCPMessage reply = null;
+	private boolean cancelled = false;
+
+	/**
+	 * @param listener called with the completion message when the request
+	 *        finishes, or {@code null}
+	 */
+	FCPRequest(FCPConnectionPool conn, FCPMessage msg, FCPClient listener) {
+		this.conn = conn;
+		this.msg = msg;
+		this.listener = listener;
+	}
+
+	FCPMessage getMessage() {
+		return msg;
+	}
+
+	@Override
+	public void requestFinished(FCPMessage finished) {
+		synchronized(this) {
+			if(cancelled) {
+				finished.release();
+				return;
+			}
+			reply = finished;
+			notifyAll();
+		}
+
+		if(listener != null) {
+			listener.requestFinished(finished);
+		}
+	}
+
+	@Override
+	public void requestStatus(FCPMessage status) {
+		if(listener != null) {
+			listener.requestStatus(status);
+		}
+	}
+
+	/**
+	 * Stops waiting for the reply. The node isn't told about this, so the
+	 * request might still complete, unless it is a persistent request, which
+	 * is removed from the global queue of the node.
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		synchronized(this) {
+			if(reply != null || cancelled) {
+				return false;
+			}
+			cancelled = true;
+			notifyAll();
+		}
+
+		conn.cancelRequest(msg);
+		return true;
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return cancelled || reply != null;
+	}
+
+	/**
+	 * Waits for the completion message of this request.
+	 * @throws CancellationException if the request was cancelled
+	 */
+	@Override
+	public synchronized FCPMessage get() throws InterruptedException {
+		while(reply == null && !cancelled) {
+			wait();
+		}
+		return getReply();
+	}
+
+	@Override
+	public synchronized FCPMessage get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while(reply == null && !cancelled) {
+			long remaining = deadline - System.nanoTime();
+			if(remaining <= 0) {
+				throw new TimeoutException();
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return getReply();
+	}
+
+	private FCPMessage getReply() {
+		assert (Thread.holdsLock(this));
+		if(cancelled) {
+			throw new CancellationException();
+		}
+		return reply;
+	}
+}
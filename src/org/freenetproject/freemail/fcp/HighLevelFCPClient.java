@@ -21,118 +21,172 @@
 
 package org.freenetproject.freemail.fcp;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.FileInputStream;
-import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.io.UnsupportedEncodingException;
 
+import org.archive.util.Base32;
+import org.bouncycastle.crypto.digests.SHA256Digest;
 import org.freenetproject.freemail.Freemail;
 import org.freenetproject.freemail.utils.Logger;
 
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
 
-public class HighLevelFCPClient implements FCPClient {
+
+public class HighLevelFCPClient {
 	private static final int FCP_TOO_MANY_PATH_COMPONENTS = 11;
 	private static final int FCP_PERMANANT_REDIRECT = 27;
 
-	private FCPConnection conn;
-
-	private final List<FCPMessage> doneMsgs = new LinkedList<FCPMessage>();
+	private FCPConnectionPool conn;
 
 	public HighLevelFCPClient() {
-		this.conn = Freemail.getFCPConnection();
+		this(Freemail.getFCPConnectionPool());
+	}
+
+	public HighLevelFCPClient(FCPConnectionPool conn) {
+		this.conn = conn;
 	}
 
-	// It's up to the client to delete this File once they're
+	// It's up to the client to free this Bucket once they're
 	// done with it
-	public File fetch(String key) throws ConnectionTerminatedException, FCPFetchException, FCPException,
+	public Bucket fetch(String key) throws ConnectionTerminatedException, FCPFetchException, FCPException,
 	                                     InterruptedException {
-		FCPMessage msg = this.conn.getMessage("ClientGet");
-		msg.headers.put("URI", key);
-		msg.headers.put("ReturnType", "direct");
-		msg.headers.put("Persistence", "connection");
-
-		while(true) {
-			try {
-				this.conn.doRequest(this, msg);
-				break;
-			} catch (NoNodeConnectionException nnce) {
-				Logger.error(this, "Warning - no connection to node. Waiting...");
-				Thread.sleep(10000);
-			} catch (FCPBadFileException bfe) {
-				// won't be thrown since this is a get,
-				// but keep the compiler happy
-			}
-		}
+		return fetch(key, RequestType.OTHER);
+	}
 
+	/**
+	 * Fetches the given key at the priority of the given request type, waiting first
+	 * if too many requests of that type are already running.
+	 */
+	public Bucket fetch(String key, RequestType type) throws ConnectionTerminatedException, FCPFetchException,
+	                                                         FCPException, InterruptedException {
 		FCPMessage reply;
 		try {
-			reply = getReply(msg.getId());
-		} catch(InterruptedException e) {
-			Logger.debug(this, "HighLevelFCPClient interrupted in fetch, stopping");
-			conn.cancelRequest(msg);
-			throw e;
+			reply = sendAndWait(newFetchMessage(key, type), "fetch", type);
+		} catch (FCPBadFileException bfe) {
+			// won't be thrown since this is a get,
+			// but keep the compiler happy
+			throw new AssertionError();
 		}
 
 		if(reply.getType().equalsIgnoreCase("AllData")) {
 			return reply.getData();
 		} else if(reply.getType().equalsIgnoreCase("GetFailed")) {
-			String s_code = reply.headers.get("Code");
-			if(s_code == null) return null;
-			int code = Integer.parseInt(s_code);
-			if(code == FCP_PERMANANT_REDIRECT || code == FCP_TOO_MANY_PATH_COMPONENTS) {
-				String newuri = reply.headers.get("RedirectURI");
-				if(newuri == null) return null;
-				return this.fetch(newuri);
+			if(reply.headers.get("Code") == null) return null;
+			if(!isRedirect(reply)) {
+				throw new FCPFetchException(reply);
 			}
-			throw new FCPFetchException(reply);
+			String newuri = reply.headers.get("RedirectURI");
+			if(newuri == null) return null;
+			return this.fetch(newuri, type);
 		} else {
 			throw FCPException.create(reply);
 		}
 	}
 
-	private FCPMessage getReply(String identifier) throws InterruptedException {
-		synchronized (doneMsgs) {
-			while(true) {
-				Iterator<FCPMessage> it = doneMsgs.iterator();
-				while(it.hasNext()) {
-					FCPMessage msg = it.next();
-					if(identifier.equals(msg.getId())) {
-						it.remove();
-						return msg;
+	/**
+	 * Starts fetching the given key without waiting for the result. Redirects
+	 * are followed in the same way as in {@link #fetch(String)}, and it is up to
+	 * the callback to free the returned Bucket.
+	 * @return the request, which can be used to cancel the fetch
+	 * @throws NoNodeConnectionException if the connection was lost while sending the request
+	 */
+	public FCPRequest fetchAsync(String key, final FCPCallback<Bucket> callback) throws ConnectionTerminatedException,
+	                                                                             NoNodeConnectionException {
+		return fetchAsync(key, RequestType.OTHER, callback);
+	}
+
+	/**
+	 * Starts fetching the given key at the priority of the given request type. If too many
+	 * requests of that type are already running, or there is no connection to the node, the
+	 * pool queues the request instead of blocking the caller. The request counts towards
+	 * the limit of its type until it finishes or is cancelled.
+	 * @see #fetchAsync(String, FCPCallback)
+	 */
+	public FCPRequest fetchAsync(String key, final RequestType type, final FCPCallback<Bucket> callback)
+			throws ConnectionTerminatedException, NoNodeConnectionException {
+		try {
+			return submit(newFetchMessage(key, type), type, new RequestListener() {
+				@Override
+				public void requestFinished(FCPMessage reply) {
+					if(isRedirect(reply) && reply.headers.get("RedirectURI") != null) {
+						try {
+							fetchAsync(reply.headers.get("RedirectURI"), type, callback);
+						} catch(ConnectionTerminatedException e) {
+							callback.onFailure(e);
+						} catch(NoNodeConnectionException e) {
+							callback.onFailure(e);
+						}
+						return;
+					}
+
+					if(reply.getType().equalsIgnoreCase("AllData")) {
+						callback.onSuccess(reply.getData());
+					} else if(reply.getType().equalsIgnoreCase("GetFailed")) {
+						if(reply.headers.get("Code") == null) {
+							callback.onSuccess(null);
+							return;
+						}
+						if(!isRedirect(reply)) {
+							callback.onFailure(new FCPFetchException(reply));
+							return;
+						}
+						//A redirect without a new URI
+						callback.onSuccess(null);
+					} else {
+						callback.onFailure(FCPException.create(reply));
 					}
 				}
+			});
+		} catch (FCPBadFileException bfe) {
+			// won't be thrown since this is a get
+			throw new AssertionError();
+		}
+	}
 
-				doneMsgs.wait();
-			}
+	private FCPMessage newFetchMessage(String key, RequestType type) {
+		FCPMessage msg = this.conn.getMessage("ClientGet");
+		msg.headers.put("URI", key);
+		msg.headers.put("ReturnType", "direct");
+		// Fetches stay on the connection even when inserts are persistent. Most of them are
+		// polls of slots that don't exist yet, so on the global queue they would pile up as
+		// failed requests, and a fetch that is lost on restart is just repeated by the next poll
+		msg.headers.put("Persistence", "connection");
+		setPriority(msg, type);
+		return msg;
+	}
+
+	private static void setPriority(FCPMessage msg, RequestType type) {
+		if(type.getPriorityClass() >= 0) {
+			msg.headers.put("PriorityClass", Integer.toString(type.getPriorityClass()));
+		}
+	}
+
+	/**
+	 * Returns {@code true} if the GetFailed message is a redirect that should be followed.
+	 */
+	private static boolean isRedirect(FCPMessage reply) {
+		if(!reply.getType().equalsIgnoreCase("GetFailed") || reply.headers.get("Code") == null) {
+			return false;
 		}
+		int code = Integer.parseInt(reply.headers.get("Code"));
+		return code == FCP_PERMANANT_REDIRECT || code == FCP_TOO_MANY_PATH_COMPONENTS;
 	}
 
 	public SSKKeyPair makeSSK() throws ConnectionTerminatedException, InterruptedException {
 		FCPMessage msg = this.conn.getMessage("GenerateSSK");
 
-		while(true) {
-			try {
-				this.conn.doRequest(this, msg);
-				break;
-			} catch (NoNodeConnectionException nnce) {
-				Logger.error(this, "Warning - no connection to node. Waiting...");
-				Thread.sleep(5000);
-			} catch (FCPBadFileException bfe) {
-				// won't be thrown since no data
-			}
-		}
-
 		FCPMessage reply;
 		try {
-			reply = getReply(msg.getId());
-		} catch(InterruptedException e) {
-			Logger.debug(this, "HighLevelFCPClient interrupted in makeSSK, stopping");
-			conn.cancelRequest(msg);
-			throw e;
+			reply = sendAndWait(msg, "makeSSK", RequestType.OTHER);
+		} catch (FCPBadFileException bfe) {
+			// won't be thrown since no data
+			throw new AssertionError();
 		}
 
 		if(reply.getType().equalsIgnoreCase("SSKKeypair")) {
@@ -149,36 +203,227 @@ public class HighLevelFCPClient implements FCPClient {
 	public FCPPutFailedException put(InputStream data, String key) throws FCPBadFileException,
 	                                                                      ConnectionTerminatedException,
 	                                                                      FCPException, InterruptedException {
+		return put(data, -1, key);
+	}
+
+	/**
+	 * Inserts exactly {@code length} bytes from the stream to the given key. If
+	 * {@code length} is negative the stream is read to the end, which only works for
+	 * streams where {@link InputStream#available()} is the full length.
+	 */
+	public FCPPutFailedException put(InputStream data, long length, String key) throws FCPBadFileException,
+	                                                                                   ConnectionTerminatedException,
+	                                                                                   FCPException, InterruptedException {
+		return put(data, length, key, RequestType.OTHER);
+	}
+
+	/**
+	 * Inserts the data at the priority of the given request type, waiting first if too
+	 * many requests of that type are already running.
+	 * @see #put(InputStream, long, String)
+	 */
+	public FCPPutFailedException put(InputStream data, long length, String key, RequestType type)
+			throws FCPBadFileException, ConnectionTerminatedException, FCPException, InterruptedException {
+		return put(newPutMessage(data, length, key, type), type);
+	}
+
+	/**
+	 * Inserts the data in the bucket at the priority of the given request type. Unlike the
+	 * stream versions this doesn't have to copy the data when the insert is persistent.
+	 * @see #put(InputStream, long, String, RequestType)
+	 */
+	public FCPPutFailedException put(Bucket data, String key, RequestType type)
+			throws FCPBadFileException, ConnectionTerminatedException, FCPException, InterruptedException {
+		return put(newPutMessage(data, key, type), type);
+	}
+
+	private FCPPutFailedException put(FCPMessage msg, RequestType type)
+			throws FCPBadFileException, ConnectionTerminatedException, FCPException, InterruptedException {
+		FCPMessage reply = sendAndWait(msg, "put", type);
+
+		if(reply.getType().equalsIgnoreCase("PutSuccessful")) {
+			return null;
+		} else if(reply.getType().equalsIgnoreCase("PutFailed")) {
+			return new FCPPutFailedException(reply);
+		} else {
+			throw FCPException.create(reply);
+		}
+	}
+
+	/**
+	 * Starts inserting the data to the given key without waiting for the result.
+	 * The callback receives {@code null} if the insert succeeded, and an
+	 * {@link FCPPutFailedException} if it failed.
+	 * @return the request, which can be used to stop waiting for the result
+	 * @throws NoNodeConnectionException if the connection was lost while sending the request
+	 */
+	public FCPRequest putAsync(InputStream data, String key, final FCPCallback<Void> callback)
+			throws FCPBadFileException, ConnectionTerminatedException, NoNodeConnectionException {
+		return submit(newPutMessage(data, -1, key, RequestType.OTHER), new RequestListener() {
+			@Override
+			public void requestFinished(FCPMessage reply) {
+				if(reply.getType().equalsIgnoreCase("PutSuccessful")) {
+					callback.onSuccess(null);
+				} else {
+					callback.onFailure(FCPException.create(reply));
+				}
+			}
+		});
+	}
+
+	private FCPMessage newPutMessage(InputStream data, long length, String key, RequestType type)
+			throws FCPBadFileException {
+		if(this.conn.isPersistentRequests()) {
+			// The identifier depends on the data, which a stream can only be read for once
+			return newPutMessage(new ArrayBucket(readData(data, length)), key, type);
+		}
+
 		FCPMessage msg = this.conn.getMessage("ClientPut");
-		msg.headers.put("URI", key);
 		msg.headers.put("Persistence", "connection");
-		msg.setData(data);
+		msg.headers.put("URI", key);
+		setPriority(msg, type);
+		msg.setData(data, length);
+		return msg;
+	}
+
+	private FCPMessage newPutMessage(Bucket data, String key, RequestType type) throws FCPBadFileException {
+		if(!this.conn.isPersistentRequests()) {
+			return newPutMessage(getInputStream(data), data.size(), key, type);
+		}
 
-		while(true) {
+		// The identifier is derived from the key and the data so that inserting the same
+		// data again after a restart finds the request that is already on the queue, while
+		// other data for the same key, such as an ack batch that has grown, is a new request
+		String identifier;
+		try {
+			identifier = persistentIdentifier(key, data);
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't read data to insert: " + e.getMessage());
+			throw new FCPBadFileException();
+		}
+
+		FCPMessage msg = new FCPMessage(identifier, "ClientPut");
+		msg.headers.put("Persistence", "forever");
+		msg.headers.put("Global", "true");
+		msg.headers.put("URI", key);
+		setPriority(msg, type);
+		msg.setData(getInputStream(data), data.size());
+		return msg;
+	}
+
+	private InputStream getInputStream(Bucket data) throws FCPBadFileException {
+		try {
+			return data.getInputStream();
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't read data to insert: " + e.getMessage());
+			throw new FCPBadFileException();
+		}
+	}
+
+	/**
+	 * Reads exactly {@code length} bytes from the stream, or all of it if {@code length}
+	 * is negative.
+	 */
+	private byte[] readData(InputStream data, long length) throws FCPBadFileException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		try {
 			try {
-				this.conn.doRequest(this, msg);
-				break;
-			} catch (NoNodeConnectionException nnce) {
-				Logger.error(this, "Warning - no connection to node. Waiting...");
-				Thread.sleep(5000);
+				long remaining = length < 0 ? Long.MAX_VALUE : length;
+				while(remaining > 0) {
+					int read = data.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+					if(read == -1) {
+						break;
+					}
+					out.write(buffer, 0, read);
+					remaining -= read;
+				}
+			} finally {
+				data.close();
 			}
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't read data to insert: " + e.getMessage());
+			throw new FCPBadFileException();
 		}
 
-		FCPMessage reply;
+		if(length >= 0 && out.size() != length) {
+			Logger.error(this, "Data to insert ended after " + out.size() + " of " + length + " bytes");
+			throw new FCPBadFileException();
+		}
+		return out.toByteArray();
+	}
+
+	static String persistentIdentifier(String key, Bucket data) throws IOException {
+		byte[] keyBytes;
 		try {
-			reply = getReply(msg.getId());
-		} catch(InterruptedException e) {
-			Logger.debug(this, "HighLevelFCPClient interrupted in put, stopping");
-			conn.cancelRequest(msg);
-			throw e;
+			keyBytes = key.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			//JVMs are required to support UTF-8, so we can assume it is always available
+			throw new AssertionError("JVM doesn't support UTF-8 charset");
 		}
 
-		if(reply.getType().equalsIgnoreCase("PutSuccessful")) {
-			return null;
-		} else if(reply.getType().equalsIgnoreCase("PutFailed")) {
-			return new FCPPutFailedException(reply);
-		} else {
-			throw FCPException.create(reply);
+		SHA256Digest sha256 = new SHA256Digest();
+		sha256.update(keyBytes, 0, keyBytes.length);
+		//Separates the key from the data, which keys never contain
+		sha256.update((byte)0);
+
+		InputStream is = data.getInputStream();
+		try {
+			byte[] buffer = new byte[4096];
+			int read;
+			while((read = is.read(buffer)) != -1) {
+				sha256.update(buffer, 0, read);
+			}
+		} finally {
+			is.close();
+		}
+
+		byte[] hash = new byte[sha256.getDigestSize()];
+		sha256.doFinal(hash, 0);
+		return FCPConnection.PERSISTENT_PREFIX + Base32.encode(hash);
+	}
+
+	private FCPRequest submit(FCPMessage msg, FCPClient listener) throws NoNodeConnectionException,
+	                                                                     ConnectionTerminatedException,
+	                                                                     FCPBadFileException {
+		FCPRequest request = new FCPRequest(conn, msg, listener);
+		this.conn.doRequest(request, msg);
+		return request;
+	}
+
+	/**
+	 * Sends a request that counts towards the limit of the given type.
+	 * @see FCPConnectionPool#doRequest(FCPClient, FCPMessage, RequestType)
+	 */
+	private FCPRequest submit(FCPMessage msg, RequestType type, FCPClient listener)
+			throws NoNodeConnectionException, ConnectionTerminatedException, FCPBadFileException {
+		FCPRequest request = new FCPRequest(conn, msg, listener);
+		this.conn.doRequest(request, msg, type);
+		return request;
+	}
+
+	/**
+	 * Sends the message and waits for the completion message. If there is no
+	 * connection to the node the message is sent once there is, and until then
+	 * the request doesn't count towards the limit of its type.
+	 */
+	private FCPMessage sendAndWait(FCPMessage msg, String operation, RequestType type)
+			throws ConnectionTerminatedException, FCPBadFileException, InterruptedException {
+		FCPRequest request;
+		try {
+			request = submit(msg, type, null);
+		} catch (NoNodeConnectionException nnce) {
+			// the connection was lost while sending the data
+			Logger.error(this, "Lost connection to node during " + operation);
+			return new FCPMessage(1, "ConnectionClosed");
+		}
+
+		try {
+			return request.get();
+		} catch(InterruptedException e) {
+			Logger.debug(this, "HighLevelFCPClient interrupted in " + operation + ", stopping");
+			request.cancel(false);
+			throw e;
 		}
 	}
 
@@ -205,7 +450,7 @@ public class HighLevelFCPClient implements FCPClient {
 
 			FCPPutFailedException emsg;
 			try {
-				emsg = this.put(fis, basekey+"-"+slot+suffix);
+				emsg = this.put(fis, data.length(), basekey+"-"+slot+suffix);
 			} catch (FCPBadFileException bfe) {
 				return -1;
 			} catch (FCPException e) {
@@ -229,9 +474,13 @@ public class HighLevelFCPClient implements FCPClient {
 
 	public int slotInsert(byte[] data, String basekey, int minslot, String suffix) throws ConnectionTerminatedException,
 	                                                                                      InterruptedException {
+		return slotInsert(data, basekey, minslot, suffix, RequestType.OTHER);
+	}
+
+	public int slotInsert(byte[] data, String basekey, int minslot, String suffix, RequestType type)
+			throws ConnectionTerminatedException, InterruptedException {
 		int slot = minslot;
 		boolean carryon = true;
-		ByteArrayInputStream bis;
 		if(basekey.startsWith("USK@")) {
 			basekey = basekey.replace("USK@", "SSK@");
 
@@ -242,11 +491,9 @@ public class HighLevelFCPClient implements FCPClient {
 		while(carryon) {
 			Logger.debug(this, "trying slotinsert to "+basekey+"-"+slot+suffix);
 
-			bis = new ByteArrayInputStream(data);
-
 			FCPPutFailedException emsg;
 			try {
-				emsg = this.put(bis, basekey+"-"+slot+suffix);
+				emsg = this.put(new ArrayBucket(data), basekey+"-"+slot+suffix, type);
 			} catch (FCPBadFileException bfe) {
 				return -1;
 			} catch (FCPException e) {
@@ -268,16 +515,10 @@ public class HighLevelFCPClient implements FCPClient {
 		return -1;
 	}
 
-	@Override
-	public void requestStatus(FCPMessage msg) {
-
-	}
+	private abstract static class RequestListener implements FCPClient {
+		@Override
+		public void requestStatus(FCPMessage msg) {
 
-	@Override
-	public void requestFinished(FCPMessage msg) {
-		synchronized(doneMsgs) {
-			doneMsgs.add(msg);
-			doneMsgs.notifyAll();
 		}
 	}
 }
@@ -0,0 +1,90 @@
+/*
+ * RequestType.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.fcp;
+
+/**
+ * What a request to the node is for, which decides the priority class the node
+ * schedules it at and how many requests of the type can run at once. Requests
+ * that a user is waiting for, such as sending a message, get an interactive
+ * priority, while the speculative polling that goes on in the background is
+ * scheduled below everything else.
+ */
+public enum RequestType {
+	/** A message inserted to a channel */
+	MESSAGE_INSERT(PriorityClass.INTERACTIVE, 0),
+
+	/** The RTS that sets up a channel, which the first message is waiting for */
+	RTS_INSERT(PriorityClass.INTERACTIVE, 0),
+
+	/** Fetching the mailsite of a recipient before sending the RTS */
+	MAILSITE_FETCH(PriorityClass.INTERACTIVE, 0),
+
+	/** The CTS that tells the sender that the RTS was received */
+	CTS_INSERT(PriorityClass.IMMEDIATE_SPLITFILE, 0),
+
+	/** Acks for received messages, which can wait a bit */
+	ACK_INSERT(PriorityClass.UPDATE, 0),
+
+	/** Polling the slots of a channel for new messages */
+	MESSAGE_FETCH(PriorityClass.BULK_SPLITFILE, 8),
+
+	/** Inserting our own mailsite */
+	MAILSITE_INSERT(PriorityClass.BULK_SPLITFILE, 2),
+
+	/** Polling the RTS slots of the last few days */
+	RTS_POLL(PriorityClass.PREFETCH, 4),
+
+	/** Anything else, which is sent at the default priority of the node */
+	OTHER(-1, 0);
+
+	private final int priorityClass;
+	private final int maxConcurrent;
+
+	private RequestType(int priorityClass, int maxConcurrent) {
+		this.priorityClass = priorityClass;
+		this.maxConcurrent = maxConcurrent;
+	}
+
+	/**
+	 * Returns the value of the PriorityClass field, or -1 if the field shouldn't be set.
+	 */
+	public int getPriorityClass() {
+		return priorityClass;
+	}
+
+	/**
+	 * Returns the number of requests of this type that may be in flight at once, or 0 if
+	 * there is no limit.
+	 */
+	public int getMaxConcurrent() {
+		return maxConcurrent;
+	}
+
+	/**
+	 * The priority classes of the node, where lower values are more important.
+	 */
+	private static class PriorityClass {
+		private static final int INTERACTIVE = 1;
+		private static final int IMMEDIATE_SPLITFILE = 2;
+		private static final int UPDATE = 3;
+		private static final int BULK_SPLITFILE = 4;
+		private static final int PREFETCH = 5;
+	}
+}
@@ -48,6 +48,7 @@ import java.util.concurrent.TimeUnit;
 
 import org.archive.util.Base32;
 import org.freenetproject.freemail.AccountManager;
+import org.freenetproject.freemail.AdmissionControl;
 import org.freenetproject.freemail.FreemailAccount;
 import org.freenetproject.freemail.MailMessage;
 import org.freenetproject.freemail.MessageBank;
@@ -64,11 +65,18 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 	private final BufferedReader bufrdr;
 	private MessageBank mb;
 	private MessageBank inbox;
+	private String accountIdentity;
 	private final AccountManager accountManager;
+	private final AdmissionControl admissionControl;
 
 	IMAPHandler(AccountManager accMgr, Socket client) throws IOException {
+		this(accMgr, client, new AdmissionControl());
+	}
+
+	IMAPHandler(AccountManager accMgr, Socket client, AdmissionControl admissionControl) throws IOException {
 		super(client);
 		accountManager = accMgr;
+		this.admissionControl = admissionControl;
 		this.ps = new PrintStream(client.getOutputStream());
 		this.bufrdr = new BufferedReader(new InputStreamReader(client.getInputStream()));
 		this.mb = null;
@@ -110,6 +118,10 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			if(!(stopping && ioe instanceof SocketException)) {
 				Logger.error(this, "Caught IOException while reading imap data: " + ioe.getMessage(), ioe);
 			}
+		} finally {
+			if(accountIdentity != null) {
+				admissionControl.releaseAccountConnection(accountIdentity);
+			}
 		}
 	}
 
@@ -187,13 +199,24 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 		}
 
 		FreemailAccount account = accountManager.authenticate(username, password);
-		if(account != null) {
-			this.inbox = account.getMessageBank();
-
-			this.reply(msg, "OK Logged in");
-		} else {
+		if(account == null) {
 			this.reply(msg, "NO Login failed");
+			return;
 		}
+
+		if(!account.getIdentity().equals(accountIdentity)) {
+			if(!admissionControl.acquireAccountConnection(account.getIdentity())) {
+				this.reply(msg, "NO [UNAVAILABLE] Too many connections for this account, try again later");
+				return;
+			}
+			if(accountIdentity != null) {
+				admissionControl.releaseAccountConnection(accountIdentity);
+			}
+			accountIdentity = account.getIdentity();
+		}
+
+		this.inbox = account.getMessageBank();
+		this.reply(msg, "OK Logged in");
 	}
 
 	private void handleLogout(IMAPMessage msg) {
@@ -420,6 +443,23 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			}
 		}
 
+		boolean transfer = isTransfer(msg.args, 1);
+		if(transfer && !admissionControl.acquireTransfer(accountIdentity)) {
+			reply(msg, "NO [LIMIT] Too many concurrent transfers for this account, try again later");
+			return;
+		}
+
+		try {
+			fetchRange(msg, msgs, sequenceNumbers, uid);
+		} finally {
+			if(transfer) {
+				admissionControl.releaseTransfer(accountIdentity);
+			}
+		}
+	}
+
+	private void fetchRange(IMAPMessage msg, SortedMap<Integer, MailMessage> msgs, SortedSet<Integer> sequenceNumbers,
+			boolean uid) {
 		//Return the messages in the range
 		for(MailMessage message : msgs.values()) {
 			if(uid) {
@@ -441,6 +481,24 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 		this.reply(msg, "OK Fetch completed");
 	}
 
+	/**
+	 * Returns {@code true} if any of the fetch attributes starting at
+	 * {@code firstarg} requires reading the message body.
+	 */
+	private static boolean isTransfer(String[] args, int firstarg) {
+		for(int i = firstarg; i < args.length; i++) {
+			String attr = args[i].toUpperCase(Locale.ROOT);
+			if(attr.startsWith("(")) {
+				attr = attr.substring(1);
+			}
+			if(attr.startsWith("BODY") || attr.startsWith("BINARY")
+					|| (attr.startsWith("RFC822") && !attr.startsWith("RFC822.SIZE"))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	private void handleUid(IMAPMessage msg) {
 		if(msg.args == null || msg.args.length < 1) {
 			this.reply(msg, "BAD Not enough arguments for uid command");
@@ -1259,6 +1317,19 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			return;
 		}
 
+		if(!admissionControl.acquireTransfer(accountIdentity)) {
+			this.reply(msg, "NO [LIMIT] Too many concurrent transfers for this account, try again later");
+			return;
+		}
+
+		try {
+			appendMessage(msg, destmb, datalen, flags);
+		} finally {
+			admissionControl.releaseTransfer(accountIdentity);
+		}
+	}
+
+	private void appendMessage(IMAPMessage msg, MessageBank destmb, int datalen, List<String> flags) {
 		MailMessage newmsg = destmb.createMessage();
 		this.ps.print("+ OK\r\n");
 		try {
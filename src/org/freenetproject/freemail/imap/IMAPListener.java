@@ -28,6 +28,7 @@ import java.net.SocketTimeoutException;
 import java.io.IOException;
 
 import org.freenetproject.freemail.AccountManager;
+import org.freenetproject.freemail.AdmissionControl;
 import org.freenetproject.freemail.ServerListener;
 import org.freenetproject.freemail.config.ConfigClient;
 import org.freenetproject.freemail.config.Configurator;
@@ -40,7 +41,8 @@ public class IMAPListener extends ServerListener implements Runnable, ConfigClie
 	private int bindport;
 	private final AccountManager accountManager;
 
-	public IMAPListener(AccountManager accMgr, Configurator cfg) {
+	public IMAPListener(AccountManager accMgr, Configurator cfg, AdmissionControl admissionControl) {
+		super(admissionControl);
 		accountManager = accMgr;
 		cfg.register(Configurator.IMAP_BIND_ADDRESS, this, "127.0.0.1");
 		cfg.register(Configurator.IMAP_BIND_PORT, this, Integer.toString(LISTENPORT));
@@ -70,11 +72,17 @@ public class IMAPListener extends ServerListener implements Runnable, ConfigClie
 		while(!sock.isClosed()) {
 			try {
 				Socket clientSocket = sock.accept();
-				IMAPHandler newcli = new IMAPHandler(accountManager, clientSocket);
-				Thread newthread = new Thread(newcli, "Freemail IMAP Handler for " + clientSocket.getInetAddress());
-				newthread.setDaemon(true);
-				newthread.start();
-				addHandler(newcli, newthread);
+				if(!admit(clientSocket, "* BYE [UNAVAILABLE] Too many connections, try again later")) {
+					continue;
+				}
+				IMAPHandler newcli;
+				try {
+					newcli = new IMAPHandler(accountManager, clientSocket, admissionControl);
+				} catch (IOException ioe) {
+					admissionControl.releaseConnection();
+					throw ioe;
+				}
+				startHandler(newcli, "Freemail IMAP Handler for " + clientSocket.getInetAddress());
 			} catch (SocketTimeoutException ste) {
 
 			} catch (IOException ioe) {
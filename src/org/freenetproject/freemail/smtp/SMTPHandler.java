@@ -22,12 +22,10 @@
 package org.freenetproject.freemail.smtp;
 
 import java.net.Socket;
+import java.io.BufferedOutputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
 import java.io.File;
-import java.io.PrintWriter;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
@@ -40,38 +38,63 @@ import java.util.Vector;
 
 import freenet.pluginmanager.PluginNotFoundException;
 import freenet.support.api.Bucket;
+import freenet.support.io.Closer;
 import freenet.support.io.FileBucket;
 
 import org.archive.util.Base32;
 import org.bouncycastle.util.encoders.Base64;
 import org.freenetproject.freemail.AccountManager;
+import org.freenetproject.freemail.AdmissionControl;
 import org.freenetproject.freemail.Freemail;
 import org.freenetproject.freemail.FreemailAccount;
 import org.freenetproject.freemail.ServerHandler;
+import org.freenetproject.freemail.support.io.TooLongException;
 import org.freenetproject.freemail.transport.MessageHandler;
 import org.freenetproject.freemail.utils.Logger;
 import org.freenetproject.freemail.wot.Identity;
 import org.freenetproject.freemail.wot.IdentityMatcher;
 
 public class SMTPHandler extends ServerHandler implements Runnable {
+	public static final String MY_HOSTNAME = "localhost";
+	public static final long DEFAULT_MAX_MESSAGE_SIZE = 10 * 1024 * 1024;
+
+	private static final int MAX_LINE_LENGTH = 4096;
+	private static final int SPOOL_BUFFER_SIZE = 64 * 1024;
+
 	private final OutputStream os;
 	private final PrintStream ps;
-	private final BufferedReader bufrdr;
+	private final SMTPReader reader;
 	private FreemailAccount account;
-	public static final String MY_HOSTNAME = "localhost";
 
 	private final AccountManager accountmanager;
 	private final IdentityMatcher identityMatcher;
+	private final AdmissionControl admissionControl;
+	private final long maxMessageSize;
 
 	private Vector<Identity> to;
 
+	/** Spool file of the message being received using BDAT, or null */
+	private File chunkFile;
+	private OutputStream chunkStream;
+	private long chunkedSize;
+
 	public SMTPHandler(AccountManager accMgr, Socket client, IdentityMatcher identityMatcher) throws IOException {
+		this(accMgr, client, identityMatcher, new AdmissionControl(), DEFAULT_MAX_MESSAGE_SIZE);
+	}
+
+	public SMTPHandler(AccountManager accMgr, Socket client, IdentityMatcher identityMatcher,
+			AdmissionControl admissionControl, long maxMessageSize) throws IOException {
 		super(client);
 		accountmanager = accMgr;
+		this.admissionControl = admissionControl;
+		this.maxMessageSize = maxMessageSize;
 		this.account = null;
 		this.os = client.getOutputStream();
-		this.ps = new PrintStream(this.os);
-		this.bufrdr = new BufferedReader(new InputStreamReader(client.getInputStream()));
+
+		//Replies are buffered and only flushed when there are no more
+		//pipelined commands to process (RFC 2920)
+		this.ps = new PrintStream(new BufferedOutputStream(this.os));
+		this.reader = new SMTPReader(client.getInputStream());
 		this.identityMatcher = identityMatcher;
 
 		this.to = new Vector<Identity>();
@@ -83,7 +106,7 @@ public class SMTPHandler extends ServerHandler implements Runnable {
 
 		String line;
 		try {
-			while(!stopping && !this.client.isClosed() && (line = this.bufrdr.readLine()) != null) {
+			while(!stopping && !this.client.isClosed() && (line = readLine()) != null) {
 				SMTPCommand msg = null;
 				try {
 					//Logger.normal(this,line);
@@ -97,9 +120,23 @@ public class SMTPHandler extends ServerHandler implements Runnable {
 				this.dispatch(msg);
 			}
 
+			this.ps.flush();
 			this.client.close();
+		} catch (TooLongException e) {
+			this.ps.print("500 Line too long\r\n");
+			this.ps.flush();
+			try {
+				this.client.close();
+			} catch (IOException ioe) {
+
+			}
 		} catch (IOException ioe) {
 
+		} finally {
+			abortChunking();
+			if(account != null) {
+				admissionControl.releaseAccountConnection(account.getIdentity());
+			}
 		}
 	}
 
@@ -115,11 +152,13 @@ public class SMTPHandler extends ServerHandler implements Runnable {
 		} else if(cmd.command.equals("auth")) {
 			this.handle_auth(cmd);
 		} else if(cmd.command.equals("mail")) {
-			this.handle_mail();
+			this.handle_mail(cmd);
 		} else if(cmd.command.equals("rcpt")) {
 			this.handle_rcpt(cmd);
 		} else if(cmd.command.equals("data")) {
 			this.handle_data();
+		} else if(cmd.command.equals("bdat")) {
+			this.handle_bdat(cmd);
 		} else if(cmd.command.equals("rset")) {
 			this.handle_rset();
 		} else {
@@ -134,11 +173,16 @@ public class SMTPHandler extends ServerHandler implements Runnable {
 
 	private void handle_ehlo() {
 		this.ps.print("250-"+MY_HOSTNAME+"\r\n");
+		this.ps.print("250-PIPELINING\r\n");
+		this.ps.print("250-8BITMIME\r\n");
+		this.ps.print("250-SIZE "+maxMessageSize+"\r\n");
+		this.ps.print("250-CHUNKING\r\n");
 		this.ps.print("250 AUTH LOGIN PLAIN\r\n");
 	}
 
 	private void handle_quit() {
 		this.ps.print("221 "+MY_HOSTNAME+"\r\n");
+		this.ps.flush();
 		try {
 			this.client.close();
 		} catch (IOException ioe) {
@@ -175,7 +219,7 @@ public class SMTPHandler extends ServerHandler implements Runnable {
 			String b64username;
 			String b64password;
 			try {
-				b64username = this.bufrdr.readLine();
+				b64username = readLine();
 			} catch (IOException ioe) {
 				return;
 			}
@@ -188,7 +232,7 @@ public class SMTPHandler extends ServerHandler implements Runnable {
 				throw new AssertionError("JVM doesn't support UTF-8 charset");
 			}
 			try {
-				b64password = this.bufrdr.readLine();
+				b64password = readLine();
 			} catch (IOException ioe) {
 				return;
 			}
@@ -209,7 +253,7 @@ public class SMTPHandler extends ServerHandler implements Runnable {
 			} else {
 				this.ps.print("334 \r\n");
 				try {
-					b64creds = this.bufrdr.readLine();
+					b64creds = readLine();
 					if(b64creds == null) return;
 				} catch (IOException ioe) {
 					return;
@@ -261,23 +305,57 @@ public class SMTPHandler extends ServerHandler implements Runnable {
 			Logger.debug(this, "Extracted Identity string: " + uname);
 		}
 
-		account = accountmanager.authenticate(uname, password);
-		if(account != null) {
-			this.ps.print("235 Authenticated\r\n");
-		} else {
+		FreemailAccount authenticated = accountmanager.authenticate(uname, password);
+		if(authenticated == null) {
 			this.ps.print("535 Authentication failed\r\n");
+			return;
 		}
+
+		if(!admissionControl.acquireAccountConnection(authenticated.getIdentity())) {
+			this.ps.print("454 Too many connections for this account, try again later\r\n");
+			return;
+		}
+
+		account = authenticated;
+		this.ps.print("235 Authenticated\r\n");
 	}
 
-	private void handle_mail() {
+	private void handle_mail(SMTPCommand cmd) {
 		if(this.account == null) {
 			this.ps.print("530 Authentication required\r\n");
 			return;
 		}
 
+		abortChunking();
 		this.to.clear();
 
-		// we don't really care.
+		//We don't really care about the sender, but check the ESMTP parameters
+		for(String arg : cmd.args) {
+			String[] param = arg.split("=", 2);
+			if(param.length != 2) {
+				continue;
+			}
+
+			if(param[0].equalsIgnoreCase("size")) {
+				long size;
+				try {
+					size = Long.parseLong(param[1]);
+				} catch(NumberFormatException e) {
+					this.ps.print("501 Syntax error in SIZE parameter\r\n");
+					return;
+				}
+				if(size > maxMessageSize) {
+					this.ps.print("552 Message size exceeds fixed maximum message size\r\n");
+					return;
+				}
+			} else if(param[0].equalsIgnoreCase("body")) {
+				if(!param[1].equalsIgnoreCase("7bit") && !param[1].equalsIgnoreCase("8bitmime")) {
+					this.ps.print("501 Unsupported BODY type\r\n");
+					return;
+				}
+			}
+		}
+
 		this.ps.print("250 OK\r\n");
 	}
 
@@ -340,45 +418,51 @@ public class SMTPHandler extends ServerHandler implements Runnable {
 			return;
 		}
 
+		if(this.chunkFile != null) {
+			this.ps.print("503 BDAT transfer in progress\r\n");
+			return;
+		}
+
+		if(!admissionControl.acquireTransfer(account.getIdentity())) {
+			this.ps.print("451 Too many concurrent transfers for this account, try again later\r\n");
+			return;
+		}
+
+		try {
+			receiveMessage();
+		} finally {
+			admissionControl.releaseTransfer(account.getIdentity());
+		}
+	}
+
+	private void receiveMessage() {
 		File tempfile = null;
 		try {
 			tempfile = File.createTempFile("freemail-", ".message", Freemail.getTempDir());
-			PrintWriter pw = new PrintWriter(new FileOutputStream(tempfile));
 
 			this.ps.print("354 Go crazy\r\n");
+			this.ps.flush();
 
-			String line;
-			boolean done = false;
-			while((line = this.bufrdr.readLine()) != null) {
-				if(line.equals(".")) {
-					done = true;
-					break;
-				}
-				if(line.startsWith(".")) {
-					line = line.substring(1);
-				}
-				pw.print(line+"\r\n");
+			long size;
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(tempfile), SPOOL_BUFFER_SIZE);
+			try {
+				size = reader.readData(out, maxMessageSize);
+			} finally {
+				out.close();
 			}
 
-			pw.close();
-			if(!done) {
+			if(size == -1) {
 				// connection closed before the message was
 				// finished. bail out.
-				tempfile.delete();
 				return;
 			}
 
-			MessageHandler messageSender = account.getMessageHandler();
-			Bucket data = new FileBucket(tempfile, false, false, false, true);
-			try {
-				if(messageSender.sendMessage(to, data)) {
-					this.ps.print("250 So be it\r\n");
-				} else {
-					this.ps.print("452 Message sending failed\r\n");
-				}
-			} finally {
-				data.free();
+			if(size > maxMessageSize) {
+				this.ps.print("552 Message size exceeds fixed maximum message size\r\n");
+				return;
 			}
+
+			sendMessage(tempfile);
 		} catch (IOException ioe) {
 			this.ps.print("452 Can't store message\r\n");
 		} finally {
@@ -388,7 +472,125 @@ public class SMTPHandler extends ServerHandler implements Runnable {
 		}
 	}
 
+	private void handle_bdat(SMTPCommand cmd) {
+		long size = -1;
+		boolean last = false;
+		if(cmd.args.length == 1 || cmd.args.length == 2) {
+			try {
+				size = Long.parseLong(cmd.args[0]);
+			} catch(NumberFormatException e) {
+				size = -1;
+			}
+			if(cmd.args.length == 2) {
+				last = cmd.args[1].equalsIgnoreCase("last");
+				if(!last) {
+					size = -1;
+				}
+			}
+		}
+		if(size < 0) {
+			//We can't know how much data follows, so there isn't much else to do
+			this.ps.print("501 Syntax error in BDAT command\r\n");
+			return;
+		}
+
+		try {
+			if(this.account == null) {
+				reader.readChunk(null, size);
+				this.ps.print("530 Authentication required\r\n");
+				return;
+			}
+
+			if(this.to.size() == 0) {
+				reader.readChunk(null, size);
+				this.ps.print("503 RCPT first\r\n");
+				return;
+			}
+
+			if(chunkFile == null) {
+				if(!admissionControl.acquireTransfer(account.getIdentity())) {
+					reader.readChunk(null, size);
+					this.to.clear();
+					this.ps.print("451 Too many concurrent transfers for this account, try again later\r\n");
+					return;
+				}
+
+				chunkedSize = 0;
+				try {
+					chunkFile = File.createTempFile("freemail-", ".message", Freemail.getTempDir());
+					chunkStream = new BufferedOutputStream(new FileOutputStream(chunkFile), SPOOL_BUFFER_SIZE);
+				} catch (IOException ioe) {
+					abortChunking();
+					reader.readChunk(null, size);
+					this.to.clear();
+					this.ps.print("452 Can't store message\r\n");
+					return;
+				}
+			}
+
+			if(chunkedSize + size > maxMessageSize) {
+				abortChunking();
+				reader.readChunk(null, size);
+				this.to.clear();
+				this.ps.print("552 Message size exceeds fixed maximum message size\r\n");
+				return;
+			}
+
+			if(!reader.readChunk(chunkStream, size)) {
+				//Connection closed in the middle of the chunk
+				abortChunking();
+				return;
+			}
+			chunkedSize += size;
+
+			if(!last) {
+				this.ps.print("250 " + size + " octets received\r\n");
+				return;
+			}
+
+			chunkStream.close();
+			chunkStream = null;
+			sendMessage(chunkFile);
+		} catch (IOException ioe) {
+			this.ps.print("452 Can't store message\r\n");
+		} finally {
+			if(last) {
+				abortChunking();
+			}
+		}
+	}
+
+	/**
+	 * Discards the message being received using BDAT, if any.
+	 */
+	private void abortChunking() {
+		if(chunkFile == null) {
+			return;
+		}
+
+		Closer.close(chunkStream);
+		chunkStream = null;
+		chunkFile.delete();
+		chunkFile = null;
+		admissionControl.releaseTransfer(account.getIdentity());
+	}
+
+	private void sendMessage(File message) throws IOException {
+		MessageHandler messageSender = account.getMessageHandler();
+		Bucket data = new FileBucket(message, false, false, false, true);
+		try {
+			if(messageSender.sendMessage(to, data)) {
+				this.ps.print("250 So be it\r\n");
+			} else {
+				this.ps.print("452 Message sending failed\r\n");
+			}
+		} finally {
+			data.free();
+		}
+	}
+
 	private void handle_rset() {
+		abortChunking();
 		this.to.clear();
 		this.ps.print("250 Reset\r\n");
 	}
@@ -396,4 +598,15 @@ public class SMTPHandler extends ServerHandler implements Runnable {
 	private void sendWelcome() {
 		this.ps.print("220 "+MY_HOSTNAME+" ready\r\n");
 	}
+
+	/**
+	 * Reads the next line from the client, first flushing the buffered replies
+	 * if the client is waiting for them.
+	 */
+	private String readLine() throws IOException {
+		if(!reader.hasBufferedInput()) {
+			this.ps.flush();
+		}
+		return reader.readLine(MAX_LINE_LENGTH);
+	}
 }
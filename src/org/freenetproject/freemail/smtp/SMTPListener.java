@@ -27,6 +27,7 @@ import java.io.IOException;
 import java.net.Socket;
 
 import org.freenetproject.freemail.AccountManager;
+import org.freenetproject.freemail.AdmissionControl;
 import org.freenetproject.freemail.Freemail;
 import org.freenetproject.freemail.ServerListener;
 import org.freenetproject.freemail.config.ConfigClient;
@@ -39,14 +40,17 @@ public class SMTPListener extends ServerListener implements Runnable, ConfigClie
 	private static final int LISTENPORT = 4025;
 	private String bindaddress;
 	private int bindport;
+	private volatile long maxMessageSize;
 	private final AccountManager accountManager;
 	private final Freemail freemail;
 
-	public SMTPListener(AccountManager accMgr, Configurator cfg, Freemail freemail) {
+	public SMTPListener(AccountManager accMgr, Configurator cfg, Freemail freemail, AdmissionControl admissionControl) {
+		super(admissionControl);
 		this.accountManager = accMgr;
 		this.freemail = freemail;
 		cfg.register(Configurator.SMTP_BIND_ADDRESS, this, "127.0.0.1");
 		cfg.register(Configurator.SMTP_BIND_PORT, this, Integer.toString(LISTENPORT));
+		cfg.register(Configurator.SMTP_MAX_MESSAGE_SIZE, this, Long.toString(SMTPHandler.DEFAULT_MAX_MESSAGE_SIZE));
 	}
 
 	@Override
@@ -64,6 +68,8 @@ public class SMTPListener extends ServerListener implements Runnable, ConfigClie
 			this.bindaddress = val;
 		} else if(key.equalsIgnoreCase(Configurator.SMTP_BIND_PORT)) {
 			this.bindport = Integer.parseInt(val);
+		} else if(key.equalsIgnoreCase(Configurator.SMTP_MAX_MESSAGE_SIZE)) {
+			this.maxMessageSize = Long.parseLong(val);
 		}
 	}
 
@@ -71,13 +77,19 @@ public class SMTPListener extends ServerListener implements Runnable, ConfigClie
 		sock = new ServerSocket(this.bindport, 10, InetAddress.getByName(this.bindaddress));
 		while(!sock.isClosed()) {
 			try {
-				IdentityMatcher matcher = new IdentityMatcher(freemail.getWotConnection());
+				IdentityMatcher matcher = new IdentityMatcher(freemail.getWotConnection(), freemail.getIdentityCache());
 				Socket clientSocket = sock.accept();
-				SMTPHandler newcli = new SMTPHandler(accountManager, clientSocket, matcher);
-				Thread newthread = new Thread(newcli, "Freemail SMTP Handler for " + clientSocket.getInetAddress());
-				newthread.setDaemon(true);
-				newthread.start();
-				addHandler(newcli, newthread);
+				if(!admit(clientSocket, "421 " + SMTPHandler.MY_HOSTNAME + " Too many connections, try again later")) {
+					continue;
+				}
+				SMTPHandler newcli;
+				try {
+					newcli = new SMTPHandler(accountManager, clientSocket, matcher, admissionControl, maxMessageSize);
+				} catch (IOException ioe) {
+					admissionControl.releaseConnection();
+					throw ioe;
+				}
+				startHandler(newcli, "Freemail SMTP Handler for " + clientSocket.getInetAddress());
 			} catch (IOException ioe) {
 
 			}
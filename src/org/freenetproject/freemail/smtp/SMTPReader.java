@@ -0,0 +1,225 @@
+/*
+ * SMTPReader.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.smtp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+import org.freenetproject.freemail.support.io.TooLongException;
+
+/**
+ * Buffered reader for the client side of an SMTP connection. Command lines are
+ * returned as Strings, while message data (both DATA and BDAT) is copied to an
+ * OutputStream in blocks without being decoded. Since the buffer is owned by
+ * this class, pipelined commands that follow message data are never lost.
+ */
+class SMTPReader {
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final byte[] CRLF = new byte[] {'\r', '\n'};
+
+	private final InputStream in;
+	private final byte[] buf = new byte[BUFFER_SIZE];
+	private int pos = 0;
+	private int limit = 0;
+
+	SMTPReader(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Returns {@code true} if there is input that can be read without blocking.
+	 * When this returns {@code false} any buffered replies should be flushed
+	 * before reading.
+	 */
+	boolean hasBufferedInput() throws IOException {
+		return pos < limit || in.available() > 0;
+	}
+
+	/**
+	 * Reads a \n or \r\n terminated line. The line terminator is not included
+	 * in the returned String.
+	 * @param maxLength the maximum length of the line in bytes
+	 * @return the line, or {@code null} if the connection was closed first
+	 * @throws TooLongException if the line is longer than {@code maxLength}
+	 */
+	String readLine(int maxLength) throws IOException {
+		//Number of bytes after pos that are known not to contain \n
+		int scanned = 0;
+		while(true) {
+			for(int i = pos + scanned; i < limit; i++) {
+				if(buf[i] == '\n') {
+					int end = i;
+					if(end > pos && buf[end - 1] == '\r') {
+						end--;
+					}
+					String line = decode(pos, end - pos);
+					pos = i + 1;
+					return line;
+				}
+			}
+
+			scanned = limit - pos;
+			if(scanned > maxLength) {
+				throw new TooLongException();
+			}
+
+			if(fill() == -1) {
+				if(pos == limit) {
+					return null;
+				}
+				String line = decode(pos, limit - pos);
+				pos = limit;
+				return line;
+			}
+		}
+	}
+
+	/**
+	 * Copies dot-stuffed message data as sent after the DATA command to
+	 * {@code out}, removing the stuffing and the terminating line. Lines ending
+	 * in a bare \n are written with \r\n. Once more than {@code maxSize} bytes
+	 * have been written the rest of the message is read but discarded.
+	 * @return the number of bytes in the message, which is larger than
+	 *         {@code maxSize} if data was discarded, or -1 if the connection was
+	 *         closed before the message was terminated
+	 */
+	long readData(OutputStream out, long maxSize) throws IOException {
+		long written = 0;
+		boolean atLineStart = true;
+		boolean lastWasCR = false;
+
+		while(true) {
+			//Find the end of the current line
+			int lineEnd = -1;
+			for(int i = pos; i < limit; i++) {
+				if(buf[i] == '\n') {
+					lineEnd = i;
+					break;
+				}
+			}
+
+			if(lineEnd == -1) {
+				if(limit - pos < buf.length) {
+					//Need more data to see the whole line
+					if(fill() == -1) {
+						return -1;
+					}
+					continue;
+				}
+
+				//Line is longer than the buffer, so it can't be the terminator
+				int start = pos;
+				if(atLineStart && buf[start] == '.') {
+					start++;
+				}
+				int len = limit - start;
+				if(written + len <= maxSize) {
+					out.write(buf, start, len);
+				}
+				written += len;
+				lastWasCR = buf[limit - 1] == '\r';
+				atLineStart = false;
+				pos = limit;
+				continue;
+			}
+
+			int start = pos;
+			pos = lineEnd + 1;
+			if(atLineStart && buf[start] == '.') {
+				int lineLength = lineEnd - start;
+				if(lineLength == 1 || (lineLength == 2 && buf[start + 1] == '\r')) {
+					return written;
+				}
+				start++;
+			}
+
+			//Write the line, turning a bare \n into \r\n
+			boolean hasCR = (lineEnd > start) ? buf[lineEnd - 1] == '\r' : lastWasCR;
+			int len = lineEnd - start;
+			if(hasCR) {
+				len++;
+			}
+			if(written + len + (hasCR ? 0 : 2) <= maxSize) {
+				out.write(buf, start, len);
+				if(!hasCR) {
+					out.write(CRLF);
+				}
+			}
+			written += len + (hasCR ? 0 : 2);
+			atLineStart = true;
+			lastWasCR = false;
+		}
+	}
+
+	/**
+	 * Copies exactly {@code length} bytes, as sent after a BDAT command, to
+	 * {@code out}. If {@code out} is {@code null} the data is discarded.
+	 * @return {@code true} if all the data was read, {@code false} if the
+	 *         connection was closed first
+	 */
+	boolean readChunk(OutputStream out, long length) throws IOException {
+		long remaining = length;
+		while(remaining > 0) {
+			if(pos == limit && fill() == -1) {
+				return false;
+			}
+			int len = (int)Math.min(remaining, limit - pos);
+			if(out != null) {
+				out.write(buf, pos, len);
+			}
+			pos += len;
+			remaining -= len;
+		}
+		return true;
+	}
+
+	/**
+	 * Reads more data into the buffer, moving any unread data to the start of
+	 * the buffer first.
+	 * @return the number of bytes read, or -1 at the end of the stream
+	 */
+	private int fill() throws IOException {
+		if(pos > 0) {
+			System.arraycopy(buf, pos, buf, 0, limit - pos);
+			limit -= pos;
+			pos = 0;
+		}
+		if(limit == buf.length) {
+			throw new TooLongException();
+		}
+
+		int read = in.read(buf, limit, buf.length - limit);
+		if(read > 0) {
+			limit += read;
+		}
+		return read;
+	}
+
+	private String decode(int offset, int length) {
+		try {
+			return new String(buf, offset, length, "UTF-8");
+		} catch(UnsupportedEncodingException e) {
+			//JVMs are required to support UTF-8, so we can assume it is always available
+			throw new AssertionError("JVM doesn't support UTF-8 charset");
+		}
+	}
+}
@@ -22,19 +22,33 @@
 
 package org.freenetproject.freemail.transport;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.CharArrayReader;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map.Entry;
+import java.util.SortedMap;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
@@ -56,14 +70,17 @@ import org.freenetproject.freemail.Freemail;
 import org.freenetproject.freemail.Freemail.TaskType;
 import org.freenetproject.freemail.FreemailAccount;
 import org.freenetproject.freemail.FreenetURI;
+import org.freenetproject.freemail.HashSlotManager;
+import org.freenetproject.freemail.SlotChain;
 import org.freenetproject.freemail.SlotManager;
-import org.freenetproject.freemail.SlotSaveCallback;
 import org.freenetproject.freemail.fcp.ConnectionTerminatedException;
 import org.freenetproject.freemail.fcp.FCPBadFileException;
 import org.freenetproject.freemail.fcp.FCPException;
 import org.freenetproject.freemail.fcp.FCPFetchException;
 import org.freenetproject.freemail.fcp.FCPPutFailedException;
 import org.freenetproject.freemail.fcp.HighLevelFCPClient;
+import org.freenetproject.freemail.fcp.NoNodeConnectionException;
+import org.freenetproject.freemail.fcp.RequestType;
 import org.freenetproject.freemail.fcp.SSKKeyPair;
 import org.freenetproject.freemail.utils.DateStringFactory;
 import org.freenetproject.freemail.utils.Logger;
@@ -85,8 +102,35 @@ import freenet.support.io.Closer;
 class Channel {
 	private static final String CHANNEL_PROPS_NAME = "props";
 	private static final int POLL_AHEAD = 6;
+
+	/**
+	 * The number of slot fetches each channel keeps in flight while polling. This is half of
+	 * the limit for message fetches so that a single channel polling its slots can't hold
+	 * every permit while the other channels wait.
+	 */
+	private static final int FETCH_WINDOW = Math.max(1, RequestType.MESSAGE_FETCH.getMaxConcurrent() / 2);
 	private static final String ACK_LOG = "acklog";
-	private static final long MAX_ACK_DELAY = 12 * 60 * 60 * 1000; //12 hours
+
+	/**
+	 * The slots the fetcher polls, in the binary form of {@link SlotManager}. Until this has
+	 * been written the slots are read from the {@code fetchSlot} entry of the props file,
+	 * which after that only holds the first slot of the channel.
+	 */
+	private static final String FETCH_SLOTS_NAME = "fetchslots";
+	static final long MAX_ACK_DELAY = 12 * 60 * 60 * 1000; //12 hours
+
+	/** The longest time an ack is held back, which is only changed by benchmarks */
+	private static volatile long maxAckDelay = MAX_ACK_DELAY;
+
+	/** The largest number of acks that are inserted together */
+	private static final int MAX_ACKS_PER_INSERT = 100;
+
+	/**
+	 * The slot prefix of the ack insert. Only one batch is inserted at a time, so the batch
+	 * that is retried after a restart gets the slot of the attempt that was interrupted even
+	 * if it holds other acks by then.
+	 */
+	private static final String ACK_BATCH_PREFIX = "ackbatch";
 
 	/**
 	 * The amount of time before the channel times out, in milliseconds. If the channel is created
@@ -113,8 +157,16 @@ class Channel {
 		private static final String REMOTE_ID = "remoteID";
 		private static final String TIMEOUT = "timeout";
 		private static final String MSG_SLOT = ".slot";
+		/** Set to {@code true} once the other side has said that it can read bundles */
+		private static final String REMOTE_BUNDLES = "remoteBundles";
 	}
 
+	/**
+	 * Added to the CTS and to acks to tell the other side that it can send bundles, since
+	 * older versions discard message types they don't know.
+	 */
+	private static final String BUNDLES_SUPPORTED = "bundles=true\r\n";
+
 	private static class RTSKeys {
 		private static final String MAILSITE = "mailsite";
 		private static final String TO = "to";
@@ -127,23 +179,34 @@ class Channel {
 	private final File channelDir;
 	private final PropsFile channelProps;
 	private final ScheduledExecutorService executor;
+	private final FetchScheduler fetchScheduler;
 	private final HighLevelFCPClient fcpClient;
 	private final Freemail freemail;
 	private final FreemailAccount account;
 	private final Fetcher fetcher = new Fetcher();
 	private final RTSSender rtsSender = new RTSSender();
 	private final AtomicReference<ChannelEventCallback> channelEventCallback = new AtomicReference<ChannelEventCallback>();
+	private final AtomicReference<FetchRegistrar> fetchRegistrar = new AtomicReference<FetchRegistrar>();
 	private final MessageLog ackLog;
+	private final AckInserter ackInserter = new AckInserter();
+	private final MailsiteCache mailsiteCache;
 
-	Channel(File channelDir, ScheduledExecutorService executor, HighLevelFCPClient fcpClient, Freemail freemail, FreemailAccount account, String remoteId) throws ChannelTimedOutException {
+	/* The slot chains are kept between runs so the slots are only hashed once */
+	private final SlotChain fetchSlots = new SlotChain();
+	private final SlotChain sendSlots = new SlotChain();
+
+	Channel(File channelDir, ScheduledExecutorService executor, HighLevelFCPClient fcpClient, Freemail freemail, FreemailAccount account,
+			MailsiteCache mailsiteCache, String remoteId) throws ChannelTimedOutException {
 		if(executor == null) throw new NullPointerException();
 		this.executor = executor;
 
 		this.fcpClient = fcpClient;
 		this.account = account;
+		this.mailsiteCache = mailsiteCache;
 
 		if(freemail == null) throw new NullPointerException();
 		this.freemail = freemail;
+		this.fetchScheduler = freemail.getFetchScheduler();
 
 		assert channelDir.isDirectory();
 		this.channelDir = channelDir;
@@ -162,6 +225,9 @@ class Channel {
 		}
 		channelProps = PropsFile.createPropsFile(channelPropsFile);
 
+		//Changes are written when a task finishes, or before an insert that depends on them
+		channelProps.setWriteBehind(true);
+
 		//Check if the channel has timed out
 		synchronized(channelProps) {
 			String rawTimeout = channelProps.get(PropsKeys.TIMEOUT);
@@ -198,6 +264,7 @@ class Channel {
 				}
 
 				channelProps.put(PropsKeys.REMOTE_ID, remoteId);
+				channelProps.flush();
 			}
 		} else {
 			//If not, make sure it is in the config file
@@ -212,6 +279,14 @@ class Channel {
 		}
 	}
 
+	/**
+	 * Sets the longest time acks are held back before they are inserted. This lets
+	 * benchmarks wait for the acks of the messages they send.
+	 */
+	static void setMaxAckDelay(long delay) {
+		maxAckDelay = delay;
+	}
+
 	void processRTS(PropsFile rtsProps) {
 		Logger.debug(this, "Processing RTS");
 
@@ -259,6 +334,7 @@ class Channel {
 
 			channelProps.put(PropsKeys.TIMEOUT, rtsProps.get(RTSKeys.TIMEOUT));
 			channelProps.put(PropsKeys.RECIPIENT_STATE, "rts-received");
+			channelProps.flush();
 		}
 
 		//Queue the CTS insert
@@ -279,6 +355,17 @@ class Channel {
 		}
 	}
 
+	/**
+	 * Makes the fetcher poll through the registration of the given FetchRegistrar instead
+	 * of registering with the fetch scheduler itself. Must be set before the tasks are
+	 * started.
+	 */
+	void setFetchRegistrar(FetchRegistrar registrar) {
+		if(!fetchRegistrar.compareAndSet(null, registrar)) {
+			throw new IllegalStateException("Fetch registrar has already been set");
+		}
+	}
+
 	public static boolean deleteChannel(File channelDir) {
 		File channelPropsFile = new File(channelDir, CHANNEL_PROPS_NAME);
 		channelPropsFile.delete();
@@ -286,6 +373,9 @@ class Channel {
 		File ackLog = new File(channelDir, ACK_LOG);
 		ackLog.delete();
 
+		File fetchSlotsFile = new File(channelDir, FETCH_SLOTS_NAME);
+		fetchSlotsFile.delete();
+
 		return channelDir.delete();
 	}
 
@@ -297,7 +387,7 @@ class Channel {
 			//Build the header of the inserted message
 			Bucket bucket;
 			try {
-				bucket = new ArrayBucket("messagetype=cts\r\n\r\n".getBytes("UTF-8"));
+				bucket = new ArrayBucket(("messagetype=cts\r\n" + BUNDLES_SUPPORTED + "\r\n").getBytes("UTF-8"));
 			} catch (UnsupportedEncodingException e) {
 				//JVMs are required to support UTF-8, so we can assume it is always available
 				throw new AssertionError("JVM doesn't support UTF-8 charset");
@@ -305,10 +395,7 @@ class Channel {
 
 			boolean inserted;
 			try {
-				inserted = insertMessage(bucket, "cts");
-			} catch(IOException e) {
-				//The getInputStream() method of ArrayBucket doesn't throw
-				throw new AssertionError();
+				inserted = insertMessage(bucket, "cts", RequestType.CTS_INSERT);
 			} catch (InterruptedException e) {
 				Logger.debug(this, "CTSInserter interrupted, quitting");
 				return;
@@ -317,6 +404,7 @@ class Channel {
 			if(inserted) {
 				synchronized(channelProps) {
 					channelProps.put(PropsKeys.RECIPIENT_STATE, "cts-sent");
+					channelProps.flush();
 				}
 			} else {
 				try {
@@ -333,32 +421,7 @@ class Channel {
 		startRTSSender();
 
 		//Start insert of acks that were written to disk but not inserted
-		try {
-			synchronized(ackLog) {
-				Iterator<Entry<Long, String>> it = ackLog.iterator();
-				while(it.hasNext()) {
-					Entry<Long, String> entry = it.next();
-					long insertAfter = 0;
-					if(entry.getValue() != null) {
-						try {
-							insertAfter = Long.parseLong(entry.getValue());
-						} catch(NumberFormatException e) {
-							//Assume no delay
-							insertAfter = 0;
-						}
-					}
-
-					ScheduledExecutorService senderExecutor = freemail.getExecutor(TaskType.SENDER);
-					senderExecutor.execute(new AckInserter(entry.getKey(), insertAfter));
-				}
-			}
-		} catch(IOException e) {
-			Logger.error(this, "Caugth IOException while checking acklog: " + e.getMessage(), e);
-		} catch(RejectedExecutionException e) {
-			// Catch it here instead of inside the loop since there is no point
-			// in trying to schedule the rest
-			Logger.debug(this, "Caugth RejectedExecutionException while scheduling AckInserter");
-		}
+		ackInserter.scheduleNext(0);
 
 		//Start the CTS sender if needed
 		synchronized(channelProps) {
@@ -373,6 +436,55 @@ class Channel {
 		}
 	}
 
+	/**
+	 * Picks up after the channel has been loaded again by a poll of its fetcher. Unlike
+	 * {@link #startTasks()} this doesn't start a new poll, and it should only be used for
+	 * channels that were idle when they were unloaded.
+	 */
+	void resumeTasks() {
+		fetcher.resume();
+	}
+
+	/**
+	 * Polls the slots of the channel. Used by the FetchRegistrar of the channel, if there is
+	 * one.
+	 */
+	int pollFetcher() throws InterruptedException {
+		return fetcher.poll();
+	}
+
+	/**
+	 * Returns {@code true} if the only work the channel has left is polling for new
+	 * messages. Such a channel can be unloaded, and loaded again when the next poll is due.
+	 */
+	boolean isIdle() {
+		if(rtsSender.sendRTSIn() >= 0) {
+			return false;
+		}
+		synchronized(channelProps) {
+			if("rts-received".equals(channelProps.get(PropsKeys.RECIPIENT_STATE))) {
+				return false;
+			}
+		}
+		return ackInserter.isIdle();
+	}
+
+	/**
+	 * Writes the state of the channel and drops it from the caches, so that the next
+	 * Channel object created for the directory reads it again. The channel must not be
+	 * used after this.
+	 */
+	void unload() {
+		synchronized(channelProps) {
+			channelProps.flush();
+		}
+		PropsFile.uncache(new File(channelDir, CHANNEL_PROPS_NAME));
+	}
+
+	String getName() {
+		return channelDir.getName();
+	}
+
 	private void startFetcher() {
 		//Start fetcher if possible
 		String fetchSlot;
@@ -385,7 +497,7 @@ class Channel {
 		}
 
 		if((fetchSlot != null) && (fetchCode != null) && (publicKey != null)) {
-			fetcher.execute();
+			fetcher.start();
 		}
 	}
 
@@ -451,18 +563,122 @@ class Channel {
 			Closer.close(messageOutputStream);
 		}
 
-		return insertMessage(fullMessage, "msg" + messageId);
+		boolean inserted = insertMessage(fullMessage, "msg" + messageId, RequestType.MESSAGE_INSERT);
+		if(inserted) {
+			//The ack for the message will arrive on this channel
+			fetcher.activity();
+		}
+		return inserted;
+	}
+
+	/**
+	 * Sends several messages in a single insert, returning {@code true} if they were inserted.
+	 * This should only be used if {@link #canSendBundles()} returns {@code true}. The caller is
+	 * responsible for freeing the messages.
+	 * @param messages the data to be sent, by the message id that has been assigned to it
+	 * @return {@code true} if the messages were sent, {@code false} otherwise
+	 * @throws ChannelTimedOutException if the channel has timed out and can't be used for sending
+	 *             messages
+	 * @throws IOException if any operations on the messages throws IOException
+	 * @throws InterruptedException if the current thread was interrupted while sending the messages
+	 * @throws IllegalArgumentException if {@code messages} is empty
+	 */
+	boolean sendMessages(SortedMap<Long, Bucket> messages) throws ChannelTimedOutException, IOException, InterruptedException {
+		if(messages.isEmpty()) throw new IllegalArgumentException("No messages to send");
+		if(messages.size() == 1) {
+			Entry<Long, Bucket> message = messages.entrySet().iterator().next();
+			return sendMessage(message.getValue(), message.getKey());
+		}
+
+		if(!canSendMessages()) {
+			throw new ChannelTimedOutException();
+		}
+
+		//The lengths are counted in characters since that is how the receiver reads them
+		StringBuilder ids = new StringBuilder();
+		StringBuilder lengths = new StringBuilder();
+		StringBuilder body = new StringBuilder();
+		for(Entry<Long, Bucket> message : messages.entrySet()) {
+			String text = readMessage(message.getValue());
+			if(ids.length() > 0) {
+				ids.append(",");
+				lengths.append(",");
+			}
+			ids.append(message.getKey());
+			lengths.append(text.length());
+			body.append(text);
+		}
+
+		String fullMessage =
+			"messagetype=bundle\r\n"
+			+ "ids=" + ids + "\r\n"
+			+ "lengths=" + lengths + "\r\n"
+			+ "\r\n"
+			+ body;
+
+		//The bundle uses the slot of its first message, so the others may have been
+		//assigned slots by earlier attempts to send them on their own
+		long firstId = messages.firstKey();
+		boolean inserted = insertMessage(new ArrayBucket(fullMessage.getBytes("UTF-8")), "msg" + firstId, RequestType.MESSAGE_INSERT);
+		if(inserted) {
+			synchronized(channelProps) {
+				for(Long id : messages.keySet()) {
+					if(id.longValue() != firstId) {
+						channelProps.remove("msg" + id + PropsKeys.MSG_SLOT);
+					}
+				}
+				channelProps.flush();
+			}
+
+			//The acks for the messages will arrive on this channel
+			fetcher.activity();
+		}
+		return inserted;
+	}
+
+	private static String readMessage(Bucket message) throws IOException {
+		Reader reader = new InputStreamReader(message.getInputStream(), "UTF-8");
+		try {
+			StringBuilder text = new StringBuilder();
+			char[] buffer = new char[4096];
+			int read;
+			while((read = reader.read(buffer)) != -1) {
+				text.append(buffer, 0, read);
+			}
+			return text.toString();
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Returns {@code true} if the other side of the channel can read messages sent using
+	 * {@link #sendMessages(SortedMap)}.
+	 */
+	boolean canSendBundles() {
+		synchronized(channelProps) {
+			return "true".equals(channelProps.get(PropsKeys.REMOTE_BUNDLES));
+		}
+	}
+
+	private void remoteSupportsBundles() {
+		synchronized(channelProps) {
+			if(!"true".equals(channelProps.get(PropsKeys.REMOTE_BUNDLES))) {
+				channelProps.put(PropsKeys.REMOTE_BUNDLES, "true");
+			}
+		}
 	}
 
 	/**
 	 * Inserts the given message to the next available slot, returning {@code true} if the message
 	 * was inserted, {@code false} otherwise.
 	 * @param message the message that should be inserted
+	 * @param type the type of the insert, which decides its priority
 	 * @return {@code true} if the message was inserted, {@code false} otherwise
-	 * @throws IOException if the getInputStream() method of message throws IOException
 	 * @throws InterruptedException if the current thread was interrupted while inserting the message
 	 */
-	private boolean insertMessage(Bucket message, String prefix) throws IOException, InterruptedException {
+	private boolean insertMessage(Bucket message, String prefix, RequestType type)
+			throws InterruptedException {
 		String privateKey;
 		String sendCode;
 		synchronized (channelProps) {
@@ -498,69 +714,72 @@ class Channel {
 
 					Logger.debug(this, "Assigned slot " + sendSlot + " to message " + prefix);
 				}
+
+				//The slot must be on disk before inserting, or a restart could
+				//assign it to a different message
+				if(!channelProps.flush()) {
+					Logger.error(this, "Couldn't save slot assignment, will try again later");
+					return false;
+				}
 			}
 
 			String insertKey = privateKey + sendCode + "-" + sendSlot;
 
-			InputStream messageStream = null;
+			Logger.minor(this, "Inserting data");
+			Logger.debug(this, "Insert key is " + insertKey);
+			FCPPutFailedException fcpMessage;
 			try {
-				messageStream = message.getInputStream();
-				Logger.minor(this, "Inserting data");
-				Logger.debug(this, "Insert key is " + insertKey);
-				FCPPutFailedException fcpMessage;
-				try {
-					Timer messageInsert = Timer.start();
-					fcpMessage = fcpClient.put(messageStream, insertKey);
-					messageInsert.log(this, 1, TimeUnit.HOURS, "Time spent inserting message");
-				} catch(FCPBadFileException e) {
-					Logger.error(this, "Caugth FCPBadFileException while inserting message", e);
-					return false;
-				} catch(ConnectionTerminatedException e) {
-					/* Expected if Freemail is shutting down */
-					Logger.debug(this, "Caugth " + e);
-					return false;
-				} catch (FCPException e) {
-					Logger.error(this, "Unexpected error while inserting data: " + e.getMessage());
-					return false;
-				}
+				Timer messageInsert = Timer.start();
+				fcpMessage = fcpClient.put(message, insertKey, type);
+				messageInsert.log(this, 1, TimeUnit.HOURS, "Time spent inserting message");
+			} catch(FCPBadFileException e) {
+				Logger.error(this, "Caugth FCPBadFileException while inserting message", e);
+				return false;
+			} catch(ConnectionTerminatedException e) {
+				/* Expected if Freemail is shutting down */
+				Logger.debug(this, "Caugth " + e);
+				return false;
+			} catch (FCPException e) {
+				Logger.error(this, "Unexpected error while inserting data: " + e.getMessage());
+				return false;
+			}
 
-				if(fcpMessage == null) {
-					Logger.minor(this, "Insert successful");
+			if(fcpMessage == null) {
+				Logger.minor(this, "Insert successful");
 
-					synchronized (channelProps) {
-						if(!channelProps.remove(prefix + PropsKeys.MSG_SLOT)) {
-							Logger.error(this, "Couldn't remove slot, will try again later");
+				synchronized (channelProps) {
+					channelProps.remove(prefix + PropsKeys.MSG_SLOT);
+					if(!channelProps.flush()) {
+						Logger.error(this, "Couldn't remove slot, will try again later");
 
-							/*
-							 * The insert succeeded, but we can't leave the slot in the props file
-							 * since that would break the forward secrecy of the slot system. By
-							 * returning false we will try again later (using the same slot) and
-							 * hopefully we can delete it then.
-							 */
-							return false;
-						}
+						/*
+						 * The insert succeeded, but we can't leave the slot in the props file
+						 * since that would break the forward secrecy of the slot system. By
+						 * returning false we will try again later (using the same slot) and
+						 * hopefully we can delete it then.
+						 */
+						return false;
 					}
-
-					return true;
 				}
 
-				if(fcpMessage.errorcode == FCPPutFailedException.COLLISION) {
-					synchronized(channelProps) {
-						sendSlot = channelProps.get(PropsKeys.SEND_SLOT);
-						String nextSlot = calculateNextSlot(sendSlot);
-						channelProps.put(PropsKeys.SEND_SLOT, nextSlot);
-						channelProps.put(prefix + PropsKeys.MSG_SLOT, sendSlot);
-					}
+				return true;
+			}
 
-					Logger.debug(this, "Insert collided, assigned new slot " + sendSlot + " to message " + prefix);
+			if(fcpMessage.errorcode == FCPPutFailedException.COLLISION) {
+				synchronized(channelProps) {
+					sendSlot = channelProps.get(PropsKeys.SEND_SLOT);
+					String nextSlot = calculateNextSlot(sendSlot);
+					channelProps.put(PropsKeys.SEND_SLOT, nextSlot);
+					channelProps.put(prefix + PropsKeys.MSG_SLOT, sendSlot);
+					channelProps.flush();
 				}
 
-				/* TODO: Log at a higher level for more serious errors */
-				Logger.minor(this, "Insert failed, error code " + fcpMessage.errorcode);
-				return false;
-			} finally {
-				Closer.close(messageStream);
+				Logger.debug(this, "Insert collided, assigned new slot " + sendSlot + " to message " + prefix);
 			}
+
+			/* TODO: Log at a higher level for more serious errors */
+			Logger.minor(this, "Insert failed, error code " + fcpMessage.errorcode);
+			return false;
 		}
 	}
 
@@ -602,12 +821,7 @@ class Channel {
 	}
 
 	private String calculateNextSlot(String slot) {
-		byte[] buf = Base32.decode(slot);
-		SHA256Digest sha256 = new SHA256Digest();
-		sha256.update(buf, 0, buf.length);
-		sha256.doFinal(buf, 0);
-
-		return Base32.encode(buf);
+		return sendSlots.next(slot);
 	}
 
 	private String generateRandomSlot() {
@@ -617,11 +831,24 @@ class Channel {
 		return Base32.encode(buf);
 	}
 
-	private class Fetcher implements Runnable {
+	private class Fetcher implements FetchScheduler.Pollable {
 		private final AtomicLong lastRun = new AtomicLong();
 
+		/**
+		 * Set when the fetcher is first started. Guarded by {@code registrationLock} instead
+		 * of {@code this} so that callers don't wait for a running poll.
+		 */
+		private FetchScheduler.Registration registration = null;
+		private final Object registrationLock = new Object();
+
+		/** The number of fetches made by the current run */
+		private int fetchCount;
+
+		/** Kept between runs so the slots are only read once. Guarded by {@code this}. */
+		private ChannelSlotManager slotManager = null;
+
 		@Override
-		public synchronized void run() {
+		public synchronized int poll() throws InterruptedException {
 			long curTime = System.currentTimeMillis();
 			long last = lastRun.getAndSet(curTime);
 			if(last != 0) {
@@ -630,6 +857,7 @@ class Channel {
 				Logger.debug(this, "Fetcher running (" + this + ")");
 			}
 
+			fetchCount = 0;
 			try {
 				realRun();
 			} catch(RuntimeException e) {
@@ -640,8 +868,15 @@ class Channel {
 				throw e;
 			} catch (InterruptedException e) {
 				Logger.debug(this, "Fetcher interrupted, quitting");
-				return;
+				throw e;
+			} finally {
+				//Write the slots used during the run in one go
+				writeSlots();
+				synchronized(channelProps) {
+					channelProps.flush();
+				}
 			}
+			return fetchCount;
 		}
 
 		private void realRun() throws InterruptedException {
@@ -659,23 +894,18 @@ class Channel {
 				//later than we stop sending. See JavaDoc for CHANNEL_TIMEOUT for details
 				if(timeout < (System.currentTimeMillis() - CHANNEL_TIMEOUT)) {
 					Logger.debug(this, "Channel has timed out, won't fetch");
+					getRegistration().cancel();
 					return;
 				}
 			}
 
-			String slots;
-			synchronized(channelProps) {
-				slots = channelProps.get(PropsKeys.FETCH_SLOT);
-			}
-			if(slots == null) {
+			ChannelSlotManager slotManager = getSlotManager();
+			if(slotManager == null) {
 				Logger.error(this, "Channel " + channelDir.getName() + " is corrupt - account file has no '" + PropsKeys.FETCH_SLOT + "' entry!");
 				//TODO: Either delete the channel or resend the RTS
 				return;
 			}
 
-			HashSlotManager slotManager = new HashSlotManager(new ChannelSlotSaveImpl(channelProps, PropsKeys.FETCH_SLOT), null, slots);
-			slotManager.setPollAhead(POLL_AHEAD);
-
 			String basekey;
 			synchronized(channelProps) {
 				basekey = channelProps.get(PropsKeys.PUBLIC_KEY);
@@ -698,96 +928,254 @@ class Channel {
 			}
 			basekey += fetchCode + "-";
 
+			//The slots are fetched concurrently, but the results are handled in slot order since
+			//the slot manager can only mark the last slot it returned as used. The slots are
+			//listed first, and then the slot manager goes over them again.
+			List<String> slotList = new ArrayList<String>();
+			List<String> keys = new ArrayList<String>();
 			String slot;
+			slotManager.rewind();
 			while((slot = slotManager.getNextSlot()) != null) {
-				String key = basekey + slot;
+				slotList.add(slot);
+				keys.add(basekey + slot);
+			}
+			slotManager.rewind();
 
-				Logger.debug(this, "Attempting to fetch mail on key " + key);
-				File result;
-				try {
-					result = fcpClient.fetch(key);
-				} catch(ConnectionTerminatedException e) {
-					Logger.debug(this, "Connection terminated");
-					return;
-				} catch(FCPFetchException e) {
-					if(e.getCode() == FCPFetchException.INVALID_URI) {
-						//Could be a local bug or we could have gotten a bad key in the RTS
-						//TODO: This won't fix itself, so make sure the user notices
-						Logger.error(this, "Fetch failed because the URI was invalid");
+			boolean slotsUsed = false;
+			FetchWindow window = new FetchWindow(fcpClient, RequestType.MESSAGE_FETCH, keys, FETCH_WINDOW);
+			try {
+				for(int i = 0; i < slotList.size(); i++) {
+					try {
+						window.fill();
+					} catch(ConnectionTerminatedException e) {
+						Logger.debug(this, "Connection terminated");
+						return;
+					} catch(NoNodeConnectionException e) {
+						Logger.debug(this, "Lost connection to node while starting fetch");
+						return;
+					}
+
+					slot = slotManager.getNextSlot();
+					if(!slotList.get(i).equals(slot)) {
+						//Slots expired since the list was made, so let the next run start over
+						Logger.debug(this, "Slot list changed during fetch, expected " + slotList.get(i) + " but got " + slot);
+						break;
+					}
+
+					Bucket result;
+					try {
+						result = window.next();
+					} catch(ConnectionTerminatedException e) {
+						Logger.debug(this, "Connection terminated");
+						return;
+					} catch(NoNodeConnectionException e) {
+						Logger.debug(this, "Lost connection to node while following redirect");
+						return;
+					} catch(FCPFetchException e) {
+						if(e.getCode() == FCPFetchException.INVALID_URI) {
+							//Could be a local bug or we could have gotten a bad key in the RTS
+							//TODO: This won't fix itself, so make sure the user notices
+							Logger.error(this, "Fetch failed because the URI was invalid");
+							return;
+						}
+
+						if(e.isFatal()) {
+							Logger.normal(this, "Fatal fetch failure, marking slot as used");
+							slotManager.slotUsed();
+							slotsUsed = true;
+						}
+
+						Logger.minor(this, "No mail in slot (fetch returned " + e.getMessage() + ")");
+						continue;
+					} catch (FCPException e) {
+						Logger.error(this, "Unexpected error while trying to fetch message: " + e.getMessage());
+						return;
+					}
+					Logger.debug(this, "Fetch successful");
+
+					boolean used;
+					try {
+						used = handleFetched(result);
+					} catch(IOException e) {
+						Logger.error(this, "Couldn't read fetched message: " + e.getMessage());
 						return;
+					} finally {
+						result.free();
 					}
 
-					if(e.isFatal()) {
-						Logger.normal(this, "Fatal fetch failure, marking slot as used");
+					if(used) {
 						slotManager.slotUsed();
+						slotsUsed = true;
 					}
+				}
+			} finally {
+				fetchCount = window.getStarted();
+				window.close();
+			}
 
-					Logger.minor(this, "No mail in slot (fetch returned " + e.getMessage() + ")");
-					continue;
-				} catch (FCPException e) {
-					Logger.error(this, "Unexpected error while trying to fetch message: " + e.getMessage());
-					return;
+			if(slotsUsed) {
+				//Using a slot moves the poll ahead window, so check the new slots right away
+				getRegistration().pollNow();
+			}
+		}
+
+		/**
+		 * Returns the slot manager of the channel, reading the slots the first time this is
+		 * called. Returns {@code null} if the channel has no slots.
+		 */
+		private ChannelSlotManager getSlotManager() {
+			assert (Thread.holdsLock(this));
+			if(slotManager != null) {
+				return slotManager;
+			}
+
+			File slotsFile = new File(channelDir, FETCH_SLOTS_NAME);
+			if(slotsFile.exists()) {
+				try {
+					DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(slotsFile)));
+					try {
+						slotManager = new ChannelSlotManager(in);
+					} finally {
+						in.close();
+					}
+				} catch(IOException e) {
+					Logger.error(this, "Couldn't read " + slotsFile + ", using slots from props file: " + e.getMessage());
+				}
+			}
+
+			if(slotManager == null) {
+				//Channels from older versions keep all the slots in the props file
+				String slots;
+				synchronized(channelProps) {
+					slots = channelProps.get(PropsKeys.FETCH_SLOT);
+				}
+				if(slots == null) {
+					return null;
+				}
+				slotManager = new ChannelSlotManager(slots);
+
+				//Write the binary form even if no slots are used during the run
+				slotManager.dirty = true;
+			}
+
+			slotManager.setPollAhead(POLL_AHEAD);
+			return slotManager;
+		}
+
+		/**
+		 * Writes the slots if they have changed since they were last written.
+		 */
+		private void writeSlots() {
+			assert (Thread.holdsLock(this));
+			if(slotManager == null || !slotManager.dirty) {
+				return;
+			}
+
+			File slotsFile = new File(channelDir, FETCH_SLOTS_NAME);
+			File tempFile = new File(channelDir, FETCH_SLOTS_NAME + ".tmp");
+			try {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+				try {
+					slotManager.writeSlots(out);
+				} finally {
+					out.close();
+				}
+
+				if(!tempFile.renameTo(slotsFile)) {
+					//Renaming over an existing file fails on some platforms
+					slotsFile.delete();
+					if(!tempFile.renameTo(slotsFile)) {
+						throw new IOException("Couldn't rename " + tempFile + " to " + slotsFile);
+					}
 				}
-				Logger.debug(this, "Fetch successful");
+				slotManager.dirty = false;
+			} catch(IOException e) {
+				Logger.error(this, "Couldn't write " + slotsFile + ": " + e.getMessage());
+				tempFile.delete();
+			}
+		}
 
-				PropsFile messageProps = PropsFile.createPropsFile(result, true);
+		/**
+		 * Handles a message fetched from a slot.
+		 * @return {@code true} if the slot should be marked as used
+		 */
+		private boolean handleFetched(Bucket result) throws IOException {
+			PropsFile messageProps = PropsFile.createPropsFile(result.getInputStream(), true);
+			try {
 				String messageType = messageProps.get("messagetype");
+				if("true".equals(messageProps.get("bundles"))) {
+					remoteSupportsBundles();
+				}
 
 				if(messageType == null) {
 					Logger.error(this, "Got message without messagetype, discarding");
-					slotManager.slotUsed();
-					result.delete();
-					continue;
+					return true;
 				}
 
 				if(messageType.equals("message")) {
-					if(handleMessage(result)) {
-						slotManager.slotUsed();
-					}
+					return handleMessage(messageProps);
 				} else if(messageType.equals("cts")) {
 					Logger.minor(this, "Successfully received CTS");
 
-					boolean success;
 					synchronized(channelProps) {
-						success = channelProps.put(PropsKeys.SENDER_STATE, "cts-received");
-					}
-
-					if(success) {
-						slotManager.slotUsed();
+						return channelProps.put(PropsKeys.SENDER_STATE, "cts-received");
 					}
 				} else if(messageType.equals("ack")) {
-					if(handleAck(result)) {
-						slotManager.slotUsed();
-					}
+					return handleAck(messageProps);
+				} else if(messageType.equals("bundle")) {
+					remoteSupportsBundles();
+					return handleBundle(messageProps);
 				} else {
 					Logger.error(this, "Got message of unknown type: " + messageType);
-					slotManager.slotUsed();
-				}
-
-				if(!result.delete()) {
-					Logger.error(this, "Deletion of " + result + " failed");
+					return true;
 				}
+			} finally {
+				messageProps.closeReader();
 			}
-
-			//Reschedule
-			schedule(TASK_RETRY_DELAY, TimeUnit.MILLISECONDS);
 		}
 
-		public void execute() {
+		/**
+		 * Registers the fetcher with the fetch scheduler, or polls again right away if it
+		 * already is.
+		 */
+		public void start() {
 			Logger.debug(this, "Scheduling Fetcher for execution");
-			try {
-				executor.execute(fetcher);
-			} catch(RejectedExecutionException e) {
-				Logger.debug(this, "Caugth RejectedExecutionException while scheduling Fetcher");
+			getRegistration().pollNow();
+		}
+
+		/**
+		 * Attaches the fetcher to the registration of the FetchRegistrar, which is polling
+		 * already.
+		 */
+		public void resume() {
+			if(fetchRegistrar.get() != null) {
+				getRegistration();
 			}
 		}
 
-		public void schedule(long delay, TimeUnit unit) {
-			Logger.debug(this, "Scheduling Fetcher for execution in " + delay + " " + unit.toString().toLowerCase(Locale.ROOT));
-			try {
-				executor.schedule(fetcher, delay, unit);
-			} catch(RejectedExecutionException e) {
-				Logger.debug(this, "Caugth RejectedExecutionException while scheduling Fetcher");
+		/**
+		 * Tells the scheduler that a reply is likely, so the fetcher should poll more often.
+		 * Does nothing if the fetcher hasn't been started.
+		 */
+		public void activity() {
+			synchronized(registrationLock) {
+				if(registration != null) {
+					registration.activity();
+				}
+			}
+		}
+
+		private FetchScheduler.Registration getRegistration() {
+			synchronized(registrationLock) {
+				if(registration == null) {
+					FetchRegistrar registrar = fetchRegistrar.get();
+					if(registrar != null) {
+						registration = registrar.getFetchRegistration();
+					} else {
+						registration = fetchScheduler.register(this);
+					}
+				}
+				return registration;
 			}
 		}
 
@@ -812,6 +1200,10 @@ class Channel {
 				throw e;
 			} catch (InterruptedException e) {
 				Logger.debug(this, "RTSSender interrupted, quitting");
+			} finally {
+				synchronized(channelProps) {
+					channelProps.flush();
+				}
 			}
 		}
 
@@ -875,6 +1267,9 @@ class Channel {
 				channelProps.put(PropsKeys.SEND_CODE, "i");
 				channelProps.put(PropsKeys.FETCH_CODE, "r");
 				channelProps.put(PropsKeys.TIMEOUT, "" + timeout);
+
+				//The keys must be on disk before they are sent in the RTS
+				channelProps.flush();
 			}
 
 			//Check the timeout. If the channel is already in
@@ -884,15 +1279,6 @@ class Channel {
 				return;
 			}
 
-			//Get mailsite key from WoT
-			WoTConnection wotConnection = freemail.getWotConnection();
-			if(wotConnection == null) {
-				//WoT isn't loaded, so try again later
-				Logger.debug(this, "WoT not loaded, trying again in 5 minutes");
-				schedule(TASK_RETRY_DELAY, TimeUnit.MILLISECONDS);
-				return;
-			}
-
 			String remoteId;
 			synchronized(channelProps) {
 				remoteId = channelProps.get(PropsKeys.REMOTE_ID);
@@ -903,108 +1289,21 @@ class Channel {
 				return;
 			}
 
+			//Get the mailsites of the recipient and the sender, which are usually cached
 			String senderId = account.getIdentity();
-			Logger.debug(this, "Getting identity from WoT");
-			Identity recipient;
-			try {
-				recipient = wotConnection.getIdentity(remoteId, senderId);
-			} catch(PluginNotFoundException e) {
-				Logger.error(this, "WoT plugin isn't loaded, can't send RTS");
-				recipient = null;
-			}
-			if(recipient == null) {
-				Logger.debug(this, "Didn't get identity from WoT, trying again in 5 minutes");
-				schedule(TASK_RETRY_DELAY, TimeUnit.MILLISECONDS);
+			MailsiteCache.Mailsite recipientMailsite = getMailsite(remoteId, senderId, true);
+			if(recipientMailsite == null) {
 				return;
 			}
 
-			//Get the mailsite edition
-			int mailisteEdition;
-			String edition;
-			try {
-				edition = wotConnection.getProperty(remoteId, WoTProperties.MAILSITE_EDITION);
-			} catch(PluginNotFoundException e1) {
-				edition = null;
-			}
-			if(edition == null) {
-				mailisteEdition = 1;
-			} else {
-				try {
-					mailisteEdition = Integer.parseInt(edition);
-				} catch(NumberFormatException e) {
-					mailisteEdition = 1;
-				}
-			}
-
-			//Strip the WoT part from the key and add the Freemail path
-			String mailsiteKey = recipient.getRequestURI();
-			mailsiteKey = mailsiteKey.substring(0, mailsiteKey.indexOf("/"));
-			mailsiteKey = mailsiteKey + "/mailsite/-" + mailisteEdition + "/mailpage";
-
-			//Fetch the mailsite
-			File mailsite;
-			try {
-				Logger.debug(this, "Fetching mailsite from " + mailsiteKey);
-				mailsite = fcpClient.fetch(mailsiteKey);
-			} catch(ConnectionTerminatedException e) {
-				Logger.debug(this, "FCP connection has been terminated");
-				return;
-			} catch(FCPFetchException e) {
-				Logger.debug(this, "Mailsite fetch failed (" + e + "), trying again in 5 minutes");
-				schedule(TASK_RETRY_DELAY, TimeUnit.MILLISECONDS);
-				return;
-			} catch (FCPException e) {
-				Logger.error(this, "Unexpected error while fetching mailsite: " + e.getMessage());
+			MailsiteCache.Mailsite senderMailsite = getMailsite(senderId, senderId, false);
+			if(senderMailsite == null) {
 				return;
 			}
-
-			//Get RTS KSK
-			PropsFile mailsiteProps = PropsFile.createPropsFile(mailsite, false);
-			String rtsKey = mailsiteProps.get("rtsksk");
-			if(rtsKey == null) {
-				Logger.error(this, "Mailsite is missing RTS KSK");
-				schedule(1, TimeUnit.HOURS);
-				return;
-			}
-
-			//Get the senders mailsite key
-			Logger.debug(this, "Getting sender identity from WoT");
-			Identity senderIdentity;
-			try {
-				senderIdentity = wotConnection.getIdentity(senderId, senderId);
-			} catch(PluginNotFoundException e) {
-				Logger.error(this, "WoT plugin not loaded, can't send RTS");
-				senderIdentity = null;
-			}
-			if(senderIdentity == null) {
-				Logger.debug(this, "Didn't get identity from WoT, trying again in 5 minutes");
-				schedule(TASK_RETRY_DELAY, TimeUnit.MILLISECONDS);
-				return;
-			}
-
-			int senderMailsiteEdition;
-			String senderEdition;
-			try {
-				senderEdition = wotConnection.getProperty(account.getIdentity(), WoTProperties.MAILSITE_EDITION);
-			} catch(PluginNotFoundException e1) {
-				senderEdition = null;
-			}
-			if(edition == null) {
-				senderMailsiteEdition = 1;
-			} else {
-				try {
-					senderMailsiteEdition = Integer.parseInt(senderEdition);
-				} catch(NumberFormatException e) {
-					senderMailsiteEdition = 1;
-				}
-			}
-
-			String senderMailsiteKey = senderIdentity.getRequestURI();
-			senderMailsiteKey = senderMailsiteKey.substring(0, senderMailsiteKey.indexOf("/"));
-			senderMailsiteKey = senderMailsiteKey + "/mailsite/-" + senderMailsiteEdition + "/mailpage";
+			String senderMailsiteKey = senderMailsite.getEditionKey();
 
 			//Now build the RTS
-			byte[] rtsMessageBytes = buildRTSMessage(senderMailsiteKey, recipient.getIdentityID(), privateKey, initiatorSlot, responderSlot, timeout);
+			byte[] rtsMessageBytes = buildRTSMessage(senderMailsiteKey, remoteId, privateKey, initiatorSlot, responderSlot, timeout);
 			if(rtsMessageBytes == null) {
 				return;
 			}
@@ -1016,34 +1315,14 @@ class Channel {
 			}
 
 			//Encrypt the message using the recipients public key
-			String keyModulus = mailsiteProps.get("asymkey.modulus");
-			if(keyModulus == null) {
-				Logger.error(this, "Mailsite is missing public key modulus");
-				schedule(1, TimeUnit.HOURS);
-				return;
-			}
-
-			String keyExponent = mailsiteProps.get("asymkey.pubexponent");
-			if(keyExponent == null) {
-				Logger.error(this, "Mailsite is missing public key exponent");
-				schedule(1, TimeUnit.HOURS);
-				return;
-			}
-
-			byte[] rtsMessage = encryptMessage(signedMessage, keyModulus, keyExponent);
-
-			//Clean up the fetched mailsite
-			mailsiteProps = null;
-			if(!mailsite.delete()) {
-				Logger.error(this, "Couldn't delete " + mailsite);
-			}
+			byte[] rtsMessage = encryptMessage(signedMessage, recipientMailsite.keyModulus, recipientMailsite.keyExponent);
 
 			//Insert
 			int slot;
 			try {
-				String key = "KSK@" + rtsKey + "-" + DateStringFactory.getKeyString();
+				String key = "KSK@" + recipientMailsite.rtsKey + "-" + DateStringFactory.getKeyString();
 				Logger.debug(this, "Inserting RTS to " + key);
-				slot = fcpClient.slotInsert(rtsMessage, key, 1, "");
+				slot = fcpClient.slotInsert(rtsMessage, key, 1, "", RequestType.RTS_INSERT);
 			} catch(ConnectionTerminatedException e) {
 				return;
 			}
@@ -1074,7 +1353,155 @@ class Channel {
 			}
 
 			//Start the fetcher now that we have keys, slots etc.
-			fetcher.execute();
+			fetcher.start();
+		}
+
+		/**
+		 * Returns the mailsite of the given identity, using the cached one unless it is due
+		 * to be revalidated. If the mailsite isn't available this returns {@code null} and
+		 * schedules the RTSSender to try again when that makes sense.
+		 * @param identityId the identity whose mailsite should be returned
+		 * @param truster the identity used when looking up {@code identityId} in WoT
+		 * @param needKeys {@code true} if the RTS key and public key of the mailsite are needed,
+		 *        {@code false} if only the key of the mailsite is
+		 */
+		private MailsiteCache.Mailsite getMailsite(String identityId, String truster, boolean needKeys)
+				throws InterruptedException {
+			//Own identities are cached separately since only the key is needed
+			String cacheKey = needKeys ? identityId : "sender." + identityId;
+			long now = System.currentTimeMillis();
+			MailsiteCache.Mailsite cached = mailsiteCache.get(cacheKey);
+			if(cached != null && !cached.needsRevalidation(now)) {
+				Logger.debug(this, "Using cached mailsite of " + identityId);
+				return cached;
+			}
+
+			WoTConnection wotConnection = freemail.getWotConnection();
+			if(wotConnection == null) {
+				if(cached != null) {
+					Logger.debug(this, "WoT not loaded, using cached mailsite of " + identityId);
+					return cached;
+				}
+
+				//WoT isn't loaded, so try again later
+				Logger.debug(this, "WoT not loaded, trying again in 5 minutes");
+				schedule(TASK_RETRY_DELAY, TimeUnit.MILLISECONDS);
+				return null;
+			}
+
+			//Get the mailsite edition, and keep using the cached mailsite if it hasn't changed
+			int mailsiteEdition;
+			String edition;
+			try {
+				edition = wotConnection.getProperty(identityId, WoTProperties.MAILSITE_EDITION);
+			} catch(PluginNotFoundException e) {
+				edition = null;
+			}
+			int wotEdition = -1;
+			if(edition != null) {
+				try {
+					wotEdition = Integer.parseInt(edition);
+				} catch(NumberFormatException e) {
+					//Treated like a missing edition
+				}
+			}
+			if(wotEdition < 0 && cached != null) {
+				//Without an edition from WoT there is nothing to compare the cached mailsite
+				//against, so use it without marking it as checked
+				Logger.debug(this, "Didn't get mailsite edition from WoT, using cached mailsite of " + identityId);
+				return cached;
+			}
+			mailsiteEdition = wotEdition < 0 ? 1 : wotEdition;
+			if(cached != null && mailsiteEdition <= cached.edition) {
+				Logger.debug(this, "Mailsite edition of " + identityId + " is unchanged");
+				return mailsiteCache.revalidated(cacheKey, cached, now);
+			}
+
+			Logger.debug(this, "Getting identity from WoT");
+			Identity identity;
+			try {
+				identity = wotConnection.getIdentity(identityId, truster);
+			} catch(PluginNotFoundException e) {
+				Logger.error(this, "WoT plugin isn't loaded, can't send RTS");
+				identity = null;
+			}
+			if(identity == null) {
+				if(cached != null) {
+					return cached;
+				}
+				Logger.debug(this, "Didn't get identity from WoT, trying again in 5 minutes");
+				schedule(TASK_RETRY_DELAY, TimeUnit.MILLISECONDS);
+				return null;
+			}
+
+			//Strip the WoT part from the key
+			String mailsiteKey = identity.getRequestURI();
+			mailsiteKey = mailsiteKey.substring(0, mailsiteKey.indexOf("/"));
+
+			if(!needKeys) {
+				MailsiteCache.Mailsite mailsite = new MailsiteCache.Mailsite(mailsiteKey, mailsiteEdition, null, null, null, now);
+				mailsiteCache.put(cacheKey, mailsite);
+				return mailsite;
+			}
+
+			//Fetch the mailsite
+			String editionKey = new MailsiteCache.Mailsite(mailsiteKey, mailsiteEdition, null, null, null, now).getEditionKey();
+			Bucket mailsiteData;
+			try {
+				Logger.debug(this, "Fetching mailsite from " + editionKey);
+				mailsiteData = fcpClient.fetch(editionKey, RequestType.MAILSITE_FETCH);
+			} catch(ConnectionTerminatedException e) {
+				Logger.debug(this, "FCP connection has been terminated");
+				return null;
+			} catch(FCPFetchException e) {
+				if(cached != null) {
+					//The keys in the old edition are most likely still valid
+					Logger.debug(this, "Mailsite fetch failed (" + e + "), using cached mailsite");
+					return cached;
+				}
+				Logger.debug(this, "Mailsite fetch failed (" + e + "), trying again in 5 minutes");
+				schedule(TASK_RETRY_DELAY, TimeUnit.MILLISECONDS);
+				return null;
+			} catch (FCPException e) {
+				Logger.error(this, "Unexpected error while fetching mailsite: " + e.getMessage());
+				return null;
+			}
+
+			PropsFile mailsiteProps;
+			try {
+				mailsiteProps = PropsFile.createPropsFile(mailsiteData.getInputStream(), false);
+			} catch(IOException e) {
+				Logger.error(this, "Couldn't read fetched mailsite: " + e.getMessage());
+				schedule(TASK_RETRY_DELAY, TimeUnit.MILLISECONDS);
+				return null;
+			} finally {
+				mailsiteData.free();
+			}
+
+			String rtsKey = mailsiteProps.get("rtsksk");
+			if(rtsKey == null) {
+				Logger.error(this, "Mailsite is missing RTS KSK");
+				schedule(1, TimeUnit.HOURS);
+				return null;
+			}
+
+			String keyModulus = mailsiteProps.get("asymkey.modulus");
+			if(keyModulus == null) {
+				Logger.error(this, "Mailsite is missing public key modulus");
+				schedule(1, TimeUnit.HOURS);
+				return null;
+			}
+
+			String keyExponent = mailsiteProps.get("asymkey.pubexponent");
+			if(keyExponent == null) {
+				Logger.error(this, "Mailsite is missing public key exponent");
+				schedule(1, TimeUnit.HOURS);
+				return null;
+			}
+
+			MailsiteCache.Mailsite mailsite = new MailsiteCache.Mailsite(mailsiteKey, mailsiteEdition, rtsKey, keyModulus, keyExponent, now);
+			mailsiteCache.put(cacheKey, mailsite);
+			return mailsite;
 		}
 
 		public void execute() {
@@ -1250,9 +1677,7 @@ class Channel {
 		}
 	}
 
-	private boolean handleMessage(File msg) {
-		// parse the Freemail header(s) out.
-		PropsFile msgprops = PropsFile.createPropsFile(msg, true);
+	private boolean handleMessage(PropsFile msgprops) {
 		String s_id = msgprops.get("id");
 		if(s_id == null) {
 			Logger.error(this, "Message is missing id. Discarding.");
@@ -1270,7 +1695,81 @@ class Channel {
 			return true;
 		}
 
-		long ackDelay = (long)(System.currentTimeMillis() + (Math.random() * MAX_ACK_DELAY));
+		return deliverMessage(id, msgprops.getReader());
+	}
+
+	/**
+	 * Handles a bundle of several messages. The header lists the ids of the messages and
+	 * their lengths in characters, and the messages follow one after the other.
+	 */
+	private boolean handleBundle(PropsFile bundleProps) {
+		String rawIds = bundleProps.get("ids");
+		String rawLengths = bundleProps.get("lengths");
+		if(rawIds == null || rawLengths == null) {
+			Logger.error(this, "Bundle is missing ids or lengths. Discarding.");
+			return true;
+		}
+
+		String[] ids = rawIds.split(",");
+		String[] lengths = rawLengths.split(",");
+		if(ids.length != lengths.length) {
+			Logger.error(this, "Bundle has " + ids.length + " ids but " + lengths.length + " lengths. Discarding.");
+			return true;
+		}
+
+		BufferedReader br = bundleProps.getReader();
+		if(br == null) {
+			Logger.error(this, "Got an invalid bundle. Discarding.");
+			return true;
+		}
+
+		Logger.debug(this, "Got bundle of " + ids.length + " messages");
+		boolean handled = true;
+		for(int i = 0; i < ids.length; i++) {
+			long id;
+			char[] text;
+			try {
+				id = Long.parseLong(ids[i]);
+				text = new char[Integer.parseInt(lengths[i])];
+			} catch(NumberFormatException e) {
+				Logger.error(this, "Bundle has invalid id or length. Discarding the rest.");
+				return handled;
+			} catch(NegativeArraySizeException e) {
+				Logger.error(this, "Bundle has negative length. Discarding the rest.");
+				return handled;
+			}
+
+			try {
+				int read = 0;
+				while(read < text.length) {
+					int count = br.read(text, read, text.length - read);
+					if(count == -1) {
+						Logger.error(this, "Bundle is shorter than its header says. Discarding the rest.");
+						return handled;
+					}
+					read += count;
+				}
+			} catch(IOException e) {
+				Logger.error(this, "Couldn't read bundle: " + e.getMessage());
+				return false;
+			}
+
+			//Keep going so one message that can't be stored doesn't hold up the rest. Those
+			//that were stored are discarded as duplicates when the bundle is fetched again.
+			if(!deliverMessage(id, new BufferedReader(new CharArrayReader(text)))) {
+				handled = false;
+			}
+		}
+
+		return handled;
+	}
+
+	/**
+	 * Passes the message to the callback and schedules the ack.
+	 * @return {@code true} if the message has been handled
+	 */
+	private boolean deliverMessage(long id, BufferedReader br) {
+		long ackDelay = (long)(System.currentTimeMillis() + (Math.random() * maxAckDelay));
 		synchronized(ackLog) {
 			try {
 				ackLog.add(id, Long.toString(ackDelay));
@@ -1280,10 +1779,8 @@ class Channel {
 			}
 		}
 
-		BufferedReader br = msgprops.getReader();
 		if(br == null) {
 			Logger.error(this, "Got an invalid message. Discarding.");
-			msgprops.closeReader();
 			return true;
 		}
 
@@ -1291,82 +1788,212 @@ class Channel {
 			return false;
 		}
 
-		try {
-			ScheduledExecutorService senderExecutor = freemail.getExecutor(TaskType.SENDER);
-			senderExecutor.execute(new AckInserter(id, ackDelay));
-		} catch(RejectedExecutionException e) {
-			Logger.debug(this, "Caugth RejectedExecutionException while scheduling AckInserter");
-		}
+		ackInserter.schedule(ackDelay);
 
 		return true;
 	}
 
+	/**
+	 * Inserts the acks in the ack log. Each ack gets a random delay when the message is
+	 * received, and when the earliest of the pending acks is due all of them are inserted
+	 * together as a comma separated list of ids, up to {@link #MAX_ACKS_PER_INSERT}. The
+	 * time of the insert is still decided by the random delay of one ack, so it doesn't
+	 * tell when the other messages were received.
+	 */
 	private class AckInserter implements Runnable {
-		private final long ackId;
-		private final long insertAfter;
+		/* All guarded by ackLog */
+		private ScheduledFuture<?> next = null;
+		private long nextAt = Long.MAX_VALUE;
+		private boolean running = false;
+
+		/**
+		 * Makes sure the inserter runs no later than the given time.
+		 */
+		private void schedule(long insertAfter) {
+			synchronized(ackLog) {
+				if(running || (next != null && nextAt <= insertAfter)) {
+					//The inserter checks the log again when it is done
+					return;
+				}
+				if(next != null) {
+					next.cancel(false);
+				}
+
+				try {
+					ScheduledExecutorService senderExecutor = freemail.getExecutor(TaskType.SENDER);
+					long delay = Math.max(0, insertAfter - System.currentTimeMillis());
+					next = senderExecutor.schedule(this, delay, TimeUnit.MILLISECONDS);
+					nextAt = insertAfter;
+				} catch(RejectedExecutionException e) {
+					Logger.debug(this, "Caugth RejectedExecutionException while scheduling AckInserter");
+				}
+			}
+		}
+
+		/**
+		 * Schedules the inserter for when the earliest ack in the log is due, but not before
+		 * the given time.
+		 */
+		private void scheduleNext(long notBefore) {
+			long due = Long.MAX_VALUE;
+			synchronized(ackLog) {
+				try {
+					Iterator<Entry<Long, String>> it = ackLog.iterator();
+					while(it.hasNext()) {
+						due = Math.min(due, insertAfter(it.next()));
+					}
+				} catch(IOException e) {
+					Logger.error(this, "Caugth IOException while checking acklog: " + e.getMessage(), e);
+					return;
+				}
 
-		private AckInserter(long ackId, long insertAfter) {
-			this.ackId = ackId;
-			this.insertAfter = insertAfter;
+				if(due != Long.MAX_VALUE) {
+					schedule(Math.max(due, notBefore));
+				}
+			}
+		}
+
+		/**
+		 * Returns {@code true} if there are no acks waiting to be inserted.
+		 */
+		private boolean isIdle() {
+			synchronized(ackLog) {
+				if(running || next != null) {
+					return false;
+				}
+				try {
+					return ackLog.size() == 0;
+				} catch(IOException e) {
+					Logger.error(this, "Caugth IOException while checking acklog: " + e.getMessage(), e);
+					return false;
+				}
+			}
 		}
 
 		@Override
 		public void run() {
-			Logger.debug(this, "AckInserter(" + ackId + ") for " + Channel.this.toString() + " running");
+			synchronized(ackLog) {
+				next = null;
+				nextAt = Long.MAX_VALUE;
+				if(running) {
+					return;
+				}
+				running = true;
+			}
 
-			if(System.currentTimeMillis() < insertAfter) {
-				long remaining = insertAfter - System.currentTimeMillis();
-				Logger.debug(this, "Rescheduling in " + remaining + "ms when inserting is allowed");
-				ScheduledExecutorService senderExecutor = freemail.getExecutor(TaskType.SENDER);
-				senderExecutor.schedule(this, remaining, TimeUnit.MILLISECONDS);
+			long notBefore = 0;
+			try {
+				notBefore = insertAcks();
+			} catch (InterruptedException e) {
+				Logger.debug(this, "AckInserter interrupted, quitting");
 				return;
+			} finally {
+				synchronized(ackLog) {
+					running = false;
+				}
+			}
+			scheduleNext(notBefore);
+		}
+
+		/**
+		 * Inserts the pending acks if any of them are due.
+		 * @return the earliest time the inserter should run again
+		 */
+		private long insertAcks() throws InterruptedException {
+			Logger.debug(this, "AckInserter for " + Channel.this.toString() + " running");
+
+			long now = System.currentTimeMillis();
+			List<Long> acks = new ArrayList<Long>();
+			long due = Long.MAX_VALUE;
+			synchronized(ackLog) {
+				try {
+					Iterator<Entry<Long, String>> it = ackLog.iterator();
+					while(it.hasNext()) {
+						Entry<Long, String> entry = it.next();
+						acks.add(entry.getKey());
+						due = Math.min(due, insertAfter(entry));
+					}
+				} catch(IOException e) {
+					Logger.error(this, "Caugth IOException while checking acklog: " + e.getMessage(), e);
+					return now + TASK_RETRY_DELAY;
+				}
+			}
+
+			if(acks.isEmpty() || now < due) {
+				return 0;
+			}
+
+			//Send the oldest acks first if there are too many for one insert
+			Collections.sort(acks);
+			if(acks.size() > MAX_ACKS_PER_INSERT) {
+				acks = acks.subList(0, MAX_ACKS_PER_INSERT);
 			}
 
 			//Build the header of the inserted message
-			String header =
-				"messagetype=ack\r\n"
-				+ "id=" + ackId + "\r\n"
-				+ "\r\n";
+			StringBuilder header = new StringBuilder("messagetype=ack\r\n");
+			header.append(BUNDLES_SUPPORTED);
+			header.append("id=");
+			for(int i = 0; i < acks.size(); i++) {
+				if(i > 0) header.append(",");
+				header.append(acks.get(i));
+			}
+			header.append("\r\n\r\n");
+
 			Bucket bucket;
 			try {
-				bucket = new ArrayBucket(header.getBytes("UTF-8"));
+				bucket = new ArrayBucket(header.toString().getBytes("UTF-8"));
 			} catch (UnsupportedEncodingException e) {
 				//JVMs are required to support UTF-8, so we can assume it is always available
 				throw new AssertionError("JVM doesn't support UTF-8 charset");
 			}
 
-			boolean inserted;
-			try {
-				inserted = insertMessage(bucket, "ack" + ackId);
-			} catch(IOException e) {
-				//The getInputStream() method of ArrayBucket doesn't throw
-				throw new AssertionError("getInputStream() method of ArrayBucket threw IOException");
-			} catch (InterruptedException e) {
-				Logger.debug(this, "AckInserter interrupted, quitting");
-				return;
+			Logger.debug(this, "Inserting " + acks.size() + " acks");
+			boolean inserted = insertMessage(bucket, ACK_BATCH_PREFIX, RequestType.ACK_INSERT);
+
+			if(!inserted) {
+				return now + TASK_RETRY_DELAY;
 			}
 
-			if(inserted) {
-				synchronized(ackLog) {
-					try {
-						ackLog.remove(ackId);
-					} catch(IOException e) {
-						Logger.error(this, "Caugth IOException while writing to ack log: " + e.getMessage(), e);
+			synchronized(ackLog) {
+				try {
+					ackLog.remove(acks);
+				} catch(IOException e) {
+					Logger.error(this, "Caugth IOException while writing to ack log: " + e.getMessage(), e);
+				}
+			}
+
+			//Older versions assigned a slot to each ack, which this insert has replaced
+			synchronized(channelProps) {
+				boolean removed = false;
+				for(Long ack : acks) {
+					String key = "ack" + ack + PropsKeys.MSG_SLOT;
+					if(channelProps.get(key) != null) {
+						channelProps.remove(key);
+						removed = true;
 					}
 				}
-			} else {
-				try {
-					ScheduledExecutorService senderExecutor = freemail.getExecutor(TaskType.SENDER);
-					senderExecutor.schedule(this, TASK_RETRY_DELAY, TimeUnit.MILLISECONDS);
-				} catch(RejectedExecutionException e) {
-					Logger.debug(this, "Caugth RejectedExecutionException while scheduling AckInserter");
+				if(removed && !channelProps.flush()) {
+					Logger.error(this, "Couldn't remove old ack slots");
 				}
 			}
+			return 0;
+		}
+
+		private long insertAfter(Entry<Long, String> entry) {
+			if(entry.getValue() == null) {
+				return 0;
+			}
+
+			try {
+				return Long.parseLong(entry.getValue());
+			} catch(NumberFormatException e) {
+				//Assume no delay
+				return 0;
+			}
 		}
 	}
 
-	private boolean handleAck(File result) {
-		PropsFile ackProps = PropsFile.createPropsFile(result);
+	private boolean handleAck(PropsFile ackProps) {
 		String ackString = ackProps.get("id");
 		if(ackString == null) {
 			Logger.error(this, "Received ack without id, discarding");
@@ -1375,40 +2002,41 @@ class Channel {
 
 		Logger.debug(this, "Got ack with id " + ackString);
 
+		//A single ack can carry the ids of several messages
 		String[] acks = ackString.split(",");
 		for(String ack : acks) {
-			long messageId = Long.parseLong(ack);
+			long messageId;
+			try {
+				messageId = Long.parseLong(ack.trim());
+			} catch(NumberFormatException e) {
+				Logger.error(this, "Received ack with invalid id " + ack + ", skipping");
+				continue;
+			}
 			channelEventCallback.get().onAckReceived(messageId);
 		}
 
 		return true;
 	}
 
-	private class HashSlotManager extends SlotManager {
-		HashSlotManager(SlotSaveCallback cb, Object userdata, String slotlist) {
-			super(cb, userdata, slotlist);
-		}
+	/**
+	 * Slot manager of the fetcher. Instead of saving the slots every time one is used it
+	 * marks them as changed, and the fetcher writes them when the run is done.
+	 */
+	private class ChannelSlotManager extends HashSlotManager {
+		/* Guarded by the fetcher */
+		private boolean dirty = false;
 
-		@Override
-		protected String incSlot(String slot) {
-			return calculateNextSlot(slot);
+		ChannelSlotManager(String slotlist) {
+			super(null, null, slotlist, fetchSlots);
 		}
-	}
-
-	private static class ChannelSlotSaveImpl implements SlotSaveCallback {
-		private final PropsFile propsFile;
-		private final String keyName;
 
-		private ChannelSlotSaveImpl(PropsFile propsFile, String keyName) {
-			this.propsFile = propsFile;
-			this.keyName = keyName;
+		ChannelSlotManager(DataInput in) throws IOException {
+			super(null, null, in, fetchSlots);
 		}
 
 		@Override
-		public void saveSlots(String slots, Object userdata) {
-			synchronized(propsFile) {
-				propsFile.put(keyName, slots);
-			}
+		protected void saveSlots() {
+			dirty = true;
 		}
 	}
 
@@ -1416,4 +2044,16 @@ class Channel {
 		public void onAckReceived(long id);
 		public boolean handleMessage(Channel channel, BufferedReader message, long id);
 	}
+
+	/**
+	 * Owner of the fetch scheduler registration that polls a channel, for channels whose
+	 * polling outlives the Channel object. Polls of the registration are expected to end up
+	 * in {@link Channel#pollFetcher()}.
+	 */
+	interface FetchRegistrar {
+		/**
+		 * Returns the registration, registering with the fetch scheduler if needed.
+		 */
+		FetchScheduler.Registration getFetchRegistration();
+	}
 }
@@ -0,0 +1,573 @@
+/*
+ * ChannelRegistry.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package org.freenetproject.freemail.transport;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.freenetproject.freemail.Freemail;
+import org.freenetproject.freemail.utils.Logger;
+import org.freenetproject.freemail.utils.PropsFile;
+
+/**
+ * The channels of an account, indexed by the identity on the other side. Channels are
+ * loaded from disk when they are first needed, and channels that have nothing left to do
+ * except polling are unloaded again once more than {@link #MAX_LOADED} channels are in
+ * memory, least recently used first. The fetch scheduler keeps polling unloaded channels
+ * through a small handle that loads the channel when the poll is due.
+ *
+ * The identity and poll schedule of unloaded channels are kept in an index file in the
+ * channel directory, so at startup only the channels that were loaded when Freemail
+ * stopped are read. Channels that aren't in the index, such as those written by older
+ * versions, are read at startup and added to it.
+ */
+class ChannelRegistry {
+	static final String INDEX_NAME = "index";
+
+	/** The number of loaded channels above which idle channels are unloaded */
+	static final int MAX_LOADED = 32;
+
+	/**
+	 * Holds the static portions of the keys used in the index file. They are appended to
+	 * the name of the channel directory.
+	 */
+	private static class IndexKeys {
+		/** The identity on the other side of the channel */
+		private static final String REMOTE_ID = ".remoteId";
+		/**
+		 * When the next poll is due. Only set while the channel is unloaded, so channels
+		 * without it are loaded at startup.
+		 */
+		private static final String NEXT_POLL = ".nextPoll";
+		/** The poll interval when the channel was unloaded */
+		private static final String POLL_INTERVAL = ".pollInterval";
+	}
+
+	/**
+	 * Creates the Channel objects of the registry.
+	 */
+	interface ChannelFactory {
+		/**
+		 * Creates the channel in the given directory.
+		 * @param remoteId the identity on the other side of a new channel, or {@code null}
+		 *            if the channel exists already
+		 */
+		Channel create(File dir, String remoteId) throws ChannelTimedOutException;
+	}
+
+	private final File channelDir;
+	private final Freemail freemail;
+	private final ChannelFactory factory;
+	private final PropsFile index;
+	private final AtomicInteger nextChannelNum = new AtomicInteger();
+
+	/** All the channels, keyed by the name of their directory */
+	private final ConcurrentHashMap<String, ChannelRef> channels = new ConcurrentHashMap<String, ChannelRef>();
+
+	/** The channels of each remote identity */
+	private final ConcurrentHashMap<String, List<ChannelRef>> byRemoteId = new ConcurrentHashMap<String, List<ChannelRef>>();
+
+	/** The loaded channels, least recently used first. Guarded by itself. */
+	private final LinkedHashMap<String, ChannelRef> loaded = new LinkedHashMap<String, ChannelRef>(16, 0.75f, true);
+
+	/** Set once {@link #start()} has been called. Guarded by {@code this}. */
+	private boolean started = false;
+
+	private final Runnable evictor = new Runnable() {
+		@Override
+		public void run() {
+			evictIdle();
+		}
+	};
+
+	ChannelRegistry(File channelDir, Freemail freemail, ChannelFactory factory) {
+		this.channelDir = channelDir;
+		this.freemail = freemail;
+		this.factory = factory;
+
+		if(!channelDir.exists()) {
+			if(!channelDir.mkdir()) {
+				Logger.error(this, "Couldn't create channel directory: " + channelDir);
+			}
+		}
+		index = PropsFile.createPropsFile(new File(channelDir, INDEX_NAME));
+
+		for(File f : channelDir.listFiles()) {
+			if(f.getName().equals(INDEX_NAME)) {
+				continue;
+			}
+
+			if(!f.isDirectory()) {
+				Logger.error(this, "Spurious file in channel directory: " + f);
+				continue;
+			}
+
+			try {
+				int num = Integer.parseInt(f.getName());
+				if(num >= nextChannelNum.get()) {
+					nextChannelNum.set(num + 1);
+				}
+			} catch(NumberFormatException e) {
+				Logger.error(this, "Found directory with malformed name: " + f);
+				continue;
+			}
+
+			ChannelRef ref = new ChannelRef(f);
+			String remoteId = index.get(f.getName() + IndexKeys.REMOTE_ID);
+			if(remoteId != null && index.get(f.getName() + IndexKeys.NEXT_POLL) != null) {
+				Logger.debug(this, "Leaving idle channel " + f + " unloaded");
+				add(ref, remoteId);
+				continue;
+			}
+
+			Logger.debug(this, "Initializing channel from directory " + f);
+			synchronized(ref) {
+				Channel channel = ref.load(null);
+				if(channel != null) {
+					remoteId = channel.getRemoteIdentity();
+					index.put(f.getName() + IndexKeys.REMOTE_ID, remoteId);
+					add(ref, remoteId);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Starts the tasks of the loaded channels and the polling of the unloaded ones.
+	 */
+	void start() {
+		synchronized(this) {
+			started = true;
+		}
+
+		for(ChannelRef ref : channels.values()) {
+			ref.start();
+		}
+		evictIdle();
+	}
+
+	/**
+	 * Returns a channel to the given identity that can be used for sending messages,
+	 * creating one if needed. The channel must be released using {@link #release(Channel)}
+	 * when the caller is done with it.
+	 * @return the channel, or {@code null} if a new channel couldn't be created
+	 */
+	Channel acquireSendChannel(String remoteId) {
+		List<ChannelRef> refs = getChannelList(remoteId);
+		synchronized(refs) {
+			for(ChannelRef ref : refs) {
+				Channel channel = ref.acquire();
+				if(channel == null) {
+					continue;
+				}
+				if(channel.canSendMessages()) {
+					return channel;
+				}
+				release(channel);
+			}
+
+			//The channel didn't exist or it has timed out, so create a new one
+			return create(remoteId, null);
+		}
+	}
+
+	/**
+	 * Returns {@code true} if there is a channel to the given identity that can be used for
+	 * sending bundles. Unlike {@link #acquireSendChannel(String)} this doesn't create a
+	 * channel if there isn't one.
+	 */
+	boolean canSendBundles(String remoteId) {
+		for(ChannelRef ref : getChannels(remoteId)) {
+			Channel channel = ref.acquire();
+			if(channel == null) {
+				continue;
+			}
+			try {
+				if(channel.canSendMessages() && channel.canSendBundles()) {
+					return true;
+				}
+			} finally {
+				release(channel);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Hands the RTS to the channel it belongs to, creating the channel if there isn't one.
+	 */
+	void processRTS(PropsFile rtsProps, String remoteId) {
+		List<ChannelRef> refs = getChannelList(remoteId);
+		Channel channel;
+		synchronized(refs) {
+			//First try to find a channel with the same key
+			String rtsPrivateKey = rtsProps.get("channel");
+			for(ChannelRef ref : refs) {
+				Channel existing = ref.acquire();
+				if(existing == null) {
+					continue;
+				}
+				try {
+					if(rtsPrivateKey.equals(existing.getPrivateKey())) {
+						existing.processRTS(rtsProps);
+						return;
+					}
+				} finally {
+					release(existing);
+				}
+			}
+
+			//Create a new channel from the RTS values
+			Logger.debug(this, "Creating new channel from RTS");
+			channel = create(remoteId, rtsProps);
+		}
+		if(channel != null) {
+			release(channel);
+		}
+	}
+
+	/**
+	 * Releases a channel returned by this registry, which might unload it.
+	 */
+	void release(Channel channel) {
+		if(unpin(channel)) {
+			evictIdle();
+		}
+	}
+
+	/**
+	 * Releases the channel without unloading anything.
+	 * @return {@code true} if nobody is using the channel any more
+	 */
+	private boolean unpin(Channel channel) {
+		ChannelRef ref = channels.get(channel.getName());
+		if(ref == null) {
+			//The channel has been deleted
+			return false;
+		}
+
+		synchronized(ref) {
+			assert (ref.channel == channel);
+			return --ref.pins == 0;
+		}
+	}
+
+	/**
+	 * Returns the number of channels that are loaded.
+	 */
+	int loadedCount() {
+		synchronized(loaded) {
+			return loaded.size();
+		}
+	}
+
+	private List<ChannelRef> getChannels(String remoteId) {
+		List<ChannelRef> refs = byRemoteId.get(remoteId);
+		if(refs == null) {
+			return Collections.emptyList();
+		}
+		return refs;
+	}
+
+	/**
+	 * Returns the list of channels to the given identity, creating it if needed. Finding a
+	 * channel and creating a new one is done while holding the list, so that two callers
+	 * can't both create a channel to the same identity.
+	 */
+	private List<ChannelRef> getChannelList(String remoteId) {
+		List<ChannelRef> refs = byRemoteId.get(remoteId);
+		if(refs == null) {
+			List<ChannelRef> newRefs = new CopyOnWriteArrayList<ChannelRef>();
+			refs = byRemoteId.putIfAbsent(remoteId, newRefs);
+			if(refs == null) {
+				refs = newRefs;
+			}
+		}
+		return refs;
+	}
+
+	private Channel create(String remoteId, PropsFile rtsProps) {
+		assert (Thread.holdsLock(byRemoteId.get(remoteId)));
+		File newChannelDir = new File(channelDir, "" + nextChannelNum.getAndIncrement());
+		if(!newChannelDir.mkdir()) {
+			Logger.error(this, "Couldn't create the channel directory");
+			return null;
+		}
+
+		ChannelRef ref = new ChannelRef(newChannelDir);
+		Channel channel;
+		synchronized(ref) {
+			channel = ref.load(remoteId);
+			if(channel == null) {
+				//Can't happen since we're creating a new channel
+				throw new AssertionError("Couldn't load new channel " + newChannelDir);
+			}
+			index.put(newChannelDir.getName() + IndexKeys.REMOTE_ID, remoteId);
+			add(ref, remoteId);
+
+			if(rtsProps != null) {
+				channel.processRTS(rtsProps);
+			}
+			channel.startTasks();
+			ref.pins++;
+		}
+		return channel;
+	}
+
+	private void add(ChannelRef ref, String remoteId) {
+		ref.remoteId = remoteId;
+		channels.put(ref.dir.getName(), ref);
+		getChannelList(remoteId).add(ref);
+	}
+
+	private void remove(ChannelRef ref) {
+		channels.remove(ref.dir.getName());
+		if(ref.remoteId != null) {
+			List<ChannelRef> refs = byRemoteId.get(ref.remoteId);
+			if(refs != null) {
+				refs.remove(ref);
+			}
+		}
+
+		index.remove(ref.dir.getName() + IndexKeys.REMOTE_ID);
+		index.remove(ref.dir.getName() + IndexKeys.NEXT_POLL);
+		index.remove(ref.dir.getName() + IndexKeys.POLL_INTERVAL);
+	}
+
+	/**
+	 * Unloads idle channels, least recently used first, until no more than
+	 * {@link #MAX_LOADED} are loaded or there are no more idle channels.
+	 */
+	private void evictIdle() {
+		List<ChannelRef> candidates;
+		synchronized(loaded) {
+			if(loaded.size() <= MAX_LOADED) {
+				return;
+			}
+			candidates = new ArrayList<ChannelRef>(loaded.values());
+		}
+
+		Iterator<ChannelRef> it = candidates.iterator();
+		while(it.hasNext() && loadedCount() > MAX_LOADED) {
+			ChannelRef ref = it.next();
+			synchronized(ref) {
+				ref.unloadIfIdle();
+			}
+		}
+	}
+
+	/**
+	 * The handle of a channel directory, which outlives the Channel object so that the
+	 * channel keeps being polled when it isn't loaded. All fields except the registration
+	 * are guarded by {@code this}.
+	 */
+	private class ChannelRef implements FetchScheduler.Pollable, Channel.FetchRegistrar {
+		private final File dir;
+		private String remoteId;
+		private Channel channel = null;
+
+		/** The number of users of the loaded channel, which can't be unloaded until it is 0 */
+		private int pins = 0;
+
+		/** Set if the channel was unloaded while idle, and has no tasks except polling */
+		private boolean resume = false;
+
+		/** Guarded by {@code registrationLock} so polls don't wait for loading */
+		private FetchScheduler.Registration registration = null;
+		private final Object registrationLock = new Object();
+
+		private ChannelRef(File dir) {
+			this.dir = dir;
+		}
+
+		private void start() {
+			String name = dir.getName();
+			synchronized(this) {
+				if(channel != null) {
+					channel.startTasks();
+					return;
+				}
+
+				try {
+					long nextPoll = Long.parseLong(index.get(name + IndexKeys.NEXT_POLL));
+					long interval = Long.parseLong(index.get(name + IndexKeys.POLL_INTERVAL));
+					synchronized(registrationLock) {
+						registration = freemail.getFetchScheduler().register(this, nextPoll, interval);
+					}
+					resume = true;
+					return;
+				} catch(NumberFormatException e) {
+					Logger.error(this, "Invalid poll schedule in index for " + dir + ", loading channel");
+				}
+			}
+
+			//Fall back to loading the channel, which starts its tasks
+			Channel loadedChannel = acquire();
+			if(loadedChannel != null) {
+				release(loadedChannel);
+			}
+		}
+
+		/**
+		 * Returns the channel, loading it if needed, or {@code null} if it has timed out or
+		 * is broken. The caller must release the channel.
+		 */
+		private synchronized Channel acquire() {
+			if(channel == null) {
+				boolean wasIdle = resume;
+				if(load(null) == null) {
+					return null;
+				}
+				index.remove(dir.getName() + IndexKeys.NEXT_POLL);
+				index.remove(dir.getName() + IndexKeys.POLL_INTERVAL);
+
+				if(wasIdle) {
+					channel.resumeTasks();
+				} else {
+					synchronized(ChannelRegistry.this) {
+						if(started) {
+							channel.startTasks();
+						}
+					}
+				}
+			}
+
+			pins++;
+			synchronized(loaded) {
+				//Moves the channel to the end of the LRU order
+				loaded.get(dir.getName());
+			}
+			return channel;
+		}
+
+		/**
+		 * Creates the Channel object, deleting the channel if it has timed out or is broken.
+		 */
+		private Channel load(String newRemoteId) {
+			assert (Thread.holdsLock(this));
+			try {
+				channel = factory.create(dir, newRemoteId);
+			} catch(ChannelTimedOutException e) {
+				Logger.debug(this, "Deleting timed out channel");
+				delete();
+				return null;
+			} catch(IllegalStateException e) {
+				//Channel is broken for some reason so get rid of it
+				Logger.error(this, "Deleting broken channel");
+				delete();
+				return null;
+			}
+			channel.setFetchRegistrar(this);
+			resume = false;
+
+			synchronized(loaded) {
+				loaded.put(dir.getName(), this);
+			}
+			return channel;
+		}
+
+		private void delete() {
+			remove(this);
+			synchronized(registrationLock) {
+				if(registration != null) {
+					registration.cancel();
+				}
+			}
+			if(!Channel.deleteChannel(dir)) {
+				Logger.error(this, "Failed to delete channel because there are files left in " + dir);
+			}
+		}
+
+		private void unloadIfIdle() {
+			assert (Thread.holdsLock(this));
+			if(channel == null || pins > 0 || !channel.isIdle()) {
+				return;
+			}
+
+			FetchScheduler.Registration current;
+			synchronized(registrationLock) {
+				current = registration;
+			}
+			if(current == null) {
+				//The fetcher hasn't started, so there is more to do than polling
+				return;
+			}
+
+			if(current.isRunning()) {
+				//When the next poll is due isn't known until the scheduler is done with
+				//this one, so the poll unloads the channel when it is
+				return;
+			}
+
+			String name = dir.getName();
+			if(!current.isCancelled()) {
+				index.put(name + IndexKeys.POLL_INTERVAL, Long.toString(current.getInterval()));
+				index.put(name + IndexKeys.NEXT_POLL, Long.toString(current.getDue()));
+			}
+
+			Logger.debug(this, "Unloading idle channel " + dir);
+			channel.unload();
+			channel = null;
+			resume = true;
+			synchronized(loaded) {
+				loaded.remove(name);
+			}
+		}
+
+		@Override
+		public FetchScheduler.Registration getFetchRegistration() {
+			synchronized(registrationLock) {
+				if(registration == null) {
+					registration = freemail.getFetchScheduler().register(this);
+				}
+				return registration;
+			}
+		}
+
+		@Override
+		public int poll() throws InterruptedException {
+			Channel polled = acquire();
+			if(polled == null) {
+				return 0;
+			}
+
+			try {
+				return polled.pollFetcher();
+			} finally {
+				if(unpin(polled)) {
+					getFetchRegistration().afterPoll(evictor);
+				}
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "ChannelRef [" + dir + "]";
+		}
+	}
+}
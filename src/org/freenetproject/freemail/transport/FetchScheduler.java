@@ -0,0 +1,372 @@
+/*
+ * FetchScheduler.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.transport;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.freenetproject.freemail.config.ConfigClient;
+import org.freenetproject.freemail.config.Configurator;
+import org.freenetproject.freemail.utils.Logger;
+
+/**
+ * Decides when the channels of all accounts poll their slots. Each channel starts out
+ * polling every {@link #MIN_INTERVAL}, and every poll that finds nothing doubles the
+ * interval up to {@link #MAX_INTERVAL}. Activity on the channel, such as a received or
+ * sent message, resets the interval. On top of that the total number of fetches is
+ * limited to a configurable budget per minute, and when the budget is used up the
+ * channel that has been waiting the longest polls first once there is room again. A
+ * budget of 0 or less means unlimited.
+ */
+public class FetchScheduler implements ConfigClient {
+	static final long MIN_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+	static final long MAX_INTERVAL = TimeUnit.HOURS.toMillis(1);
+	private static final int DEFAULT_BUDGET = 600;
+
+	/**
+	 * Something that is polled by the scheduler, usually the fetcher of a channel.
+	 */
+	interface Pollable {
+		/**
+		 * Polls for new data.
+		 * @return the number of fetches that were made
+		 * @throws InterruptedException if the thread was interrupted, which stops polling
+		 */
+		int poll() throws InterruptedException;
+	}
+
+	private final ScheduledExecutorService executor;
+	private final long minInterval;
+	private final long maxInterval;
+	private final Runnable dispatcher = new Runnable() {
+		@Override
+		public void run() {
+			dispatch();
+		}
+	};
+
+	/** Registrations that aren't polling, ordered by when they should poll next */
+	private final PriorityQueue<Registration> queue = new PriorityQueue<Registration>();
+
+	/** The number of fetches per minute */
+	private int budget;
+
+	/** The fetches that can be made right now, which is negative if too many were made */
+	private double tokens;
+	private long lastRefill;
+
+	private ScheduledFuture<?> nextDispatch = null;
+	private long nextDispatchAt = Long.MAX_VALUE;
+
+	public FetchScheduler(ScheduledExecutorService executor, Configurator cfg) {
+		this(executor, DEFAULT_BUDGET, MIN_INTERVAL, MAX_INTERVAL);
+		cfg.register(Configurator.FETCH_BUDGET, this, Integer.toString(DEFAULT_BUDGET));
+	}
+
+	FetchScheduler(ScheduledExecutorService executor, int budget, long minInterval, long maxInterval) {
+		this.executor = executor;
+		this.budget = budget;
+		this.minInterval = minInterval;
+		this.maxInterval = maxInterval;
+		this.tokens = budget;
+		this.lastRefill = System.currentTimeMillis();
+	}
+
+	@Override
+	public void setConfigProp(String key, String val) {
+		if(key.equalsIgnoreCase(Configurator.FETCH_BUDGET)) {
+			try {
+				int newBudget = Integer.parseInt(val);
+				synchronized(this) {
+					refill(System.currentTimeMillis());
+					budget = newBudget;
+					tokens = Math.min(tokens, budget);
+					reschedule();
+				}
+			} catch(NumberFormatException e) {
+				Logger.error(this, "Invalid value for " + key + ": " + val);
+			}
+		}
+	}
+
+	/**
+	 * Starts polling the given Pollable, with the first poll happening as soon as the
+	 * budget allows.
+	 */
+	synchronized Registration register(Pollable pollable) {
+		return register(pollable, System.currentTimeMillis(), minInterval);
+	}
+
+	/**
+	 * Starts polling the given Pollable at the given time and interval, which is used to
+	 * carry on with the schedule of a Pollable that was registered before.
+	 */
+	synchronized Registration register(Pollable pollable, long due, long interval) {
+		Registration registration = new Registration(pollable);
+		registration.due = due;
+		registration.interval = Math.max(minInterval, Math.min(interval, maxInterval));
+		queue.add(registration);
+		reschedule();
+		return registration;
+	}
+
+	private synchronized void dispatch() {
+		nextDispatch = null;
+		nextDispatchAt = Long.MAX_VALUE;
+
+		long now = System.currentTimeMillis();
+		refill(now);
+		while(!queue.isEmpty() && queue.peek().due <= now && (budget <= 0 || tokens >= 1)) {
+			Registration registration = queue.poll();
+			registration.running = true;
+
+			//Reserve a fetch now so that the polls started here don't overrun the budget
+			//before they finish. The rest is charged when the poll returns.
+			tokens -= 1;
+			try {
+				executor.execute(registration);
+			} catch(RejectedExecutionException e) {
+				Logger.debug(this, "Caugth RejectedExecutionException while starting poll");
+
+				//Try again later instead of dropping the registration
+				tokens += 1;
+				registration.running = false;
+				registration.due = now + minInterval;
+				queue.add(registration);
+				break;
+			}
+		}
+		reschedule();
+	}
+
+	private synchronized void finished(Registration registration, int fetches) {
+		long now = System.currentTimeMillis();
+		refill(now);
+		tokens -= fetches - 1;
+		registration.running = false;
+
+		if(registration.cancelled) {
+			return;
+		}
+
+		if(registration.pollNow) {
+			registration.interval = minInterval;
+			registration.due = now;
+		} else if(registration.active) {
+			registration.interval = minInterval;
+			registration.due = now + minInterval;
+		} else {
+			registration.due = now + registration.interval;
+			registration.interval = Math.min(registration.interval * 2, maxInterval);
+		}
+		registration.pollNow = false;
+		registration.active = false;
+
+		queue.add(registration);
+		reschedule();
+	}
+
+	/**
+	 * Moves the registration to the given time and resets its interval. If the
+	 * registration is polling right now this is done when the poll finishes. A
+	 * cancelled registration starts polling again, since the activity means there
+	 * is something to poll for, for example after the timeout of a channel has
+	 * been extended.
+	 */
+	private synchronized void reset(Registration registration, boolean now) {
+		registration.cancelled = false;
+
+		if(registration.running) {
+			if(now) {
+				registration.pollNow = true;
+			} else {
+				registration.active = true;
+			}
+			return;
+		}
+
+		queue.remove(registration);
+		registration.interval = minInterval;
+		long due = System.currentTimeMillis() + (now ? 0 : minInterval);
+		registration.due = Math.min(registration.due, due);
+		queue.add(registration);
+		reschedule();
+	}
+
+	private synchronized void cancel(Registration registration) {
+		registration.cancelled = true;
+		queue.remove(registration);
+	}
+
+	private void refill(long now) {
+		assert (Thread.holdsLock(this));
+		tokens = Math.min(budget, tokens + (now - lastRefill) * budget / (double)TimeUnit.MINUTES.toMillis(1));
+		lastRefill = now;
+	}
+
+	/**
+	 * Makes sure the dispatcher runs when the next registration is due and there is
+	 * budget for it.
+	 */
+	private void reschedule() {
+		assert (Thread.holdsLock(this));
+		if(queue.isEmpty()) {
+			return;
+		}
+
+		long at = queue.peek().due;
+		if(budget > 0 && tokens < 1) {
+			long refillTime = (long)Math.ceil((1 - tokens) * TimeUnit.MINUTES.toMillis(1) / budget);
+			at = Math.max(at, lastRefill + refillTime);
+		}
+
+		if(nextDispatch != null) {
+			if(nextDispatchAt <= at) {
+				return;
+			}
+			nextDispatch.cancel(false);
+		}
+
+		try {
+			nextDispatch = executor.schedule(dispatcher, Math.max(0, at - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+			nextDispatchAt = at;
+		} catch(RejectedExecutionException e) {
+			Logger.debug(this, "Caugth RejectedExecutionException while scheduling dispatcher");
+		}
+	}
+
+	/**
+	 * The handle of a registered Pollable.
+	 */
+	class Registration implements Runnable, Comparable<Registration> {
+		private final Pollable pollable;
+
+		/* All guarded by the scheduler */
+		private long due;
+		private long interval = minInterval;
+		private boolean running = false;
+		private boolean active = false;
+		private boolean pollNow = false;
+		private boolean cancelled = false;
+		private Runnable afterPoll = null;
+
+		private Registration(Pollable pollable) {
+			this.pollable = pollable;
+		}
+
+		/**
+		 * Polls as soon as the budget allows and resets the interval. Polling starts again
+		 * if the registration was cancelled.
+		 */
+		void pollNow() {
+			reset(this, true);
+		}
+
+		/**
+		 * Resets the interval after activity that makes new data likely. Polling starts
+		 * again if the registration was cancelled.
+		 */
+		void activity() {
+			reset(this, false);
+		}
+
+		/**
+		 * Stops polling until {@link #pollNow()} or {@link #activity()} is called. A poll
+		 * that is running when this is called isn't stopped.
+		 */
+		void cancel() {
+			FetchScheduler.this.cancel(this);
+		}
+
+		long getInterval() {
+			synchronized(FetchScheduler.this) {
+				return interval;
+			}
+		}
+
+		/**
+		 * Returns when the next poll is due. This is only meaningful while no poll is running.
+		 */
+		long getDue() {
+			synchronized(FetchScheduler.this) {
+				return due;
+			}
+		}
+
+		boolean isCancelled() {
+			synchronized(FetchScheduler.this) {
+				return cancelled;
+			}
+		}
+
+		boolean isRunning() {
+			synchronized(FetchScheduler.this) {
+				return running;
+			}
+		}
+
+		/**
+		 * Runs the task once the poll that is running has finished and the next poll has
+		 * been scheduled, or right away if no poll is running. A task that is waiting for
+		 * the poll already is replaced.
+		 */
+		void afterPoll(Runnable task) {
+			synchronized(FetchScheduler.this) {
+				if(running) {
+					afterPoll = task;
+					return;
+				}
+			}
+			task.run();
+		}
+
+		@Override
+		public void run() {
+			int fetches = 0;
+			try {
+				fetches = pollable.poll();
+			} catch(InterruptedException e) {
+				Logger.debug(this, "Poll interrupted, stopping");
+				cancel();
+			} finally {
+				finished(this, fetches);
+
+				Runnable task;
+				synchronized(FetchScheduler.this) {
+					task = afterPoll;
+					afterPoll = null;
+				}
+				if(task != null) {
+					task.run();
+				}
+			}
+		}
+
+		@Override
+		public int compareTo(Registration o) {
+			if(due < o.due) return -1;
+			if(due > o.due) return 1;
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,187 @@
+/*
+ * FetchWindow.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.transport;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.freenetproject.freemail.fcp.ConnectionTerminatedException;
+import org.freenetproject.freemail.fcp.FCPCallback;
+import org.freenetproject.freemail.fcp.FCPException;
+import org.freenetproject.freemail.fcp.FCPFetchException;
+import org.freenetproject.freemail.fcp.FCPMessage;
+import org.freenetproject.freemail.fcp.FCPRequest;
+import org.freenetproject.freemail.fcp.HighLevelFCPClient;
+import org.freenetproject.freemail.fcp.NoNodeConnectionException;
+import org.freenetproject.freemail.fcp.RequestType;
+import org.freenetproject.freemail.utils.Logger;
+
+import freenet.support.api.Bucket;
+
+/**
+ * Fetches a list of keys concurrently, but hands out the results in the order of the list.
+ * Up to {@code size} fetches are in flight, starting with the key whose result is taken next,
+ * so a slow fetch early in the list stops the fetches after it from running ahead. Each fetch
+ * also holds a permit of its request type while it runs, which limits the fetches of all the
+ * windows together.
+ */
+class FetchWindow {
+	private final HighLevelFCPClient fcpClient;
+	private final RequestType type;
+	private final List<String> keys;
+	private final int size;
+	private final List<SlotFetch> fetches;
+
+	/** The index of the key whose result is taken next */
+	private int next = 0;
+
+	FetchWindow(HighLevelFCPClient fcpClient, RequestType type, List<String> keys, int size) {
+		this.fcpClient = fcpClient;
+		this.type = type;
+		this.keys = keys;
+		this.size = size;
+		this.fetches = new ArrayList<SlotFetch>(keys.size());
+	}
+
+	/**
+	 * Starts fetches until {@code size} of the keys from the next one on have been started.
+	 */
+	void fill() throws ConnectionTerminatedException, NoNodeConnectionException, InterruptedException {
+		while(fetches.size() < keys.size() && fetches.size() < next + size) {
+			String key = keys.get(fetches.size());
+			Logger.debug(this, "Attempting to fetch mail on key " + key);
+			fetches.add(new SlotFetch(key));
+		}
+	}
+
+	/**
+	 * Waits for the fetch of the next key in the list and returns the data, which the caller
+	 * must free. Each call moves on to the next key, also if the fetch failed.
+	 * @throws FCPFetchException if the fetch failed or returned no data
+	 */
+	Bucket next() throws InterruptedException, FCPException, ConnectionTerminatedException,
+	                     NoNodeConnectionException {
+		if(next >= keys.size()) throw new IllegalStateException("No more keys");
+
+		fill();
+		return fetches.get(next++).get();
+	}
+
+	/**
+	 * Returns the number of fetches that have been started.
+	 */
+	int getStarted() {
+		return fetches.size();
+	}
+
+	/**
+	 * Cancels the fetches that are still running and frees the results nobody has taken.
+	 */
+	void close() {
+		for(SlotFetch fetch : fetches) {
+			fetch.abandon();
+		}
+	}
+
+	/**
+	 * A fetch of a single slot that is started when the object is created. The result is
+	 * freed if nobody takes it before the fetch is abandoned.
+	 */
+	private class SlotFetch implements FCPCallback<Bucket> {
+		/** The request of the fetch, or {@code null} if the client didn't return one */
+		private final FCPRequest request;
+
+		private Bucket result = null;
+		private Exception failure = null;
+		private boolean done = false;
+		private boolean abandoned = false;
+
+		private SlotFetch(String key) throws ConnectionTerminatedException, NoNodeConnectionException,
+		                                     InterruptedException {
+			request = fcpClient.fetchAsync(key, type, this);
+		}
+
+		@Override
+		public synchronized void onSuccess(Bucket fetched) {
+			if(abandoned) {
+				if(fetched != null) {
+					fetched.free();
+				}
+				return;
+			}
+			result = fetched;
+			done = true;
+			notifyAll();
+		}
+
+		@Override
+		public synchronized void onFailure(Exception e) {
+			failure = e;
+			done = true;
+			notifyAll();
+		}
+
+		/**
+		 * Waits for the fetch to finish and returns the data, which the caller must free.
+		 */
+		private synchronized Bucket get() throws InterruptedException, FCPException,
+		                                          ConnectionTerminatedException, NoNodeConnectionException {
+			while(!done) {
+				wait();
+			}
+
+			if(failure instanceof FCPException) {
+				throw (FCPException)failure;
+			} else if(failure instanceof ConnectionTerminatedException) {
+				throw (ConnectionTerminatedException)failure;
+			} else if(failure instanceof NoNodeConnectionException) {
+				throw (NoNodeConnectionException)failure;
+			} else if(failure != null) {
+				throw new AssertionError(failure);
+			}
+
+			Bucket data = result;
+			result = null;
+			if(data == null) {
+				//The node didn't return any data, so treat it as an empty slot
+				throw new FCPFetchException(new FCPMessage(0, "GetFailed"));
+			}
+			return data;
+		}
+
+		private void abandon() {
+			synchronized(this) {
+				abandoned = true;
+				if(result != null) {
+					result.free();
+					result = null;
+				}
+				if(done) {
+					return;
+				}
+			}
+
+			//Gives the permit back to the pool instead of waiting for the node
+			if(request != null) {
+				request.cancel(false);
+			}
+		}
+	}
+}
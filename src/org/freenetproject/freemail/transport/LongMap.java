@@ -0,0 +1,164 @@
+/*
+ * LongMap.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.transport;
+
+/**
+ * Hash map from primitive longs to objects, using open addressing so that neither the
+ * keys nor the entries are boxed. {@code null} values are allowed, so use
+ * {@link #containsKey(long)} to tell them apart from missing keys.
+ */
+class LongMap<V> {
+	private static final int MIN_CAPACITY = 16;
+
+	private static final byte EMPTY = 0;
+	private static final byte USED = 1;
+	private static final byte REMOVED = 2;
+
+	private long[] keys;
+	private Object[] values;
+	private byte[] states;
+	private int size = 0;
+
+	/** Slots that are used or removed, which is what decides when to resize */
+	private int filled = 0;
+
+	LongMap() {
+		allocate(MIN_CAPACITY);
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean containsKey(long key) {
+		return find(key) >= 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	V get(long key) {
+		int index = find(key);
+		return index < 0 ? null : (V)values[index];
+	}
+
+	void put(long key, V value) {
+		int index = find(key);
+		if(index >= 0) {
+			values[index] = value;
+			return;
+		}
+
+		if((filled + 1) * 4 > keys.length * 3) {
+			//Grow if the map is more than half full, otherwise just clear out removed slots
+			rehash(size * 2 > keys.length ? keys.length * 2 : keys.length);
+		}
+
+		index = slot(key);
+		while(states[index] == USED) {
+			index = (index + 1) & (keys.length - 1);
+		}
+		if(states[index] == EMPTY) {
+			filled++;
+		}
+		keys[index] = key;
+		values[index] = value;
+		states[index] = USED;
+		size++;
+	}
+
+	/**
+	 * Removes the given key.
+	 * @return {@code true} if the key was in the map
+	 */
+	boolean remove(long key) {
+		int index = find(key);
+		if(index < 0) {
+			return false;
+		}
+
+		values[index] = null;
+		states[index] = REMOVED;
+		size--;
+		return true;
+	}
+
+	void clear() {
+		allocate(MIN_CAPACITY);
+	}
+
+	/**
+	 * Returns the keys in the map, in no particular order.
+	 */
+	long[] keys() {
+		long[] result = new long[size];
+		int next = 0;
+		for(int i = 0; i < keys.length; i++) {
+			if(states[i] == USED) {
+				result[next++] = keys[i];
+			}
+		}
+		return result;
+	}
+
+	private int find(long key) {
+		int index = slot(key);
+		while(states[index] != EMPTY) {
+			if(states[index] == USED && keys[index] == key) {
+				return index;
+			}
+			index = (index + 1) & (keys.length - 1);
+		}
+		return -1;
+	}
+
+	private int slot(long key) {
+		//Mix the bits since message ids are usually sequential
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32)) & (keys.length - 1);
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		byte[] oldStates = states;
+
+		allocate(capacity);
+		for(int i = 0; i < oldKeys.length; i++) {
+			if(oldStates[i] == USED) {
+				int index = slot(oldKeys[i]);
+				while(states[index] == USED) {
+					index = (index + 1) & (keys.length - 1);
+				}
+				keys[index] = oldKeys[i];
+				values[index] = oldValues[i];
+				states[index] = USED;
+				size++;
+				filled++;
+			}
+		}
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new Object[capacity];
+		states = new byte[capacity];
+		size = 0;
+		filled = 0;
+	}
+}
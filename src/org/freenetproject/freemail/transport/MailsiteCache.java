@@ -0,0 +1,148 @@
+/*
+ * MailsiteCache.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.transport;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.freenetproject.freemail.utils.Logger;
+import org.freenetproject.freemail.utils.PropsFile;
+
+/**
+ * Remembers what the RTS sender needs from the mailsites of the identities an account
+ * talks to, so that new channels and RTS resends don't have to look them up in WoT and
+ * fetch the mailsite again. An entry is used as is until it is older than
+ * {@link #REVALIDATE_INTERVAL}. After that the mailsite edition in WoT is checked, and
+ * the mailsite is only fetched again if the edition has changed.
+ */
+class MailsiteCache {
+	static final long REVALIDATE_INTERVAL = TimeUnit.DAYS.toMillis(1);
+
+	private static class Keys {
+		private static final String MAILSITE_KEY = ".mailsiteKey";
+		private static final String EDITION = ".edition";
+		private static final String RTS_KEY = ".rtsKey";
+		private static final String MODULUS = ".modulus";
+		private static final String EXPONENT = ".exponent";
+		private static final String CHECKED = ".checked";
+	}
+
+	private final PropsFile props;
+
+	MailsiteCache(File file) {
+		props = PropsFile.createPropsFile(file);
+		synchronized(props) {
+			props.setWriteBehind(true);
+		}
+	}
+
+	/**
+	 * Returns the cached mailsite of the given identity, or {@code null} if there is none.
+	 */
+	Mailsite get(String identityId) {
+		synchronized(props) {
+			String mailsiteKey = props.get(identityId + Keys.MAILSITE_KEY);
+			String rawEdition = props.get(identityId + Keys.EDITION);
+			String rawChecked = props.get(identityId + Keys.CHECKED);
+			if(mailsiteKey == null || rawEdition == null || rawChecked == null) {
+				return null;
+			}
+
+			try {
+				return new Mailsite(mailsiteKey, Integer.parseInt(rawEdition),
+						props.get(identityId + Keys.RTS_KEY),
+						props.get(identityId + Keys.MODULUS),
+						props.get(identityId + Keys.EXPONENT),
+						Long.parseLong(rawChecked));
+			} catch(NumberFormatException e) {
+				Logger.error(this, "Invalid mailsite cache entry for " + identityId);
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Stores the mailsite of the given identity.
+	 */
+	void put(String identityId, Mailsite mailsite) {
+		synchronized(props) {
+			props.put(identityId + Keys.MAILSITE_KEY, mailsite.mailsiteKey);
+			props.put(identityId + Keys.EDITION, Integer.toString(mailsite.edition));
+			putOrRemove(identityId + Keys.RTS_KEY, mailsite.rtsKey);
+			putOrRemove(identityId + Keys.MODULUS, mailsite.keyModulus);
+			putOrRemove(identityId + Keys.EXPONENT, mailsite.keyExponent);
+			props.put(identityId + Keys.CHECKED, Long.toString(mailsite.checked));
+			props.flush();
+		}
+	}
+
+	/**
+	 * Returns a copy of the mailsite that has been checked at the given time, and stores it.
+	 */
+	Mailsite revalidated(String identityId, Mailsite mailsite, long checked) {
+		Mailsite updated = new Mailsite(mailsite.mailsiteKey, mailsite.edition, mailsite.rtsKey,
+				mailsite.keyModulus, mailsite.keyExponent, checked);
+		put(identityId, updated);
+		return updated;
+	}
+
+	private void putOrRemove(String key, String value) {
+		if(value == null) {
+			props.remove(key);
+		} else {
+			props.put(key, value);
+		}
+	}
+
+	/**
+	 * The parts of a mailsite that are needed to send an RTS.
+	 */
+	static class Mailsite {
+		/** The key of the mailsite without the edition */
+		final String mailsiteKey;
+		final int edition;
+		final String rtsKey;
+		final String keyModulus;
+		final String keyExponent;
+		/** When the mailsite was last fetched or found to be up to date */
+		final long checked;
+
+		Mailsite(String mailsiteKey, int edition, String rtsKey, String keyModulus, String keyExponent, long checked) {
+			this.mailsiteKey = mailsiteKey;
+			this.edition = edition;
+			this.rtsKey = rtsKey;
+			this.keyModulus = keyModulus;
+			this.keyExponent = keyExponent;
+			this.checked = checked;
+		}
+
+		/**
+		 * Returns the key of the mailsite edition, as used in the RTS and for fetching
+		 * the mailsite.
+		 */
+		String getEditionKey() {
+			return mailsiteKey + "/mailsite/-" + edition + "/mailpage";
+		}
+
+		boolean needsRevalidation(long now) {
+			return now - checked > REVALIDATE_INTERVAL || now < checked;
+		}
+	}
+}
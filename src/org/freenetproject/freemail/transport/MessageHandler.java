@@ -29,14 +29,14 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Future;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 
 import org.archive.util.Base32;
@@ -71,6 +71,18 @@ public class MessageHandler {
 	private static final String INDEX_NAME = "index";
 	private static final long RESEND_TIME = 24 * 60 * 60 * 1000;
 	private static final String MSG_LOG_NAME = "log";
+	private static final String SPOOL_NAME = "spool";
+	private static final String MAILSITE_CACHE_NAME = "mailsites";
+
+	/**
+	 * How long new messages wait before they are sent if the channel to the recipient can
+	 * send bundles, so that messages to the same recipient that are queued together can be
+	 * sent in one bundle. A bundle also takes the messages that are due within this time.
+	 */
+	private static final long BUNDLE_DELAY = 60 * 1000;
+
+	/** The largest total size of the messages in a bundle */
+	private static final long MAX_BUNDLE_SIZE = 64 * 1024;
 
 	/**
 	 * Holds the static portions of the keys used in the index file. The values that are stored per
@@ -87,115 +99,100 @@ public class MessageHandler {
 		private static final String LAST_SEND_TIME = ".lastSendTime";
 		/** The message number used by the Channel for this message */
 		private static final String MSG_NUM = ".msgNum";
+		/**
+		 * The name of the message in the shared spool. Messages submitted by older versions are
+		 * stored in the recipient outbox instead, and don't have this key.
+		 */
+		private static final String SPOOL = ".spool";
 	}
 
 	private final File outbox;
-	private final List<Channel> channels = new LinkedList<Channel>();
+	private final MessageSpool spool;
+	private final ChannelRegistry channels;
 	private final Freemail freemail;
-	private final File channelDir;
 	private final FreemailAccount freemailAccount;
-	private final AtomicInteger nextChannelNum = new AtomicInteger();
-	private final ConcurrentHashMap<String, Future<?>> tasks = new ConcurrentHashMap<String, Future<?>>();
+	private final OutboxQueue outboxQueue;
 	private final HighLevelFCPClientFactory hlFcpClientFactory;
+	private final MailsiteCache mailsiteCache;
 
 	public MessageHandler(File outbox, Freemail freemail, File channelDir,
 	                      FreemailAccount freemailAccount, HighLevelFCPClientFactory hlFcpClientFactory) {
 		this.outbox = outbox;
+		this.spool = new MessageSpool(new File(outbox, SPOOL_NAME));
 		this.freemail = freemail;
-		this.channelDir = channelDir;
 		this.freemailAccount = freemailAccount;
 		this.hlFcpClientFactory = hlFcpClientFactory;
-
-		//Create and start all the channels
-		if(!channelDir.exists()) {
-			if(!channelDir.mkdir()) {
-				Logger.error(this, "Couldn't create channel directory: " + channelDir);
-			}
-		}
-
-		for(File f : channelDir.listFiles()) {
-			if(!f.isDirectory()) {
-				Logger.error(this, "Spurious file in channel directory: " + f);
-				continue;
-			}
-
-			try {
-				int num = Integer.parseInt(f.getName());
-				if(num >= nextChannelNum.get()) {
-					nextChannelNum.set(num + 1);
-				}
-			} catch(NumberFormatException e) {
-				Logger.error(this, "Found directory with malformed name: " + f);
-				continue;
-			}
-
-			Logger.debug(this, "Initializing channel from directory " + f);
-			try {
-				Channel channel = new Channel(f, freemail.getExecutor(TaskType.UNSPECIFIED), hlFcpClientFactory.newInstance(), freemail, freemailAccount, null);
+		//Kept next to the channel directory since it is shared by all the channels
+		this.mailsiteCache = new MailsiteCache(new File(channelDir.getParentFile(), MAILSITE_CACHE_NAME));
+		this.outboxQueue = new OutboxQueue(freemail, new OutboxQueue.Sender() {
+			@Override
+			public long send(File rcptOutbox, long msgNum) throws InterruptedException {
+				return new SenderTask(rcptOutbox, msgNum).send();
+			}
+		});
+
+		this.channels = new ChannelRegistry(channelDir, freemail, new ChannelRegistry.ChannelFactory() {
+			@Override
+			public Channel create(File dir, String remoteId) throws ChannelTimedOutException {
+				Channel channel = new Channel(dir, MessageHandler.this.freemail.getExecutor(TaskType.UNSPECIFIED),
+						MessageHandler.this.hlFcpClientFactory.newInstance(), MessageHandler.this.freemail,
+						MessageHandler.this.freemailAccount, mailsiteCache, remoteId);
 				channel.setCallback(new AckCallback(channel.getRemoteIdentity()));
-				channels.add(channel);
-			} catch(ChannelTimedOutException e) {
-				Logger.debug(this, "Deleting timed out channel");
-				if(!Channel.deleteChannel(f)) {
-					Logger.error(this, "Failed to delete channel because there are files left in " + f);
-				}
-			} catch(IllegalStateException e) {
-				//Channel is broken for some reason so get rid of it
-				Logger.error(this, "Deleting broken channel");
-				if(!Channel.deleteChannel(f)) {
-					Logger.error(this, "Failed to delete channel because "
-							+ "there are files left in "+ f);
-				}
+				return channel;
 			}
-		}
+		});
 	}
 
 	public void start() {
 		if(outbox.isDirectory()) {
 			for(File rcptOutbox : outbox.listFiles()) {
+				if(rcptOutbox.getName().equals(SPOOL_NAME)) {
+					continue;
+				}
+
 				if(!rcptOutbox.isDirectory()) {
 					Logger.error(this, "Spurious file in outbox: " + rcptOutbox);
 					continue;
 				}
 
-				for(File f : rcptOutbox.listFiles()) {
+				PropsFile props = PropsFile.createPropsFile(new File(rcptOutbox, INDEX_NAME));
+				for(String identifier : getIdentifiers(props)) {
+					File f = getMessageFile(rcptOutbox, identifier);
 					if(!f.isFile()) {
-						Logger.error(this, "Spurious file in contact outbox: " + f);
-						continue;
-					}
-
-					String identifier = f.getName();
-
-					//Skip log and index
-					if(identifier.equals(INDEX_NAME) || identifier.equals(MSG_LOG_NAME)) {
+						Logger.error(this, "Message file for " + identifier + " is missing: " + f);
 						continue;
 					}
 
 					String rawMsgNum;
-					PropsFile props = PropsFile.createPropsFile(new File(rcptOutbox, INDEX_NAME));
+					String rawLastSendTime;
 					synchronized (props) {
 						rawMsgNum = props.get(identifier + IndexKeys.MSG_NUM);
+						rawLastSendTime = props.get(identifier + IndexKeys.LAST_SEND_TIME);
 					}
 
+					long num;
 					try {
-						long num = Long.parseLong(rawMsgNum);
-						Logger.debug(this, "Scheduling SenderTask for " + num);
-						ScheduledExecutorService senderExecutor = freemail.getExecutor(TaskType.SENDER);
-						tasks.put(Long.toString(num), senderExecutor.schedule(new SenderTask(rcptOutbox, num), 0, TimeUnit.NANOSECONDS));
+						num = Long.parseLong(rawMsgNum);
 					} catch(NumberFormatException e) {
 						Logger.error(this, "Found file without valid message number: " + f);
 						continue;
 					}
+
+					long due;
+					try {
+						due = Long.parseLong(rawLastSendTime) + RESEND_TIME;
+					} catch(NumberFormatException e) {
+						//Not sent yet
+						due = 0;
+					}
+
+					Logger.debug(this, "Queueing message " + num);
+					outboxQueue.add(rcptOutbox, num, due);
 				}
 			}
 		}
 
-		//Start the channel tasks
-		synchronized(channels) {
-			for(Channel channel : channels) {
-				channel.startTasks();
-			}
-		}
+		channels.start();
 	}
 
 	public boolean sendMessage(List<Identity> recipients, Bucket message) throws IOException {
@@ -206,128 +203,129 @@ public class MessageHandler {
 			}
 		}
 
+		//The filtered message is the same for all recipients, so it is stored once and shared
+		String spoolName = spoolMessage(message, recipients.size());
+		int unusedReferences = recipients.size();
+
 		for(Identity recipient : recipients) {
 			File rcptOutbox = new File(outbox, recipient.getBase32IdentityID());
 			if(!rcptOutbox.exists()) {
 				if(!rcptOutbox.mkdir()) {
 					Logger.error(this, "Couldn't create recipient outbox directory: " + rcptOutbox);
+					for(int i = 0; i < unusedReferences; i++) {
+						spool.release(spoolName);
+					}
 					return false;
 				}
 			}
 
 			long msgNum = getMessageNumber(rcptOutbox);
 			String identifier = Long.toString(msgNum);
-			File messageFile = new File(rcptOutbox, "" + identifier);
-
-			if(!messageFile.createNewFile()) {
-				Logger.error(this, "Message file " + messageFile + " already exists");
-				return false;
-			}
-
-			OutputStream os = new FileOutputStream(messageFile);
-			PrintWriter pw = new PrintWriter(os);
-			InputStream messageStream = message.getInputStream();
-			BufferedReader reader = new BufferedReader(new InputStreamReader(messageStream));
-			MailHeaderFilter filter = new MailHeaderFilter(reader, freemailAccount);
-			try {
-				//Copy headers
-				String header = filter.readHeader();
-				while(header != null) {
-					pw.write(header + "\r\n");
-					header = filter.readHeader();
-				}
-				pw.write("\r\n");
-
-				//Then the rest of the message
-				char[] buffer = new char[1024];
-				while(true) {
-					int read = reader.read(buffer, 0, buffer.length);
-					if(read == -1) break;
-					pw.write(buffer, 0, read);
-				}
-			} finally {
-				Closer.close(pw);
-				Closer.close(reader);
-			}
 
 			PropsFile props = PropsFile.createPropsFile(new File(rcptOutbox, INDEX_NAME));
 			synchronized(props) {
 				props.put(identifier + IndexKeys.RECIPIENT, recipient.getIdentityID());
 				props.put(identifier + IndexKeys.MSG_NUM, Long.toString(msgNum));
+				props.put(identifier + IndexKeys.SPOOL, spoolName);
 			}
+			unusedReferences--;
 
-			ScheduledExecutorService senderExecutor = freemail.getExecutor(TaskType.SENDER);
-			tasks.put(identifier, senderExecutor.submit(new SenderTask(rcptOutbox, msgNum)));
+			//Without bundles there is nothing to gain from waiting
+			long due = System.currentTimeMillis();
+			if(channels.canSendBundles(recipient.getIdentityID())) {
+				due += BUNDLE_DELAY;
+			}
+			outboxQueue.add(rcptOutbox, msgNum, due);
 		}
 
 		return true;
 	}
 
-	private Channel getChannel(String remoteIdentity) {
-		synchronized(channels) {
-			for(Channel c : channels) {
-				if(remoteIdentity.equals(c.getRemoteIdentity()) && c.canSendMessages()) {
-					return c;
-				}
+	/**
+	 * Filters the headers of the message and adds the result to the spool.
+	 * @param references the number of outbox entries that will refer to the message
+	 * @return the name of the spooled message
+	 */
+	private String spoolMessage(Bucket message, int references) throws IOException {
+		File tempFile = spool.createTempFile();
+
+		boolean written = false;
+		OutputStream os = new FileOutputStream(tempFile);
+		PrintWriter pw = new PrintWriter(os);
+		InputStream messageStream = message.getInputStream();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(messageStream));
+		MailHeaderFilter filter = new MailHeaderFilter(reader, freemailAccount);
+		try {
+			//Copy headers
+			String header = filter.readHeader();
+			while(header != null) {
+				pw.write(header + "\r\n");
+				header = filter.readHeader();
+			}
+			pw.write("\r\n");
+
+			//Then the rest of the message
+			char[] buffer = new char[1024];
+			while(true) {
+				int read = reader.read(buffer, 0, buffer.length);
+				if(read == -1) break;
+				pw.write(buffer, 0, read);
 			}
 
-			//The channel didn't exist or it has timed out, so create a new one
-			File newChannelDir = new File(channelDir, "" + nextChannelNum.getAndIncrement());
-			if(!newChannelDir.mkdir()) {
-				Logger.error(this, "Couldn't create the channel directory");
-				return null;
+			pw.flush();
+			if(pw.checkError()) {
+				throw new IOException("Couldn't write message to " + tempFile);
 			}
-
-			Channel channel;
-			try {
-				channel = new Channel(newChannelDir, freemail.getExecutor(TaskType.UNSPECIFIED), hlFcpClientFactory.newInstance(), freemail, freemailAccount, remoteIdentity);
-				channel.setCallback(new AckCallback(remoteIdentity));
-			} catch(ChannelTimedOutException e) {
-				//Can't happen since we're creating a new channel
-				throw new AssertionError("Caugth ChannelTimedOutException when creating a new channel");
+			written = true;
+		} finally {
+			Closer.close(pw);
+			Closer.close(reader);
+			if(!written && !tempFile.delete()) {
+				Logger.error(this, "Couldn't delete " + tempFile);
 			}
-			channel.startTasks();
-			channels.add(channel);
+		}
+
+		return spool.add(tempFile, references);
+	}
+
+	/**
+	 * Returns the file holding the message with the given identifier, which is either the shared
+	 * spool entry or, for messages submitted by older versions, a file in the recipient outbox.
+	 */
+	private File getMessageFile(File rcptOutbox, String identifier) {
+		String spoolName;
+		PropsFile props = PropsFile.createPropsFile(new File(rcptOutbox, INDEX_NAME));
+		synchronized(props) {
+			spoolName = props.get(identifier + IndexKeys.SPOOL);
+		}
 
-			return channel;
+		if(spoolName == null) {
+			return new File(rcptOutbox, identifier);
 		}
+		return spool.get(spoolName);
 	}
 
-	public void createChannelFromRTS(PropsFile rtsProps) {
-		//First try to find a channel with the same key
-		String rtsPrivateKey = rtsProps.get("channel");
-		synchronized(channels) {
-			for(Channel c : channels) {
-				if(rtsPrivateKey.equals(c.getPrivateKey())) {
-					c.processRTS(rtsProps);
-					return;
+	/**
+	 * Returns the identifiers of all the messages listed in the given outbox index.
+	 */
+	private List<String> getIdentifiers(PropsFile props) {
+		List<String> identifiers = new LinkedList<String>();
+		synchronized(props) {
+			for(String key : props.listProps()) {
+				if(key.endsWith(IndexKeys.RECIPIENT)) {
+					identifiers.add(key.substring(0, key.length() - IndexKeys.RECIPIENT.length()));
 				}
 			}
+		}
+		return identifiers;
+	}
 
-			//Create a new channel from the RTS values
-			Logger.debug(this, "Creating new channel from RTS");
-			File newChannelDir = new File(channelDir, "" + nextChannelNum.getAndIncrement());
-			if(!newChannelDir.mkdir()) {
-				Logger.error(this, "Couldn't create the channel directory");
-				return;
-			}
-
-			String remoteIdentity = rtsProps.get("mailsite");
-			remoteIdentity = remoteIdentity.substring(remoteIdentity.indexOf("@") + 1); //Strip USK@
-			remoteIdentity = remoteIdentity.substring(0, remoteIdentity.indexOf(","));
+	public void createChannelFromRTS(PropsFile rtsProps) {
+		String remoteIdentity = rtsProps.get("mailsite");
+		remoteIdentity = remoteIdentity.substring(remoteIdentity.indexOf("@") + 1); //Strip USK@
+		remoteIdentity = remoteIdentity.substring(0, remoteIdentity.indexOf(","));
 
-			Channel channel;
-			try {
-				channel = new Channel(newChannelDir, freemail.getExecutor(TaskType.UNSPECIFIED), hlFcpClientFactory.newInstance(), freemail, freemailAccount, remoteIdentity);
-				channel.setCallback(new AckCallback(remoteIdentity));
-			} catch(ChannelTimedOutException e) {
-				//Can't happen since we're creating a new channel
-				throw new AssertionError("Caugth ChannelTimedOutException when creating a new channel");
-			}
-			channel.processRTS(rtsProps);
-			channel.startTasks();
-			channels.add(channel);
-		}
+		channels.processRTS(rtsProps, remoteIdentity);
 	}
 
 	public List<OutboxMessage> listOutboxMessages() throws IOException {
@@ -339,13 +337,16 @@ public class MessageHandler {
 		}
 
 		for(File rcptOutbox : outboxFiles) {
-			if(!rcptOutbox.isDirectory()) {
+			if(!rcptOutbox.isDirectory() || rcptOutbox.getName().equals(SPOOL_NAME)) {
 				continue;
 			}
 
 			PropsFile props = PropsFile.createPropsFile(new File(rcptOutbox, INDEX_NAME));
-			for(File message : rcptOutbox.listFiles()) {
-				String identifier = message.getName();
+			for(String identifier : getIdentifiers(props)) {
+				File message = getMessageFile(rcptOutbox, identifier);
+				if(!message.exists()) {
+					continue;
+				}
 
 				String recipient;
 				String firstSendTime;
@@ -353,7 +354,7 @@ public class MessageHandler {
 				synchronized(props) {
 					recipient = props.get(identifier + IndexKeys.RECIPIENT);
 					if(recipient == null) {
-						//Not a message
+						//Removed since the list was read
 						continue;
 					}
 
@@ -438,7 +439,11 @@ public class MessageHandler {
 		}
 	}
 
-	private class SenderTask implements Runnable {
+	/**
+	 * A single send of a message, which is started by the outbox queue when the message is
+	 * due.
+	 */
+	private class SenderTask {
 		private final long msgNum;
 		private final String identifier;
 		private final File rcptOutbox;
@@ -449,84 +454,132 @@ public class MessageHandler {
 			this.rcptOutbox = rcptOutbox;
 		}
 
-		@Override
-		public void run() {
+		/**
+		 * Sends the message and records when it was sent in the outbox index.
+		 * @return the time when the message should be sent again
+		 */
+		private long send() throws InterruptedException {
 			Logger.minor(this, "SenderTask for message " + identifier + " on account " + freemailAccount.getIdentity() + " running");
 
-			long retryIn;
-			long lastSendTime;
 			PropsFile props = PropsFile.createPropsFile(new File(rcptOutbox, INDEX_NAME));
-			try {
-				String time;
-				synchronized(props) {
-					time = props.get(identifier + IndexKeys.LAST_SEND_TIME);
-				}
-				lastSendTime = Long.parseLong(time);
-			} catch(NumberFormatException e) {
-				lastSendTime = 0;
-			}
+			Timer insertTimer = Timer.start();
+			List<Long> sent = sendMessage(props);
+			insertTimer.log(this, 1, TimeUnit.HOURS, "Total time spent sending message");
 
-			retryIn = (lastSendTime + RESEND_TIME) - System.currentTimeMillis();
-			if(retryIn <= 0) {
-				boolean inserted;
-				try {
-					Timer insertTimer = Timer.start();
-					inserted = sendMessage();
-					insertTimer.log(this, 1, TimeUnit.HOURS, "Total time spent sending message");
-				} catch (InterruptedException e) {
-					Logger.debug(this, "SenderTask interrupted, quitting");
-					return;
-				}
-				if(!inserted) {
-					//In most cases this is because the RTS hasn't been sent yet (so keys etc.
-					//haven't been generated yet), or because the insert failed
-					retryIn = 5 * 60 * 1000; //5 minutes
-				} else {
-					synchronized(props) {
-						long curTime = System.currentTimeMillis();
-						String firstSentTime = props.get(identifier + IndexKeys.FIRST_SEND_TIME);
+			long retryIn;
+			if(sent == null) {
+				//In most cases this is because the RTS hasn't been sent yet (so keys etc.
+				//haven't been generated yet), or because the insert failed
+				retryIn = 5 * 60 * 1000; //5 minutes
+			} else {
+				synchronized(props) {
+					long curTime = System.currentTimeMillis();
+					for(Long num : sent) {
+						String sentIdentifier = Long.toString(num);
+						String firstSentTime = props.get(sentIdentifier + IndexKeys.FIRST_SEND_TIME);
 						if(firstSentTime == null) {
-							props.put(identifier + IndexKeys.FIRST_SEND_TIME, "" + curTime);
+							props.put(sentIdentifier + IndexKeys.FIRST_SEND_TIME, "" + curTime);
 						}
-						props.put(identifier + IndexKeys.LAST_SEND_TIME, "" + curTime);
+						props.put(sentIdentifier + IndexKeys.LAST_SEND_TIME, "" + curTime);
 					}
+				}
 
-					retryIn = RESEND_TIME;
+				//The other messages in the bundle don't have to be sent again until
+				//the resend is due
+				long resendAt = System.currentTimeMillis() + RESEND_TIME;
+				for(Long num : sent) {
+					if(num.longValue() != msgNum) {
+						outboxQueue.add(rcptOutbox, num.longValue(), resendAt);
+					}
 				}
+
+				retryIn = RESEND_TIME;
 			}
 
-			//Schedule again when the resend is due
-			Logger.minor(this, "Rescheduling sender task in " + retryIn + "ms");
-			ScheduledExecutorService senderExecutor = freemail.getExecutor(TaskType.SENDER);
-			tasks.put(identifier, senderExecutor.schedule(this, retryIn, TimeUnit.MILLISECONDS));
+			Logger.minor(this, "Sending message " + identifier + " again in " + retryIn + "ms");
+			return System.currentTimeMillis() + retryIn;
 		}
 
-		private boolean sendMessage() throws InterruptedException {
+		/**
+		 * Sends the message, along with any other messages to the same recipient that are
+		 * due if the channel can send bundles.
+		 * @return the message numbers of the messages that were sent, or {@code null} if the
+		 *         insert failed
+		 */
+		private List<Long> sendMessage(PropsFile props) throws InterruptedException {
 			String recipient;
-			PropsFile props = PropsFile.createPropsFile(new File(rcptOutbox, INDEX_NAME));
 			synchronized(props) {
 				recipient = props.get(identifier + IndexKeys.RECIPIENT);
 			}
 
-			Channel c;
 			boolean inserted;
+			SortedMap<Long, Bucket> messages;
 			while(true) {
-				c = getChannel(recipient);
-				Bucket message = new FileBucket(new File(rcptOutbox, identifier), false, false, false, false);
+				Channel c = channels.acquireSendChannel(recipient);
+				if(c == null) {
+					return null;
+				}
+
 				try {
-					inserted = c.sendMessage(message, msgNum);
-				} catch(ChannelTimedOutException e) {
-					//Try again with a new channel
-					continue;
-				} catch(IOException e) {
-					Logger.error(this, "Caugth IOException while sending message: " + e.getMessage(), e);
-					inserted = false;
+					messages = new TreeMap<Long, Bucket>();
+					messages.put(Long.valueOf(msgNum), new FileBucket(getMessageFile(rcptOutbox, identifier), true, false, false, false));
+					if(c.canSendBundles()) {
+						addDueMessages(props, recipient, messages);
+					}
+
+					try {
+						inserted = c.sendMessages(messages);
+					} catch(ChannelTimedOutException e) {
+						//Try again with a new channel
+						continue;
+					} catch(IOException e) {
+						Logger.error(this, "Caugth IOException while sending message: " + e.getMessage(), e);
+						inserted = false;
+					}
+				} finally {
+					channels.release(c);
 				}
 
 				break;
 			}
 
-			return inserted;
+			if(!inserted) {
+				return null;
+			}
+			return new ArrayList<Long>(messages.keySet());
+		}
+
+		/**
+		 * Adds the other messages to the recipient that are due to be sent within
+		 * {@link #BUNDLE_DELAY}, as long as the total size stays below
+		 * {@link #MAX_BUNDLE_SIZE}.
+		 */
+		private void addDueMessages(PropsFile props, String recipient, SortedMap<Long, Bucket> messages) {
+			long size = getMessageFile(rcptOutbox, identifier).length();
+			long until = System.currentTimeMillis() + BUNDLE_DELAY;
+
+			SortedMap<Long, File> due = new TreeMap<Long, File>();
+			for(Long num : outboxQueue.getDue(rcptOutbox, until)) {
+				String other = num.toString();
+				synchronized(props) {
+					if(!recipient.equals(props.get(other + IndexKeys.RECIPIENT))) {
+						continue;
+					}
+				}
+
+				File file = getMessageFile(rcptOutbox, other);
+				if(file.isFile()) {
+					due.put(num, file);
+				}
+			}
+
+			for(Entry<Long, File> entry : due.entrySet()) {
+				size += entry.getValue().length();
+				if(size > MAX_BUNDLE_SIZE) {
+					break;
+				}
+				messages.put(entry.getKey(), new FileBucket(entry.getValue(), true, false, false, false));
+			}
 		}
 	}
 
@@ -537,6 +590,7 @@ public class MessageHandler {
 			props.remove(identifier + IndexKeys.LAST_SEND_TIME);
 			props.remove(identifier + IndexKeys.RECIPIENT);
 			props.remove(identifier + IndexKeys.MSG_NUM);
+			props.remove(identifier + IndexKeys.SPOOL);
 		}
 	}
 
@@ -567,9 +621,21 @@ public class MessageHandler {
 		@Override
 		public void onAckReceived(long id) {
 			File rcptOutbox = new File(outbox, remoteId);
+			String identifier = Long.toString(id);
 
-			File message = new File(rcptOutbox, "" + id);
-			if(message.exists()) {
+			//Remove the spool reference first so a duplicate ack can't release it twice
+			String spoolName;
+			PropsFile props = PropsFile.createPropsFile(new File(rcptOutbox, INDEX_NAME));
+			synchronized(props) {
+				spoolName = props.get(identifier + IndexKeys.SPOOL);
+				props.remove(identifier + IndexKeys.SPOOL);
+			}
+
+			File message = new File(rcptOutbox, identifier);
+			if(spoolName != null) {
+				Logger.minor(this, "Received ack, releasing spooled message " + spoolName);
+				spool.release(spoolName);
+			} else if(message.exists()) {
 				Logger.minor(this, "Received ack, deleting message file: " + message);
 				if(!message.delete()) {
 					Logger.error(this, "Couldn't delete " + message);
@@ -578,13 +644,8 @@ public class MessageHandler {
 				Logger.minor(this, "Received ack but message file doesn't exits: " + message);
 			}
 
-			deleteIndexEntries(rcptOutbox, Long.toString(id));
-
-			Future<?> task = tasks.remove(Long.toString(id));
-			if(task != null) {
-				//Stop the insert if possible, but don't interrupt since the FCP code ignores it
-				task.cancel(false);
-			}
+			deleteIndexEntries(rcptOutbox, identifier);
+			outboxQueue.remove(rcptOutbox, id);
 		}
 
 		@Override
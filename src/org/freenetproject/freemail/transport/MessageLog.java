@@ -26,18 +26,43 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintStream;
-import java.util.HashMap;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
-import java.util.Map;
+import java.util.List;
 import java.util.Map.Entry;
+import java.util.zip.CRC32;
 
+import org.freenetproject.freemail.utils.Logger;
+
+/**
+ * Set of message ids, each with an optional string of data, that is kept on disk. Changes
+ * are appended to the log file as checksummed records, and the file is rewritten with only
+ * the current entries once most of the records in it are outdated. Records that don't
+ * match their checksum, such as one that was cut short by a crash, are skipped.
+ *
+ * Files written by older versions, which have one "id, data" line per entry and no
+ * header, are read and then rewritten in the new format.
+ */
 class MessageLog {
 	private static final String SEPARATOR = ", ";
+	private static final String HEADER = "MessageLog 2";
+	private static final char ADD = '+';
+	private static final char REMOVE = '-';
+
+	/** The log isn't compacted until it has at least this many records */
+	private static final int MIN_COMPACT_RECORDS = 64;
 
 	private final File logfile;
 
-	private Map<Long, String> presentIds = null;
+	private LongMap<String> presentIds = null;
+
+	/** The number of records in the log file */
+	private int records = 0;
 
 	public MessageLog(File logFile) {
 		this.logfile = logFile;
@@ -48,19 +73,30 @@ class MessageLog {
 			readIds();
 		}
 
-		return presentIds.containsKey(Long.valueOf(targetid));
+		return presentIds.containsKey(targetid);
+	}
+
+	public int size() throws IOException {
+		if(presentIds == null) {
+			readIds();
+		}
+
+		return presentIds.size();
 	}
 
 	public void add(long id, String data) throws IOException {
 		if(presentIds == null) {
 			readIds();
 		}
-		if((data != null) && (data.contains("\n"))) {
+		if((data != null) && (data.contains("\n") || data.contains("\r"))) {
 			throw new IllegalArgumentException("Argument data contained newline");
 		}
 
-		presentIds.put(Long.valueOf(id), data);
-		writeIds();
+		presentIds.put(id, data);
+
+		List<String> payloads = new ArrayList<String>(1);
+		payloads.add(addRecord(id, data));
+		append(payloads);
 	}
 
 	public void remove(long id) throws IOException {
@@ -68,36 +104,132 @@ class MessageLog {
 			readIds();
 		}
 
-		presentIds.remove(Long.valueOf(id));
-		writeIds();
+		if(presentIds.remove(id)) {
+			List<String> payloads = new ArrayList<String>(1);
+			payloads.add(REMOVE + Long.toString(id));
+			append(payloads);
+		}
+	}
+
+	public void remove(Collection<Long> ids) throws IOException {
+		if(presentIds == null) {
+			readIds();
+		}
+
+		List<String> payloads = new ArrayList<String>(ids.size());
+		for(Long id : ids) {
+			if(presentIds.remove(id.longValue())) {
+				payloads.add(REMOVE + id.toString());
+			}
+		}
+		if(!payloads.isEmpty()) {
+			append(payloads);
+		}
 	}
 
+	/**
+	 * Returns an iterator over a snapshot of the entries in the log.
+	 */
 	public Iterator<Entry<Long, String>> iterator() throws IOException {
 		if(presentIds == null) {
 			readIds();
 		}
 
-		return presentIds.entrySet().iterator();
+		long[] keys = presentIds.keys();
+		List<Entry<Long, String>> entries = new ArrayList<Entry<Long, String>>(keys.length);
+		for(long key : keys) {
+			entries.add(new AbstractMap.SimpleImmutableEntry<Long, String>(Long.valueOf(key), presentIds.get(key)));
+		}
+		return entries.iterator();
 	}
 
+	/**
+	 * Returns an iterator over a snapshot of the ids in the log.
+	 */
 	public Iterator<Long> keyIterator() throws IOException {
 		if(presentIds == null) {
 			readIds();
 		}
 
-		return presentIds.keySet().iterator();
+		long[] keys = presentIds.keys();
+		List<Long> ids = new ArrayList<Long>(keys.length);
+		for(long key : keys) {
+			ids.add(Long.valueOf(key));
+		}
+		return ids.iterator();
 	}
 
 	private void readIds() throws IOException {
-		presentIds = new HashMap<Long, String>();
+		presentIds = new LongMap<String>();
+		records = 0;
 
 		if(!logfile.exists()) {
 			logfile.createNewFile();
 		}
 		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(this.logfile), "UTF-8"));
 
+		boolean rewrite;
+		try {
+			String line = br.readLine();
+			if(line == null) {
+				rewrite = false;
+			} else if(line.equals(HEADER)) {
+				rewrite = readRecords(br);
+			} else {
+				readLegacy(line, br);
+				rewrite = true;
+			}
+		} finally {
+			br.close();
+		}
+
+		if(rewrite) {
+			compact();
+		}
+	}
+
+	/**
+	 * Reads the records of the current format.
+	 * @return {@code true} if any records were skipped
+	 */
+	private boolean readRecords(BufferedReader br) throws IOException {
+		boolean skipped = false;
 		String line;
 		while((line = br.readLine()) != null) {
+			records++;
+
+			int space = line.indexOf(' ');
+			String payload = space < 0 ? null : line.substring(space + 1);
+			if(payload == null || payload.length() < 2 || !line.substring(0, space).equals(checksum(payload))) {
+				Logger.error(this, "Skipping damaged record in " + logfile);
+				skipped = true;
+				continue;
+			}
+
+			try {
+				if(payload.charAt(0) == ADD) {
+					int sepIndex = payload.indexOf(SEPARATOR);
+					if(sepIndex < 0) {
+						presentIds.put(Long.parseLong(payload.substring(1)), null);
+					} else {
+						presentIds.put(Long.parseLong(payload.substring(1, sepIndex)), payload.substring(sepIndex + SEPARATOR.length()));
+					}
+				} else if(payload.charAt(0) == REMOVE) {
+					presentIds.remove(Long.parseLong(payload.substring(1)));
+				} else {
+					Logger.error(this, "Skipping record of unknown type in " + logfile);
+					skipped = true;
+				}
+			} catch(NumberFormatException e) {
+				Logger.error(this, "Skipping record with invalid id in " + logfile);
+				skipped = true;
+			}
+		}
+		return skipped;
+	}
+
+	private void readLegacy(String line, BufferedReader br) throws IOException {
+		while(line != null) {
 			int sepIndex = line.indexOf(SEPARATOR);
 			long curid = Long.parseLong(line.substring(0, sepIndex));
 
@@ -108,26 +240,82 @@ class MessageLog {
 				data = line.substring(sepIndex + SEPARATOR.length());
 			}
 
-			presentIds.put(Long.valueOf(curid), data);
+			presentIds.put(curid, data);
+			line = br.readLine();
 		}
+	}
 
-		br.close();
+	/**
+	 * Appends the given records to the log, or rewrites it if it has grown too large.
+	 */
+	private void append(List<String> payloads) throws IOException {
+		records += payloads.size();
+		if(records >= MIN_COMPACT_RECORDS && records > 2 * presentIds.size()) {
+			compact();
+			return;
+		}
+
+		boolean newFile = !logfile.exists() || logfile.length() == 0;
+		PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(logfile, true), "UTF-8"));
+		if(newFile) {
+			pw.print(HEADER + "\n");
+		}
+		for(String payload : payloads) {
+			pw.print(record(payload));
+		}
+		pw.close();
+		if(pw.checkError()) {
+			throw new IOException("Couldn't write to " + logfile);
+		}
 	}
 
-	private void writeIds() throws IOException {
-		if(!logfile.exists()) {
-			logfile.createNewFile();
+	/**
+	 * Replaces the log with one that only has the current entries. The new log is written
+	 * to a temporary file first, so a crash leaves either the old or the new log behind.
+	 */
+	private void compact() throws IOException {
+		File tempFile = new File(logfile.getPath() + ".tmp");
+		PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"));
+		pw.print(HEADER + "\n");
+		long[] keys = presentIds.keys();
+		for(long key : keys) {
+			pw.print(record(addRecord(key, presentIds.get(key))));
+		}
+		pw.close();
+		if(pw.checkError()) {
+			tempFile.delete();
+			throw new IOException("Couldn't write " + tempFile);
 		}
-		FileOutputStream fos = new FileOutputStream(this.logfile, false);
 
-		PrintStream ps = new PrintStream(fos);
-		for(Entry<Long, String> entry : presentIds.entrySet()) {
-			String line = entry.getKey() + SEPARATOR;
-			if(entry.getValue() != null) {
-				line += entry.getValue();
+		if(!tempFile.renameTo(logfile)) {
+			//Renaming over an existing file fails on some platforms
+			logfile.delete();
+			if(!tempFile.renameTo(logfile)) {
+				throw new IOException("Couldn't rename " + tempFile + " to " + logfile);
 			}
-			ps.println(line);
 		}
-		ps.close();
+		records = keys.length;
+	}
+
+	private static String addRecord(long id, String data) {
+		if(data == null) {
+			return ADD + Long.toString(id);
+		}
+		return ADD + Long.toString(id) + SEPARATOR + data;
+	}
+
+	private static String record(String payload) {
+		return checksum(payload) + " " + payload + "\n";
+	}
+
+	private static String checksum(String payload) {
+		CRC32 crc = new CRC32();
+		try {
+			crc.update(payload.getBytes("UTF-8"));
+		} catch(UnsupportedEncodingException e) {
+			//JVMs are required to support UTF-8, so we can assume it is always available
+			throw new AssertionError("JVM doesn't support UTF-8 charset");
+		}
+		return String.format("%08x", Long.valueOf(crc.getValue()));
 	}
 }
@@ -0,0 +1,161 @@
+/*
+ * MessageSpool.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.transport;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+import org.archive.util.Base32;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.freenetproject.freemail.utils.Logger;
+import org.freenetproject.freemail.utils.PropsFile;
+
+import freenet.support.io.Closer;
+
+/**
+ * Content addressed store for outgoing messages. Each message is stored once,
+ * named by the hash of its content, and is shared by every recipient outbox
+ * entry that refers to it. The number of references to each message is kept in
+ * the index file, and the message is deleted when the last reference is
+ * released.
+ */
+class MessageSpool {
+	private static final String INDEX_NAME = "index";
+	private static final String TEMP_PREFIX = "tmp";
+
+	private final File dir;
+	private final PropsFile index;
+
+	MessageSpool(File dir) {
+		this.dir = dir;
+		this.index = PropsFile.createPropsFile(new File(dir, INDEX_NAME));
+	}
+
+	/**
+	 * Creates a new temporary file in the spool directory. Once the message has
+	 * been written the file should be passed to {@link #add(File, int)}.
+	 */
+	File createTempFile() throws IOException {
+		if(!dir.exists() && !dir.mkdir()) {
+			throw new IOException("Couldn't create spool directory: " + dir);
+		}
+		return File.createTempFile(TEMP_PREFIX, null, dir);
+	}
+
+	/**
+	 * Moves a message written to a file returned by {@link #createTempFile()}
+	 * into the spool. If an identical message is already spooled the file is
+	 * deleted and the existing copy is used instead.
+	 * @param tempFile the file holding the message
+	 * @param references the number of references the caller holds to the message
+	 * @return the name of the spooled message
+	 */
+	String add(File tempFile, int references) throws IOException {
+		String name = hash(tempFile);
+
+		synchronized(index) {
+			File entry = new File(dir, name);
+			long count = getReferenceCount(name);
+			if(count > 0 && entry.exists()) {
+				if(!tempFile.delete()) {
+					Logger.error(this, "Couldn't delete " + tempFile);
+				}
+			} else {
+				//New message, or an unreferenced or missing copy that is replaced
+				if(entry.exists() && !entry.delete()) {
+					throw new IOException("Couldn't replace unreferenced spool entry " + entry);
+				}
+				if(!tempFile.renameTo(entry)) {
+					throw new IOException("Couldn't move " + tempFile + " to " + entry);
+				}
+			}
+
+			index.put(name, count + references);
+		}
+
+		return name;
+	}
+
+	/**
+	 * Returns the file holding the spooled message with the given name.
+	 */
+	File get(String name) {
+		return new File(dir, name);
+	}
+
+	/**
+	 * Releases one reference to the given message, deleting the message if
+	 * there are no references left.
+	 */
+	void release(String name) {
+		synchronized(index) {
+			long count = getReferenceCount(name) - 1;
+			if(count > 0) {
+				index.put(name, count);
+				return;
+			}
+
+			File entry = new File(dir, name);
+			Logger.minor(this, "Last reference released, deleting spooled message " + entry);
+			if(entry.exists() && !entry.delete()) {
+				Logger.error(this, "Couldn't delete " + entry);
+			}
+			index.remove(name);
+		}
+	}
+
+	int getReferenceCount(String name) {
+		String rawCount;
+		synchronized(index) {
+			rawCount = index.get(name);
+		}
+		if(rawCount == null) {
+			return 0;
+		}
+
+		try {
+			return Integer.parseInt(rawCount);
+		} catch(NumberFormatException e) {
+			Logger.error(this, "Invalid reference count for " + name + ": " + rawCount);
+			return 0;
+		}
+	}
+
+	private static String hash(File file) throws IOException {
+		SHA256Digest sha256 = new SHA256Digest();
+		InputStream is = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[4096];
+			int read;
+			while((read = is.read(buffer)) != -1) {
+				sha256.update(buffer, 0, read);
+			}
+		} finally {
+			Closer.close(is);
+		}
+
+		byte[] digest = new byte[sha256.getDigestSize()];
+		sha256.doFinal(digest, 0);
+		return Base32.encode(digest).toLowerCase(Locale.ROOT);
+	}
+}
@@ -0,0 +1,371 @@
+/*
+ * OutboxQueue.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package org.freenetproject.freemail.transport;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.freenetproject.freemail.Freemail;
+import org.freenetproject.freemail.Freemail.TaskType;
+import org.freenetproject.freemail.utils.Logger;
+
+/**
+ * Decides when the messages in the outbox are sent. All the messages are kept in one queue
+ * ordered by when they should be sent next, and a single dispatcher task is scheduled for
+ * when the first of them is due. The dispatcher hands the due messages to the sender
+ * executor, but never has more than {@link #MAX_SENDING} sends running in total or more
+ * than {@link #MAX_SENDING_PER_RECIPIENT} to the same recipient. Messages that have to
+ * wait for a free slot are dispatched as soon as a send finishes.
+ *
+ * The queue itself is only kept in memory. The times it is built from are stored in the
+ * outbox index of each recipient, which is written when a message is sent.
+ */
+class OutboxQueue {
+	/** The largest number of messages that are sent at the same time */
+	static final int MAX_SENDING = 5;
+
+	/**
+	 * The largest number of messages to the same recipient that are sent at the same time.
+	 * A send takes the other due messages of the recipient into its bundle, so this must stay
+	 * at 1 or two sends could insert the same message.
+	 */
+	static final int MAX_SENDING_PER_RECIPIENT = 1;
+
+	/** The amount of time to wait before retrying a send that failed unexpectedly */
+	private static final long FAILURE_RETRY_DELAY = 5 * 60 * 1000;
+
+	/**
+	 * Sends the messages of the queue.
+	 */
+	interface Sender {
+		/**
+		 * Sends the given message.
+		 * @return the time when the message should be sent again
+		 * @throws InterruptedException if the thread was interrupted, which drops the message
+		 *             from the queue until Freemail is restarted
+		 */
+		long send(File rcptOutbox, long msgNum) throws InterruptedException;
+	}
+
+	private final Freemail freemail;
+	private final Sender sender;
+
+	/* All guarded by this */
+	/** The messages that aren't being sent, ordered by when they are due */
+	private final TreeSet<QueuedMessage> queue = new TreeSet<QueuedMessage>();
+	/** All the messages in the queue, including those being sent, by recipient outbox */
+	private final Map<File, Map<Long, QueuedMessage>> messages = new HashMap<File, Map<Long, QueuedMessage>>();
+	/** The number of messages that are being sent to each recipient outbox */
+	private final Map<File, Integer> sendingTo = new HashMap<File, Integer>();
+	private int sending = 0;
+	private long nextSeq = 0;
+	private ScheduledFuture<?> nextDispatch = null;
+	private long nextDispatchAt = Long.MAX_VALUE;
+
+	OutboxQueue(Freemail freemail, Sender sender) {
+		this.freemail = freemail;
+		this.sender = sender;
+	}
+
+	/**
+	 * Queues the message to be sent at the given time. If the message is queued already it
+	 * is moved to the new time, or if it is being sent, the new time is used unless the
+	 * send asks for an earlier one.
+	 */
+	synchronized void add(File rcptOutbox, long msgNum, long due) {
+		Map<Long, QueuedMessage> rcptMessages = messages.get(rcptOutbox);
+		if(rcptMessages == null) {
+			rcptMessages = new HashMap<Long, QueuedMessage>();
+			messages.put(rcptOutbox, rcptMessages);
+		}
+
+		QueuedMessage msg = rcptMessages.get(Long.valueOf(msgNum));
+		if(msg == null) {
+			msg = new QueuedMessage(rcptOutbox, msgNum);
+			rcptMessages.put(Long.valueOf(msgNum), msg);
+		} else if(msg.sending) {
+			msg.due = due;
+			return;
+		} else {
+			queue.remove(msg);
+		}
+
+		msg.due = due;
+		queue.add(msg);
+
+		//Only this message can have become the first one to send
+		if(sending < MAX_SENDING && getSendingTo(rcptOutbox) < MAX_SENDING_PER_RECIPIENT) {
+			scheduleDispatch(due);
+		}
+	}
+
+	/**
+	 * Removes the message from the queue. If it is being sent right now the send isn't
+	 * stopped, but the message isn't queued again afterwards.
+	 */
+	synchronized void remove(File rcptOutbox, long msgNum) {
+		Map<Long, QueuedMessage> rcptMessages = messages.get(rcptOutbox);
+		if(rcptMessages == null) {
+			return;
+		}
+
+		QueuedMessage msg = rcptMessages.remove(Long.valueOf(msgNum));
+		if(msg == null) {
+			return;
+		}
+		if(rcptMessages.isEmpty()) {
+			messages.remove(rcptOutbox);
+		}
+
+		msg.removed = true;
+		if(!msg.sending) {
+			queue.remove(msg);
+		}
+	}
+
+	/**
+	 * Returns the numbers of the messages to the given recipient that are due at the given
+	 * time and aren't being sent.
+	 */
+	synchronized List<Long> getDue(File rcptOutbox, long time) {
+		List<Long> due = new ArrayList<Long>();
+		Map<Long, QueuedMessage> rcptMessages = messages.get(rcptOutbox);
+		if(rcptMessages == null) {
+			return due;
+		}
+
+		for(QueuedMessage msg : rcptMessages.values()) {
+			if(!msg.sending && msg.due <= time) {
+				due.add(Long.valueOf(msg.msgNum));
+			}
+		}
+		return due;
+	}
+
+	/**
+	 * Returns the number of messages in the queue, including those being sent.
+	 */
+	synchronized int size() {
+		int size = 0;
+		for(Map<Long, QueuedMessage> rcptMessages : messages.values()) {
+			size += rcptMessages.size();
+		}
+		return size;
+	}
+
+	/**
+	 * Starts sending the messages that are due. The time the dispatcher was scheduled for
+	 * counts as now if it is later, since the executor can run it a little before the clock
+	 * gets there.
+	 */
+	private synchronized void dispatch(long scheduledFor) {
+		long until = System.currentTimeMillis();
+		if(scheduledFor == nextDispatchAt) {
+			//Not a dispatcher that was replaced by an earlier one after it started
+			until = Math.max(until, scheduledFor);
+		}
+		nextDispatch = null;
+		nextDispatchAt = Long.MAX_VALUE;
+
+		Iterator<QueuedMessage> it = queue.iterator();
+		while(it.hasNext() && sending < MAX_SENDING) {
+			QueuedMessage msg = it.next();
+			if(msg.due > until) {
+				break;
+			}
+			if(getSendingTo(msg.rcptOutbox) >= MAX_SENDING_PER_RECIPIENT) {
+				//Dispatched when the current send to the recipient is done
+				continue;
+			}
+
+			try {
+				freemail.getExecutor(TaskType.SENDER).execute(msg);
+			} catch(RejectedExecutionException e) {
+				Logger.debug(this, "Caugth RejectedExecutionException while starting send");
+				return;
+			}
+
+			it.remove();
+			msg.sending = true;
+			//Only set again if the message is rescheduled while it is sent
+			msg.due = Long.MAX_VALUE;
+			sending++;
+			sendingTo.put(msg.rcptOutbox, Integer.valueOf(getSendingTo(msg.rcptOutbox) + 1));
+		}
+		reschedule();
+	}
+
+	private synchronized void finished(QueuedMessage msg, long due) {
+		msg.sending = false;
+		sending--;
+		int remaining = getSendingTo(msg.rcptOutbox) - 1;
+		if(remaining == 0) {
+			sendingTo.remove(msg.rcptOutbox);
+		} else {
+			sendingTo.put(msg.rcptOutbox, Integer.valueOf(remaining));
+		}
+
+		if(!msg.removed) {
+			//The message might have been rescheduled to an earlier time while it was sent
+			msg.due = Math.min(msg.due, due);
+			queue.add(msg);
+		}
+
+		//Messages that were waiting for this send might be due already
+		reschedule();
+	}
+
+	private void dropped(QueuedMessage msg) {
+		synchronized(this) {
+			if(!msg.removed) {
+				remove(msg.rcptOutbox, msg.msgNum);
+			}
+		}
+		finished(msg, Long.MAX_VALUE);
+	}
+
+	private int getSendingTo(File rcptOutbox) {
+		assert (Thread.holdsLock(this));
+		Integer count = sendingTo.get(rcptOutbox);
+		return count == null ? 0 : count.intValue();
+	}
+
+	/**
+	 * Makes sure the dispatcher runs when the first message that can be sent is due.
+	 * Messages to recipients that have as many sends running as allowed are skipped, since
+	 * the dispatcher is rescheduled when one of those sends finishes.
+	 */
+	private void reschedule() {
+		assert (Thread.holdsLock(this));
+		if(sending >= MAX_SENDING) {
+			return;
+		}
+
+		long at = Long.MAX_VALUE;
+		for(QueuedMessage msg : queue) {
+			if(getSendingTo(msg.rcptOutbox) < MAX_SENDING_PER_RECIPIENT) {
+				at = msg.due;
+				break;
+			}
+		}
+		if(at != Long.MAX_VALUE) {
+			scheduleDispatch(at);
+		}
+	}
+
+	private void scheduleDispatch(long at) {
+		assert (Thread.holdsLock(this));
+		if(nextDispatch != null) {
+			if(nextDispatchAt <= at) {
+				return;
+			}
+			nextDispatch.cancel(false);
+		}
+
+		try {
+			ScheduledExecutorService senderExecutor = freemail.getExecutor(TaskType.SENDER);
+			long delay = Math.max(0, at - System.currentTimeMillis());
+			nextDispatch = senderExecutor.schedule(new Dispatcher(at), delay, TimeUnit.MILLISECONDS);
+			nextDispatchAt = at;
+		} catch(RejectedExecutionException e) {
+			Logger.debug(this, "Caugth RejectedExecutionException while scheduling dispatcher");
+		}
+	}
+
+	private class Dispatcher implements Runnable {
+		private final long scheduledFor;
+
+		private Dispatcher(long scheduledFor) {
+			this.scheduledFor = scheduledFor;
+		}
+
+		@Override
+		public void run() {
+			dispatch(scheduledFor);
+		}
+
+		@Override
+		public String toString() {
+			return "OutboxQueue dispatcher";
+		}
+	}
+
+	private class QueuedMessage implements Runnable, Comparable<QueuedMessage> {
+		private final File rcptOutbox;
+		private final long msgNum;
+
+		/** Breaks ties between messages that are due at the same time */
+		private final long seq;
+
+		/* All guarded by the queue */
+		/** When the message should be sent, which is {@code Long.MAX_VALUE} while it is sent */
+		private long due;
+		private boolean sending = false;
+		private boolean removed = false;
+
+		private QueuedMessage(File rcptOutbox, long msgNum) {
+			this.rcptOutbox = rcptOutbox;
+			this.msgNum = msgNum;
+			this.seq = nextSeq++;
+		}
+
+		@Override
+		public void run() {
+			long next;
+			try {
+				next = sender.send(rcptOutbox, msgNum);
+			} catch(InterruptedException e) {
+				Logger.debug(this, "Send interrupted, dropping message from queue");
+				dropped(this);
+				return;
+			} catch(RuntimeException e) {
+				Logger.error(this, "Caugth RuntimeException while sending message", e);
+				next = System.currentTimeMillis() + FAILURE_RETRY_DELAY;
+			}
+			finished(this, next);
+		}
+
+		@Override
+		public int compareTo(QueuedMessage o) {
+			if(due != o.due) {
+				return due < o.due ? -1 : 1;
+			}
+			if(seq != o.seq) {
+				return seq < o.seq ? -1 : 1;
+			}
+			return 0;
+		}
+
+		@Override
+		public String toString() {
+			return "Message " + msgNum + " to " + rcptOutbox.getName();
+		}
+	}
+}
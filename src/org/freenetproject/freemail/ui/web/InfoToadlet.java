@@ -20,10 +20,14 @@
 package org.freenetproject.freemail.ui.web;
 
 import java.net.URI;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 
 import org.freenetproject.freemail.AccountManager;
+import org.freenetproject.freemail.AdmissionControl;
 import org.freenetproject.freemail.FreemailAccount;
 import org.freenetproject.freemail.config.Configurator;
+import org.freenetproject.freemail.fcp.FCPConnectionPool;
 import org.freenetproject.freemail.l10n.FreemailL10n;
 import org.freenetproject.freemail.utils.EmailAddress;
 
@@ -39,12 +43,16 @@ class InfoToadlet extends WebPage {
 
 	private final AccountManager accountManager;
 	private final Configurator config;
+	private final AdmissionControl admissionControl;
+	private final FCPConnectionPool fcpConnectionPool;
 
 	InfoToadlet(PluginRespirator pluginRespirator, LoginManager loginManager, AccountManager accountManager,
-			Configurator config) {
+			Configurator config, AdmissionControl admissionControl, FCPConnectionPool fcpConnectionPool) {
 		super(pluginRespirator, loginManager);
 		this.accountManager = accountManager;
 		this.config = config;
+		this.admissionControl = admissionControl;
+		this.fcpConnectionPool = fcpConnectionPool;
 	}
 
 	private void addInfoLine(HTMLNode parent, String title, String content, String className) {
@@ -79,6 +87,28 @@ class InfoToadlet extends WebPage {
 				config.get(Configurator.SMTP_BIND_PORT), "smtpPort");
 	}
 
+	private void addAdmissionInfo(HTMLNode parent) {
+		HTMLNode admissionBox = addInfobox(parent, FreemailL10n.getString("Freemail.InfoToadlet.admission.title"));
+		for(AdmissionControl.Kind kind : AdmissionControl.Kind.values()) {
+			String name = kind.name().toLowerCase(Locale.ROOT).replace('_', '-');
+			addInfoLine(admissionBox, FreemailL10n.getString("Freemail.InfoToadlet.admission." + name + ".queued"),
+					Integer.toString(admissionControl.getQueueDepth(kind)), name + "Queued");
+			addInfoLine(admissionBox, FreemailL10n.getString("Freemail.InfoToadlet.admission." + name + ".rejected"),
+					Long.toString(admissionControl.getRejectedCount(kind)), name + "Rejected");
+		}
+	}
+
+	private void addNodeConnectionInfo(HTMLNode parent) {
+		HTMLNode nodeBox = addInfobox(parent, FreemailL10n.getString("Freemail.InfoToadlet.node.title"));
+		addInfoLine(nodeBox, FreemailL10n.getString("Freemail.InfoToadlet.node.waiting"),
+				Integer.toString(fcpConnectionPool.getWaitingRequests()), "nodeWaiting");
+		addInfoLine(nodeBox, FreemailL10n.getString("Freemail.InfoToadlet.node.waits"),
+				Long.toString(fcpConnectionPool.getConnectivityWaits()), "nodeWaits");
+		addInfoLine(nodeBox, FreemailL10n.getString("Freemail.InfoToadlet.node.wait-time"),
+				Long.toString(TimeUnit.MILLISECONDS.toSeconds(fcpConnectionPool.getConnectivityWaitTime())),
+				"nodeWaitTime");
+	}
+
 	@Override
 	HTTPResponse makeWebPageGet(URI uri, HTTPRequest req, ToadletContext ctx, PageNode page) {
 		//Add account info if one is logged in
@@ -91,6 +121,10 @@ class InfoToadlet extends WebPage {
 
 		//Add general Freemail server info
 		addServerInfo(page.content);
+		addAdmissionInfo(page.content);
+		if(fcpConnectionPool != null) {
+			addNodeConnectionInfo(page.content);
+		}
 
 		return new GenericHTMLResponse(ctx, 200, "OK", page.outer.generate());
 	}
@@ -23,6 +23,7 @@ package org.freenetproject.freemail.ui.web;
 import java.util.HashSet;
 import java.util.Set;
 
+import org.freenetproject.freemail.Freemail;
 import org.freenetproject.freemail.FreemailPlugin;
 import org.freenetproject.freemail.config.Configurator;
 import org.freenetproject.freemail.utils.Logger;
@@ -68,7 +69,8 @@ public class WebInterface {
 		InboxToadlet inboxToadlet = new InboxToadlet(freemail.getAccountManager(), pluginRespirator, loginManager);
 		OutboxToadlet outboxToadlet = new OutboxToadlet(pluginRespirator, freemail.getAccountManager(), freemail, loginManager);
 		NewMessageToadlet newMessageToadlet = new NewMessageToadlet(freemail.getWotConnection(), freemail, pluginRespirator, loginManager);
-		InfoToadlet infoToadlet = new InfoToadlet(pluginRespirator, loginManager, freemail.getAccountManager(), config);
+		InfoToadlet infoToadlet = new InfoToadlet(pluginRespirator, loginManager, freemail.getAccountManager(), config,
+				freemail.getAdmissionControl(), Freemail.getFCPConnectionPool());
 		registerToadlet(loginToadlet, FREEMAIL_CATEGORY_NAME, true, "Freemail.LoginToadlet.name", "Freemail.LoginToadlet.title", false);
 		registerToadlet(logoutToadlet, FREEMAIL_CATEGORY_NAME, true, "Freemail.LogoutToadlet.name", "Freemail.LogoutToadlet.title", false);
 		registerToadlet(inboxToadlet, FREEMAIL_CATEGORY_NAME, true, "Freemail.InboxToadlet.name", "Freemail.InboxToadlet.title", false);
@@ -24,10 +24,13 @@ package org.freenetproject.freemail.utils;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
@@ -68,6 +71,28 @@ public class PropsFile {
 		return createPropsFile(f, false);
 	}
 
+	/**
+	 * Reads the properties from a stream instead of a file. The returned PropsFile isn't
+	 * cached and can't be modified. As for files, passing true into stopAtBlank leaves the
+	 * rest of the stream to be read using {@link #getReader()}, otherwise the stream is
+	 * closed once the properties have been read.
+	 */
+	public static PropsFile createPropsFile(InputStream is, boolean stopAtBlank) throws IOException {
+		PropsFile pf = new PropsFile(null, false);
+		BufferedReader br = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+		pf.bufrdr = pf.read(br, stopAtBlank);
+		return pf;
+	}
+
+	/**
+	 * Drops the cached PropsFile of the given file, so that the next call to
+	 * {@link #createPropsFile(File)} reads it again. Changes that haven't been flushed are
+	 * lost, and the dropped PropsFile must not be used afterwards.
+	 */
+	public static synchronized void uncache(File f) {
+		propsList.remove(f.getPath());
+	}
+
 	public static void reapOld() {
 		Logger.debug(PropsFile.class, "Cleaning up stale PropsFiles");
 
@@ -88,6 +113,8 @@ public class PropsFile {
 	private BufferedReader bufrdr;
 	private String commentPrefix;
 	private String header;
+	private boolean writeBehind = false;
+	private boolean dirty = false;
 
 	/** Pass true into stopAtBlank to cause the reader to stop upon encountering
 	 * a blank line. It's the the caller's responsibility to get
@@ -97,7 +124,7 @@ public class PropsFile {
 		this.file = f;
 		this.data = null;
 
-		if(f.exists()) {
+		if(f != null && f.exists()) {
 			try {
 				this.bufrdr = this.read(stopAtBlank);
 			} catch (IOException ioe) {
@@ -115,10 +142,40 @@ public class PropsFile {
 		this.header = hdr;
 	}
 
-	private synchronized BufferedReader read(boolean stopAtBlank) throws IOException {
-		this.data = new HashMap<String, String>();
+	/**
+	 * With write-behind enabled {@link #put(String, String)} and {@link #remove(String)}
+	 * only change the properties in memory, and the changes are written to disk by the
+	 * next call to {@link #flush()}. Disabling write-behind flushes pending changes.
+	 */
+	public synchronized void setWriteBehind(boolean writeBehind) {
+		this.writeBehind = writeBehind;
+		if(!writeBehind) {
+			flush();
+		}
+	}
+
+	/**
+	 * Writes any changes that haven't been written yet.
+	 * @return {@code true} if the file is up to date
+	 */
+	public synchronized boolean flush() {
+		if(!dirty) return true;
+
+		try {
+			this.write();
+		} catch (IOException ioe) {
+			Logger.error(this, "Couldn't write " + file + ": " + ioe.getMessage());
+			return false;
+		}
+		return true;
+	}
+
+	private BufferedReader read(boolean stopAtBlank) throws IOException {
+		return read(new BufferedReader(new InputStreamReader(new FileInputStream(this.file), "UTF-8")), stopAtBlank);
+	}
 
-		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(this.file), "UTF-8"));
+	private synchronized BufferedReader read(BufferedReader br, boolean stopAtBlank) throws IOException {
+		this.data = new HashMap<String, String>();
 
 		String line = null;
 		while((line = br.readLine()) != null) {
@@ -150,6 +207,10 @@ public class PropsFile {
 	}
 
 	private synchronized void write() throws IOException {
+		if(file == null) {
+			throw new IOException("Properties read from a stream can't be written");
+		}
+
 		File parentDir = file.getParentFile();
 		if(parentDir != null && !parentDir.exists()) {
 			if(!parentDir.mkdirs()) {
@@ -158,7 +219,9 @@ public class PropsFile {
 			}
 		}
 
-		PrintWriter pw = new PrintWriter(new FileOutputStream(this.file));
+		//Write to a temporary file first so a crash can't leave a half written file behind
+		File tempFile = new File(file.getPath() + ".tmp");
+		PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"));
 
 		if(this.header != null) pw.println(this.header);
 
@@ -172,6 +235,19 @@ public class PropsFile {
 		}
 
 		pw.close();
+		if(pw.checkError()) {
+			tempFile.delete();
+			throw new IOException("Couldn't write " + tempFile);
+		}
+
+		if(!tempFile.renameTo(file)) {
+			//Renaming over an existing file fails on some platforms
+			file.delete();
+			if(!tempFile.renameTo(file)) {
+				throw new IOException("Couldn't rename " + tempFile + " to " + file);
+			}
+		}
+		dirty = false;
 	}
 
 	public String get(String key) {
@@ -180,13 +256,16 @@ public class PropsFile {
 		return this.data.get(key);
 	}
 
-	public boolean put(String key, String val) {
+	public synchronized boolean put(String key, String val) {
 		if(this.data == null) {
 			this.data = new HashMap<String, String>();
 		}
 
 		Object o = this.data.put(key, val);
 		if(o == null || !o.equals(val)) {
+			dirty = true;
+			if(writeBehind) return true;
+
 			try {
 				this.write();
 			} catch (IOException ioe) {
@@ -202,16 +281,21 @@ public class PropsFile {
 	}
 
 	public boolean exists() {
-		return this.file.exists();
+		return this.file != null && this.file.exists();
 	}
 
 	public Set<String> listProps() {
+		if(this.data == null) return Collections.emptySet();
+
 		return this.data.keySet();
 	}
 
-	public boolean remove(String key) {
-		if(this.data.containsKey(key)) {
+	public synchronized boolean remove(String key) {
+		if(this.data != null && this.data.containsKey(key)) {
 			this.data.remove(key);
+			dirty = true;
+			if(writeBehind) return true;
+
 			try {
 				this.write();
 			} catch (IOException ioe) {
@@ -224,6 +308,6 @@ public class PropsFile {
 
 	@Override
 	public String toString() {
-		return file.getPath();
+		return file == null ? "(stream)" : file.getPath();
 	}
 }
@@ -0,0 +1,69 @@
+/*
+ * AsyncWoTConnection.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.wot;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+import freenet.pluginmanager.PluginNotFoundException;
+
+/**
+ * Variant of {@link WoTConnection} where the requests are sent without waiting
+ * for the reply. Each method sends the request and returns a Future that
+ * completes with the same value the corresponding {@link WoTConnection} method
+ * would have returned. Any number of requests can be in flight at once.
+ */
+public interface AsyncWoTConnection extends WoTConnection {
+	/**
+	 * @see WoTConnection#getAllOwnIdentities()
+	 */
+	public Future<List<OwnIdentity>> getAllOwnIdentitiesAsync() throws PluginNotFoundException;
+
+	/**
+	 * @see WoTConnection#getAllTrustedIdentities(String)
+	 */
+	public Future<Set<Identity>> getAllTrustedIdentitiesAsync(String trusterId) throws PluginNotFoundException;
+
+	/**
+	 * @see WoTConnection#getAllUntrustedIdentities(String)
+	 */
+	public Future<Set<Identity>> getAllUntrustedIdentitiesAsync(String trusterId) throws PluginNotFoundException;
+
+	/**
+	 * @see WoTConnection#getIdentity(String, String)
+	 */
+	public Future<Identity> getIdentityAsync(String identity, String truster) throws PluginNotFoundException;
+
+	/**
+	 * @see WoTConnection#setProperty(String, String, String)
+	 */
+	public Future<Boolean> setPropertyAsync(String identity, String key, String value) throws PluginNotFoundException;
+
+	/**
+	 * @see WoTConnection#getProperty(String, String)
+	 */
+	public Future<String> getPropertyAsync(String identity, String key) throws PluginNotFoundException;
+
+	/**
+	 * @see WoTConnection#setContext(String, String)
+	 */
+	public Future<Boolean> setContextAsync(String identity, String context) throws PluginNotFoundException;
+}
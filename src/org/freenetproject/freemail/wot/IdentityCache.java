@@ -0,0 +1,215 @@
+/*
+ * IdentityCache.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.wot;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.freenetproject.freemail.utils.Logger;
+
+import freenet.pluginmanager.PluginNotFoundException;
+
+/**
+ * Caches the identities known to WoT for each own identity, indexed for fast
+ * recipient matching. Snapshots that are older than the time to live are still
+ * returned while a new snapshot is loaded in the background, so only the first
+ * lookup for an own identity has to wait for WoT.
+ */
+public class IdentityCache {
+	public static final long DEFAULT_TTL = TimeUnit.MINUTES.toMillis(10);
+
+	/** The minimum age of a snapshot before {@link #reload} fetches a new one */
+	private static final long MIN_RELOAD_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+
+	private final Executor refreshExecutor;
+	private final long ttl;
+	private final Map<String, Snapshot> snapshots = new HashMap<String, Snapshot>();
+	private final Set<String> refreshing = new HashSet<String>();
+
+	/**
+	 * @param refreshExecutor the executor used to load new snapshots in the
+	 *        background, or {@code null} to load them when they are requested
+	 * @param ttl the time in milliseconds before a snapshot is refreshed
+	 */
+	public IdentityCache(Executor refreshExecutor, long ttl) {
+		this.refreshExecutor = refreshExecutor;
+		this.ttl = ttl;
+	}
+
+	/**
+	 * Returns a snapshot of the trusted, untrusted and own identities as seen by
+	 * the given own identity.
+	 * @return the snapshot, or {@code null} if WoT returned an error
+	 */
+	public Snapshot getSnapshot(final WoTConnection wotConnection, final String wotOwnIdentity)
+			throws PluginNotFoundException {
+		Snapshot snapshot;
+		synchronized(snapshots) {
+			snapshot = snapshots.get(wotOwnIdentity);
+			if(snapshot != null && snapshot.getAge() <= ttl) {
+				return snapshot;
+			}
+
+			if(snapshot != null && refreshExecutor != null) {
+				if(refreshing.add(wotOwnIdentity)) {
+					refreshExecutor.execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								load(wotConnection, wotOwnIdentity);
+							} catch(PluginNotFoundException e) {
+								Logger.minor(this, "WoT not loaded, keeping old identity snapshot");
+							} finally {
+								synchronized(snapshots) {
+									refreshing.remove(wotOwnIdentity);
+								}
+							}
+						}
+					});
+				}
+				return snapshot;
+			}
+		}
+
+		return load(wotConnection, wotOwnIdentity);
+	}
+
+	/**
+	 * Loads a new snapshot unless the current one was loaded very recently. This
+	 * is used when a lookup fails, since the identity might have been added to
+	 * WoT after the snapshot was loaded.
+	 * @return the new snapshot, or {@code null} if the current snapshot is recent
+	 *         or WoT returned an error
+	 */
+	public Snapshot reload(WoTConnection wotConnection, String wotOwnIdentity) throws PluginNotFoundException {
+		synchronized(snapshots) {
+			Snapshot snapshot = snapshots.get(wotOwnIdentity);
+			if(snapshot != null && snapshot.getAge() < MIN_RELOAD_INTERVAL) {
+				return null;
+			}
+		}
+
+		return load(wotConnection, wotOwnIdentity);
+	}
+
+	private Snapshot load(WoTConnection wotConnection, String wotOwnIdentity) throws PluginNotFoundException {
+		Set<Identity> trustedIds = wotConnection.getAllTrustedIdentities(wotOwnIdentity);
+		Set<Identity> untrustedIds = wotConnection.getAllUntrustedIdentities(wotOwnIdentity);
+		List<OwnIdentity> ownIds = wotConnection.getAllOwnIdentities();
+
+		if(trustedIds == null || untrustedIds == null || ownIds == null) {
+			return null;
+		}
+
+		Set<Identity> wotIdentities = new HashSet<Identity>();
+		wotIdentities.addAll(trustedIds);
+		wotIdentities.addAll(untrustedIds);
+		wotIdentities.addAll(ownIds);
+
+		Snapshot snapshot = new Snapshot(wotIdentities);
+		Logger.debug(this, "Loaded " + wotIdentities.size() + " identities for " + wotOwnIdentity);
+		synchronized(snapshots) {
+			snapshots.put(wotOwnIdentity, snapshot);
+		}
+		return snapshot;
+	}
+
+	/**
+	 * An immutable set of identities, indexed by identity id and by the address
+	 * of each identity.
+	 */
+	public static class Snapshot {
+		private final long created = System.currentTimeMillis();
+
+		private final Map<String, Identity> base64Ids = new HashMap<String, Identity>();
+		private final Map<String, Identity> base32Ids = new HashMap<String, Identity>();
+
+		/* Sorted by address so identities with a given prefix are stored together */
+		private final NavigableMap<String, Identity> base64Addresses = new TreeMap<String, Identity>();
+		private final NavigableMap<String, Identity> base32Addresses = new TreeMap<String, Identity>();
+
+		Snapshot(Set<Identity> identities) {
+			for(Identity identity : identities) {
+				String base32Id = identity.getBase32IdentityID();
+				base64Ids.put(identity.getIdentityID(), identity);
+				base32Ids.put(base32Id, identity);
+				base64Addresses.put(identity.getNickname() + "@" + identity.getIdentityID() + ".freemail", identity);
+				base32Addresses.put(identity.getNickname() + "@" + base32Id + ".freemail", identity);
+			}
+		}
+
+		long getAge() {
+			return System.currentTimeMillis() - created;
+		}
+
+		public int size() {
+			return base64Ids.size();
+		}
+
+		/**
+		 * Returns the identity with the given base64 encoded id, or {@code null}
+		 * if there is no such identity.
+		 */
+		public Identity getByBase64Id(String identityId) {
+			return base64Ids.get(identityId);
+		}
+
+		/**
+		 * Returns the identity with the given base32 encoded id, or {@code null}
+		 * if there is no such identity.
+		 */
+		public Identity getByBase32Id(String identityId) {
+			return base32Ids.get(identityId);
+		}
+
+		/**
+		 * Adds all identities whose base64 address (nickname@id.freemail) starts
+		 * with the given prefix to {@code result}.
+		 */
+		public void findByBase64Prefix(String prefix, Set<Identity> result) {
+			findByPrefix(base64Addresses, prefix, result);
+		}
+
+		/**
+		 * Adds all identities whose base32 address (nickname@id.freemail) starts
+		 * with the given prefix to {@code result}.
+		 */
+		public void findByBase32Prefix(String prefix, Set<Identity> result) {
+			findByPrefix(base32Addresses, prefix, result);
+		}
+
+		private static void findByPrefix(NavigableMap<String, Identity> addresses, String prefix,
+				Set<Identity> result) {
+			for(Map.Entry<String, Identity> entry : addresses.tailMap(prefix, true).entrySet()) {
+				if(!entry.getKey().startsWith(prefix)) {
+					break;
+				}
+				result.add(entry.getValue());
+			}
+		}
+	}
+}
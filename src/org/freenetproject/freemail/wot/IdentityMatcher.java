@@ -22,7 +22,7 @@ package org.freenetproject.freemail.wot;
 
 import java.util.EnumSet;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
@@ -33,98 +33,112 @@ import freenet.pluginmanager.PluginNotFoundException;
 
 public class IdentityMatcher {
 	private final WoTConnection wotConnection;
+	private final IdentityCache identityCache;
 
+	/**
+	 * Creates a matcher that fetches the identities from WoT on every call.
+	 */
 	public IdentityMatcher(WoTConnection wotConnection) {
+		this(wotConnection, new IdentityCache(null, 0));
+	}
+
+	public IdentityMatcher(WoTConnection wotConnection, IdentityCache identityCache) {
 		this.wotConnection = wotConnection;
+		this.identityCache = identityCache;
 	}
 
 	public Map<String, List<Identity>> matchIdentities(Set<String> recipients, String wotOwnIdentity, EnumSet<MatchMethod> methods) throws PluginNotFoundException {
-		Set<Identity> trustedIds = wotConnection.getAllTrustedIdentities(wotOwnIdentity);
-		Set<Identity> untrustedIds = wotConnection.getAllUntrustedIdentities(wotOwnIdentity);
-		List<OwnIdentity> ownIds = wotConnection.getAllOwnIdentities();
-
 		Map<String, List<Identity>> allMatches = new HashMap<String, List<Identity>>(recipients.size());
 		for(String recipient : recipients) {
 			allMatches.put(recipient, new LinkedList<Identity>());
 		}
 
-		if(trustedIds == null || untrustedIds == null || ownIds == null) {
+		IdentityCache.Snapshot snapshot = identityCache.getSnapshot(wotConnection, wotOwnIdentity);
+		if(snapshot == null) {
 			return allMatches;
 		}
 
-		Set<Identity> wotIdentities = new HashSet<Identity>();
-		wotIdentities.addAll(trustedIds);
-		wotIdentities.addAll(untrustedIds);
-		wotIdentities.addAll(ownIds);
-
-		for(Identity wotIdentity : wotIdentities) {
-			for(String recipient : recipients) {
-				if(matchIdentity(recipient, wotIdentity, methods)) {
-					allMatches.get(recipient).add(wotIdentity);
-				}
+		boolean missing = matchIdentities(snapshot, allMatches, methods);
+		if(missing) {
+			//The identity might be new, so try again with fresh data from WoT
+			snapshot = identityCache.reload(wotConnection, wotOwnIdentity);
+			if(snapshot != null) {
+				matchIdentities(snapshot, allMatches, methods);
 			}
 		}
 
 		return allMatches;
 	}
 
-	private boolean matchIdentity(String recipient, Identity wotIdentity, EnumSet<MatchMethod> methods) {
-		for(MatchMethod method : methods) {
-			switch(method) {
-			case PARTIAL_BASE32:
-				if(matchBase32Address(recipient, wotIdentity)) {
-					return true;
-				}
-				break;
-			case PARTIAL_BASE64:
-				if(matchBase64Address(recipient, wotIdentity)) {
-					return true;
-				}
-				break;
-			case FULL_BASE32:
-				if(matchFullAddress(recipient, wotIdentity.getBase32IdentityID())) {
-					return true;
-				}
-				break;
-			case FULL_BASE64:
-				if(matchFullAddress(recipient, wotIdentity.getIdentityID())) {
-					return true;
-				}
-				break;
-			default:
-				throw new AssertionError();
+	/**
+	 * Adds the matches for each recipient that doesn't have any matches yet.
+	 * @return {@code true} if there are recipients without any matches
+	 */
+	private boolean matchIdentities(IdentityCache.Snapshot snapshot, Map<String, List<Identity>> allMatches,
+			EnumSet<MatchMethod> methods) {
+		boolean missing = false;
+		for(Map.Entry<String, List<Identity>> entry : allMatches.entrySet()) {
+			if(!entry.getValue().isEmpty()) {
+				continue;
 			}
-		}
 
-		return false;
-	}
+			Set<Identity> matches = new LinkedHashSet<Identity>();
+			for(MatchMethod method : methods) {
+				matchIdentity(entry.getKey(), snapshot, method, matches);
+			}
 
-	private boolean matchBase64Address(String recipient, Identity identity) {
-		String identityAddress = identity.getNickname() + "@" + identity.getIdentityID() + ".freemail";
-		return identityAddress.startsWith(recipient);
+			entry.getValue().addAll(matches);
+			missing |= matches.isEmpty();
+		}
+		return missing;
 	}
 
-	private boolean matchBase32Address(String recipient, Identity identity) {
-		String base32Id = identity.getBase32IdentityID();
-		String identityAddress = identity.getNickname() + "@" + base32Id + ".freemail";
+	private void matchIdentity(String recipient, IdentityCache.Snapshot snapshot, MatchMethod method,
+			Set<Identity> matches) {
+		Identity identity;
+		switch(method) {
+		case PARTIAL_BASE32:
+			snapshot.findByBase32Prefix(toBase32Address(recipient), matches);
+			break;
+		case PARTIAL_BASE64:
+			snapshot.findByBase64Prefix(recipient, matches);
+			break;
+		case FULL_BASE32:
+			identity = snapshot.getByBase32Id(stripFullAddress(recipient));
+			if(identity != null) {
+				matches.add(identity);
+			}
+			break;
+		case FULL_BASE64:
+			identity = snapshot.getByBase64Id(stripFullAddress(recipient));
+			if(identity != null) {
+				matches.add(identity);
+			}
+			break;
+		default:
+			throw new AssertionError();
+		}
+	}
 
-		//Change the recipient address to lower case, but leave the nickname in the original case
+	/**
+	 * Changes the domain of the address to lower case, but leaves the nickname in the original case
+	 */
+	private String toBase32Address(String recipient) {
 		if(recipient.contains("@")) {
 			String recipientNickname = recipient.substring(0, recipient.indexOf("@"));
 			String recipientDomain = recipient.substring(recipient.indexOf("@") + 1);
 			recipient = recipientNickname + "@" + recipientDomain.toLowerCase(Locale.ROOT);
 		}
 
-		return identityAddress.startsWith(recipient);
+		return recipient;
 	}
 
 	/**
-	 * Matches addresses of the format [local part@]&lt;identityId&gt;[.freemail]
-	 * @param recipient the address to check
-	 * @param identityId the identity to check against
-	 * @return {@code true} if recipient matches identity
+	 * Extracts the identity id from addresses of the format [local part@]&lt;identityId&gt;[.freemail]
+	 * @param recipient the address to strip
+	 * @return the identity id part of recipient
 	 */
-	private boolean matchFullAddress(String recipient, String identityId) {
+	private String stripFullAddress(String recipient) {
 		//Remove the optional local part
 		if(recipient.contains("@")) {
 			recipient = recipient.substring(recipient.indexOf("@") + 1);
@@ -135,7 +149,7 @@ public class IdentityMatcher {
 			recipient = recipient.substring(0, recipient.length() - ".freemail".length());
 		}
 
-		return recipient.equals(identityId);
+		return recipient;
 	}
 
 	public enum MatchMethod {
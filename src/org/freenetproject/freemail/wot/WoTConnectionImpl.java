@@ -26,6 +26,13 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.freenetproject.freemail.utils.Logger;
 import org.freenetproject.freemail.utils.SimpleFieldSetFactory;
@@ -38,66 +45,96 @@ import freenet.pluginmanager.PluginTalker;
 import freenet.support.SimpleFieldSet;
 import freenet.support.api.Bucket;
 
-class WoTConnectionImpl implements WoTConnection {
+/**
+ * Connection to the WoT plugin that allows any number of requests to be in
+ * flight at once. Each request is sent with its own connection identifier,
+ * which is used to route the reply back to the Future of that request.
+ */
+class WoTConnectionImpl implements AsyncWoTConnection {
 	private static final String WOT_PLUGIN_NAME = "plugins.WebOfTrust.WebOfTrust";
 	private static final String CONNECTION_IDENTIFIER = "Freemail";
 
-	private final PluginTalker pluginTalker;
+	/** How long the blocking methods wait for WoT before giving up */
+	private static final long DEFAULT_REPLY_TIMEOUT = TimeUnit.MINUTES.toMillis(5);
+
+	private final PluginRespirator pluginRespirator;
+	private final long replyTimeout;
+	private final WoTConnectionTalker talker = new WoTConnectionTalker();
+	private final AtomicLong nextRequestId = new AtomicLong();
 
-	private Message reply = null;
-	private final Object replyLock = new Object();
+	private final ConcurrentHashMap<String, Request<?>> pendingRequests =
+			new ConcurrentHashMap<String, Request<?>>();
+
+	WoTConnectionImpl(PluginRespirator pr) {
+		this(pr, DEFAULT_REPLY_TIMEOUT);
+	}
 
-	WoTConnectionImpl(PluginRespirator pr) throws PluginNotFoundException {
-		pluginTalker = pr.getPluginTalker(new WoTConnectionTalker(), WOT_PLUGIN_NAME, CONNECTION_IDENTIFIER);
+	WoTConnectionImpl(PluginRespirator pr, long replyTimeout) {
+		this.pluginRespirator = pr;
+		this.replyTimeout = replyTimeout;
 	}
 
 	@Override
-	public List<OwnIdentity> getAllOwnIdentities() {
-		Message response = sendBlocking(
-				new Message(
-						new SimpleFieldSetFactory().put("Message", "GetOwnIdentities").create(),
-						null),
-				"OwnIdentities");
-		if(response == null) {
-			return null;
-		}
-		if(!"OwnIdentities".equals(response.sfs.get("Message"))) {
-			return null;
-		}
+	public List<OwnIdentity> getAllOwnIdentities() throws PluginNotFoundException {
+		return getReply(getAllOwnIdentitiesAsync());
+	}
 
-		final List<OwnIdentity> ownIdentities = new LinkedList<OwnIdentity>();
-		for(int count = 0;; count++) {
-			String identityID = response.sfs.get("Identity" + count);
-			if(identityID == null) {
-				//Got all the identities
-				break;
-			}
+	@Override
+	public Future<List<OwnIdentity>> getAllOwnIdentitiesAsync() throws PluginNotFoundException {
+		SimpleFieldSet sfs = new SimpleFieldSetFactory().put("Message", "GetOwnIdentities").create();
+		return send(new Request<List<OwnIdentity>>(new Message(sfs, null), "OwnIdentities") {
+			@Override
+			List<OwnIdentity> parse(Message response) {
+				if(!"OwnIdentities".equals(response.sfs.get("Message"))) {
+					return null;
+				}
 
-			String requestURI = response.sfs.get("RequestURI" + count);
-			assert (requestURI != null);
+				final List<OwnIdentity> ownIdentities = new LinkedList<OwnIdentity>();
+				for(int count = 0;; count++) {
+					String identityID = response.sfs.get("Identity" + count);
+					if(identityID == null) {
+						//Got all the identities
+						break;
+					}
 
-			String insertURI = response.sfs.get("InsertURI" + count);
-			assert (insertURI != null);
+					String requestURI = response.sfs.get("RequestURI" + count);
+					assert (requestURI != null);
 
-			String nickname = response.sfs.get("Nickname" + count);
+					String insertURI = response.sfs.get("InsertURI" + count);
+					assert (insertURI != null);
 
-			ownIdentities.add(new OwnIdentity(identityID, requestURI, insertURI, nickname));
-		}
+					String nickname = response.sfs.get("Nickname" + count);
+
+					ownIdentities.add(new OwnIdentity(identityID, requestURI, insertURI, nickname));
+				}
 
-		return ownIdentities;
+				return ownIdentities;
+			}
+		});
+	}
+
+	@Override
+	public Set<Identity> getAllTrustedIdentities(String trusterId) throws PluginNotFoundException {
+		return getReply(getAllTrustedIdentitiesAsync(trusterId));
 	}
 
 	@Override
-	public Set<Identity> getAllTrustedIdentities(String trusterId) {
+	public Future<Set<Identity>> getAllTrustedIdentitiesAsync(String trusterId) throws PluginNotFoundException {
 		return getAllIdentities(trusterId, TrustSelection.TRUSTED);
 	}
 
 	@Override
-	public Set<Identity> getAllUntrustedIdentities(String trusterId) {
+	public Set<Identity> getAllUntrustedIdentities(String trusterId) throws PluginNotFoundException {
+		return getReply(getAllUntrustedIdentitiesAsync(trusterId));
+	}
+
+	@Override
+	public Future<Set<Identity>> getAllUntrustedIdentitiesAsync(String trusterId) throws PluginNotFoundException {
 		return getAllIdentities(trusterId, TrustSelection.UNTRUSTED);
 	}
 
-	private Set<Identity> getAllIdentities(String trusterId, TrustSelection selection) {
+	private Future<Set<Identity>> getAllIdentities(String trusterId, TrustSelection selection)
+			throws PluginNotFoundException {
 		if(trusterId == null) {
 			throw new NullPointerException("Parameter trusterId must not be null");
 		}
@@ -118,35 +155,41 @@ class WoTConnectionImpl implements WoTConnection {
 		 */
 		sfs.putOverwrite("Context", "Freemail");
 
-		Message response = sendBlocking(new Message(sfs, null), "Identities");
-		if(response == null) {
-			return null;
-		}
-		if(!"Identities".equals(response.sfs.get("Message"))) {
-			return null;
-		}
+		return send(new Request<Set<Identity>>(new Message(sfs, null), "Identities") {
+			@Override
+			Set<Identity> parse(Message response) {
+				if(!"Identities".equals(response.sfs.get("Message"))) {
+					return null;
+				}
 
-		final Set<Identity> identities = new HashSet<Identity>();
-		for(int count = 0;; count++) {
-			String identityID = response.sfs.get("Identity" + count);
-			if(identityID == null) {
-				//Got all the identities
-				break;
-			}
+				final Set<Identity> identities = new HashSet<Identity>();
+				for(int count = 0;; count++) {
+					String identityID = response.sfs.get("Identity" + count);
+					if(identityID == null) {
+						//Got all the identities
+						break;
+					}
 
-			String requestURI = response.sfs.get("RequestURI" + count);
-			assert (requestURI != null);
+					String requestURI = response.sfs.get("RequestURI" + count);
+					assert (requestURI != null);
 
-			String nickname = response.sfs.get("Nickname" + count);
+					String nickname = response.sfs.get("Nickname" + count);
 
-			identities.add(new Identity(identityID, requestURI, nickname));
-		}
+					identities.add(new Identity(identityID, requestURI, nickname));
+				}
 
-		return identities;
+				return identities;
+			}
+		});
+	}
+
+	@Override
+	public Identity getIdentity(String identity, String trusterId) throws PluginNotFoundException {
+		return getReply(getIdentityAsync(identity, trusterId));
 	}
 
 	@Override
-	public Identity getIdentity(String identity, String trusterId) {
+	public Future<Identity> getIdentityAsync(final String identity, String trusterId) throws PluginNotFoundException {
 		if(identity == null) {
 			throw new NullPointerException("Parameter identity must not be null");
 		}
@@ -159,24 +202,30 @@ class WoTConnectionImpl implements WoTConnection {
 		sfs.putOverwrite("Identity", identity);
 		sfs.putOverwrite("Truster", trusterId);
 
-		Message response = sendBlocking(new Message(sfs, null), "Identity");
-		if(response == null) {
-			return null;
-		}
-		if(!"Identity".equals(response.sfs.get("Message"))) {
-			return null;
-		}
+		return send(new Request<Identity>(new Message(sfs, null), "Identity") {
+			@Override
+			Identity parse(Message response) {
+				if(!"Identity".equals(response.sfs.get("Message"))) {
+					return null;
+				}
 
-		String requestURI = response.sfs.get("RequestURI");
-		assert(requestURI != null);
+				String requestURI = response.sfs.get("RequestURI");
+				assert(requestURI != null);
 
-		String nickname = response.sfs.get("Nickname");
+				String nickname = response.sfs.get("Nickname");
 
-		return new Identity(identity, requestURI, nickname);
+				return new Identity(identity, requestURI, nickname);
+			}
+		});
+	}
+
+	@Override
+	public boolean setProperty(String identity, String key, String value) throws PluginNotFoundException {
+		return Boolean.TRUE.equals(getReply(setPropertyAsync(identity, key, value)));
 	}
 
 	@Override
-	public boolean setProperty(String identity, String key, String value) {
+	public Future<Boolean> setPropertyAsync(String identity, String key, String value) throws PluginNotFoundException {
 		if(identity == null) {
 			throw new NullPointerException("Parameter identity must not be null");
 		}
@@ -193,15 +242,21 @@ class WoTConnectionImpl implements WoTConnection {
 		sfs.putOverwrite("Property", key);
 		sfs.putOverwrite("Value", value);
 
-		Message response = sendBlocking(new Message(sfs, null), "PropertyAdded");
-		if(response == null) {
-			return false;
-		}
-		return "PropertyAdded".equals(response.sfs.get("Message"));
+		return send(new Request<Boolean>(new Message(sfs, null), "PropertyAdded") {
+			@Override
+			Boolean parse(Message response) {
+				return "PropertyAdded".equals(response.sfs.get("Message"));
+			}
+		});
 	}
 
 	@Override
-	public String getProperty(String identity, String key) {
+	public String getProperty(String identity, String key) throws PluginNotFoundException {
+		return getReply(getPropertyAsync(identity, key));
+	}
+
+	@Override
+	public Future<String> getPropertyAsync(String identity, String key) throws PluginNotFoundException {
 		if(identity == null) {
 			throw new NullPointerException("Parameter identity must not be null");
 		}
@@ -221,20 +276,25 @@ class WoTConnectionImpl implements WoTConnection {
 		/* FIXME: Perhaps check the description and log if it isn't what we expect? */
 		expectedTypes.add("Error");
 
-		Message response = sendBlocking(new Message(sfs, null), expectedTypes);
-		if(response == null) {
-			return null;
-		}
+		return send(new Request<String>(new Message(sfs, null), expectedTypes) {
+			@Override
+			String parse(Message response) {
+				if("PropertyValue".equals(response.sfs.get("Message"))) {
+					return response.sfs.get("Property");
+				} else {
+					return null;
+				}
+			}
+		});
+	}
 
-		if("PropertyValue".equals(response.sfs.get("Message"))) {
-			return response.sfs.get("Property");
-		} else {
-			return null;
-		}
+	@Override
+	public boolean setContext(String identity, String context) throws PluginNotFoundException {
+		return Boolean.TRUE.equals(getReply(setContextAsync(identity, context)));
 	}
 
 	@Override
-	public boolean setContext(String identity, String context) {
+	public Future<Boolean> setContextAsync(String identity, String context) throws PluginNotFoundException {
 		if(identity == null) {
 			throw new NullPointerException("Parameter identity must not be null");
 		}
@@ -247,21 +307,24 @@ class WoTConnectionImpl implements WoTConnection {
 		sfs.putOverwrite("Identity", identity);
 		sfs.putOverwrite("Context", context);
 
-		Message response = sendBlocking(new Message(sfs, null), "ContextAdded");
-		if(response == null) {
-			return false;
-		}
-		return "ContextAdded".equals(response.sfs.get("Message"));
-	}
-
-	private Message sendBlocking(final Message msg, String expectedMessageType) {
-		return sendBlocking(msg, Collections.singleton(expectedMessageType));
+		return send(new Request<Boolean>(new Message(sfs, null), "ContextAdded") {
+			@Override
+			Boolean parse(Message response) {
+				return "ContextAdded".equals(response.sfs.get("Message"));
+			}
+		});
 	}
 
-	private Message sendBlocking(final Message msg, Set<String> expectedMessageTypes) {
-		assert (msg != null);
+	/**
+	 * Sends the request to WoT using a new connection identifier, so that the
+	 * reply can be matched to the request in {@link #onReply(String, SimpleFieldSet, Bucket)}.
+	 * WoT doesn't return anything from the request itself, and handles each message
+	 * in its own thread, so the connection identifier is the only reliable way of
+	 * telling the replies apart.
+	 */
+	private <T> Request<T> send(Request<T> request) throws PluginNotFoundException {
+		Message msg = request.msg;
 
-		//Synchronize on this so only one message can be sent at a time
 		//Log the contents of the message before sending (debug because of private keys etc)
 		Iterator<String> msgContentIterator = msg.sfs.keyIterator();
 		while(msgContentIterator.hasNext()) {
@@ -269,53 +332,62 @@ class WoTConnectionImpl implements WoTConnection {
 			Logger.debug(this, key + "=" + msg.sfs.get(key));
 		}
 
-		//Synchronize on pluginTalker so only one message can be sent at a time
-		final Message retValue;
-		Timer requestTimer;
-		synchronized(this) {
-			synchronized(replyLock) {
-				requestTimer = Timer.start();
-
-				assert (reply == null) : "Reply was " + reply;
-				reply = null;
-
-				pluginTalker.send(msg.sfs, msg.data);
-
-				while(reply == null) {
-					try {
-						replyLock.wait();
-					} catch (InterruptedException e) {
-						//Just check again
-					}
-				}
+		String identifier = CONNECTION_IDENTIFIER + "-" + nextRequestId.getAndIncrement();
+		request.identifier = identifier;
+		pendingRequests.put(identifier, request);
+		try {
+			sendToWoT(identifier, msg.sfs, msg.data);
+		} catch(PluginNotFoundException e) {
+			pendingRequests.remove(identifier);
+			throw e;
+		}
 
-				retValue = reply;
-				reply = null;
+		return request;
+	}
 
-			}
-		}
-		requestTimer.log(this, "Time spent waiting for WoT request " + msg.sfs.get("Message") + " (reply was "
-				+ retValue.sfs.get("Message") + ")");
+	/**
+	 * Sends the message to WoT on a new plugin connection with the given identifier.
+	 */
+	void sendToWoT(String identifier, SimpleFieldSet sfs, Bucket data) throws PluginNotFoundException {
+		PluginTalker pluginTalker = pluginRespirator.getPluginTalker(talker, WOT_PLUGIN_NAME, identifier);
+		pluginTalker.send(sfs, data);
+	}
 
-		String replyType = retValue.sfs.get("Message");
-		for(String expectedMessageType : expectedMessageTypes) {
-			if(expectedMessageType.equals(replyType)) {
-				return retValue;
-			}
+	/**
+	 * Passes a reply from WoT to the request that was sent with the given connection identifier.
+	 */
+	void onReply(String identifier, SimpleFieldSet params, Bucket data) {
+		Request<?> request = pendingRequests.remove(identifier);
+		if(request == null) {
+			Logger.minor(this, "Got reply from WoT for unknown or cancelled request " + identifier);
+			return;
 		}
 
-		Logger.error(this, "Got the wrong message from WoT. Original message was "
-				+ retValue.sfs.get("OriginalMessage") + ", response was "
-				+ replyType);
+		request.complete(new Message(params, data));
+	}
 
-		//Log the contents of the message, but at debug since it might contain private keys etc.
-		Iterator<String> keyIterator = retValue.sfs.keyIterator();
-		while(keyIterator.hasNext()) {
-			String key = keyIterator.next();
-			Logger.debug(this, key + "=" + retValue.sfs.get(key));
+	/**
+	 * Waits for the reply to the given request, returning {@code null} if WoT doesn't
+	 * reply in time. Like the rest of the WoT code this ignores interrupts.
+	 */
+	private <T> T getReply(Future<T> request) {
+		long deadline = System.currentTimeMillis() + replyTimeout;
+		while(true) {
+			try {
+				return request.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+			} catch(InterruptedException e) {
+				//Just check again
+			} catch(TimeoutException e) {
+				request.cancel(false);
+				Logger.error(this, "WoT didn't reply within " + replyTimeout + "ms, giving up");
+				return null;
+			} catch(ExecutionException e) {
+				if(e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw new AssertionError(e.getCause());
+			}
 		}
-
-		return retValue;
 	}
 
 	private static class Message {
@@ -333,15 +405,133 @@ class WoTConnectionImpl implements WoTConnection {
 		}
 	}
 
-	private class WoTConnectionTalker implements FredPluginTalker {
+	/**
+	 * A request that has been sent to WoT. When the reply arrives it is passed to
+	 * {@link #parse(Message)}, and the result is the value of the Future.
+	 */
+	private abstract class Request<T> implements Future<T> {
+		private final Message msg;
+		private final Set<String> expectedMessageTypes;
+		private final Timer requestTimer = Timer.start();
+		private String identifier;
+
+		private boolean done = false;
+		private boolean cancelled = false;
+		private T result = null;
+		private RuntimeException failure = null;
+
+		private Request(Message msg, String expectedMessageType) {
+			this(msg, Collections.singleton(expectedMessageType));
+		}
+
+		private Request(Message msg, Set<String> expectedMessageTypes) {
+			this.msg = msg;
+			this.expectedMessageTypes = expectedMessageTypes;
+		}
+
+		/**
+		 * Converts the reply from WoT to the result of the request.
+		 */
+		abstract T parse(Message response);
+
+		private void complete(Message response) {
+			requestTimer.log(WoTConnectionImpl.this, "Time spent waiting for WoT request "
+					+ msg.sfs.get("Message") + " (reply was " + response.sfs.get("Message") + ")");
+
+			String replyType = response.sfs.get("Message");
+			if(!expectedMessageTypes.contains(replyType)) {
+				Logger.error(WoTConnectionImpl.this, "Got the wrong message from WoT. Original message was "
+						+ response.sfs.get("OriginalMessage") + ", response was "
+						+ replyType);
+
+				//Log the contents of the message, but at debug since it might contain private keys etc.
+				Iterator<String> keyIterator = response.sfs.keyIterator();
+				while(keyIterator.hasNext()) {
+					String key = keyIterator.next();
+					Logger.debug(WoTConnectionImpl.this, key + "=" + response.sfs.get(key));
+				}
+			}
+
+			T value = null;
+			RuntimeException exception = null;
+			try {
+				value = parse(response);
+			} catch(RuntimeException e) {
+				exception = e;
+			}
+
+			synchronized(this) {
+				result = value;
+				failure = exception;
+				done = true;
+				notifyAll();
+			}
+		}
+
 		@Override
-		public void onReply(String pluginname, String indentifier, SimpleFieldSet params, Bucket data) {
-			synchronized(replyLock) {
-				assert reply == null : "Reply should be null, but was " + reply;
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			synchronized(this) {
+				if(done) {
+					return false;
+				}
+				cancelled = true;
+				done = true;
+				notifyAll();
+			}
+
+			//WoT will still process the request, but the reply is ignored
+			pendingRequests.remove(identifier);
+			return true;
+		}
+
+		@Override
+		public synchronized boolean isCancelled() {
+			return cancelled;
+		}
+
+		@Override
+		public synchronized boolean isDone() {
+			return done;
+		}
 
-				reply = new Message(params, data);
-				replyLock.notify();
+		@Override
+		public synchronized T get() throws InterruptedException, ExecutionException {
+			while(!done) {
+				wait();
 			}
+			return getResult();
+		}
+
+		@Override
+		public synchronized T get(long timeout, TimeUnit unit)
+				throws InterruptedException, ExecutionException, TimeoutException {
+			long deadline = System.nanoTime() + unit.toNanos(timeout);
+			while(!done) {
+				long remaining = deadline - System.nanoTime();
+				if(remaining <= 0) {
+					throw new TimeoutException();
+				}
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			}
+			return getResult();
+		}
+
+		private T getResult() throws ExecutionException {
+			assert (Thread.holdsLock(this));
+			if(cancelled) {
+				throw new CancellationException();
+			}
+			if(failure != null) {
+				throw new ExecutionException(failure);
+			}
+			return result;
+		}
+	}
+
+	private class WoTConnectionTalker implements FredPluginTalker {
+		@Override
+		public void onReply(String pluginname, String indentifier, SimpleFieldSet params, Bucket data) {
+			WoTConnectionImpl.this.onReply(indentifier, params, data);
 		}
 	}
 
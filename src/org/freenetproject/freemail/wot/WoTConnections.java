@@ -23,7 +23,7 @@ package org.freenetproject.freemail.wot;
 import freenet.pluginmanager.PluginRespirator;
 
 public class WoTConnections {
-	public static WoTConnection wotConnection(PluginRespirator pr) {
-		return new ConcurrentWoTConnection(pr);
+	public static AsyncWoTConnection wotConnection(PluginRespirator pr) {
+		return new WoTConnectionImpl(pr);
 	}
 }
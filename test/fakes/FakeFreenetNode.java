@@ -0,0 +1,395 @@
+/*
+ * FakeFreenetNode.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package fakes;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.archive.util.Base32;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.freenetproject.freemail.fcp.FCPFetchException;
+import org.freenetproject.freemail.fcp.FCPMessage;
+import org.freenetproject.freemail.fcp.FCPPutFailedException;
+
+import freenet.keys.FreenetURI;
+import freenet.keys.InsertableClientSSK;
+import freenet.support.Base64;
+import freenet.support.io.BucketTools;
+
+/**
+ * A stand-in for a Freenet node that speaks enough FCP 2.0 for Freemail, backed by an
+ * in-memory store. Inserting different data to a KSK or SSK that already holds data fails
+ * with a collision, CHKs are named after the hash of their data, and data inserted with an
+ * SSK insert URI is stored under the matching request URI. The latency of replies, the rate of
+ * inserts that are silently lost and the rate of fetches that fail with DataNotFound even
+ * though the data exists can be set to simulate a real network.
+ */
+public class FakeFreenetNode {
+	private static final String INSERT_KEY_SUFFIX = ",AQECAAE/";
+
+	private final ServerSocket serverSocket;
+	private final ScheduledExecutorService replyExecutor = Executors.newScheduledThreadPool(4);
+	private final Random random = new Random();
+	private final List<Socket> sockets = new ArrayList<Socket>();
+
+	/** Guarded by itself */
+	private final Map<String, byte[]> store = new HashMap<String, byte[]>();
+
+	/** Maps SSK insert URIs to the request URIs derived from them. Guarded by itself. */
+	private final Map<String, String> requestKeys = new HashMap<String, String>();
+
+	private final AtomicInteger inserts = new AtomicInteger();
+	private final AtomicInteger fetches = new AtomicInteger();
+
+	private volatile long latency = 0;
+	private volatile double lossRate = 0;
+	private volatile double dataNotFoundRate = 0;
+	private volatile boolean running = false;
+
+	public FakeFreenetNode() throws IOException {
+		serverSocket = new ServerSocket(0, 50, InetAddress.getByName("localhost"));
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Sets the time in milliseconds before each request is answered.
+	 */
+	public void setLatency(long latency) {
+		this.latency = latency;
+	}
+
+	/**
+	 * Sets the fraction of successful inserts where the data isn't stored.
+	 */
+	public void setLossRate(double lossRate) {
+		this.lossRate = lossRate;
+	}
+
+	/**
+	 * Sets the fraction of fetches that fail with DataNotFound even if the data exists.
+	 */
+	public void setDataNotFoundRate(double dataNotFoundRate) {
+		this.dataNotFoundRate = dataNotFoundRate;
+	}
+
+	public int getInsertCount() {
+		return inserts.get();
+	}
+
+	public int getFetchCount() {
+		return fetches.get();
+	}
+
+	/**
+	 * Returns the data stored under the given key, or {@code null} if there is none.
+	 */
+	public byte[] getData(String key) {
+		synchronized(store) {
+			return store.get(normalizeKey(key));
+		}
+	}
+
+	public void start() {
+		running = true;
+		Thread acceptor = new Thread("Fake node acceptor") {
+			@Override
+			public void run() {
+				acceptConnections();
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	public void stop() {
+		running = false;
+		replyExecutor.shutdownNow();
+		try {
+			serverSocket.close();
+		} catch(IOException e) {
+			//Ignore
+		}
+		synchronized(sockets) {
+			for(Socket socket : sockets) {
+				try {
+					socket.close();
+				} catch(IOException e) {
+					//Ignore
+				}
+			}
+		}
+	}
+
+	private void acceptConnections() {
+		while(running) {
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch(IOException e) {
+				return;
+			}
+			synchronized(sockets) {
+				sockets.add(socket);
+			}
+
+			Thread reader = new Thread("Fake node connection") {
+				@Override
+				public void run() {
+					readRequests(socket);
+				}
+			};
+			reader.setDaemon(true);
+			reader.start();
+		}
+	}
+
+	private void readRequests(Socket socket) {
+		try {
+			InputStream is = new BufferedInputStream(socket.getInputStream());
+			OutputStream os = socket.getOutputStream();
+			while(running) {
+				FCPMessage request = new FCPMessage(is);
+				if(request.getType() == null) {
+					return;
+				}
+				handle(request, os);
+			}
+		} catch(IOException e) {
+			//Connection closed
+		} finally {
+			try {
+				socket.close();
+			} catch(IOException e) {
+				//Ignore
+			}
+		}
+	}
+
+	private void handle(final FCPMessage request, final OutputStream os) throws IOException {
+		String type = request.getType();
+		if(type.equals("ClientHello")) {
+			send(os, "NodeHello", null, field("FCPVersion", "2.0"), field("Node", "Fred"));
+		} else if(type.equals("WatchGlobal")) {
+			//Nothing to reply
+		} else if(type.equals("ListPersistentRequests")) {
+			send(os, "EndListPersistentRequests", null);
+		} else if(type.equals("RemoveRequest")) {
+			send(os, "PersistentRequestRemoved", request.getId(), field("Global", "true"));
+		} else {
+			//Requests that go to the "network" are answered after the latency
+			final byte[] data;
+			if(request.getData() != null) {
+				data = BucketTools.toByteArray(request.getData());
+				request.release();
+			} else {
+				data = null;
+			}
+
+			try {
+				replyExecutor.schedule(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							answer(request, data, os);
+						} catch(IOException e) {
+							//Connection closed
+						}
+					}
+				}, latency, TimeUnit.MILLISECONDS);
+			} catch(RejectedExecutionException e) {
+				//The node is stopping, so the request is never answered
+			}
+		}
+	}
+
+	private void answer(FCPMessage request, byte[] data, OutputStream os) throws IOException {
+		String type = request.getType();
+		String id = request.getId();
+		if(type.equals("ClientGet")) {
+			fetches.incrementAndGet();
+			byte[] stored;
+			synchronized(store) {
+				stored = store.get(normalizeKey(request.headers.get("URI")));
+			}
+			if(stored == null || random.nextDouble() < dataNotFoundRate) {
+				send(os, "GetFailed", id,
+						field("Code", Integer.toString(FCPFetchException.DATA_NOT_FOUND)),
+						field("CodeDescription", "Data not found"),
+						field("Fatal", "false"));
+			} else {
+				sendData(os, id, stored);
+			}
+		} else if(type.equals("ClientPut")) {
+			inserts.incrementAndGet();
+			String uri = request.headers.get("URI");
+			if(data == null) {
+				send(os, "ProtocolError", id, field("Code", "9"), field("Fatal", "false"));
+				return;
+			}
+			if(uri.startsWith("CHK@")) {
+				uri = "CHK@" + Base32.encode(sha256(data));
+			}
+
+			String key = normalizeKey(uri);
+			boolean collision;
+			synchronized(store) {
+				byte[] old = store.get(key);
+				collision = old != null && !Arrays.equals(old, data);
+				if(old == null && random.nextDouble() >= lossRate) {
+					store.put(key, data);
+				}
+			}
+
+			if(collision) {
+				send(os, "PutFailed", id,
+						field("Code", Integer.toString(FCPPutFailedException.COLLISION)),
+						field("CodeDescription", "Insert collided with different, pre-existing data at the same key"),
+						field("Fatal", "true"));
+			} else {
+				send(os, "PutSuccessful", id, field("URI", key));
+			}
+		} else if(type.equals("GenerateSSK")) {
+			//Clearing the top bit keeps the private key below the DSA group order
+			byte[] privateKey = new byte[32];
+			byte[] cryptoKey = new byte[32];
+			random.nextBytes(privateKey);
+			random.nextBytes(cryptoKey);
+			privateKey[0] &= 0x7f;
+			String insertUri = "SSK@" + Base64.encode(privateKey) + "," + Base64.encode(cryptoKey) + INSERT_KEY_SUFFIX;
+			String requestUri = getRequestKey(insertUri);
+			send(os, "SSKKeypair", id, field("InsertURI", insertUri), field("RequestURI", requestUri));
+		} else {
+			send(os, "ProtocolError", id,
+					field("Code", "8"),
+					field("CodeDescription", "Don't know what to do with " + type),
+					field("Fatal", "false"));
+		}
+	}
+
+	/**
+	 * Turns SSK insert URIs into request URIs and USKs into the matching SSK, so that the
+	 * data inserted with one can be fetched with the other.
+	 */
+	private String normalizeKey(String key) {
+		if(key.startsWith("USK@")) {
+			//USK@key/site/edition/rest -> SSK@key/site-edition/rest
+			String[] parts = key.substring("USK@".length()).split("/", 4);
+			if(parts.length >= 3) {
+				long edition = Math.abs(Long.parseLong(parts[2]));
+				key = "SSK@" + parts[0] + "/" + parts[1] + "-" + edition;
+				if(parts.length == 4) {
+					key += "/" + parts[3];
+				}
+			}
+		}
+
+		int end = key.indexOf(INSERT_KEY_SUFFIX);
+		if(key.startsWith("SSK@") && end != -1) {
+			end += INSERT_KEY_SUFFIX.length();
+			return getRequestKey(key.substring(0, end)) + key.substring(end);
+		}
+		return key;
+	}
+
+	/**
+	 * Returns the request URI of the given SSK insert URI, derived the same way the channels
+	 * derive it from the private key they get in the RTS.
+	 */
+	private String getRequestKey(String insertKey) {
+		synchronized(requestKeys) {
+			String requestKey = requestKeys.get(insertKey);
+			if(requestKey != null) {
+				return requestKey;
+			}
+
+			try {
+				FreenetURI insertUri = new FreenetURI(insertKey).setDocName("documentName");
+				requestKey = InsertableClientSSK.create(insertUri).getURI().setDocName("").toString();
+			} catch(MalformedURLException e) {
+				return insertKey;
+			}
+			requestKeys.put(insertKey, requestKey);
+			return requestKey;
+		}
+	}
+
+	private static byte[] sha256(byte[] data) {
+		SHA256Digest sha256 = new SHA256Digest();
+		sha256.update(data, 0, data.length);
+		byte[] hash = new byte[sha256.getDigestSize()];
+		sha256.doFinal(hash, 0);
+		return hash;
+	}
+
+	private static String[] field(String name, String value) {
+		return new String[] {name, value};
+	}
+
+	private static void send(OutputStream os, String type, String id, String[]... fields) throws IOException {
+		StringBuilder msg = new StringBuilder(type).append("\r\n");
+		if(id != null) {
+			msg.append("Identifier=").append(id).append("\r\n");
+		}
+		for(String[] field : fields) {
+			msg.append(field[0]).append("=").append(field[1]).append("\r\n");
+		}
+		msg.append("EndMessage\r\n");
+
+		synchronized(os) {
+			os.write(msg.toString().getBytes("UTF-8"));
+			os.flush();
+		}
+	}
+
+	private static void sendData(OutputStream os, String id, byte[] data) throws IOException {
+		ByteArrayOutputStream msg = new ByteArrayOutputStream();
+		msg.write(("AllData\r\n"
+				+ "Identifier=" + id + "\r\n"
+				+ "DataLength=" + data.length + "\r\n"
+				+ "Data\r\n").getBytes("UTF-8"));
+		msg.write(data);
+
+		synchronized(os) {
+			msg.writeTo(os);
+			os.flush();
+		}
+	}
+}
@@ -150,7 +150,7 @@ public class MockExecutor implements ScheduledExecutorService {
 
 		@Override
 		public boolean cancel(boolean mayInterruptIfRunning) {
-			throw new UnsupportedOperationException();
+			return tasks.remove(this);
 		}
 
 		@Override
@@ -24,6 +24,7 @@ import java.util.concurrent.ScheduledExecutorService;
 
 import org.freenetproject.freemail.AccountManager;
 import org.freenetproject.freemail.Freemail;
+import org.freenetproject.freemail.fcp.FCPConnectionPool;
 import org.freenetproject.freemail.utils.Logger;
 import org.freenetproject.freemail.wot.WoTConnection;
 
@@ -94,4 +95,12 @@ public class MockFreemail extends Freemail {
 	public void setExecutor(ScheduledExecutorService executor) {
 		this.executor = executor;
 	}
+
+	/**
+	 * Sets the connection pool returned by {@link Freemail#getFCPConnectionPool()}, which is
+	 * shared by all instances.
+	 */
+	public static void setFCPConnectionPool(FCPConnectionPool pool) {
+		fcpconn = pool;
+	}
 }
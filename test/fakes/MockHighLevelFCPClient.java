@@ -33,14 +33,20 @@ import java.util.concurrent.TimeoutException;
 
 import org.freenetproject.freemail.fcp.ConnectionTerminatedException;
 import org.freenetproject.freemail.fcp.FCPBadFileException;
+import org.freenetproject.freemail.fcp.FCPCallback;
 import org.freenetproject.freemail.fcp.FCPException;
 import org.freenetproject.freemail.fcp.FCPFetchException;
 import org.freenetproject.freemail.fcp.FCPMessage;
 import org.freenetproject.freemail.fcp.FCPPutFailedException;
+import org.freenetproject.freemail.fcp.FCPRequest;
 import org.freenetproject.freemail.fcp.HighLevelFCPClient;
+import org.freenetproject.freemail.fcp.RequestType;
 import org.freenetproject.freemail.fcp.SSKKeyPair;
 import org.freenetproject.freemail.utils.Logger;
 
+import freenet.support.api.Bucket;
+import freenet.support.io.FileBucket;
+
 public class MockHighLevelFCPClient extends HighLevelFCPClient {
 	private final Map<String, File> fetchResults;
 
@@ -96,7 +102,7 @@ public class MockHighLevelFCPClient extends HighLevelFCPClient {
 	}
 
 	@Override
-	public synchronized File fetch(String key) throws ConnectionTerminatedException, FCPFetchException, FCPException, InterruptedException {
+	public synchronized Bucket fetch(String key, RequestType type) throws ConnectionTerminatedException, FCPFetchException, FCPException, InterruptedException {
 		Logger.debug(this, "fetch(key=" + key + ")");
 
 		if(fetchResults == null) {
@@ -119,7 +125,24 @@ public class MockHighLevelFCPClient extends HighLevelFCPClient {
 		notifyAll();
 
 		Logger.debug(this, "fetch(): Returning " + result);
-		return result;
+		return new FileBucket(result, true, false, false, false, true);
+	}
+
+	@Override
+	public FCPRequest fetchAsync(String key, RequestType type, FCPCallback<Bucket> callback)
+			throws ConnectionTerminatedException {
+		Bucket result;
+		try {
+			result = fetch(key, type);
+		} catch(FCPException e) {
+			callback.onFailure(e);
+			return null;
+		} catch(InterruptedException e) {
+			throw new AssertionError();
+		}
+
+		callback.onSuccess(result);
+		return null;
 	}
 
 	@Override
@@ -133,17 +156,28 @@ public class MockHighLevelFCPClient extends HighLevelFCPClient {
 	}
 
 	@Override
-	public synchronized FCPPutFailedException put(InputStream data, String key) throws FCPBadFileException,
-	                                                                      ConnectionTerminatedException,
-	                                                                      FCPException, InterruptedException {
-		Logger.debug(this, "put(key=" + key + ")");
+	public synchronized FCPPutFailedException put(InputStream data, long length, String key, RequestType type)
+			throws FCPBadFileException, ConnectionTerminatedException, FCPException, InterruptedException {
+		Logger.debug(this, "put(key=" + key + ", type=" + type + ")");
 
-		inserts.add(new Insert(key, data));
+		inserts.add(new Insert(key, data, type));
 		notifyAll();
 
 		return null;
 	}
 
+	@Override
+	public FCPPutFailedException put(Bucket data, String key, RequestType type)
+			throws FCPBadFileException, ConnectionTerminatedException, FCPException, InterruptedException {
+		InputStream is;
+		try {
+			is = data.getInputStream();
+		} catch (IOException e) {
+			throw new FCPBadFileException();
+		}
+		return put(is, data.size(), key, type);
+	}
+
 	@Override
 	public int SlotInsert(File data, String basekey, int minslot, String suffix) throws ConnectionTerminatedException,
 	                                                                                    InterruptedException {
@@ -156,14 +190,14 @@ public class MockHighLevelFCPClient extends HighLevelFCPClient {
 	}
 
 	@Override
-	public int slotInsert(byte[] data, String basekey, int minslot, String suffix) throws ConnectionTerminatedException,
-	                                                                                      InterruptedException {
+	public int slotInsert(byte[] data, String basekey, int minslot, String suffix, RequestType type)
+			throws ConnectionTerminatedException, InterruptedException {
 		Logger.debug(this, "slotInsert(data.length=" + data.length
 		                            + ", basekey=" + basekey
 		                            + ", minslot=" + minslot
 		                            + ", suffix=" + suffix + ")");
 		try {
-			put(new ByteArrayInputStream(data), basekey + "-" + minslot);
+			put(new ByteArrayInputStream(data), data.length, basekey + "-" + minslot, type);
 		} catch (FCPBadFileException e) {
 			throw new AssertionError();
 		} catch (FCPException e) {
@@ -172,18 +206,6 @@ public class MockHighLevelFCPClient extends HighLevelFCPClient {
 		return minslot;
 	}
 
-	@Override
-	public void requestStatus(FCPMessage msg) {
-		Logger.debug(this, "requestStatus(msg=" + msg + ")");
-		throw new UnsupportedOperationException();
-	}
-
-	@Override
-	public void requestFinished(FCPMessage msg) {
-		Logger.debug(this, "requestFinished(msg=" + msg + ")");
-		throw new UnsupportedOperationException();
-	}
-
 	private abstract class KeyEvent {
 		public String key;
 	}
@@ -212,9 +234,11 @@ public class MockHighLevelFCPClient extends HighLevelFCPClient {
 
 	public class Insert extends KeyEvent {
 		public final byte[] data;
+		public final RequestType type;
 
-		public Insert(String key, InputStream data) {
+		public Insert(String key, InputStream data, RequestType type) {
 			this.key = key;
+			this.type = type;
 
 			ByteArrayOutputStream baos = new ByteArrayOutputStream();
 			byte[] buffer = new byte[1024];
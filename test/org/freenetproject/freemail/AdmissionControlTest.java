@@ -0,0 +1,129 @@
+/*
+ * AdmissionControlTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.freenetproject.freemail.AdmissionControl.Kind;
+import org.freenetproject.freemail.config.Configurator;
+
+import utils.Utils;
+
+public class AdmissionControlTest {
+	private static final File TEST_DIR = new File("admissiontest");
+	private static final String ACCOUNT_1 = "account1";
+	private static final String ACCOUNT_2 = "account2";
+
+	private Configurator config;
+	private AdmissionControl admissionControl;
+
+	@Before
+	public void before() {
+		Utils.createDir(TEST_DIR);
+		config = new Configurator(new File(TEST_DIR, "config"));
+		config.set(Configurator.MAX_CONNECTIONS, "2");
+		config.set(Configurator.MAX_ACCOUNT_CONNECTIONS, "1");
+		config.set(Configurator.MAX_ACCOUNT_TRANSFERS, "1");
+		config.set(Configurator.ADMISSION_TIMEOUT, "0");
+		admissionControl = new AdmissionControl(config);
+	}
+
+	@After
+	public void after() {
+		Utils.delete(TEST_DIR);
+	}
+
+	@Test
+	public void unlimitedByDefault() {
+		AdmissionControl unlimited = new AdmissionControl();
+		for(int i = 0; i < 100; i++) {
+			assertTrue(unlimited.acquireConnection());
+			assertTrue(unlimited.acquireAccountConnection(ACCOUNT_1));
+			assertTrue(unlimited.acquireTransfer(ACCOUNT_1));
+		}
+		assertEquals(0, unlimited.getRejectedCount(Kind.CONNECTION));
+	}
+
+	@Test
+	public void globalConnectionLimit() {
+		assertTrue(admissionControl.acquireConnection());
+		assertTrue(admissionControl.acquireConnection());
+		assertFalse(admissionControl.acquireConnection());
+		assertEquals(1, admissionControl.getRejectedCount(Kind.CONNECTION));
+
+		admissionControl.releaseConnection();
+		assertTrue(admissionControl.acquireConnection());
+	}
+
+	@Test
+	public void limitsArePerAccount() {
+		assertTrue(admissionControl.acquireAccountConnection(ACCOUNT_1));
+		assertFalse(admissionControl.acquireAccountConnection(ACCOUNT_1));
+		assertTrue(admissionControl.acquireAccountConnection(ACCOUNT_2));
+
+		assertTrue(admissionControl.acquireTransfer(ACCOUNT_1));
+		assertFalse(admissionControl.acquireTransfer(ACCOUNT_1));
+		assertTrue(admissionControl.acquireTransfer(ACCOUNT_2));
+
+		assertEquals(1, admissionControl.getRejectedCount(Kind.ACCOUNT_CONNECTION));
+		assertEquals(1, admissionControl.getRejectedCount(Kind.TRANSFER));
+	}
+
+	@Test
+	public void raisingLimitAppliesToExistingAccounts() {
+		assertTrue(admissionControl.acquireTransfer(ACCOUNT_1));
+		assertFalse(admissionControl.acquireTransfer(ACCOUNT_1));
+
+		config.set(Configurator.MAX_ACCOUNT_TRANSFERS, "2");
+		assertTrue(admissionControl.acquireTransfer(ACCOUNT_1));
+	}
+
+	@Test
+	public void waitingRequestIsAdmittedOnRelease() throws InterruptedException {
+		config.set(Configurator.ADMISSION_TIMEOUT, "60");
+		assertTrue(admissionControl.acquireTransfer(ACCOUNT_1));
+
+		final boolean[] admitted = new boolean[1];
+		Thread waiter = new Thread() {
+			@Override
+			public void run() {
+				admitted[0] = admissionControl.acquireTransfer(ACCOUNT_1);
+			}
+		};
+		waiter.start();
+
+		while(admissionControl.getQueueDepth(Kind.TRANSFER) == 0) {
+			Thread.sleep(1);
+		}
+
+		admissionControl.releaseTransfer(ACCOUNT_1);
+		waiter.join();
+
+		assertTrue(admitted[0]);
+		assertEquals(0, admissionControl.getQueueDepth(Kind.TRANSFER));
+		assertEquals(0, admissionControl.getRejectedCount(Kind.TRANSFER));
+	}
+}
@@ -0,0 +1,45 @@
+/*
+ * RTSPoller.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import java.io.File;
+
+import org.freenetproject.freemail.fcp.ConnectionTerminatedException;
+
+/**
+ * Polls the RTS slots of an account the same way {@link SingleAccountWatcher} does, but
+ * without the delay between polls, so that tests in other packages can receive RTS
+ * messages.
+ */
+public class RTSPoller {
+	private final RTSFetcher fetcher;
+
+	public RTSPoller(FreemailAccount account) {
+		File rtsdir = new File(account.getAccountDir(), SingleAccountWatcher.RTS_DIR);
+		if(!rtsdir.exists() && !rtsdir.mkdir()) {
+			throw new IllegalStateException("Couldn't create " + rtsdir);
+		}
+		fetcher = new RTSFetcher("KSK@" + account.getProps().get("rtskey") + "-", rtsdir, account);
+	}
+
+	public void poll() throws ConnectionTerminatedException, InterruptedException {
+		fetcher.poll();
+	}
+}
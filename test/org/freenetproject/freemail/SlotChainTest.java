@@ -0,0 +1,80 @@
+/*
+ * SlotChainTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import static org.junit.Assert.*;
+
+import org.archive.util.Base32;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.junit.Test;
+
+public class SlotChainTest {
+	private static final String FIRST_SLOT = Base32.encode(new byte[32]);
+
+	@Test
+	public void nextIsHashOfSlot() {
+		SlotChain chain = new SlotChain();
+		assertEquals(hash(FIRST_SLOT), chain.next(FIRST_SLOT));
+	}
+
+	@Test
+	public void getSkipsAhead() {
+		SlotChain chain = new SlotChain();
+		String expected = FIRST_SLOT;
+		for(int i = 0; i < 10; i++) {
+			expected = hash(expected);
+		}
+
+		assertEquals(expected, chain.get(FIRST_SLOT, 10));
+		assertEquals(FIRST_SLOT, chain.get(FIRST_SLOT, 0));
+	}
+
+	@Test
+	public void followsChainFromLaterSlot() {
+		SlotChain chain = new SlotChain();
+		chain.get(FIRST_SLOT, 5);
+
+		String second = hash(FIRST_SLOT);
+		assertEquals(hash(hash(hash(second))), chain.get(second, 3));
+
+		//Move far enough along that the start of the chain is dropped
+		String later = chain.get(FIRST_SLOT, 40);
+		assertEquals(hash(later), chain.next(later));
+		assertEquals(hash(later), chain.get(FIRST_SLOT, 41));
+	}
+
+	@Test
+	public void unknownSlotStartsNewChain() {
+		SlotChain chain = new SlotChain();
+		chain.get(FIRST_SLOT, 5);
+
+		String other = Base32.encode(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16,
+				17, 18, 19, 20, 21, 22, 23, 24, 25, 26, 27, 28, 29, 30, 31, 32});
+		assertEquals(hash(hash(other)), chain.get(other, 2));
+	}
+
+	private static String hash(String slot) {
+		byte[] buf = Base32.decode(slot);
+		SHA256Digest sha256 = new SHA256Digest();
+		sha256.update(buf, 0, buf.length);
+		sha256.doFinal(buf, 0);
+		return Base32.encode(buf);
+	}
+}
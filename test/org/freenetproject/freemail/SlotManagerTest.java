@@ -0,0 +1,147 @@
+/*
+ * SlotManagerTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.archive.util.Base32;
+import org.junit.Test;
+
+public class SlotManagerTest {
+	private static final long DAY = 24 * 60 * 60 * 1000;
+
+	@Test
+	public void usedSlotIsReplacedByNext() {
+		SavedSlots saved = new SavedSlots();
+		NaturalSlotManager sm = new NaturalSlotManager(saved, null, "1");
+
+		assertEquals(1, sm.getNextSlotNat());
+		sm.slotUsed();
+		assertEquals("2", saved.slots);
+		assertEquals(2, sm.getNextSlotNat());
+	}
+
+	@Test
+	public void usingPollAheadSlotKeepsEarlierSlots() {
+		SavedSlots saved = new SavedSlots();
+		NaturalSlotManager sm = new NaturalSlotManager(saved, null, "1");
+		sm.setPollAhead(3);
+
+		assertEquals(1, sm.getNextSlotNat());
+		assertEquals(2, sm.getNextSlotNat());
+		assertEquals(3, sm.getNextSlotNat());
+		sm.slotUsed();
+
+		String[] parts = saved.slots.split(",");
+		assertEquals(3, parts.length);
+		assertTrue(parts[0].startsWith("1="));
+		assertTrue(parts[1].startsWith("2="));
+		assertEquals("4", parts[2]);
+
+		assertEquals(4, sm.getNextSlotNat());
+		assertEquals(5, sm.getNextSlotNat());
+	}
+
+	@Test
+	public void expiredSlotsAreDropped() {
+		long old = System.currentTimeMillis() - 8 * DAY;
+		long recent = System.currentTimeMillis() - DAY;
+		NaturalSlotManager sm = new NaturalSlotManager(new SavedSlots(), null,
+				"1=" + old + ",2=" + recent + ",3=" + old + ",4=" + old);
+		sm.setPollAhead(0);
+
+		//The last slot is kept even though it is old
+		assertEquals(2, sm.getNextSlotNat());
+		assertEquals(4, sm.getNextSlotNat());
+		assertEquals(-1, sm.getNextSlotNat());
+	}
+
+	@Test
+	public void rewindStartsOver() {
+		NaturalSlotManager sm = new NaturalSlotManager(new SavedSlots(), null, "1=" + System.currentTimeMillis() + ",3");
+		sm.setPollAhead(2);
+
+		List<String> first = listSlots(sm);
+		assertEquals(4, first.size());
+		sm.rewind();
+		assertEquals(first, listSlots(sm));
+	}
+
+	@Test
+	public void binaryFormRoundTrip() throws IOException {
+		SlotChain chain = new SlotChain();
+		String firstSlot = Base32.encode(new byte[32]);
+		HashSlotManager sm = new HashSlotManager(new SavedSlots(), null, firstSlot, chain);
+		sm.setPollAhead(3);
+
+		//Use the third slot, so there are three slots in the list
+		sm.getNextSlot();
+		sm.getNextSlot();
+		sm.getNextSlot();
+		sm.slotUsed();
+		sm.rewind();
+		List<String> expected = listSlots(sm);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		sm.writeSlots(out);
+		out.close();
+
+		//Version, count and three raw slots with their timestamps
+		assertEquals(1 + 4 + 3 * (1 + 32 + 8), bytes.size());
+
+		HashSlotManager read = new HashSlotManager(new SavedSlots(), null,
+				new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), chain);
+		read.setPollAhead(3);
+		assertEquals(expected, listSlots(read));
+	}
+
+	@Test(expected = IOException.class)
+	public void unknownBinaryVersionIsRejected() throws IOException {
+		new HashSlotManager(new SavedSlots(), null,
+				new DataInputStream(new ByteArrayInputStream(new byte[] {42, 0, 0, 0, 1})), new SlotChain());
+	}
+
+	private static List<String> listSlots(SlotManager sm) {
+		List<String> slots = new ArrayList<String>();
+		String slot;
+		while((slot = sm.getNextSlot()) != null) {
+			slots.add(slot);
+		}
+		return slots;
+	}
+
+	private static class SavedSlots implements SlotSaveCallback {
+		private String slots;
+
+		@Override
+		public void saveSlots(String newSlots, Object userdata) {
+			this.slots = newSlots;
+		}
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * FCPConnectionPoolTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.fcp;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class FCPConnectionPoolTest {
+	@Test
+	public void messageIdsAreUniqueAcrossConnections() {
+		FCPConnectionPool pool = new FCPConnectionPool(failingContexts(2), 2);
+		assertEquals(4, pool.size());
+
+		Set<String> ids = new HashSet<String>();
+		for(int i = 0; i < 100; i++) {
+			assertTrue(ids.add(pool.getMessage("ClientGet").getId()));
+		}
+	}
+
+	@Test
+	public void requestIsHeldBackWithoutConnectedNode() throws Exception {
+		FCPConnectionPool pool = new FCPConnectionPool(failingContexts(2), 1);
+		FCPMessage msg = pool.getMessage("ClientGet");
+		FCPRequest request = new FCPRequest(pool, msg, null);
+		pool.doRequest(request, msg);
+		assertEquals(1, pool.getWaitingRequests());
+		assertFalse(request.isDone());
+
+		//Requests that never got sent fail when shutting down
+		pool.kill();
+		assertEquals(0, pool.getWaitingRequests());
+		assertEquals("ConnectionClosed", request.get().getType());
+	}
+
+	@Test
+	public void heldBackRequestCanBeCancelled() throws Exception {
+		FCPConnectionPool pool = new FCPConnectionPool(failingContexts(1), 1);
+		FCPMessage msg = pool.getMessage("ClientGet");
+		FCPRequest request = new FCPRequest(pool, msg, null);
+		pool.doRequest(request, msg);
+
+		request.cancel(false);
+		assertEquals(0, pool.getWaitingRequests());
+	}
+
+	@Test(expected = ConnectionTerminatedException.class)
+	public void requestFailsAfterKill() throws Exception {
+		FCPConnectionPool pool = new FCPConnectionPool(failingContexts(1), 1);
+		pool.kill();
+		pool.doRequest(null, pool.getMessage("ClientGet"));
+	}
+
+	@Test
+	public void requestIsNotRequeuedAfterKill() {
+		FCPConnectionPool pool = new FCPConnectionPool(failingContexts(1), 1);
+		pool.kill();
+		assertFalse(pool.requeue(pool.getMessage("ClientGet"), null));
+	}
+
+	@Test
+	public void limitedRequestWithoutConnectionTakesNoPermit() throws Exception {
+		FCPConnectionPool pool = new FCPConnectionPool(failingContexts(1), 1);
+		RequestType type = RequestType.RTS_POLL;
+		List<FCPRequest> requests = new ArrayList<FCPRequest>();
+		for(int i = 0; i < type.getMaxConcurrent() + 1; i++) {
+			FCPMessage msg = pool.getMessage("ClientGet");
+			FCPRequest request = new FCPRequest(pool, msg, null);
+			pool.doRequest(request, msg, type);
+			requests.add(request);
+		}
+
+		//Nothing blocked, and the requests wait for a connection without holding permits
+		assertEquals(type.getMaxConcurrent() + 1, pool.getWaitingRequests());
+		assertEquals(0, pool.getRunningRequests(type));
+		assertEquals(0, pool.getQueuedRequests(type));
+
+		requests.get(0).cancel(false);
+		assertEquals(type.getMaxConcurrent(), pool.getWaitingRequests());
+
+		pool.kill();
+		for(FCPRequest request : requests.subList(1, requests.size())) {
+			assertEquals("ConnectionClosed", request.get().getType());
+		}
+	}
+
+	@Test(expected = ConnectionTerminatedException.class)
+	public void limitedRequestFailsAfterKill() throws Exception {
+		FCPConnectionPool pool = new FCPConnectionPool(failingContexts(1), 1);
+		pool.kill();
+		pool.doRequest(null, pool.getMessage("ClientGet"), RequestType.RTS_POLL);
+	}
+
+	private static List<FCPContext> failingContexts(int count) {
+		List<FCPContext> contexts = new ArrayList<FCPContext>();
+		for(int i = 0; i < count; i++) {
+			contexts.add(new FCPContext() {
+				@Override
+				public Socket getConn() throws IOException {
+					throw new IOException();
+				}
+			});
+		}
+		return contexts;
+	}
+}
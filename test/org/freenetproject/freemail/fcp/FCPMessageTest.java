@@ -0,0 +1,158 @@
+/*
+ * FCPMessageTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.fcp;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.BucketTools;
+
+public class FCPMessageTest {
+	@Test
+	public void smallPayloadIsKeptInMemory() throws IOException {
+		byte[] payload = "messagetype=ack\r\nid=1\r\n\r\n".getBytes("UTF-8");
+		FCPMessage msg = new FCPMessage(new ByteArrayInputStream(allData(payload)));
+
+		assertEquals("AllData", msg.getType());
+		assertEquals("1", msg.getId());
+		Bucket data = msg.getData();
+		assertTrue(data instanceof ArrayBucket);
+		assertTrue(Arrays.equals(payload, BucketTools.toByteArray(data)));
+	}
+
+	@Test
+	public void truncatedPayloadIsDropped() throws IOException {
+		byte[] message = allData(new byte[100]);
+		byte[] truncated = Arrays.copyOf(message, message.length - 10);
+
+		FCPMessage msg = new FCPMessage(new ByteArrayInputStream(truncated));
+		assertEquals("AllData", msg.getType());
+		assertNull(msg.getData());
+	}
+
+	@Test
+	public void headerValuesMayContainEquals() throws IOException {
+		byte[] message = ("GetFailed\r\n"
+				+ "Identifier=7\r\n"
+				+ "RedirectURI=USK@abc,def,AQACAAE/site/-1/?a=b\r\n"
+				+ "EndMessage\r\n").getBytes("UTF-8");
+
+		FCPMessage msg = new FCPMessage(new ByteArrayInputStream(message));
+		assertEquals("GetFailed", msg.getType());
+		assertEquals("7", msg.getId());
+		assertEquals("USK@abc,def,AQACAAE/site/-1/?a=b", msg.headers.get("RedirectURI"));
+	}
+
+	@Test
+	public void endOfStreamGivesMessageWithoutType() throws IOException {
+		FCPMessage msg = new FCPMessage(new ByteArrayInputStream(new byte[0]));
+		assertNull(msg.getType());
+	}
+
+	@Test
+	public void messageSurvivesRoundTrip() throws Exception {
+		byte[] payload = new byte[3 * 1000];
+		for(int i = 0; i < payload.length; i++) {
+			payload[i] = (byte)i;
+		}
+
+		FCPMessage put = new FCPMessage(42, "ClientPut");
+		put.headers.put("URI", "KSK@t\u00e9st=1");
+		put.setData(new ByteArrayInputStream(payload), payload.length);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		put.writeto(out, new FCPEncoder());
+
+		FCPMessage read = new FCPMessage(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals("ClientPut", read.getType());
+		assertEquals("42", read.getId());
+		assertEquals("KSK@t\u00e9st=1", read.headers.get("URI"));
+		assertEquals("direct", read.headers.get("UploadFrom"));
+		assertEquals(Integer.toString(payload.length), read.headers.get("DataLength"));
+		assertTrue(Arrays.equals(payload, BucketTools.toByteArray(read.getData())));
+	}
+
+	@Test
+	public void onlyGivenLengthIsSent() throws Exception {
+		FCPMessage put = new FCPMessage(1, "ClientPut");
+		put.setData(new ByteArrayInputStream(new byte[100]), 10);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		put.writeto(out, new FCPEncoder());
+
+		FCPMessage read = new FCPMessage(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals(10, read.getData().size());
+	}
+
+	@Test(expected = IOException.class)
+	public void shortDataFailsWrite() throws Exception {
+		FCPMessage put = new FCPMessage(1, "ClientPut");
+		put.setData(new ByteArrayInputStream(new byte[5]), 10);
+		put.writeto(new ByteArrayOutputStream(), new FCPEncoder());
+	}
+
+	@Test(expected = IOException.class)
+	public void unreadableDataFailsWrite() throws Exception {
+		FCPMessage put = new FCPMessage(1, "ClientPut");
+		put.setData(new InputStream() {
+			@Override
+			public int read() throws IOException {
+				throw new IOException("Read failed");
+			}
+		}, 10);
+		put.writeto(new ByteArrayOutputStream(), new FCPEncoder());
+	}
+
+	@Test
+	public void lineBufferIsReused() throws IOException {
+		byte[] message = ("GetFailed\r\n"
+				+ "Identifier=1\r\n"
+				+ "EndMessage\r\n"
+				+ "PutFailed\r\n"
+				+ "Identifier=2\r\n"
+				+ "EndMessage\r\n").getBytes("UTF-8");
+		ByteArrayInputStream is = new ByteArrayInputStream(message);
+		FCPMessage.LineBuffer line = new FCPMessage.LineBuffer();
+
+		assertEquals("GetFailed", new FCPMessage(is, line).getType());
+		FCPMessage second = new FCPMessage(is, line);
+		assertEquals("PutFailed", second.getType());
+		assertEquals("2", second.getId());
+	}
+
+	private static byte[] allData(byte[] payload) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(("AllData\r\n"
+				+ "Identifier=1\r\n"
+				+ "DataLength=" + payload.length + "\r\n"
+				+ "Data\r\n").getBytes("UTF-8"));
+		out.write(payload);
+		return out.toByteArray();
+	}
+}
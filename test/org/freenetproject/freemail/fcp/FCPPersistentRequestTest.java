@@ -0,0 +1,329 @@
+/*
+ * FCPPersistentRequestTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.fcp;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FCPPersistentRequestTest {
+	private FakeNode node;
+	private FCPConnectionPool pool;
+
+	@Before
+	public void before() throws IOException {
+		node = new FakeNode();
+		node.start();
+
+		FCPContext ctx = new FCPContext() {
+			@Override
+			public Socket getConn() throws IOException {
+				return new Socket("localhost", node.getPort());
+			}
+		};
+		pool = new FCPConnectionPool(Collections.singletonList(ctx), 2, true);
+		pool.start();
+	}
+
+	@After
+	public void after() throws IOException {
+		pool.kill();
+		node.close();
+	}
+
+	@Test(timeout = 10000)
+	public void oneConnectionWatchesGlobalQueue() throws Exception {
+		Received watch = node.receive("WatchGlobal");
+
+		//Persistent requests go to the connection that gets their messages
+		for(int i = 0; i < 4; i++) {
+			FCPMessage put = newPut("Freemail-" + i);
+			pool.doRequest(new FCPRequest(pool, put, null), put);
+			assertSame(watch.socket, node.receive("ClientPut").socket);
+		}
+
+		assertNull(node.receive("WatchGlobal", 500));
+	}
+
+	@Test(timeout = 10000)
+	public void anotherConnectionWatchesWhenWatcherIsLost() throws Exception {
+		Received watch = node.receive("WatchGlobal");
+		watch.socket.close();
+
+		Received next = node.receive("WatchGlobal");
+		assertNotSame(watch.socket, next.socket);
+
+		FCPMessage put = newPut("Freemail-test");
+		pool.doRequest(new FCPRequest(pool, put, null), put);
+		assertSame(next.socket, node.receive("ClientPut").socket);
+	}
+
+	@Test(timeout = 10000)
+	public void cancelledRequestIsRemoved() throws Exception {
+		FCPMessage put = newPut("Freemail-cancelled");
+		FCPRequest request = new FCPRequest(pool, put, null);
+		pool.doRequest(request, put);
+		node.receive("ClientPut");
+
+		request.cancel(false);
+
+		Received remove = node.receive("RemoveRequest");
+		assertEquals("Freemail-cancelled", remove.msg.getId());
+		assertEquals("true", remove.msg.headers.get("Global"));
+	}
+
+	@Test(timeout = 10000)
+	public void retryWaitsForRemoval() throws Exception {
+		FCPMessage put = newPut("Freemail-retry");
+		FCPRequest request = new FCPRequest(pool, put, null);
+		pool.doRequest(request, put);
+
+		Received sent = node.receive("ClientPut");
+		node.send(sent.socket, "PutFailed", "Freemail-retry");
+		assertEquals("PutFailed", request.get(5, TimeUnit.SECONDS).getType());
+		assertEquals("Freemail-retry", node.receive("RemoveRequest").msg.getId());
+
+		//The same identifier can't be used until the node has removed the old request
+		FCPMessage retry = newPut("Freemail-retry");
+		FCPRequest retryRequest = new FCPRequest(pool, retry, null);
+		pool.doRequest(retryRequest, retry);
+		assertNull(node.receive("ClientPut", 500));
+
+		node.send(sent.socket, "PersistentRequestRemoved", "Freemail-retry");
+		Received resent = node.receive("ClientPut");
+		assertEquals("Freemail-retry", resent.msg.getId());
+
+		node.send(sent.socket, "PutSuccessful", "Freemail-retry");
+		assertEquals("PutSuccessful", retryRequest.get(5, TimeUnit.SECONDS).getType());
+	}
+
+	@Test(timeout = 10000)
+	public void otherRequestsOnGlobalQueueAreIgnored() throws Exception {
+		Received watch = node.receive("WatchGlobal");
+
+		FCPMessage put = newPut("Freemail-mine");
+		FCPRequest request = new FCPRequest(pool, put, null);
+		pool.doRequest(request, put);
+		node.receive("ClientPut");
+
+		node.send(watch.socket, "PutSuccessful", "Other-app");
+		node.send(watch.socket, "PutSuccessful", "Freemail-mine");
+		assertEquals("PutSuccessful", request.get(5, TimeUnit.SECONDS).getType());
+
+		//Only our own request is removed
+		assertEquals("Freemail-mine", node.receive("RemoveRequest").msg.getId());
+	}
+
+	@Test(timeout = 10000)
+	public void requestIsReattachedAfterConnectionLoss() throws Exception {
+		FCPMessage put = newPut("Freemail-test");
+		FCPRequest request = new FCPRequest(pool, put, null);
+		pool.doRequest(request, put);
+
+		Received sent = node.receive("ClientPut");
+		assertEquals("forever", sent.msg.headers.get("Persistence"));
+		sent.socket.close();
+
+		//The other connection takes over and asks what the node still has
+		assertNotSame(sent.socket, node.receive("WatchGlobal").socket);
+		Received list = node.receive("ListPersistentRequests");
+		assertNotSame(sent.socket, list.socket);
+		node.send(list.socket, "PersistentPut", "Freemail-test");
+		node.send(list.socket, "PutSuccessful", "Freemail-test");
+		node.send(list.socket, "EndListPersistentRequests", null);
+
+		assertEquals("PutSuccessful", request.get(5, TimeUnit.SECONDS).getType());
+
+		//Finished requests are removed from the global queue
+		Received remove = node.receive("RemoveRequest");
+		assertEquals("Freemail-test", remove.msg.getId());
+		assertEquals("true", remove.msg.headers.get("Global"));
+	}
+
+	@Test(timeout = 10000)
+	public void requestUnknownToNodeFails() throws Exception {
+		FCPMessage put = newPut("Freemail-lost");
+		FCPRequest request = new FCPRequest(pool, put, null);
+		pool.doRequest(request, put);
+
+		node.receive("ClientPut").socket.close();
+
+		Received list = node.receive("ListPersistentRequests");
+		node.send(list.socket, "EndListPersistentRequests", null);
+
+		assertEquals("ConnectionClosed", request.get(5, TimeUnit.SECONDS).getType());
+	}
+
+	@Test(timeout = 10000)
+	public void collisionWaitsForExistingRequest() throws Exception {
+		FCPMessage put = newPut("Freemail-old");
+		FCPRequest request = new FCPRequest(pool, put, null);
+		pool.doRequest(request, put);
+
+		Received sent = node.receive("ClientPut");
+		node.send(sent.socket, "IdentifierCollision", "Freemail-old");
+
+		Received list = node.receive("ListPersistentRequests");
+		assertFalse(request.isDone());
+		node.send(list.socket, "PersistentPut", "Freemail-old");
+		node.send(list.socket, "PutFailed", "Freemail-old");
+		node.send(list.socket, "EndListPersistentRequests", null);
+
+		assertEquals("PutFailed", request.get(5, TimeUnit.SECONDS).getType());
+	}
+
+	private static FCPMessage newPut(String identifier) {
+		FCPMessage put = new FCPMessage(identifier, "ClientPut");
+		put.headers.put("URI", "KSK@test");
+		put.headers.put("Persistence", "forever");
+		put.headers.put("Global", "true");
+		put.setData(new ByteArrayInputStream(new byte[10]), 10);
+		return put;
+	}
+
+	private static class Received {
+		private final Socket socket;
+		private final FCPMessage msg;
+
+		private Received(Socket socket, FCPMessage msg) {
+			this.socket = socket;
+			this.msg = msg;
+		}
+	}
+
+	/**
+	 * Accepts connections, answers ClientHello and records every other message.
+	 */
+	private static class FakeNode extends Thread {
+		private final ServerSocket serverSocket;
+		private final List<Socket> sockets = Collections.synchronizedList(new ArrayList<Socket>());
+		private final BlockingQueue<Received> received = new LinkedBlockingQueue<Received>();
+
+		private FakeNode() throws IOException {
+			serverSocket = new ServerSocket(0);
+			setDaemon(true);
+		}
+
+		private int getPort() {
+			return serverSocket.getLocalPort();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while(true) {
+					final Socket socket = serverSocket.accept();
+					sockets.add(socket);
+					Thread reader = new Thread() {
+						@Override
+						public void run() {
+							read(socket);
+						}
+					};
+					reader.setDaemon(true);
+					reader.start();
+				}
+			} catch(IOException e) {
+				//Closed
+			}
+		}
+
+		private void read(Socket socket) {
+			try {
+				while(true) {
+					FCPMessage msg = new FCPMessage(socket.getInputStream());
+					if(msg.getType() == null) {
+						return;
+					}
+					if(msg.getType().equals("ClientHello")) {
+						send(socket, "NodeHello", null);
+					} else {
+						received.add(new Received(socket, msg));
+					}
+				}
+			} catch(IOException e) {
+				//Closed
+			}
+		}
+
+		/**
+		 * Returns the next message of the given type, skipping other messages.
+		 */
+		private Received receive(String type) throws InterruptedException {
+			while(true) {
+				Received r = received.take();
+				if(r.msg.getType().equals(type)) {
+					return r;
+				}
+			}
+		}
+
+		/**
+		 * Returns the next message of the given type, skipping other messages, or
+		 * {@code null} if there is none within the timeout.
+		 */
+		private Received receive(String type, long timeout) throws InterruptedException {
+			long end = System.currentTimeMillis() + timeout;
+			while(true) {
+				Received r = received.poll(end - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+				if(r == null || r.msg.getType().equals(type)) {
+					return r;
+				}
+			}
+		}
+
+		private void send(Socket socket, String type, String identifier) throws IOException {
+			StringBuilder msg = new StringBuilder(type).append("\r\n");
+			if(identifier != null) {
+				msg.append("Identifier=").append(identifier).append("\r\n");
+			}
+			msg.append("EndMessage\r\n");
+
+			OutputStream os = socket.getOutputStream();
+			synchronized(socket) {
+				os.write(msg.toString().getBytes("UTF-8"));
+				os.flush();
+			}
+		}
+
+		private void close() throws IOException {
+			serverSocket.close();
+			synchronized(sockets) {
+				for(Socket socket : sockets) {
+					socket.close();
+				}
+			}
+		}
+	}
+}
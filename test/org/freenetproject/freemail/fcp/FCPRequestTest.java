@@ -0,0 +1,102 @@
+/*
+ * FCPRequestTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.fcp;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class FCPRequestTest {
+	private FCPConnectionPool conn;
+
+	@Before
+	public void before() {
+		//A connection that never manages to connect to the node
+		FCPContext ctx = new FCPContext() {
+			@Override
+			public Socket getConn() throws IOException {
+				throw new IOException();
+			}
+		};
+		conn = new FCPConnectionPool(Collections.<FCPContext>singletonList(ctx), 1);
+	}
+
+	@Test(timeout = 10000)
+	public void replyIsDeliveredToWaiter() throws Exception {
+		final FCPRequest request = new FCPRequest(conn, conn.getMessage("ClientGet"), null);
+		final FCPMessage reply = new FCPMessage(1, "AllData");
+
+		Thread finisher = new Thread() {
+			@Override
+			public void run() {
+				request.requestFinished(reply);
+			}
+		};
+		finisher.start();
+
+		assertSame(reply, request.get());
+		assertTrue(request.isDone());
+		assertFalse(request.isCancelled());
+	}
+
+	@Test
+	public void listenerIsCalled() {
+		final FCPMessage[] received = new FCPMessage[1];
+		FCPRequest request = new FCPRequest(conn, conn.getMessage("ClientGet"), new FCPClient() {
+			@Override
+			public void requestFinished(FCPMessage msg) {
+				received[0] = msg;
+			}
+
+			@Override
+			public void requestStatus(FCPMessage msg) {
+				fail("Unexpected status message");
+			}
+		});
+
+		FCPMessage reply = new FCPMessage(1, "PutSuccessful");
+		request.requestFinished(reply);
+		assertSame(reply, received[0]);
+	}
+
+	@Test(expected = TimeoutException.class)
+	public void getTimesOut() throws Exception {
+		FCPRequest request = new FCPRequest(conn, conn.getMessage("ClientGet"), null);
+		request.get(10, TimeUnit.MILLISECONDS);
+	}
+
+	@Test(expected = CancellationException.class)
+	public void cancelledRequestIgnoresReply() throws Exception {
+		FCPRequest request = new FCPRequest(conn, conn.getMessage("ClientGet"), null);
+		assertTrue(request.cancel(false));
+		request.requestFinished(new FCPMessage(1, "AllData"));
+
+		assertTrue(request.isCancelled());
+		request.get();
+	}
+}
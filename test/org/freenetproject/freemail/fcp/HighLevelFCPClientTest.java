@@ -0,0 +1,323 @@
+/*
+ * HighLevelFCPClientTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.fcp;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fakes.FakeFreenetNode;
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.BucketTools;
+
+public class HighLevelFCPClientTest {
+	private FakeFreenetNode node;
+	private FCPConnectionPool pool;
+	private HighLevelFCPClient client;
+
+	@Before
+	public void before() throws IOException {
+		node = new FakeFreenetNode();
+		node.start();
+
+		pool = new FCPConnectionPool(Collections.singletonList(newContext(node)), 2);
+		pool.start();
+		client = new HighLevelFCPClient(pool);
+	}
+
+	@After
+	public void after() {
+		pool.kill();
+		node.stop();
+	}
+
+	@Test(timeout = 10000)
+	public void insertedDataCanBeFetched() throws Exception {
+		assertNull(put("KSK@test", "Hello"));
+
+		assertEquals("Hello", fetch("KSK@test"));
+	}
+
+	@Test(timeout = 10000)
+	public void insertOfDifferentDataCollides() throws Exception {
+		assertNull(put("KSK@test", "First"));
+
+		FCPPutFailedException e = put("KSK@test", "Second");
+		assertNotNull(e);
+		assertEquals(FCPPutFailedException.COLLISION, e.errorcode);
+		assertEquals("First", fetch("KSK@test"));
+	}
+
+	@Test(timeout = 10000)
+	public void slotInsertSkipsUsedSlots() throws Exception {
+		assertNull(put("KSK@slot-1", "Used"));
+		assertNull(put("KSK@slot-2", "Used"));
+
+		assertEquals(3, client.slotInsert("New".getBytes("UTF-8"), "KSK@slot", 1, ""));
+		assertEquals("New", fetch("KSK@slot-3"));
+	}
+
+	@Test(timeout = 10000)
+	public void missingDataIsNotFound() throws Exception {
+		try {
+			client.fetch("KSK@missing");
+			fail("Fetch of missing key succeeded");
+		} catch(FCPFetchException e) {
+			assertEquals(FCPFetchException.DATA_NOT_FOUND, e.getCode());
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void lostInsertIsNotFound() throws Exception {
+		node.setLossRate(1);
+		assertNull(put("KSK@test", "Lost"));
+
+		assertNull(node.getData("KSK@test"));
+	}
+
+	@Test(timeout = 10000)
+	public void sskInsertCanBeFetchedWithRequestKey() throws Exception {
+		SSKKeyPair keyPair = client.makeSSK();
+		assertNotNull(keyPair);
+		assertFalse(keyPair.privkey.equals(keyPair.pubkey));
+
+		assertNull(put(keyPair.privkey + "mailsite-1/index.html", "Site"));
+		assertEquals("Site", fetch(keyPair.pubkey + "mailsite-1/index.html"));
+		assertEquals("Site", fetch("USK@" + keyPair.pubkey.substring("SSK@".length()) + "mailsite/-1/index.html"));
+	}
+
+	@Test(timeout = 10000)
+	public void repliesAreDelayedByLatency() throws Exception {
+		node.setLatency(200);
+
+		long start = System.currentTimeMillis();
+		assertNull(put("KSK@test", "Slow"));
+		assertTrue(System.currentTimeMillis() - start >= 200);
+	}
+
+	@Test(timeout = 10000)
+	public void requestWaitsForNodeToStart() throws Exception {
+		final FakeFreenetNode lateNode = new FakeFreenetNode();
+		final AtomicBoolean started = new AtomicBoolean(false);
+		FCPContext ctx = new FCPContext() {
+			@Override
+			public Socket getConn() throws IOException {
+				if(!started.get()) {
+					throw new IOException("Connection refused");
+				}
+				return new Socket("localhost", lateNode.getPort());
+			}
+		};
+
+		FCPConnectionPool latePool = new FCPConnectionPool(Collections.singletonList(ctx), 1);
+		try {
+			latePool.start();
+			final BlockingQueue<String> results = new LinkedBlockingQueue<String>();
+			FCPRequest request = new HighLevelFCPClient(latePool).putAsync(
+					new ByteArrayInputStream(new byte[] {1, 2, 3}), "KSK@late", new FCPCallback<Void>() {
+						@Override
+						public void onSuccess(Void result) {
+							results.add("Success");
+						}
+
+						@Override
+						public void onFailure(Exception e) {
+							results.add(e.toString());
+						}
+					});
+			assertFalse(request.isDone());
+
+			lateNode.start();
+			started.set(true);
+			assertEquals("Success", results.poll(5, TimeUnit.SECONDS));
+			assertEquals(1, lateNode.getInsertCount());
+		} finally {
+			latePool.kill();
+			lateNode.stop();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void asyncFetchesShareLimitOfType() throws Exception {
+		node.setLatency(2000);
+		final RequestType type = RequestType.MAILSITE_INSERT;
+		List<FCPRequest> requests = new ArrayList<FCPRequest>();
+		for(int i = 0; i < type.getMaxConcurrent() + 2; i++) {
+			requests.add(client.fetchAsync("KSK@missing-" + i, type, new IgnoringCallback()));
+		}
+
+		//The fetches above the limit are queued instead of blocking the caller
+		assertEquals(type.getMaxConcurrent(), pool.getRunningRequests(type));
+		assertEquals(2, pool.getQueuedRequests(type));
+
+		//Cancelling a queued fetch takes it out of the queue
+		assertTrue(requests.get(requests.size() - 1).cancel(false));
+		assertEquals(1, pool.getQueuedRequests(type));
+
+		//Cancelling a running fetch gives its permit to the next one
+		assertTrue(requests.get(0).cancel(false));
+		assertEquals(type.getMaxConcurrent(), pool.getRunningRequests(type));
+		assertEquals(0, pool.getQueuedRequests(type));
+	}
+
+	@Test(timeout = 10000)
+	public void finishedAsyncFetchReleasesPermit() throws Exception {
+		final RequestType type = RequestType.MAILSITE_INSERT;
+		final BlockingQueue<String> results = new LinkedBlockingQueue<String>();
+		for(int i = 0; i < type.getMaxConcurrent() * 3; i++) {
+			client.fetchAsync("KSK@missing", type, new FCPCallback<Bucket>() {
+				@Override
+				public void onSuccess(Bucket result) {
+					results.add("Success");
+				}
+
+				@Override
+				public void onFailure(Exception e) {
+					results.add("Failure");
+				}
+			});
+		}
+		for(int i = 0; i < type.getMaxConcurrent() * 3; i++) {
+			assertEquals("Failure", results.poll(5, TimeUnit.SECONDS));
+		}
+		assertEquals(0, pool.getRunningRequests(type));
+	}
+
+	@Test(timeout = 10000)
+	public void requestWithoutConnectionDoesNotHoldPermit() throws Exception {
+		final FakeFreenetNode lateNode = new FakeFreenetNode();
+		final AtomicBoolean started = new AtomicBoolean(false);
+		FCPContext ctx = new FCPContext() {
+			@Override
+			public Socket getConn() throws IOException {
+				if(!started.get()) {
+					throw new IOException("Connection refused");
+				}
+				return new Socket("localhost", lateNode.getPort());
+			}
+		};
+
+		FCPConnectionPool latePool = new FCPConnectionPool(Collections.singletonList(ctx), 1);
+		try {
+			latePool.start();
+			final RequestType type = RequestType.MAILSITE_INSERT;
+			final int fetches = type.getMaxConcurrent() * 3;
+			final BlockingQueue<String> results = new LinkedBlockingQueue<String>();
+			HighLevelFCPClient lateClient = new HighLevelFCPClient(latePool);
+			for(int i = 0; i < fetches; i++) {
+				lateClient.fetchAsync("KSK@missing-" + i, type, new FCPCallback<Bucket>() {
+					@Override
+					public void onSuccess(Bucket result) {
+						results.add("Success");
+					}
+
+					@Override
+					public void onFailure(Exception e) {
+						results.add("Failure");
+					}
+				});
+			}
+
+			//All the fetches wait for the node, and none of them holds a permit
+			assertEquals(fetches, latePool.getWaitingRequests());
+			assertEquals(0, latePool.getRunningRequests(type));
+
+			//Once connected they run, no more than the limit at a time
+			lateNode.setLatency(50);
+			lateNode.start();
+			started.set(true);
+			for(int i = 0; i < fetches; i++) {
+				assertEquals("Failure", results.poll(5, TimeUnit.SECONDS));
+				assertTrue(latePool.getRunningRequests(type) <= type.getMaxConcurrent());
+			}
+			assertEquals(fetches, lateNode.getFetchCount());
+		} finally {
+			latePool.kill();
+			lateNode.stop();
+		}
+	}
+
+	@Test
+	public void persistentIdentifierDependsOnKeyAndData() throws Exception {
+		String id = HighLevelFCPClient.persistentIdentifier("KSK@test", new ArrayBucket("Data".getBytes("UTF-8")));
+		assertTrue(id.startsWith(FCPConnection.PERSISTENT_PREFIX));
+
+		//Inserting the same data again finds the earlier request
+		assertEquals(id, HighLevelFCPClient.persistentIdentifier("KSK@test", new ArrayBucket("Data".getBytes("UTF-8"))));
+
+		//Other data for the same key, or the same data for another key, is a new request
+		assertFalse(id.equals(HighLevelFCPClient.persistentIdentifier("KSK@test", new ArrayBucket("Other".getBytes("UTF-8")))));
+		assertFalse(id.equals(HighLevelFCPClient.persistentIdentifier("KSK@other", new ArrayBucket("Data".getBytes("UTF-8")))));
+	}
+
+	private static class IgnoringCallback implements FCPCallback<Bucket> {
+		@Override
+		public void onSuccess(Bucket result) {
+			if(result != null) {
+				result.free();
+			}
+		}
+
+		@Override
+		public void onFailure(Exception e) {
+			//Ignore
+		}
+	}
+
+	private FCPPutFailedException put(String key, String data) throws Exception {
+		byte[] bytes = data.getBytes("UTF-8");
+		return client.put(new ByteArrayInputStream(bytes), bytes.length, key);
+	}
+
+	private String fetch(String key) throws Exception {
+		Bucket result = client.fetch(key);
+		try {
+			return new String(BucketTools.toByteArray(result), "UTF-8");
+		} finally {
+			result.free();
+		}
+	}
+
+	private static FCPContext newContext(final FakeFreenetNode node) {
+		return new FCPContext() {
+			@Override
+			public Socket getConn() throws IOException {
+				if(node == null) {
+					throw new IOException("Connection refused");
+				}
+				return new Socket("localhost", node.getPort());
+			}
+		};
+	}
+}
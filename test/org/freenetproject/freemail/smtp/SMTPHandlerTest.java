@@ -47,6 +47,10 @@ public class SMTPHandlerTest extends SMTPTestBase {
 		List<String> expectedResponse = new LinkedList<String>();
 		expectedResponse.add("220 localhost ready");
 		expectedResponse.add("250-localhost");
+		expectedResponse.add("250-PIPELINING");
+		expectedResponse.add("250-8BITMIME");
+		expectedResponse.add("250-SIZE " + SMTPHandler.DEFAULT_MAX_MESSAGE_SIZE);
+		expectedResponse.add("250-CHUNKING");
 		expectedResponse.add("250 AUTH LOGIN PLAIN");
 
 		runSimpleTest(commands, expectedResponse);
@@ -109,6 +109,10 @@ public class SMTPSessionTest {
 		List<Command> commands = new LinkedList<Command>();
 		commands.add(new Command(null, "220 localhost ready"));
 		commands.add(new Command("EHLO", "250-localhost",
+		                                 "250-PIPELINING",
+		                                 "250-8BITMIME",
+		                                 "250-SIZE " + SMTPHandler.DEFAULT_MAX_MESSAGE_SIZE,
+		                                 "250-CHUNKING",
 		                                 "250 AUTH LOGIN PLAIN"));
 		commands.add(new Command("AUTH PLAIN " + authData, "235 Authenticated"));
 		commands.add(new Command("MAIL FROM:<" + TestId1Data.FreemailAccount.ADDRESS + ">", "250 OK"));
@@ -142,6 +146,10 @@ public class SMTPSessionTest {
 		List<Command> commands = new LinkedList<Command>();
 		commands.add(new Command(null, "220 localhost ready"));
 		commands.add(new Command("EHLO", "250-localhost",
+		                                 "250-PIPELINING",
+		                                 "250-8BITMIME",
+		                                 "250-SIZE " + SMTPHandler.DEFAULT_MAX_MESSAGE_SIZE,
+		                                 "250-CHUNKING",
 		                                 "250 AUTH LOGIN PLAIN"));
 		commands.add(new Command("AUTH PLAIN " + authData, "235 Authenticated"));
 		commands.add(new Command("MAIL FROM:<" + TestId1Data.FreemailAccount.ADDRESS + ">", "250 OK"));
@@ -184,6 +192,10 @@ public class SMTPSessionTest {
 		List<Command> commands = new LinkedList<Command>();
 		commands.add(new Command(null, "220 localhost ready"));
 		commands.add(new Command("EHLO", "250-localhost",
+		                                 "250-PIPELINING",
+		                                 "250-8BITMIME",
+		                                 "250-SIZE " + SMTPHandler.DEFAULT_MAX_MESSAGE_SIZE,
+		                                 "250-CHUNKING",
 		                                 "250 AUTH LOGIN PLAIN"));
 		commands.add(new Command("AUTH PLAIN " + authData, "235 Authenticated"));
 		commands.add(new Command("MAIL FROM:<" + TestId1Data.FreemailAccount.ADDRESS + ">", "250 OK"));
@@ -226,6 +238,10 @@ public class SMTPSessionTest {
 		List<Command> commands = new LinkedList<Command>();
 		commands.add(new Command(null, "220 localhost ready"));
 		commands.add(new Command("EHLO", "250-localhost",
+		                                 "250-PIPELINING",
+		                                 "250-8BITMIME",
+		                                 "250-SIZE " + SMTPHandler.DEFAULT_MAX_MESSAGE_SIZE,
+		                                 "250-CHUNKING",
 		                                 "250 AUTH LOGIN PLAIN"));
 		commands.add(new Command("AUTH PLAIN " + authData, "235 Authenticated"));
 
@@ -252,6 +268,82 @@ public class SMTPSessionTest {
 		runSimpleSessionTest(commands, true, messages, recipients);
 	}
 
+	/**
+	 * Sends a message where the MAIL, RCPT and DATA commands are sent in one
+	 * group, as allowed by PIPELINING (see <a href="https://tools.ietf.org/html/rfc2920">RFC2920</a>).
+	 *
+	 * @throws IOException on IO errors with SMTP thread, should never happen
+	 */
+	@Test
+	public void pipelinedSession() throws IOException {
+		Assume.assumeTrue(UnitTestParameters.EXTENSIVE);
+
+		final String message =
+				  "Date: Thu, 21 May 1998 05:33:29 -0700\r\n"
+				+ "From: " + TestId1Data.FreemailAccount.ADDRESS_WITH_ANGLE + "\r\n"
+				+ "Subject: Freemail SMTP test\r\n"
+				+ "To: " + TestId1Data.FreemailAccount.ADDRESS_WITH_ANGLE + "\r\n"
+				+ "\r\n"
+				+ "This is a pipelined SMTP test for Freemail\r\n";
+
+		String authData = new String(Base64.encode(("\0" + TestId1Data.Identity.ID + "\0" + PASSWORD).getBytes("ASCII")), "ASCII");
+		List<Command> commands = new LinkedList<Command>();
+		commands.add(new Command(null, "220 localhost ready"));
+		commands.add(new Command("EHLO", "250-localhost",
+		                                 "250-PIPELINING",
+		                                 "250-8BITMIME",
+		                                 "250-SIZE " + SMTPHandler.DEFAULT_MAX_MESSAGE_SIZE,
+		                                 "250-CHUNKING",
+		                                 "250 AUTH LOGIN PLAIN"));
+		commands.add(new Command("AUTH PLAIN " + authData, "235 Authenticated"));
+		commands.add(new Command("MAIL FROM:<" + TestId1Data.FreemailAccount.ADDRESS + "> BODY=8BITMIME\r\n"
+		                         + "RCPT TO:<" + TestId1Data.FreemailAccount.ADDRESS + ">\r\n"
+		                         + "DATA",
+		                         "250 OK", "250 OK", "354 Go crazy"));
+		commands.add(new Command(message + ".\r\n", "250 So be it"));
+
+		runSimpleSessionTest(commands, true, Collections.singletonList(message),
+		                     Collections.singletonList(TestId1Data.FreemailAccount.ADDRESS));
+	}
+
+	/**
+	 * Sends a message in two chunks using BDAT (see <a href="https://tools.ietf.org/html/rfc3030">RFC3030</a>).
+	 * The message contains a line with a single dot, which must not be treated
+	 * specially.
+	 *
+	 * @throws IOException on IO errors with SMTP thread, should never happen
+	 */
+	@Test
+	public void chunkedSession() throws IOException {
+		Assume.assumeTrue(UnitTestParameters.EXTENSIVE);
+
+		final String header =
+				  "Date: Thu, 21 May 1998 05:33:29 -0700\r\n"
+				+ "From: " + TestId1Data.FreemailAccount.ADDRESS_WITH_ANGLE + "\r\n"
+				+ "Subject: Freemail SMTP test\r\n"
+				+ "To: " + TestId1Data.FreemailAccount.ADDRESS_WITH_ANGLE + "\r\n"
+				+ "\r\n";
+		final String body =
+				  "This is a chunked SMTP test for Freemail\r\n"
+				+ ".\r\n";
+
+		String authData = new String(Base64.encode(("\0" + TestId1Data.Identity.ID + "\0" + PASSWORD).getBytes("ASCII")), "ASCII");
+		List<Command> commands = new LinkedList<Command>();
+		commands.add(new Command(null, "220 localhost ready"));
+		commands.add(new Command("AUTH PLAIN " + authData, "235 Authenticated"));
+		commands.add(new Command("MAIL FROM:<" + TestId1Data.FreemailAccount.ADDRESS + ">", "250 OK"));
+		commands.add(new Command("RCPT TO:<" + TestId1Data.FreemailAccount.ADDRESS + ">", "250 OK"));
+
+		//The tester appends \r\n to each command, which ends each chunk
+		commands.add(new Command("BDAT " + header.length() + "\r\n" + header.substring(0, header.length() - 2),
+		                         "250 " + header.length() + " octets received"));
+		commands.add(new Command("BDAT " + body.length() + " LAST\r\n" + body.substring(0, body.length() - 2),
+		                         "250 So be it"));
+
+		runSimpleSessionTest(commands, true, Collections.singletonList(header + body),
+		                     Collections.singletonList(TestId1Data.FreemailAccount.ADDRESS));
+	}
+
 	/**
 	 * Sets up the SMTP server and supporting mocks and runs through the commands and the expected
 	 * responses, then quit. The list of recipients can only contain one recipient per message.
@@ -0,0 +1,283 @@
+/*
+ * ChannelRegistryTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package org.freenetproject.freemail.transport;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.archive.util.Base32;
+import org.freenetproject.freemail.utils.PropsFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import utils.Utils;
+
+import fakes.MockExecutor;
+import fakes.MockFreemail;
+import fakes.MockHighLevelFCPClient;
+
+public class ChannelRegistryTest {
+	private static final File TEST_DIR = new File("channelregistrytest");
+
+	@Before
+	public void before() {
+		Utils.createDir(TEST_DIR);
+	}
+
+	@After
+	public void after() {
+		Utils.delete(TEST_DIR);
+	}
+
+	@Test
+	public void idleChannelIsNotLoaded() throws IOException {
+		File channelDir = new File(TEST_DIR, "idle");
+		Utils.createDir(channelDir);
+		Utils.createDir(new File(channelDir, "0"));
+
+		PropsFile index = PropsFile.createPropsFile(new File(channelDir, ChannelRegistry.INDEX_NAME));
+		index.put("0.remoteId", "remote");
+		index.put("0.nextPoll", "0");
+		index.put("0.pollInterval", "60000");
+
+		RecordingFactory factory = new RecordingFactory();
+		ChannelRegistry registry = new ChannelRegistry(channelDir, null, factory);
+		assertTrue(factory.created.isEmpty());
+		assertEquals(0, registry.loadedCount());
+	}
+
+	@Test
+	public void timedOutChannelIsDeleted() throws IOException {
+		File channelDir = new File(TEST_DIR, "timedout");
+		Utils.createDir(channelDir);
+		File dir = new File(channelDir, "0");
+		Utils.createDir(dir);
+
+		RecordingFactory factory = new RecordingFactory();
+		ChannelRegistry registry = new ChannelRegistry(channelDir, null, factory);
+		assertEquals(1, factory.created.size());
+		assertEquals(dir, factory.created.get(0));
+		assertFalse(dir.exists());
+		assertEquals(0, registry.loadedCount());
+	}
+
+	@Test
+	public void leastRecentlyUsedChannelIsUnloaded() throws IOException {
+		File channelDir = new File(TEST_DIR, "lru");
+		ChannelFixture fixture = new ChannelFixture(channelDir, ChannelRegistry.MAX_LOADED + 1);
+		ChannelRegistry registry = new ChannelRegistry(channelDir, fixture.freemail, fixture);
+		registry.start();
+		assertEquals(0, registry.loadedCount());
+
+		for(int i = 0; i <= ChannelRegistry.MAX_LOADED; i++) {
+			Channel channel = registry.acquireSendChannel("remote" + i);
+			assertEquals(Integer.toString(i), channel.getName());
+			registry.release(channel);
+		}
+
+		assertEquals(ChannelRegistry.MAX_LOADED, registry.loadedCount());
+		assertTrue(fixture.isUnloaded(0));
+		for(int i = 1; i <= ChannelRegistry.MAX_LOADED; i++) {
+			assertFalse(fixture.isUnloaded(i));
+		}
+	}
+
+	@Test
+	public void acquiredChannelIsNotUnloaded() throws IOException {
+		File channelDir = new File(TEST_DIR, "pinned");
+		ChannelFixture fixture = new ChannelFixture(channelDir, ChannelRegistry.MAX_LOADED + 1);
+		ChannelRegistry registry = new ChannelRegistry(channelDir, fixture.freemail, fixture);
+		registry.start();
+
+		//The first channel is the least recently used one, but it is still in use
+		Channel pinned = registry.acquireSendChannel("remote0");
+		for(int i = 1; i <= ChannelRegistry.MAX_LOADED; i++) {
+			registry.release(registry.acquireSendChannel("remote" + i));
+		}
+
+		assertEquals(ChannelRegistry.MAX_LOADED, registry.loadedCount());
+		assertFalse(fixture.isUnloaded(0));
+		assertTrue(fixture.isUnloaded(1));
+
+		registry.release(pinned);
+		assertEquals(ChannelRegistry.MAX_LOADED, registry.loadedCount());
+	}
+
+	@Test
+	public void pollLoadsChannelAndUnloadsItAfterwards() throws Exception {
+		File channelDir = new File(TEST_DIR, "poll");
+		ChannelFixture fixture = new ChannelFixture(channelDir, ChannelRegistry.MAX_LOADED + 1);
+		PropsFile index = PropsFile.createPropsFile(new File(channelDir, ChannelRegistry.INDEX_NAME));
+		index.put("0.nextPoll", "0");
+		ChannelRegistry registry = new ChannelRegistry(channelDir, fixture.freemail, fixture);
+		registry.start();
+
+		//Keep all the other channels loaded so the polled channel is the one to unload
+		List<Channel> pinned = new ArrayList<Channel>();
+		for(int i = 1; i <= ChannelRegistry.MAX_LOADED; i++) {
+			pinned.add(registry.acquireSendChannel("remote" + i));
+		}
+		assertEquals(ChannelRegistry.MAX_LOADED, registry.loadedCount());
+
+		long before = System.currentTimeMillis();
+		fixture.pollExecutor.runNext(); //Dispatcher, which starts the poll that is due
+		fixture.pollExecutor.runNext(); //The poll
+
+		//The channel was loaded for the poll, and unloaded with the schedule of its next poll
+		fixture.fcpClient.awaitFetch(ChannelFixture.PUBLIC_KEY + "fetchcode-" + ChannelFixture.FETCH_SLOT, 10, TimeUnit.SECONDS);
+		assertEquals(1, fixture.count("0"));
+		assertEquals(ChannelRegistry.MAX_LOADED, registry.loadedCount());
+		assertTrue(fixture.isUnloaded(0));
+		assertTrue(Long.parseLong(index.get("0.nextPoll")) >= before + ChannelFixture.POLL_INTERVAL);
+
+		for(Channel channel : pinned) {
+			registry.release(channel);
+		}
+	}
+
+	@Test
+	public void concurrentSendersShareNewChannel() throws Exception {
+		File channelDir = new File(TEST_DIR, "concurrent");
+		final ChannelFixture fixture = new ChannelFixture(channelDir, 0);
+		final ChannelRegistry registry = new ChannelRegistry(channelDir, fixture.freemail, fixture);
+
+		final List<Channel> acquired = new ArrayList<Channel>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int i = 0; i < 8; i++) {
+			Thread t = new Thread() {
+				@Override
+				public void run() {
+					Channel channel = registry.acquireSendChannel("remote");
+					synchronized(acquired) {
+						acquired.add(channel);
+					}
+				}
+			};
+			threads.add(t);
+			t.start();
+		}
+		for(Thread t : threads) {
+			t.join();
+		}
+
+		assertEquals(8, acquired.size());
+		for(Channel channel : acquired) {
+			assertSame(acquired.get(0), channel);
+		}
+		assertEquals(1, channelDir.list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return !name.equals(ChannelRegistry.INDEX_NAME);
+			}
+		}).length);
+	}
+
+	/**
+	 * Creates real channels to remoteN in directory N, all of which only have polling
+	 * left to do and start out unloaded. Polls run on an executor that is run by the test.
+	 */
+	private static class ChannelFixture implements ChannelRegistry.ChannelFactory {
+		private static final String PUBLIC_KEY = "SSK@public,key,AQACAAE/";
+		private static final String FETCH_SLOT = Base32.encode(new byte[32]);
+		private static final long POLL_INTERVAL = TimeUnit.MINUTES.toMillis(10);
+
+		private final File channelDir;
+		private final MockExecutor executor = new MockExecutor();
+		private final MockExecutor pollExecutor = new MockExecutor();
+		private final FetchScheduler scheduler = new FetchScheduler(pollExecutor, 1000, POLL_INTERVAL, POLL_INTERVAL);
+		private final MockHighLevelFCPClient fcpClient = new MockHighLevelFCPClient(new HashMap<String, File>());
+		private final MockFreemail freemail;
+		private final PropsFile index;
+		private final Map<String, Integer> created = new HashMap<String, Integer>();
+
+		private ChannelFixture(File channelDir, int channels) throws IOException {
+			this.channelDir = channelDir;
+			Utils.createDir(channelDir);
+			freemail = new MockFreemail(new File(channelDir, "config").getPath(), null) {
+				@Override
+				public FetchScheduler getFetchScheduler() {
+					return scheduler;
+				}
+			};
+			freemail.setExecutor(executor);
+			new File(channelDir, "config").delete();
+
+			index = PropsFile.createPropsFile(new File(channelDir, ChannelRegistry.INDEX_NAME));
+			long nextPoll = System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1);
+			for(int i = 0; i < channels; i++) {
+				File dir = Utils.createDir(channelDir, Integer.toString(i));
+				PropsFile props = PropsFile.createPropsFile(new File(dir, "props"));
+				props.put("privateKey", "SSK@private,key,AQECAAE/");
+				props.put("publicKey", PUBLIC_KEY);
+				props.put("sendCode", "sendcode");
+				props.put("fetchCode", "fetchcode");
+				props.put("sendSlot", Base32.encode(new byte[32]));
+				props.put("fetchSlot", FETCH_SLOT);
+				props.put("sender-state", "cts-received");
+				props.put("remoteID", "remote" + i);
+				props.put("timeout", Long.toString(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1)));
+				PropsFile.uncache(new File(dir, "props"));
+
+				index.put(i + ".remoteId", "remote" + i);
+				index.put(i + ".nextPoll", Long.toString(nextPoll));
+				index.put(i + ".pollInterval", Long.toString(POLL_INTERVAL));
+			}
+		}
+
+		@Override
+		public synchronized Channel create(File dir, String remoteId) throws ChannelTimedOutException {
+			Integer count = created.get(dir.getName());
+			created.put(dir.getName(), Integer.valueOf(count == null ? 1 : count.intValue() + 1));
+			return new Channel(dir, executor, fcpClient, freemail, null, null, remoteId);
+		}
+
+		private synchronized int count(String name) {
+			Integer count = created.get(name);
+			return count == null ? 0 : count.intValue();
+		}
+
+		private boolean isUnloaded(int channel) {
+			return index.get(channel + ".nextPoll") != null;
+		}
+	}
+
+	/**
+	 * Records which channels are loaded, treating all of them as timed out.
+	 */
+	private static class RecordingFactory implements ChannelRegistry.ChannelFactory {
+		private final List<File> created = new ArrayList<File>();
+
+		@Override
+		public Channel create(File dir, String remoteId) throws ChannelTimedOutException {
+			created.add(dir);
+			throw new ChannelTimedOutException();
+		}
+	}
+}
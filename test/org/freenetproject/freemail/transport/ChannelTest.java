@@ -0,0 +1,304 @@
+/*
+ * ChannelTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.transport;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.archive.util.Base32;
+import org.freenetproject.freemail.utils.PropsFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import utils.Utils;
+
+import fakes.MockExecutor;
+import fakes.MockFreemail;
+import fakes.MockHighLevelFCPClient;
+import fakes.MockHighLevelFCPClient.Insert;
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+
+public class ChannelTest {
+	private static final File TEST_DIR = new File("channeltest");
+
+	private static final String PRIVATE_KEY = "SSK@private,key,AQECAAE/";
+	private static final String PUBLIC_KEY = "SSK@public,key,AQACAAE/";
+	private static final String SEND_CODE = "sendcode";
+	private static final String FETCH_CODE = "fetchcode";
+	private static final String SEND_SLOT = Base32.encode(new byte[32]);
+	private static final String FETCH_SLOT = Base32.encode(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10,
+			11, 12, 13, 14, 15, 16, 17, 18, 19, 20, 21, 22, 23, 24, 25, 26, 27, 28, 29, 30, 31, 32});
+
+	/* Each test uses its own channel since props files are cached by path */
+	private static int channelCount = 0;
+
+	private final Map<String, File> fetchResults = new HashMap<String, File>();
+	private final MockHighLevelFCPClient fcpClient = new MockHighLevelFCPClient(fetchResults);
+	private final MockExecutor executor = new MockExecutor();
+	private final FetchScheduler pollScheduler = new FetchScheduler(new MockExecutor(), 1000, 60000, 60000);
+	private final RecordingCallback callback = new RecordingCallback();
+	private MockFreemail freemail;
+	private File channelDir;
+
+	@Before
+	public void before() throws IOException {
+		Utils.createDir(TEST_DIR);
+		freemail = new MockFreemail(new File(TEST_DIR, "config").getPath(), null);
+		freemail.setExecutor(executor);
+
+		channelDir = Utils.createDir(TEST_DIR, "channel" + channelCount++);
+		PropsFile props = PropsFile.createPropsFile(new File(channelDir, "props"));
+		props.put("privateKey", PRIVATE_KEY);
+		props.put("publicKey", PUBLIC_KEY);
+		props.put("sendCode", SEND_CODE);
+		props.put("fetchCode", FETCH_CODE);
+		props.put("sendSlot", SEND_SLOT);
+		props.put("fetchSlot", FETCH_SLOT);
+		props.put("sender-state", "cts-received");
+		props.put("timeout", Long.toString(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1)));
+	}
+
+	@After
+	public void after() {
+		Utils.delete(TEST_DIR);
+	}
+
+	@Test
+	public void dueAcksAreInsertedTogether() throws Exception {
+		MessageLog ackLog = new MessageLog(new File(channelDir, "acklog"));
+		ackLog.add(3, "0");
+		ackLog.add(1, "0");
+		ackLog.add(2, Long.toString(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1)));
+
+		Channel channel = createChannel();
+		channel.startTasks();
+		executor.runNext(); //The ack inserter is the only task the channel starts
+
+		Insert insert = fcpClient.awaitInsert(PRIVATE_KEY + SEND_CODE + "-" + SEND_SLOT, 10, TimeUnit.SECONDS);
+		String data = new String(insert.data, "UTF-8");
+		assertTrue(data, data.startsWith("messagetype=ack\r\n"));
+		assertTrue(data, data.contains("\r\nbundles=true\r\n"));
+		assertTrue(data, data.endsWith("id=1,2,3\r\n\r\n"));
+		assertEquals(0, new MessageLog(new File(channelDir, "acklog")).size());
+	}
+
+	@Test
+	public void ackInsertClearsOldAckSlots() throws Exception {
+		MessageLog ackLog = new MessageLog(new File(channelDir, "acklog"));
+		ackLog.add(1, "0");
+		ackLog.add(2, "0");
+
+		//Slots that older versions assigned to the acks, but never used
+		PropsFile props = PropsFile.createPropsFile(new File(channelDir, "props"));
+		props.put("ack1.slot", "AAAA");
+		props.put("ack2.slot", "BBBB");
+
+		Channel channel = createChannel();
+		channel.startTasks();
+		executor.runNext(); //The ack inserter is the only task the channel starts
+
+		fcpClient.awaitInsert(PRIVATE_KEY + SEND_CODE + "-" + SEND_SLOT, 10, TimeUnit.SECONDS);
+		for(String key : props.listProps()) {
+			assertFalse(key, key.endsWith(".slot"));
+		}
+	}
+
+	@Test
+	public void ackWithSeveralIds() throws Exception {
+		fetchResults.put(PUBLIC_KEY + FETCH_CODE + "-" + FETCH_SLOT, writeFile("ack",
+				  "messagetype=ack\r\n"
+				+ "id=4, 5,x,6\r\n"
+				+ "\r\n"));
+
+		Channel channel = createChannel();
+		channel.pollFetcher();
+
+		List<Long> expected = new ArrayList<Long>();
+		expected.add(Long.valueOf(4));
+		expected.add(Long.valueOf(5));
+		expected.add(Long.valueOf(6));
+		assertEquals(expected, callback.acks);
+	}
+
+	@Test
+	public void bundlesAreSentOnceRemoteCanReadThem() throws Exception {
+		Channel channel = createChannel();
+		assertFalse(channel.canSendBundles());
+
+		fetchResults.put(PUBLIC_KEY + FETCH_CODE + "-" + FETCH_SLOT, writeFile("ack",
+				  "messagetype=ack\r\n"
+				+ "bundles=true\r\n"
+				+ "id=1\r\n"
+				+ "\r\n"));
+		channel.pollFetcher();
+		assertTrue(channel.canSendBundles());
+	}
+
+	@Test
+	public void receivedBundleTellsRemoteCanReadThem() throws Exception {
+		Channel channel = createChannel();
+		assertFalse(channel.canSendBundles());
+
+		fetchResults.put(PUBLIC_KEY + FETCH_CODE + "-" + FETCH_SLOT, writeFile("bundle",
+				  "messagetype=bundle\r\n"
+				+ "ids=1\r\n"
+				+ "lengths=4\r\n"
+				+ "\r\n"
+				+ "Test"));
+		channel.pollFetcher();
+		assertTrue(channel.canSendBundles());
+	}
+
+	@Test
+	public void sentBundleIsSplitByReceiver() throws Exception {
+		Channel channel = createChannel();
+
+		SortedMap<Long, Bucket> messages = new TreeMap<Long, Bucket>();
+		messages.put(Long.valueOf(8), new ArrayBucket("Subject: Second\r\n\r\nÅ second message\r\n".getBytes("UTF-8")));
+		messages.put(Long.valueOf(7), new ArrayBucket("Subject: First\r\n\r\nFirst message\r\n".getBytes("UTF-8")));
+		assertTrue(channel.sendMessages(messages));
+
+		Insert insert = fcpClient.awaitInsert(PRIVATE_KEY + SEND_CODE + "-" + SEND_SLOT, 10, TimeUnit.SECONDS);
+		String data = new String(insert.data, "UTF-8");
+		assertEquals(
+				  "messagetype=bundle\r\n"
+				+ "ids=7,8\r\n"
+				+ "lengths=33,37\r\n"
+				+ "\r\n"
+				+ "Subject: First\r\n\r\nFirst message\r\n"
+				+ "Subject: Second\r\n\r\nÅ second message\r\n", data);
+
+		//Hand the bundle to the receiving side of the same channel
+		fetchResults.put(PUBLIC_KEY + FETCH_CODE + "-" + FETCH_SLOT, writeFile("bundle", data));
+		channel.pollFetcher();
+
+		List<String> expected = new ArrayList<String>();
+		expected.add("7:Subject: First\n\nFirst message\n");
+		expected.add("8:Subject: Second\n\nÅ second message\n");
+		assertEquals(expected, callback.messages);
+	}
+
+	@Test
+	public void bundleShorterThanHeaderKeepsCompleteMessages() throws Exception {
+		fetchResults.put(PUBLIC_KEY + FETCH_CODE + "-" + FETCH_SLOT, writeFile("bundle",
+				  "messagetype=bundle\r\n"
+				+ "ids=1,2\r\n"
+				+ "lengths=5,100\r\n"
+				+ "\r\n"
+				+ "First"
+				+ "Second"));
+
+		Channel channel = createChannel();
+		channel.pollFetcher();
+
+		List<String> expected = new ArrayList<String>();
+		expected.add("1:First\n");
+		assertEquals(expected, callback.messages);
+	}
+
+	@Test
+	public void bundleWithMismatchedHeaderIsDiscarded() throws Exception {
+		fetchResults.put(PUBLIC_KEY + FETCH_CODE + "-" + FETCH_SLOT, writeFile("bundle",
+				  "messagetype=bundle\r\n"
+				+ "ids=1,2\r\n"
+				+ "lengths=5\r\n"
+				+ "\r\n"
+				+ "First"
+				+ "Second"));
+
+		Channel channel = createChannel();
+		channel.pollFetcher();
+
+		assertTrue(callback.messages.isEmpty());
+	}
+
+	private Channel createChannel() throws ChannelTimedOutException {
+		final Channel channel = new Channel(channelDir, executor, fcpClient, freemail, null, null, "remote");
+		channel.setCallback(callback);
+
+		//Polls are only started by the test, so they never run in the background
+		channel.setFetchRegistrar(new Channel.FetchRegistrar() {
+			private FetchScheduler.Registration registration = null;
+
+			@Override
+			public synchronized FetchScheduler.Registration getFetchRegistration() {
+				if(registration == null) {
+					registration = pollScheduler.register(new FetchScheduler.Pollable() {
+						@Override
+						public int poll() throws InterruptedException {
+							return channel.pollFetcher();
+						}
+					});
+				}
+				return registration;
+			}
+		});
+		return channel;
+	}
+
+	private File writeFile(String name, String content) throws IOException {
+		File file = new File(channelDir, name);
+		PrintWriter pw = new PrintWriter(file, "UTF-8");
+		try {
+			pw.write(content);
+		} finally {
+			pw.close();
+		}
+		return file;
+	}
+
+	private static class RecordingCallback implements Channel.ChannelEventCallback {
+		private final List<Long> acks = new ArrayList<Long>();
+		private final List<String> messages = new ArrayList<String>();
+
+		@Override
+		public synchronized void onAckReceived(long id) {
+			acks.add(Long.valueOf(id));
+		}
+
+		@Override
+		public synchronized boolean handleMessage(Channel channel, BufferedReader message, long id) {
+			StringBuilder content = new StringBuilder();
+			try {
+				String line;
+				while((line = message.readLine()) != null) {
+					content.append(line).append("\n");
+				}
+			} catch(IOException e) {
+				throw new AssertionError(e);
+			}
+			messages.add(id + ":" + content);
+			return true;
+		}
+	}
+}
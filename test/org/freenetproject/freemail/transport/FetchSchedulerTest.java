@@ -0,0 +1,254 @@
+/*
+ * FetchSchedulerTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.transport;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FetchSchedulerTest {
+	private ScheduledThreadPoolExecutor executor;
+
+	@Before
+	public void before() {
+		executor = new ScheduledThreadPoolExecutor(4);
+	}
+
+	@After
+	public void after() throws InterruptedException {
+		executor.shutdownNow();
+		executor.awaitTermination(1, TimeUnit.SECONDS);
+	}
+
+	@Test(timeout = 10000)
+	public void quietChannelBacksOff() throws Exception {
+		FetchScheduler scheduler = new FetchScheduler(executor, 1000, 10, 80);
+		CountingPollable pollable = new CountingPollable(1);
+		FetchScheduler.Registration registration = scheduler.register(pollable);
+
+		pollable.awaitPolls(5);
+		assertEquals(80, registration.getInterval());
+	}
+
+	@Test(timeout = 10000)
+	public void activityResetsInterval() throws Exception {
+		FetchScheduler scheduler = new FetchScheduler(executor, 1000, 10, 400);
+		CountingPollable pollable = new CountingPollable(1);
+		FetchScheduler.Registration registration = scheduler.register(pollable);
+
+		pollable.awaitPolls(7);
+		assertEquals(400, registration.getInterval());
+
+		//Let the poll finish, since activity during a poll is handled when it returns
+		Thread.sleep(50);
+		registration.activity();
+		assertEquals(10, registration.getInterval());
+	}
+
+	@Test(timeout = 10000)
+	public void pollNowPollsBeforeInterval() throws Exception {
+		FetchScheduler scheduler = new FetchScheduler(executor, 1000, 10, TimeUnit.HOURS.toMillis(1));
+		CountingPollable pollable = new CountingPollable(1);
+		FetchScheduler.Registration registration = scheduler.register(pollable);
+
+		//Back off until the next poll is more than a second away
+		pollable.awaitPolls(8);
+		int polls = pollable.getPolls();
+		Thread.sleep(100);
+		assertEquals(polls, pollable.getPolls());
+
+		registration.pollNow();
+		pollable.awaitPolls(polls + 1);
+	}
+
+	@Test(timeout = 10000)
+	public void budgetLimitsPolls() throws Exception {
+		//Two fetches per minute means the third poll has to wait 30 seconds
+		FetchScheduler scheduler = new FetchScheduler(executor, 2, 10, 80);
+		CountingPollable pollable = new CountingPollable(1);
+		for(int i = 0; i < 3; i++) {
+			scheduler.register(pollable);
+		}
+
+		pollable.awaitPolls(2);
+		Thread.sleep(200);
+		assertEquals(2, pollable.getPolls());
+	}
+
+	@Test(timeout = 10000)
+	public void cancelStopsPolling() throws Exception {
+		FetchScheduler scheduler = new FetchScheduler(executor, 1000, 10, 10);
+		CountingPollable pollable = new CountingPollable(0);
+		FetchScheduler.Registration registration = scheduler.register(pollable);
+
+		pollable.awaitPolls(1);
+		registration.cancel();
+		Thread.sleep(50);
+		int polls = pollable.getPolls();
+		Thread.sleep(100);
+		assertEquals(polls, pollable.getPolls());
+	}
+
+	@Test(timeout = 10000)
+	public void cancelledRegistrationIsRevivedByActivity() throws Exception {
+		FetchScheduler scheduler = new FetchScheduler(executor, 1000, 10, 10);
+		CountingPollable pollable = new CountingPollable(0);
+		FetchScheduler.Registration registration = scheduler.register(pollable);
+
+		pollable.awaitPolls(1);
+		registration.cancel();
+		Thread.sleep(50);
+		assertTrue(registration.isCancelled());
+
+		int polls = pollable.getPolls();
+		registration.activity();
+		assertFalse(registration.isCancelled());
+		pollable.awaitPolls(polls + 2);
+	}
+
+	@Test(timeout = 10000)
+	public void cancelledRegistrationIsRevivedByPollNow() throws Exception {
+		FetchScheduler scheduler = new FetchScheduler(executor, 1000, 10, 10);
+		CountingPollable pollable = new CountingPollable(0);
+		FetchScheduler.Registration registration = scheduler.register(pollable);
+
+		pollable.awaitPolls(1);
+		registration.cancel();
+		Thread.sleep(50);
+
+		int polls = pollable.getPolls();
+		registration.pollNow();
+		pollable.awaitPolls(polls + 1);
+	}
+
+	@Test(timeout = 10000)
+	public void rejectedPollIsRetried() throws Exception {
+		final AtomicInteger rejections = new AtomicInteger(2);
+		ScheduledThreadPoolExecutor rejecting = new ScheduledThreadPoolExecutor(4) {
+			@Override
+			public void execute(Runnable command) {
+				if(rejections.getAndDecrement() > 0) {
+					throw new RejectedExecutionException();
+				}
+				super.execute(command);
+			}
+		};
+
+		try {
+			FetchScheduler scheduler = new FetchScheduler(rejecting, 1000, 10, 10);
+			CountingPollable pollable = new CountingPollable(0);
+			scheduler.register(pollable);
+
+			pollable.awaitPolls(2);
+			assertTrue(rejections.get() < 0);
+		} finally {
+			rejecting.shutdownNow();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void afterPollWaitsForNextPollToBeScheduled() throws Exception {
+		FetchScheduler scheduler = new FetchScheduler(executor, 1000, 60000, 60000);
+		final AtomicReference<FetchScheduler.Registration> registration =
+				new AtomicReference<FetchScheduler.Registration>();
+		final CountDownLatch registered = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(1);
+		final AtomicBoolean runningDuringPoll = new AtomicBoolean(false);
+		final AtomicBoolean ranDuringPoll = new AtomicBoolean(false);
+		final AtomicBoolean runningAfterPoll = new AtomicBoolean(true);
+		final AtomicLong dueAfterPoll = new AtomicLong();
+
+		long before = System.currentTimeMillis();
+		registration.set(scheduler.register(new FetchScheduler.Pollable() {
+			@Override
+			public int poll() throws InterruptedException {
+				//The first poll can start before register() returns
+				registered.await();
+				runningDuringPoll.set(registration.get().isRunning());
+				registration.get().afterPoll(new Runnable() {
+					@Override
+					public void run() {
+						runningAfterPoll.set(registration.get().isRunning());
+						dueAfterPoll.set(registration.get().getDue());
+						done.countDown();
+					}
+				});
+				ranDuringPoll.set(done.getCount() == 0);
+				return 0;
+			}
+		}));
+		registered.countDown();
+
+		done.await();
+		assertTrue(runningDuringPoll.get());
+		assertFalse(ranDuringPoll.get());
+		assertFalse(runningAfterPoll.get());
+		assertTrue(dueAfterPoll.get() >= before + 60000);
+
+		//Without a poll running the task runs right away
+		final AtomicBoolean ran = new AtomicBoolean(false);
+		registration.get().afterPoll(new Runnable() {
+			@Override
+			public void run() {
+				ran.set(true);
+			}
+		});
+		assertTrue(ran.get());
+	}
+
+	private static class CountingPollable implements FetchScheduler.Pollable {
+		private final int fetches;
+		private final AtomicInteger polls = new AtomicInteger();
+
+		private CountingPollable(int fetches) {
+			this.fetches = fetches;
+		}
+
+		@Override
+		public int poll() {
+			synchronized(this) {
+				polls.incrementAndGet();
+				notifyAll();
+			}
+			return fetches;
+		}
+
+		private int getPolls() {
+			return polls.get();
+		}
+
+		private synchronized void awaitPolls(int count) throws InterruptedException {
+			while(polls.get() < count) {
+				wait();
+			}
+		}
+	}
+}
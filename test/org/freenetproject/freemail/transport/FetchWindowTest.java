@@ -0,0 +1,223 @@
+/*
+ * FetchWindowTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.transport;
+
+import static org.junit.Assert.*;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.freenetproject.freemail.fcp.FCPCallback;
+import org.freenetproject.freemail.fcp.FCPFetchException;
+import org.freenetproject.freemail.fcp.FCPMessage;
+import org.freenetproject.freemail.fcp.FCPRequest;
+import org.freenetproject.freemail.fcp.HighLevelFCPClient;
+import org.freenetproject.freemail.fcp.RequestType;
+import org.junit.Test;
+
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.BucketTools;
+
+public class FetchWindowTest {
+	@Test
+	public void windowLimitsFetchesInFlight() throws Exception {
+		RecordingClient client = new RecordingClient();
+		FetchWindow window = new FetchWindow(client, RequestType.MESSAGE_FETCH, keys(10), 4);
+
+		window.fill();
+		assertEquals(4, client.started());
+
+		//Taking a result makes room for one more fetch
+		client.succeed("key0", "data0");
+		assertEquals("data0", read(window.next()));
+		window.fill();
+		assertEquals(5, client.started());
+		assertEquals("key4", client.lastStarted());
+
+		window.close();
+	}
+
+	@Test
+	public void laterResultsDontMoveWindow() throws Exception {
+		RecordingClient client = new RecordingClient();
+		FetchWindow window = new FetchWindow(client, RequestType.MESSAGE_FETCH, keys(10), 4);
+		window.fill();
+
+		//The window only moves as results are taken in list order
+		client.succeed("key3", "data3");
+		client.succeed("key2", "data2");
+		client.succeed("key1", "data1");
+		window.fill();
+		assertEquals(4, client.started());
+
+		client.succeed("key0", "data0");
+		for(int i = 0; i < 4; i++) {
+			assertEquals("data" + i, read(window.next()));
+		}
+		window.fill();
+		assertEquals(8, client.started());
+
+		window.close();
+	}
+
+	@Test(timeout = 10000)
+	public void nextWaitsForFetchOfNextKey() throws Exception {
+		final RecordingClient client = new RecordingClient();
+		FetchWindow window = new FetchWindow(client, RequestType.MESSAGE_FETCH, keys(2), 2);
+		window.fill();
+		client.succeed("key1", "data1");
+
+		Thread completer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch(InterruptedException e) {
+					//Finish early
+				}
+				client.succeed("key0", "data0");
+			}
+		};
+		completer.start();
+
+		assertEquals("data0", read(window.next()));
+		assertEquals("data1", read(window.next()));
+		completer.join();
+	}
+
+	@Test
+	public void failedFetchMovesToNextKey() throws Exception {
+		RecordingClient client = new RecordingClient();
+		FetchWindow window = new FetchWindow(client, RequestType.MESSAGE_FETCH, keys(2), 2);
+		window.fill();
+
+		client.fail("key0");
+		client.succeed("key1", "data1");
+		try {
+			window.next();
+			fail("Failed fetch returned data");
+		} catch(FCPFetchException e) {
+			//Expected
+		}
+		assertEquals("data1", read(window.next()));
+	}
+
+	@Test
+	public void closeFreesResultsNobodyTook() throws Exception {
+		RecordingClient client = new RecordingClient();
+		FetchWindow window = new FetchWindow(client, RequestType.MESSAGE_FETCH, keys(2), 2);
+		window.fill();
+
+		FreeRecordingBucket untaken = new FreeRecordingBucket();
+		client.callbacks.get("key1").onSuccess(untaken);
+		window.close();
+		assertTrue(untaken.freed);
+
+		//Results arriving after the window was closed are freed as well
+		FreeRecordingBucket late = new FreeRecordingBucket();
+		client.callbacks.get("key0").onSuccess(late);
+		assertTrue(late.freed);
+	}
+
+	private static List<String> keys(int count) {
+		List<String> keys = new ArrayList<String>(count);
+		for(int i = 0; i < count; i++) {
+			keys.add("key" + i);
+		}
+		return keys;
+	}
+
+	private static String read(Bucket bucket) throws Exception {
+		try {
+			return new String(BucketTools.toByteArray(bucket), "UTF-8");
+		} finally {
+			bucket.free();
+		}
+	}
+
+	private static class FreeRecordingBucket extends ArrayBucket {
+		private boolean freed = false;
+
+		private FreeRecordingBucket() {
+			super(new byte[1]);
+		}
+
+		@Override
+		public void free() {
+			freed = true;
+			super.free();
+		}
+	}
+
+	/**
+	 * Records the fetches that are started and lets the test finish them in any order.
+	 */
+	private static class RecordingClient extends HighLevelFCPClient {
+		/** Guarded by itself */
+		private final Map<String, FCPCallback<Bucket>> callbacks = new LinkedHashMap<String, FCPCallback<Bucket>>();
+		private String lastStarted = null;
+
+		@Override
+		public FCPRequest fetchAsync(String key, RequestType type, FCPCallback<Bucket> callback) {
+			assertEquals(RequestType.MESSAGE_FETCH, type);
+			synchronized(callbacks) {
+				assertNull("Key fetched twice", callbacks.put(key, callback));
+				lastStarted = key;
+			}
+			return null;
+		}
+
+		private int started() {
+			synchronized(callbacks) {
+				return callbacks.size();
+			}
+		}
+
+		private String lastStarted() {
+			synchronized(callbacks) {
+				return lastStarted;
+			}
+		}
+
+		private void succeed(String key, String data) {
+			FCPCallback<Bucket> callback;
+			synchronized(callbacks) {
+				callback = callbacks.get(key);
+			}
+			try {
+				callback.onSuccess(new ArrayBucket(data.getBytes("UTF-8")));
+			} catch(UnsupportedEncodingException e) {
+				throw new AssertionError(e);
+			}
+		}
+
+		private void fail(String key) {
+			FCPCallback<Bucket> callback;
+			synchronized(callbacks) {
+				callback = callbacks.get(key);
+			}
+			callback.onFailure(new FCPFetchException(new FCPMessage(0, "GetFailed")));
+		}
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * LongMapTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package org.freenetproject.freemail.transport;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LongMapTest {
+	@Test
+	public void nullValueIsPresent() {
+		LongMap<String> map = new LongMap<String>();
+		map.put(5, null);
+
+		assertTrue(map.containsKey(5));
+		assertNull(map.get(5));
+		assertFalse(map.containsKey(6));
+		assertTrue(map.remove(5));
+		assertFalse(map.remove(5));
+		assertEquals(0, map.size());
+	}
+
+	@Test
+	public void matchesHashMap() {
+		Random rand = new Random(1);
+		LongMap<Long> map = new LongMap<Long>();
+		Map<Long, Long> expected = new HashMap<Long, Long>();
+		for(int i = 0; i < 100000; i++) {
+			long key = rand.nextInt(2000);
+			if(rand.nextBoolean()) {
+				map.put(key, Long.valueOf(i));
+				expected.put(Long.valueOf(key), Long.valueOf(i));
+			} else {
+				assertEquals(expected.remove(Long.valueOf(key)) != null, map.remove(key));
+			}
+		}
+
+		assertEquals(expected.size(), map.size());
+		for(Map.Entry<Long, Long> entry : expected.entrySet()) {
+			assertEquals(entry.getValue(), map.get(entry.getKey().longValue()));
+		}
+
+		long[] keys = map.keys();
+		Arrays.sort(keys);
+		Long[] expectedKeys = expected.keySet().toArray(new Long[0]);
+		Arrays.sort(expectedKeys);
+		assertEquals(expectedKeys.length, keys.length);
+		for(int i = 0; i < keys.length; i++) {
+			assertEquals(expectedKeys[i].longValue(), keys[i]);
+		}
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ * MailsiteCacheTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.transport;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import org.freenetproject.freemail.utils.PropsFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import utils.Utils;
+
+public class MailsiteCacheTest {
+	private static final File TEST_DIR = new File("mailsitecachetest");
+	private static final String ID = "identity";
+	private static final String KEY = "USK@key,crypto,AQACAAE";
+
+	@Before
+	public void before() {
+		Utils.createDir(TEST_DIR);
+	}
+
+	@After
+	public void after() {
+		Utils.delete(TEST_DIR);
+	}
+
+	@Test
+	public void storedMailsiteIsWrittenToDisk() throws IOException {
+		File file = new File(TEST_DIR, "stored");
+		MailsiteCache cache = new MailsiteCache(file);
+		assertNull(cache.get(ID));
+
+		cache.put(ID, new MailsiteCache.Mailsite(KEY, 5, "rtsksk", "modulus", "exponent", 1000));
+
+		//Read the file directly since the cache shares the PropsFile instance
+		PropsFile onDisk = PropsFile.createPropsFile(new FileInputStream(file), false);
+		assertEquals("5", onDisk.get(ID + ".edition"));
+		assertEquals("rtsksk", onDisk.get(ID + ".rtsKey"));
+
+		MailsiteCache.Mailsite mailsite = cache.get(ID);
+		assertEquals(KEY, mailsite.mailsiteKey);
+		assertEquals(5, mailsite.edition);
+		assertEquals("modulus", mailsite.keyModulus);
+		assertEquals("exponent", mailsite.keyExponent);
+		assertEquals(KEY + "/mailsite/-5/mailpage", mailsite.getEditionKey());
+	}
+
+	@Test
+	public void mailsiteWithoutKeys() {
+		MailsiteCache cache = new MailsiteCache(new File(TEST_DIR, "withoutkeys"));
+		cache.put(ID, new MailsiteCache.Mailsite(KEY, 1, "rtsksk", "modulus", "exponent", 1000));
+		cache.put(ID, new MailsiteCache.Mailsite(KEY, 2, null, null, null, 1000));
+
+		MailsiteCache.Mailsite mailsite = cache.get(ID);
+		assertEquals(2, mailsite.edition);
+		assertNull(mailsite.rtsKey);
+		assertNull(mailsite.keyModulus);
+	}
+
+	@Test
+	public void revalidation() {
+		long now = System.currentTimeMillis();
+		MailsiteCache cache = new MailsiteCache(new File(TEST_DIR, "revalidation"));
+		long old = now - MailsiteCache.REVALIDATE_INTERVAL - 1;
+		MailsiteCache.Mailsite mailsite = new MailsiteCache.Mailsite(KEY, 3, "rtsksk", "modulus", "exponent", old);
+		cache.put(ID, mailsite);
+		assertTrue(cache.get(ID).needsRevalidation(now));
+
+		MailsiteCache.Mailsite revalidated = cache.revalidated(ID, mailsite, now);
+		assertFalse(revalidated.needsRevalidation(now));
+		assertFalse(cache.get(ID).needsRevalidation(now));
+		assertEquals("rtsksk", cache.get(ID).rtsKey);
+		assertEquals(3, cache.get(ID).edition);
+	}
+}
@@ -0,0 +1,310 @@
+/*
+ * MessageDeliveryLoadTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.transport;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.freenetproject.freemail.Freemail;
+import org.freenetproject.freemail.MailMessage;
+import org.freenetproject.freemail.MessageBank;
+import org.freenetproject.freemail.RTSPoller;
+import org.freenetproject.freemail.config.Configurator;
+import org.freenetproject.freemail.fcp.FCPConnectionPool;
+import org.freenetproject.freemail.fcp.FCPContext;
+import org.freenetproject.freemail.fcp.HighLevelFCPClient;
+import org.freenetproject.freemail.fcp.HighLevelFCPClientFactory;
+import org.freenetproject.freemail.fcp.RequestType;
+import org.freenetproject.freemail.utils.Logger;
+import org.freenetproject.freemail.utils.PropsFile;
+import org.freenetproject.freemail.wot.Identity;
+import org.freenetproject.freemail.wot.WoTConnection;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import data.TestId1Data;
+import data.TestId2Data;
+import fakes.FakeFreenetNode;
+import fakes.MockFreemail;
+import fakes.MockFreemailAccount;
+import fakes.MockWoTConnection;
+import freenet.support.io.ArrayBucket;
+
+import utils.UnitTestParameters;
+import utils.Utils;
+
+/**
+ * Runs two Freemail instances, each with its own connection pool, executor and
+ * {@link MessageHandler}, against a fake node and has one send messages to the other. The
+ * messages go through the whole transport: the RTS is fetched and decrypted by the
+ * recipient, the channel is set up with the CTS, and the messages and acks travel through
+ * the channel slots. The delivery latency and the time until every message is acked are
+ * logged so that changes to the FCP layer and the channels can be compared on a single
+ * machine.
+ */
+public class MessageDeliveryLoadTest {
+	private static final int MESSAGES = 20;
+	private static final int CONNECTIONS = 2;
+	private static final int THREADS = 8;
+	private static final long NODE_LATENCY = 10;
+	private static final double DATA_NOT_FOUND_RATE = 0.05;
+	private static final long MIN_POLL_INTERVAL = 100;
+	private static final long MAX_POLL_INTERVAL = 1000;
+	private static final long RTS_POLL_INTERVAL = 200;
+	private static final long MAX_ACK_DELAY = 500;
+
+	private final File testDir = new File("delivery_load_test");
+
+	private FakeFreenetNode node;
+	private FCPContext fcpContext;
+	private FCPConnectionPool rtsPool;
+	private final List<Instance> instances = new ArrayList<Instance>();
+
+	@Before
+	public void before() throws IOException {
+		Utils.createDir(testDir);
+		Freemail.setRNG(new SecureRandom());
+
+		//Acks are normally held back for hours, which would hide everything else
+		Channel.setMaxAckDelay(MAX_ACK_DELAY);
+
+		node = new FakeFreenetNode();
+		node.setLatency(NODE_LATENCY);
+		node.setDataNotFoundRate(DATA_NOT_FOUND_RATE);
+		node.start();
+
+		fcpContext = new FCPContext() {
+			@Override
+			public Socket getConn() throws IOException {
+				return new Socket("localhost", node.getPort());
+			}
+		};
+	}
+
+	@After
+	public void after() throws InterruptedException {
+		for(Instance instance : instances) {
+			instance.stop();
+		}
+		if(rtsPool != null) {
+			rtsPool.kill();
+		}
+		node.stop();
+		Channel.setMaxAckDelay(Channel.MAX_ACK_DELAY);
+		Utils.delete(testDir);
+	}
+
+	@Test(timeout = 300000)
+	public void deliverMessagesBetweenInstances() throws Exception {
+		Assume.assumeTrue(UnitTestParameters.EXTENSIVE);
+
+		//Both instances see the same web of trust
+		Map<String, Identity> ids = new HashMap<String, Identity>();
+		ids.put(TestId1Data.Identity.ID, TestId1Data.Identity.newInstance());
+		ids.put(TestId2Data.Identity.ID, TestId2Data.Identity.newInstance());
+		Map<String, Map<String, Identity>> identities = new HashMap<String, Map<String, Identity>>();
+		identities.put(TestId1Data.Identity.ID, ids);
+		identities.put(TestId2Data.Identity.ID, ids);
+
+		Map<String, String> mailsiteEdition = new HashMap<String, String>();
+		mailsiteEdition.put("Freemail.mailsite", Integer.toString(TestId1Data.Mailsite.EDITION));
+		Map<String, Map<String, String>> properties = new HashMap<String, Map<String, String>>();
+		properties.put(TestId1Data.Identity.ID, mailsiteEdition);
+		properties.put(TestId2Data.Identity.ID, mailsiteEdition);
+		WoTConnection wot = new MockWoTConnection(identities, properties);
+
+		Instance sender = new Instance("sender", TestId1Data.FreemailAccount.IDENTITY,
+				TestId1Data.FreemailAccount.ACCPROPS_CONTENT, wot);
+		Instance recipient = new Instance("recipient", TestId2Data.FreemailAccount.IDENTITY,
+				TestId2Data.FreemailAccount.ACCPROPS_CONTENT, wot);
+
+		//RTSFetcher always uses the pool of the Freemail class, so the RTS polls of both
+		//instances share one
+		rtsPool = newPool(new File(testDir, "rtspool"));
+		MockFreemail.setFCPConnectionPool(rtsPool);
+
+		HighLevelFCPClient client = new HighLevelFCPClient(rtsPool);
+		insert(client, TestId1Data.Mailsite.CONTENT, TestId1Data.Mailsite.REQUEST_KEY);
+		insert(client, TestId2Data.Mailsite.CONTENT, TestId2Data.Mailsite.REQUEST_KEY);
+
+		sender.start();
+		recipient.start();
+
+		long start = System.currentTimeMillis();
+		long[] sent = new long[MESSAGES];
+		List<Identity> recipients = Collections.singletonList(TestId2Data.Identity.newInstance());
+		for(int i = 0; i < MESSAGES; i++) {
+			String msg = "Subject: Message " + i + "\r\n\r\nMessage " + i + "\r\n";
+			sent[i] = System.currentTimeMillis();
+			assertTrue(sender.handler.sendMessage(recipients, new ArrayBucket(msg.getBytes("UTF-8"))));
+		}
+
+		//Wait for the messages to show up in the inbox of the recipient
+		Map<String, Long> received = new HashMap<String, Long>();
+		while(received.size() < MESSAGES) {
+			for(MailMessage message : recipient.inbox.listMessages().values()) {
+				message.readHeaders();
+				String subject = message.getSubject();
+				//Messages that are still being written have no subject yet
+				if(subject != null && !received.containsKey(subject)) {
+					received.put(subject, System.currentTimeMillis());
+				}
+				message.closeStream();
+			}
+			Thread.sleep(10);
+		}
+		long delivered = System.currentTimeMillis();
+
+		//Then for the acks to clear the outbox of the sender
+		while(!sender.handler.listOutboxMessages().isEmpty()) {
+			Thread.sleep(10);
+		}
+		long acked = System.currentTimeMillis();
+
+		long totalLatency = 0;
+		long firstDelivery = Long.MAX_VALUE;
+		for(int i = 0; i < MESSAGES; i++) {
+			Long arrival = received.get("Message " + i);
+			assertNotNull("Message " + i + " wasn't delivered", arrival);
+			totalLatency += arrival - sent[i];
+			firstDelivery = Math.min(firstDelivery, arrival - start);
+		}
+
+		Logger.normal(this, "Delivered " + MESSAGES + " messages in " + (delivered - start) + "ms, "
+				+ "first after " + firstDelivery + "ms, mean latency " + (totalLatency / MESSAGES) + "ms, "
+				+ "all acked after " + (acked - start) + "ms, "
+				+ node.getInsertCount() + " inserts, " + node.getFetchCount() + " fetches");
+	}
+
+	private FCPConnectionPool newPool(File configFile) {
+		Configurator cfg = new Configurator(configFile);
+		cfg.set(Configurator.FCP_CONNECTIONS, Integer.toString(CONNECTIONS));
+		FCPConnectionPool pool = new FCPConnectionPool(cfg, fcpContext);
+		pool.start();
+		return pool;
+	}
+
+	private static void insert(HighLevelFCPClient client, String data, String key) throws Exception {
+		byte[] bytes = data.getBytes("UTF-8");
+		assertNull(client.put(new ByteArrayInputStream(bytes), bytes.length, key, RequestType.MAILSITE_INSERT));
+	}
+
+	/**
+	 * One Freemail instance with a single account. The instance has its own executor, fetch
+	 * scheduler and connection pool, and polls the RTS slots of the account in the
+	 * background.
+	 */
+	private class Instance {
+		private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(THREADS);
+		private final FetchScheduler scheduler = new FetchScheduler(executor, 0, MIN_POLL_INTERVAL, MAX_POLL_INTERVAL);
+		private final FCPConnectionPool pool;
+		private final MockFreemailAccount account;
+		private final MessageBank inbox;
+		private final MessageHandler handler;
+		private final Thread rtsPoller;
+
+		private Instance(String name, String identity, String accprops, WoTConnection wot) throws IOException {
+			File dir = Utils.createDir(testDir, name);
+			File accountDir = Utils.createDir(dir, "account");
+			File channelDir = Utils.createDir(accountDir, "channel");
+			File outboxDir = Utils.createDir(accountDir, "outbox");
+
+			MockFreemail freemail = new MockFreemail(new File(dir, "config").getPath(), wot) {
+				@Override
+				public FetchScheduler getFetchScheduler() {
+					return scheduler;
+				}
+			};
+			freemail.setExecutor(executor);
+
+			pool = newPool(new File(dir, "fcp"));
+			instances.add(this);
+
+			File accPropsFile = new File(accountDir, "accprops");
+			PrintWriter pw = new PrintWriter(accPropsFile);
+			pw.write(accprops);
+			pw.close();
+			account = new MockFreemailAccount(identity, accountDir, PropsFile.createPropsFile(accPropsFile), freemail) {
+				@Override
+				public MessageBank getMessageBank() {
+					return inbox;
+				}
+
+				@Override
+				public MessageHandler getMessageHandler() {
+					return handler;
+				}
+			};
+			inbox = new MessageBank(account);
+
+			handler = new MessageHandler(outboxDir, freemail, channelDir, account, new HighLevelFCPClientFactory() {
+				@Override
+				public HighLevelFCPClient newInstance() {
+					return new HighLevelFCPClient(pool);
+				}
+			});
+
+			final RTSPoller poller = new RTSPoller(account);
+			rtsPoller = new Thread("RTS poller of " + name) {
+				@Override
+				public void run() {
+					try {
+						while(true) {
+							poller.poll();
+							Thread.sleep(RTS_POLL_INTERVAL);
+						}
+					} catch(InterruptedException e) {
+						//Stopped
+					} catch(Exception e) {
+						Logger.error(this, "RTS polling failed", e);
+					}
+				}
+			};
+		}
+
+		private void start() {
+			handler.start();
+			rtsPoller.start();
+		}
+
+		private void stop() throws InterruptedException {
+			rtsPoller.interrupt();
+			rtsPoller.join();
+			executor.shutdownNow();
+			executor.awaitTermination(1, TimeUnit.MINUTES);
+			pool.kill();
+		}
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * MessageLogTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.transport;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map.Entry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import utils.Utils;
+
+public class MessageLogTest {
+	private static final File TEST_DIR = new File("messagelogtest");
+
+	@Before
+	public void before() {
+		Utils.createDir(TEST_DIR);
+	}
+
+	@After
+	public void after() {
+		Utils.delete(TEST_DIR);
+	}
+
+	@Test
+	public void entriesAreReadBack() throws IOException {
+		File file = new File(TEST_DIR, "log");
+		MessageLog log = new MessageLog(file);
+		log.add(1, "data");
+		log.add(2, null);
+
+		MessageLog read = new MessageLog(file);
+		assertTrue(read.isPresent(1));
+		assertTrue(read.isPresent(2));
+		assertFalse(read.isPresent(3));
+	}
+
+	@Test
+	public void removeSeveral() throws IOException {
+		File file = new File(TEST_DIR, "log");
+		MessageLog log = new MessageLog(file);
+		for(int i = 1; i <= 5; i++) {
+			log.add(i, Integer.toString(i));
+		}
+
+		log.remove(Arrays.asList(Long.valueOf(2), Long.valueOf(4), Long.valueOf(6)));
+
+		MessageLog read = new MessageLog(file);
+		assertTrue(read.isPresent(1));
+		assertFalse(read.isPresent(2));
+		assertTrue(read.isPresent(3));
+		assertFalse(read.isPresent(4));
+		assertTrue(read.isPresent(5));
+	}
+
+	@Test
+	public void dataIsReadBack() throws IOException {
+		File file = new File(TEST_DIR, "log");
+		MessageLog log = new MessageLog(file);
+		log.add(1, "first, with separator");
+		log.add(2, null);
+		log.add(1, "replaced");
+
+		Iterator<Entry<Long, String>> it = new MessageLog(file).iterator();
+		int count = 0;
+		while(it.hasNext()) {
+			Entry<Long, String> entry = it.next();
+			if(entry.getKey().longValue() == 1) {
+				assertEquals("replaced", entry.getValue());
+			} else {
+				assertEquals(2, entry.getKey().longValue());
+				assertNull(entry.getValue());
+			}
+			count++;
+		}
+		assertEquals(2, count);
+	}
+
+	@Test
+	public void legacyFileIsRead() throws IOException {
+		File file = new File(TEST_DIR, "log");
+		FileOutputStream out = new FileOutputStream(file);
+		out.write("1, data\n2, \n".getBytes("UTF-8"));
+		out.close();
+
+		MessageLog log = new MessageLog(file);
+		assertTrue(log.isPresent(1));
+		assertTrue(log.isPresent(2));
+		log.remove(1);
+
+		MessageLog read = new MessageLog(file);
+		assertFalse(read.isPresent(1));
+		assertTrue(read.isPresent(2));
+	}
+
+	@Test
+	public void damagedRecordIsSkipped() throws IOException {
+		File file = new File(TEST_DIR, "log");
+		MessageLog log = new MessageLog(file);
+		log.add(1, "data");
+		log.add(2, "data");
+
+		//Damage the last byte of the data of the second record
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.seek(raf.length() - 2);
+		raf.write('x');
+		raf.close();
+
+		MessageLog read = new MessageLog(file);
+		assertTrue(read.isPresent(1));
+		assertFalse(read.isPresent(2));
+	}
+
+	@Test
+	public void logIsCompacted() throws IOException {
+		File file = new File(TEST_DIR, "log");
+		MessageLog log = new MessageLog(file);
+		log.add(1, "kept");
+		long size = file.length();
+		for(int i = 0; i < 1000; i++) {
+			log.add(2, "removed");
+			log.remove(2);
+		}
+
+		assertTrue(file.length() < 100 * size);
+		MessageLog read = new MessageLog(file);
+		assertTrue(read.isPresent(1));
+		assertFalse(read.isPresent(2));
+	}
+}
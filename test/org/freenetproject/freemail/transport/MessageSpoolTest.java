@@ -0,0 +1,92 @@
+/*
+ * MessageSpoolTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.transport;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import utils.Utils;
+
+public class MessageSpoolTest {
+	private static final File TEST_DIR = new File("spooltest");
+
+	private MessageSpool spool;
+
+	@Before
+	public void before() {
+		Utils.createDir(TEST_DIR);
+		spool = new MessageSpool(new File(TEST_DIR, "spool"));
+	}
+
+	@After
+	public void after() {
+		Utils.delete(TEST_DIR);
+	}
+
+	@Test
+	public void messageIsDeletedWithLastReference() throws IOException {
+		String name = spool.add(write("Test message"), 2);
+		File message = spool.get(name);
+		assertTrue(message.exists());
+		assertEquals(2, spool.getReferenceCount(name));
+
+		spool.release(name);
+		assertTrue(message.exists());
+
+		spool.release(name);
+		assertFalse(message.exists());
+		assertEquals(0, spool.getReferenceCount(name));
+	}
+
+	@Test
+	public void identicalMessagesAreStoredOnce() throws IOException {
+		String first = spool.add(write("Test message"), 1);
+		String second = spool.add(write("Test message"), 3);
+		assertEquals(first, second);
+		assertEquals(4, spool.getReferenceCount(first));
+
+		String other = spool.add(write("Other message"), 1);
+		assertFalse(first.equals(other));
+
+		//The index, the two messages and no temporary files
+		assertEquals(3, new File(TEST_DIR, "spool").listFiles().length);
+	}
+
+	@Test
+	public void releasingUnknownMessageIsIgnored() {
+		spool.release("unknown");
+		assertEquals(0, spool.getReferenceCount("unknown"));
+	}
+
+	private File write(String content) throws IOException {
+		File f = spool.createTempFile();
+		PrintWriter pw = new PrintWriter(f, "UTF-8");
+		pw.print(content);
+		pw.close();
+		return f;
+	}
+}
@@ -33,6 +33,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import org.freenetproject.freemail.Freemail;
+import org.freenetproject.freemail.fcp.RequestType;
 import org.freenetproject.freemail.utils.PropsFile;
 import org.freenetproject.freemail.wot.Identity;
 import org.junit.After;
@@ -159,16 +160,20 @@ public class MessageTransportTest {
 
 		handler.sendMessage(recipients, message);
 
-		executor.runNext(); // Initial SenderTask that starts the RTSSender
+		executor.runNext(); // Outbox dispatcher that starts the first send
+		executor.runNext(); // Initial send that starts the RTSSender
 		executor.runNext(); // RTSSender that generates the keys
 
 		//First we wait for the mailsite fetch request
 		fcpClient.awaitFetch(TestId1Data.Mailsite.REQUEST_KEY, 10, TimeUnit.MINUTES);
 
 		//Then the RTS key insert
-		fcpClient.awaitInsert(TestId1Data.RTSKEY + "-1", 10, TimeUnit.MINUTES);
+		Insert rts = fcpClient.awaitInsert(TestId1Data.RTSKEY + "-1", 10, TimeUnit.MINUTES);
+		assertEquals(RequestType.RTS_INSERT, rts.type);
 
-		executor.runNext(); // SenderTask that actually sends the message
+		executor.runNext(); // Outbox dispatcher that starts the retry
+		executor.runNext(); // RTSSender that schedules the resend of the RTS
+		executor.runNext(); // Send that actually sends the message
 
 		//Then an insert of any key, which should be the message. Since we don't bother to decrypt
 		//the RTS we don't actually know which key this is inserted to.
@@ -178,5 +183,69 @@ public class MessageTransportTest {
 				+ "id=0\r\n"
 				+ "\r\n"
 				+ msg);
+		assertEquals(RequestType.MESSAGE_INSERT, i.type);
+	}
+
+	@Test(timeout=10 * 1000)
+	public void bundleIsLimitedToMaxSize() throws IOException, InterruptedException, TimeoutException {
+		//Props files are cached by path, so this test uses its own account directory
+		File bundleAccountDir = Utils.createDir(accountManagerDir, "bundle_account_dir");
+		File bundleChannelDir = Utils.createDir(bundleAccountDir, "channels");
+		File bundleOutboxDir = Utils.createDir(bundleAccountDir, "outbox");
+
+		//A channel to the recipient that has said it can read bundles
+		String sendSlot = "AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA";
+		File channel = Utils.createDir(bundleChannelDir, "0");
+		PropsFile channelProps = PropsFile.createPropsFile(new File(channel, "props"));
+		channelProps.put("privateKey", "SSK@private,key,AQECAAE/");
+		channelProps.put("sendCode", "sendcode");
+		channelProps.put("sendSlot", sendSlot);
+		channelProps.put("sender-state", "cts-received");
+		channelProps.put("remoteBundles", "true");
+		channelProps.put("remoteID", TestId1Data.Identity.ID);
+		channelProps.put("timeout", Long.toString(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1)));
+
+		MockHighLevelFCPClient fcpClient = new MockHighLevelFCPClient(new HashMap<String, File>());
+		MockFreemail freemail = new MockFreemail(testDir.getAbsolutePath() + "/config", null);
+		MockFreemailAccount account;
+		{
+			File accProps = new File(bundleAccountDir, "accprops");
+			PrintWriter pw = new PrintWriter(accProps);
+			pw.write(TestId1Data.FreemailAccount.ACCPROPS_CONTENT);
+			pw.close();
+			account = new MockFreemailAccount(TestId1Data.FreemailAccount.IDENTITY, bundleAccountDir, PropsFile.createPropsFile(accProps), freemail);
+		}
+		MockExecutor executor = new MockExecutor();
+		freemail.setExecutor(executor);
+
+		MessageHandler handler = new MessageHandler(bundleOutboxDir, freemail, bundleChannelDir, account,
+				new MockHighLevelFCPClientFactory(fcpClient));
+
+		//Three messages where only two fit in a bundle
+		List<Identity> recipients = new ArrayList<Identity>(1);
+		recipients.add(new MockIdentity(TestId1Data.Identity.ID, TestId1Data.Identity.REQUEST_URI, TestId1Data.Identity.NICKNAME));
+		StringBuilder body = new StringBuilder();
+		while(body.length() < 30 * 1024) {
+			body.append("0123456789012345678901234567890123456789012345678901234567890123456789\r\n");
+		}
+		for(int i = 0; i < 3; i++) {
+			String msg = "Subject: Message " + i + "\r\n\r\n" + body;
+			handler.sendMessage(recipients, new ArrayBucket(msg.getBytes("UTF-8")));
+		}
+
+		executor.runNext(); // Outbox dispatcher that starts the first send
+		executor.runNext(); // Send of the first two messages
+
+		Insert bundle = fcpClient.awaitInsert("SSK@private,key,AQECAAE/sendcode-" + sendSlot, 10, TimeUnit.SECONDS);
+		String data = new String(bundle.data, "UTF-8");
+		assertTrue(data, data.startsWith("messagetype=bundle\r\nids=0,1\r\n"));
+		assertEquals(RequestType.MESSAGE_INSERT, bundle.type);
+
+		executor.runNext(); // Outbox dispatcher that starts the next send
+		executor.runNext(); // Send of the last message
+
+		Insert single = fcpClient.awaitInsert(null, 10, TimeUnit.SECONDS);
+		data = new String(single.data, "UTF-8");
+		assertTrue(data, data.startsWith("messagetype=message\r\nid=2\r\n"));
 	}
 }
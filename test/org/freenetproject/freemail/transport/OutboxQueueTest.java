@@ -0,0 +1,122 @@
+/*
+ * OutboxQueueTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package org.freenetproject.freemail.transport;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fakes.MockExecutor;
+import fakes.MockFreemail;
+
+import utils.Utils;
+
+public class OutboxQueueTest {
+	private static final File TEST_DIR = new File("outboxqueuetest");
+	private static final File FIRST = new File(TEST_DIR, "first");
+	private static final File SECOND = new File(TEST_DIR, "second");
+	private static final long DAY = 24 * 60 * 60 * 1000;
+
+	private MockExecutor executor;
+	private RecordingSender sender;
+	private OutboxQueue queue;
+
+	@Before
+	public void before() throws IOException {
+		Utils.createDir(TEST_DIR);
+
+		MockFreemail freemail = new MockFreemail(new File(TEST_DIR, "config").getPath(), null);
+		executor = new MockExecutor();
+		freemail.setExecutor(executor);
+
+		sender = new RecordingSender();
+		queue = new OutboxQueue(freemail, sender);
+	}
+
+	@After
+	public void after() {
+		Utils.delete(TEST_DIR);
+	}
+
+	@Test
+	public void oneSendPerRecipient() {
+		queue.add(FIRST, 0, 0);
+		queue.add(FIRST, 1, 0);
+		queue.add(SECOND, 0, 0);
+
+		executor.runNext(); // Dispatcher that starts first/0 and second/0
+		executor.runNext(); // first/0
+		executor.runNext(); // second/0
+		executor.runNext(); // Dispatcher that starts first/1, which waited for first/0
+		executor.runNext(); // first/1
+
+		assertEquals(Arrays.asList("first/0", "second/0", "first/1"), sender.sent);
+		assertEquals(3, queue.size());
+	}
+
+	@Test
+	public void removedMessageIsNotSent() {
+		queue.add(FIRST, 0, 0);
+		queue.add(FIRST, 1, 0);
+		queue.remove(FIRST, 0);
+
+		executor.runNext(); // Dispatcher that starts first/1
+		executor.runNext(); // first/1
+
+		assertEquals(Arrays.asList("first/1"), sender.sent);
+		assertEquals(1, queue.size());
+	}
+
+	@Test
+	public void getDueSkipsLaterMessages() {
+		long now = System.currentTimeMillis();
+		queue.add(FIRST, 0, now - 1000);
+		queue.add(FIRST, 1, now + DAY);
+		queue.add(FIRST, 2, now - 1000);
+
+		List<Long> due = queue.getDue(FIRST, now);
+		assertEquals(2, due.size());
+		assertTrue(due.contains(Long.valueOf(0)));
+		assertTrue(due.contains(Long.valueOf(2)));
+		assertTrue(queue.getDue(SECOND, now).isEmpty());
+	}
+
+	/**
+	 * Records the messages that are sent, and asks for them to be sent again in a day.
+	 */
+	private static class RecordingSender implements OutboxQueue.Sender {
+		private final List<String> sent = new ArrayList<String>();
+
+		@Override
+		public long send(File rcptOutbox, long msgNum) {
+			sent.add(rcptOutbox.getName() + "/" + msgNum);
+			return System.currentTimeMillis() + DAY;
+		}
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * PropsFileTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.utils;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import utils.Utils;
+
+public class PropsFileTest {
+	private static final File TEST_DIR = new File("propsfiletest");
+
+	@Before
+	public void before() {
+		Utils.createDir(TEST_DIR);
+	}
+
+	@After
+	public void after() {
+		Utils.delete(TEST_DIR);
+	}
+
+	@Test
+	public void putWritesFile() throws IOException {
+		File file = new File(TEST_DIR, "direct");
+		PropsFile props = PropsFile.createPropsFile(file);
+
+		assertTrue(props.put("key", "value"));
+		assertEquals("value", read(file).get("key"));
+	}
+
+	@Test
+	public void writeBehindWaitsForFlush() throws IOException {
+		File file = new File(TEST_DIR, "writebehind");
+		PropsFile props = PropsFile.createPropsFile(file);
+		props.setWriteBehind(true);
+
+		props.put("first", "1");
+		props.put("second", "2");
+		props.remove("first");
+		assertFalse(file.exists());
+		assertEquals("2", props.get("second"));
+
+		assertTrue(props.flush());
+		PropsFile onDisk = read(file);
+		assertNull(onDisk.get("first"));
+		assertEquals("2", onDisk.get("second"));
+		assertFalse(new File(TEST_DIR, "writebehind.tmp").exists());
+	}
+
+	@Test
+	public void disablingWriteBehindFlushes() throws IOException {
+		File file = new File(TEST_DIR, "disable");
+		PropsFile props = PropsFile.createPropsFile(file);
+		props.setWriteBehind(true);
+
+		props.put("key", "value");
+		props.setWriteBehind(false);
+		assertEquals("value", read(file).get("key"));
+	}
+
+	private static PropsFile read(File file) throws IOException {
+		return PropsFile.createPropsFile(new FileInputStream(file), false);
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * IdentityCacheTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.wot;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import data.TestId1Data;
+import data.TestId2Data;
+
+import fakes.MockWoTConnection;
+import freenet.pluginmanager.PluginNotFoundException;
+
+public class IdentityCacheTest {
+	private static final Identity identity1 = TestId1Data.Identity.newInstance();
+	private static final Identity identity2 = TestId2Data.Identity.newInstance();
+
+	private CountingWoTConnection wotConnection;
+
+	@Before
+	public void before() {
+		wotConnection = new CountingWoTConnection();
+		wotConnection.setTrustedIdentities(Collections.singleton(identity1));
+		wotConnection.setUntrustedIdentities(Collections.<Identity>emptySet());
+		wotConnection.setOwnIdentities(Collections.<OwnIdentity>emptyList());
+	}
+
+	@Test
+	public void snapshotIsIndexed() throws PluginNotFoundException {
+		IdentityCache cache = new IdentityCache(null, IdentityCache.DEFAULT_TTL);
+		IdentityCache.Snapshot snapshot = cache.getSnapshot(wotConnection, identity1.getIdentityID());
+
+		assertEquals(identity1, snapshot.getByBase64Id(identity1.getIdentityID()));
+		assertEquals(identity1, snapshot.getByBase32Id(identity1.getBase32IdentityID()));
+		assertNull(snapshot.getByBase64Id(identity2.getIdentityID()));
+
+		Set<Identity> matches = new HashSet<Identity>();
+		snapshot.findByBase32Prefix(identity1.getNickname() + "@", matches);
+		assertEquals(Collections.singleton(identity1), matches);
+
+		matches.clear();
+		snapshot.findByBase64Prefix(identity2.getNickname(), matches);
+		assertTrue(matches.isEmpty());
+	}
+
+	@Test
+	public void snapshotIsReusedWithinTtl() throws PluginNotFoundException {
+		IdentityCache cache = new IdentityCache(null, IdentityCache.DEFAULT_TTL);
+		IdentityCache.Snapshot first = cache.getSnapshot(wotConnection, identity1.getIdentityID());
+		IdentityCache.Snapshot second = cache.getSnapshot(wotConnection, identity1.getIdentityID());
+
+		assertSame(first, second);
+		assertEquals(1, wotConnection.fetches);
+	}
+
+	@Test
+	public void staleSnapshotIsRefreshedInBackground() throws PluginNotFoundException {
+		final Set<Runnable> refreshes = new HashSet<Runnable>();
+		Executor executor = new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				refreshes.add(command);
+			}
+		};
+
+		IdentityCache cache = new IdentityCache(executor, -1);
+		IdentityCache.Snapshot first = cache.getSnapshot(wotConnection, identity1.getIdentityID());
+		assertEquals(1, first.size());
+
+		//The stale snapshot is returned while the refresh is pending
+		wotConnection.setUntrustedIdentities(Collections.singleton(identity2));
+		assertSame(first, cache.getSnapshot(wotConnection, identity1.getIdentityID()));
+		assertSame(first, cache.getSnapshot(wotConnection, identity1.getIdentityID()));
+		assertEquals(1, refreshes.size());
+
+		refreshes.iterator().next().run();
+		assertEquals(2, cache.getSnapshot(wotConnection, identity1.getIdentityID()).size());
+	}
+
+	@Test
+	public void errorsAreNotCached() throws PluginNotFoundException {
+		IdentityCache cache = new IdentityCache(null, IdentityCache.DEFAULT_TTL);
+		wotConnection.setTrustedIdentities(null);
+		assertNull(cache.getSnapshot(wotConnection, identity1.getIdentityID()));
+
+		wotConnection.setTrustedIdentities(Collections.singleton(identity1));
+		assertNotNull(cache.getSnapshot(wotConnection, identity1.getIdentityID()));
+	}
+
+	private static class CountingWoTConnection extends MockWoTConnection {
+		private int fetches = 0;
+
+		private CountingWoTConnection() {
+			super(null, null);
+		}
+
+		@Override
+		public Set<Identity> getAllTrustedIdentities(String trusterId) throws PluginNotFoundException {
+			fetches++;
+			return super.getAllTrustedIdentities(trusterId);
+		}
+	}
+}
@@ -66,6 +66,23 @@ public class IdentityMatcherTest {
 		runMatcherTest(recipient, set);
 	}
 
+	@Test
+	public void partialBase32Match() throws PluginNotFoundException {
+		//Domain part in upper case, which should still match
+		String recipient = identity.getNickname() + "@" + identity.getBase32IdentityID().substring(0, 10).toUpperCase();
+		EnumSet<MatchMethod> set = EnumSet.of(MatchMethod.PARTIAL_BASE32);
+
+		runMatcherTest(recipient, set);
+	}
+
+	@Test
+	public void partialBase64MatchOnNickname() throws PluginNotFoundException {
+		String recipient = identity.getNickname().substring(0, 4);
+		EnumSet<MatchMethod> set = EnumSet.of(MatchMethod.PARTIAL_BASE64);
+
+		runMatcherTest(recipient, set);
+	}
+
 	private void runMatcherTest(String recipient, EnumSet<MatchMethod> methods) throws PluginNotFoundException {
 		MockWoTConnection wotConnection = new MockWoTConnection(null, null);
 		wotConnection.setTrustedIdentities(Collections.singleton(identity));
@@ -0,0 +1,186 @@
+/*
+ * WoTConnectionImplTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.wot;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import freenet.pluginmanager.PluginNotFoundException;
+import freenet.support.SimpleFieldSet;
+import freenet.support.api.Bucket;
+
+public class WoTConnectionImplTest {
+	private static final String TRUSTER = "truster";
+
+	@Test(timeout = 10000)
+	public void repliesAreRoutedByConnectionIdentifier() throws Exception {
+		RecordingConnection connection = new RecordingConnection(TimeUnit.MINUTES.toMillis(1));
+		Future<Identity> first = connection.getIdentityAsync("first", TRUSTER);
+		Future<Identity> second = connection.getIdentityAsync("second", TRUSTER);
+
+		//WoT answers the second request first, and the replies don't name the request
+		List<Sent> sent = connection.awaitSent(2);
+		assertFalse(sent.get(0).identifier.equals(sent.get(1).identifier));
+		sent.get(1).reply(connection, identityReply(sent.get(1).sfs));
+		assertEquals("second", second.get().getIdentityID());
+		assertEquals("uri-second", second.get().getRequestURI());
+		assertFalse(first.isDone());
+
+		sent.get(0).reply(connection, identityReply(sent.get(0).sfs));
+		assertEquals("first", first.get().getIdentityID());
+		assertEquals("uri-first", first.get().getRequestURI());
+	}
+
+	@Test(timeout = 10000)
+	public void outOfOrderRepliesOfSameTypeAreNotSwapped() throws Exception {
+		RecordingConnection connection = new RecordingConnection(TimeUnit.MINUTES.toMillis(1));
+		Future<String> first = connection.getPropertyAsync("first", "key");
+		Future<String> second = connection.getPropertyAsync("second", "key");
+
+		List<Sent> sent = connection.awaitSent(2);
+		sent.get(1).reply(connection, propertyReply("2"));
+		sent.get(0).reply(connection, propertyReply("1"));
+		assertEquals("1", first.get());
+		assertEquals("2", second.get());
+	}
+
+	@Test(timeout = 10000)
+	public void replyToUnknownConnectionIsIgnored() throws Exception {
+		RecordingConnection connection = new RecordingConnection(TimeUnit.MINUTES.toMillis(1));
+		Future<String> property = connection.getPropertyAsync("identity", "key");
+
+		connection.onReply("Freemail-unknown", propertyReply("1"), null);
+		assertFalse(property.isDone());
+	}
+
+	@Test(timeout = 10000)
+	public void concurrentRequestsGetTheirOwnReplies() throws Exception {
+		final RecordingConnection connection = new RecordingConnection(TimeUnit.MINUTES.toMillis(1));
+		final int requests = 16;
+
+		final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int i = 0; i < requests; i++) {
+			final String id = "identity" + i;
+			Thread t = new Thread() {
+				@Override
+				public void run() {
+					try {
+						Identity identity = connection.getIdentity(id, TRUSTER);
+						assertEquals(id, identity.getIdentityID());
+						assertEquals("uri-" + id, identity.getRequestURI());
+					} catch(Throwable e) {
+						failures.add(e);
+					}
+				}
+			};
+			threads.add(t);
+			t.start();
+		}
+
+		//Answer all the requests at once, newest first
+		List<Sent> sent = connection.awaitSent(requests);
+		for(int i = sent.size() - 1; i >= 0; i--) {
+			sent.get(i).reply(connection, identityReply(sent.get(i).sfs));
+		}
+
+		for(Thread t : threads) {
+			t.join();
+		}
+		assertEquals(Collections.<Throwable>emptyList(), failures);
+	}
+
+	@Test(timeout = 10000)
+	public void blockingRequestGivesUpWithoutReply() throws Exception {
+		RecordingConnection connection = new RecordingConnection(100);
+		assertNull(connection.getProperty("identity", "key"));
+		assertFalse(connection.setContext("identity", "context"));
+
+		//Late replies are ignored
+		SimpleFieldSet reply = new SimpleFieldSet(true);
+		reply.putOverwrite("Message", "ContextAdded");
+		connection.awaitSent(2).get(1).reply(connection, reply);
+	}
+
+	private static SimpleFieldSet identityReply(SimpleFieldSet request) {
+		assertEquals("GetIdentity", request.get("Message"));
+
+		SimpleFieldSet reply = new SimpleFieldSet(true);
+		reply.putOverwrite("Message", "Identity");
+		reply.putOverwrite("RequestURI", "uri-" + request.get("Identity"));
+		return reply;
+	}
+
+	private static SimpleFieldSet propertyReply(String value) {
+		SimpleFieldSet reply = new SimpleFieldSet(true);
+		reply.putOverwrite("Message", "PropertyValue");
+		reply.putOverwrite("Property", value);
+		return reply;
+	}
+
+	private static class Sent {
+		private final String identifier;
+		private final SimpleFieldSet sfs;
+
+		private Sent(String identifier, SimpleFieldSet sfs) {
+			this.identifier = identifier;
+			this.sfs = sfs;
+		}
+
+		private void reply(WoTConnectionImpl connection, SimpleFieldSet reply) {
+			connection.onReply(identifier, reply, null);
+		}
+	}
+
+	/**
+	 * Records the messages that would have been sent to WoT. The test replies to them.
+	 */
+	private static class RecordingConnection extends WoTConnectionImpl {
+		private final List<Sent> sent = new ArrayList<Sent>();
+
+		private RecordingConnection(long replyTimeout) {
+			super(null, replyTimeout);
+		}
+
+		@Override
+		void sendToWoT(String identifier, SimpleFieldSet sfs, Bucket data) throws PluginNotFoundException {
+			synchronized(sent) {
+				sent.add(new Sent(identifier, sfs));
+				sent.notifyAll();
+			}
+		}
+
+		private List<Sent> awaitSent(int count) throws InterruptedException {
+			synchronized(sent) {
+				while(sent.size() < count) {
+					sent.wait();
+				}
+				return new ArrayList<Sent>(sent);
+			}
+		}
+	}
+}